@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Updates of a single account from 10 threads (a closed-loop hot key workload). With
+ * stripes > 0 the account is striped (and always updated atomically).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AccountBenchmark {
+	private static final String ACCOUNT_ID = "benchmark-account";
+
+	@Param({"LOCK", "ATOMIC"})
+	public AccountClient.UpdateMode mode;
+
+	@Param({"0", "8"})
+	public int stripes;
+
+	private BenchmarkCluster cluster;
+	private HazelcastInstance client;
+	private IMap<String, BudgetAccount> budgetAccountMap;
+
+	@Setup
+	public void setUp() {
+		cluster = BenchmarkCluster.start();
+		client = cluster.getClient();
+		budgetAccountMap = client.getMap("budget-account");
+		budgetAccountMap.remove(ACCOUNT_ID);
+		if (stripes > 0) {
+			StripedBudgetAccounts.forInstance(client).stripe(budgetAccountMap, ACCOUNT_ID, stripes);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.shutdown();
+	}
+
+	@Benchmark
+	@Threads(10)
+	public double addMoney() throws Exception {
+		// deposits only so that the account never runs out of money
+		return AccountClient.updateBudget(client, budgetAccountMap, ACCOUNT_ID, 1.0, mode);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.hazelcast.client.ClientConfig;
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.config.ClasspathXmlConfig;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.Join;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * In-process cluster used by the benchmarks. The members use the map settings
+ * of the server hazelcast.xml with the AWS discovery replaced by TCP/IP on the
+ * loopback interface, and a client is connected to all of them.
+ *
+ * The number of members is set with the benchmark.members system property
+ * (2 by default).
+ */
+public class BenchmarkCluster {
+	public static final String ADDRESS = "127.0.0.1";
+	public static final int BASE_PORT = 5701;
+
+	private final List<HazelcastInstance> members = new ArrayList<HazelcastInstance>();
+	private final HazelcastInstance client;
+
+	public BenchmarkCluster(int memberCount) {
+		for(int i = 0 ; i < memberCount ; i++) {
+			members.add(Hazelcast.newHazelcastInstance(createMemberConfig(memberCount)));
+		}
+
+		ClientConfig clientConfig = new ClientConfig();
+		clientConfig.getGroupConfig().setName("dev").setPassword("dev-pass");
+		for(int i = 0 ; i < memberCount ; i++) {
+			clientConfig.addAddress(ADDRESS + ":" + (BASE_PORT + i));
+		}
+		client = HazelcastClient.newHazelcastClient(clientConfig);
+	}
+
+	public static BenchmarkCluster start() {
+		return new BenchmarkCluster(Integer.getInteger("benchmark.members", 2));
+	}
+
+	public static Config createMemberConfig(int memberCount) {
+		Config config = new ClasspathXmlConfig("hazelcast.xml");
+		config.getNetworkConfig().setPort(BASE_PORT).setPortAutoIncrement(true);
+		config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface(ADDRESS);
+		Join join = config.getNetworkConfig().getJoin();
+		join.getAwsConfig().setEnabled(false);
+		join.getMulticastConfig().setEnabled(false);
+		join.getTcpIpConfig().setEnabled(true);
+		for(int i = 0 ; i < memberCount ; i++) {
+			join.getTcpIpConfig().addMember(ADDRESS + ":" + (BASE_PORT + i));
+		}
+		// the benchmarks measure the in-memory data grid, without persistence
+		config.getMapConfig("budget-account").getMapStoreConfig().setEnabled(false);
+		return config;
+	}
+
+	public HazelcastInstance getClient() {
+		return client;
+	}
+
+	public List<HazelcastInstance> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Puts count random persons in the map and returns their ssns.
+	 */
+	public static List<String> loadPersons(IMap<String, Person> personMap, int count) {
+		Random random = new Random(42);
+		List<String> ssns = new ArrayList<String>(count);
+		Map<String, Person> batch = new HashMap<String, Person>();
+		for(int i = 0 ; i < count ; i++) {
+			Person person = PersonClient.generatePerson(random);
+			ssns.add(person.getSsn());
+			batch.put(person.getSsn(), person);
+			if (batch.size() == 1000) {
+				personMap.putAll(batch);
+				batch.clear();
+			}
+		}
+		personMap.putAll(batch);
+		return ssns;
+	}
+
+	public void shutdown() {
+		client.getLifecycleService().shutdown();
+		for(HazelcastInstance member: members) {
+			member.getLifecycleService().shutdown();
+		}
+	}
+}
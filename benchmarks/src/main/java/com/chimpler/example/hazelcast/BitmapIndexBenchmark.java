@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.SqlPredicate;
+
+/**
+ * Evaluation of conjunctive queries on the low cardinality attributes of the
+ * person map by the members, with the map indexes of hazelcast.xml and with the
+ * bitmap index. Returns the number of matching entries of all the members.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BitmapIndexBenchmark {
+
+	@Param({"100000"})
+	public int persons;
+
+	@Param({
+		"address.state = 'TX' AND company.name = 'Globex' AND age > 30",
+		"address.state IN ('TX', 'CA') AND company.address.state = 'NY'",
+		"(address.state = 'TX' OR address.state = 'IL') AND company.name = 'Globex'"
+	})
+	public String query;
+
+	private BenchmarkCluster cluster;
+
+	@Setup
+	public void setUp() {
+		cluster = BenchmarkCluster.start();
+		IMap<String, Person> personMap = cluster.getClient().getMap("person");
+		BenchmarkCluster.loadPersons(personMap, persons);
+		for(HazelcastInstance member: cluster.getMembers()) {
+			BitmapIndex.register(member, "person", "address.state", "company.address.state", "company.name");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.shutdown();
+	}
+
+	@Benchmark
+	public int mapIndexes() {
+		int count = 0;
+		for(HazelcastInstance member: cluster.getMembers()) {
+			count += member.getMap("person").localKeySet(new SqlPredicate(query)).size();
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int bitmapIndex() {
+		int count = 0;
+		for(HazelcastInstance member: cluster.getMembers()) {
+			count += BitmapIndex.get(member, "person").query(member.getMap("person"), query).size();
+		}
+		return count;
+	}
+}
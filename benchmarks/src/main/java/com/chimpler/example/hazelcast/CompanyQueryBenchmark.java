@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * Queries and aggregations on the employees of a company, sent to all the members
+ * for the person map (keyed by ssn) and to the member owning the company for the
+ * person-by-company map (keyed by PersonKey), with the same persons in both maps.
+ * The gets compare the person map with the ssn to company lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompanyQueryBenchmark {
+
+	@Param({"100000"})
+	public int persons;
+
+	@Param({"Globex"})
+	public String companyName;
+
+	@Param({"age > 30"})
+	public String query;
+
+	private BenchmarkCluster cluster;
+	private IMap<String, Person> personMap;
+	private CompanyPersons companyPersons;
+	private String companyQuery;
+	private String[] ssns;
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		final Random random = new Random();
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		cluster = BenchmarkCluster.start();
+		personMap = cluster.getClient().getMap("person");
+		companyPersons = new CompanyPersons(cluster.getClient());
+		companyQuery = CompanyPersons.getCompanyQuery(companyName, query);
+
+		Random random = new Random(42);
+		List<String> loadedSsns = new ArrayList<String>(persons);
+		Map<String, Person> batch = new HashMap<String, Person>();
+		for(int i = 0 ; i < persons ; i++) {
+			Person person = PersonClient.generatePerson(random);
+			loadedSsns.add(person.getSsn());
+			batch.put(person.getSsn(), person);
+			if (batch.size() == 1000 || i == persons - 1) {
+				personMap.putAll(batch);
+				companyPersons.putAll(batch.values());
+				batch.clear();
+			}
+		}
+		ssns = loadedSsns.toArray(new String[loadedSsns.size()]);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.shutdown();
+	}
+
+	@Benchmark
+	public int fanOutQuery() {
+		int count = 0;
+		Iterator<Person> persons = PersonClient.streamPersons(cluster.getClient(), personMap, companyQuery);
+		while(persons.hasNext()) {
+			persons.next();
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int routedQuery() throws Exception {
+		return companyPersons.query(companyName, query).size();
+	}
+
+	@Benchmark
+	public AggregationTask.Result fanOutAggregation() throws Exception {
+		return PersonClient.aggregate(cluster.getClient(), personMap, "age", null, companyQuery);
+	}
+
+	@Benchmark
+	public AggregationTask.Result routedAggregation() throws Exception {
+		return companyPersons.aggregate(companyName, "age", null, query);
+	}
+
+	@Benchmark
+	public Person getBySsn(ThreadState state) {
+		return personMap.get(ssns[state.random.nextInt(ssns.length)]);
+	}
+
+	@Benchmark
+	public Person getThroughCompanyLookup(ThreadState state) {
+		return companyPersons.get(ssns[state.random.nextInt(ssns.length)]);
+	}
+}
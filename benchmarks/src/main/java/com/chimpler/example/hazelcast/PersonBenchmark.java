@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.SqlPredicate;
+
+/**
+ * Queries on the person map, one query per indexed attribute (the lookups by ssn
+ * are in PersonGetBenchmark).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PersonBenchmark {
+
+	@Param({"100000"})
+	public int persons;
+
+	@Param({"ssn", "age", "company.name", "address.state", "company.address.state"})
+	public String attribute;
+
+	private BenchmarkCluster cluster;
+	private IMap<String, Person> personMap;
+	private String query;
+
+	@Setup
+	public void setUp() {
+		cluster = BenchmarkCluster.start();
+		personMap = cluster.getClient().getMap("person");
+		List<String> ssns = BenchmarkCluster.loadPersons(personMap, persons);
+
+		Map<String, String> queries = new HashMap<String, String>();
+		queries.put("ssn", "ssn = '" + ssns.get(0) + "'");
+		queries.put("age", "age = 42");
+		queries.put("company.name", "company.name = 'Acme Corp.'");
+		queries.put("address.state", "address.state = 'TX'");
+		queries.put("company.address.state", "company.address.state = 'CA'");
+		query = queries.get(attribute);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.shutdown();
+	}
+
+	@Benchmark
+	public Collection<Person> runQuery() {
+		return personMap.values(new SqlPredicate(query));
+	}
+}
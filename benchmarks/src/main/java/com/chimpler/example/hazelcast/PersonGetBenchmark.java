@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * Lookups of random persons by ssn, as done by get-person. Kept apart from
+ * PersonBenchmark, whose attribute parameter would run the same lookups once per
+ * indexed attribute.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PersonGetBenchmark {
+	private static final int PERSONS = 100000;
+
+	private BenchmarkCluster cluster;
+	private IMap<String, Person> personMap;
+	private String[] ssns;
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		final Random random = new Random();
+	}
+
+	@Setup
+	public void setUp() {
+		cluster = BenchmarkCluster.start();
+		personMap = cluster.getClient().getMap("person");
+		List<String> loadedSsns = BenchmarkCluster.loadPersons(personMap, PERSONS);
+		ssns = loadedSsns.toArray(new String[loadedSsns.size()]);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.shutdown();
+	}
+
+	@Benchmark
+	public Person getPerson(ThreadState state) {
+		return personMap.get(ssns[state.random.nextInt(ssns.length)]);
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.client.ClientConfig;
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * Runs the workload of WorkloadDriver against a LocalCluster while members are
+ * added, killed or removed, then reports the throughput and latencies for each
+ * number of members and the time taken to repartition after each change.
+ *
+ * The scenario is a list of steps separated by commas:
+ *
+ *   members [count]          start members until the cluster has count members
+ *   add                      start a member
+ *   kill [index]             crash a member (the first one by default)
+ *   leave [index]            shut a member down gracefully
+ *   run [seconds] [action@seconds...]
+ *                            run the workload, doing the actions (add, kill:[index] or
+ *                            leave:[index]) the given number of seconds after the start
+ *
+ * e.g. "members 1, run 30, add, run 30, add, run 30, run 60 kill@20, run 30". The steps
+ * changing the members outside of a run wait for the repartitioning to complete.
+ * The workload is configured with the workload.* system properties (rate 0, i.e.
+ * as fast as possible, by default). With several workload.rates, each run runs
+ * one phase per rate for the given number of seconds and the report has a line
+ * per phase.
+ *
+ * The members run in this JVM and share the static Metrics: the member-side
+ * metrics printed at the end of the report are the sums over all the members.
+ */
+public class ScalingScenario {
+	public static final String DEFAULT_SCENARIO = "members 1, run 30, add, run 30, add, run 30, add, run 30,"
+			+ " run 60 kill@20, run 30";
+
+	private final LocalCluster cluster;
+	private final long startMillis = System.currentTimeMillis();
+	private final List<String> runReports = new ArrayList<String>();
+	private final List<String> changeReports = new ArrayList<String>();
+	private HazelcastInstance client;
+	private WorkloadDriver driver;
+
+	public ScalingScenario(int maxMembers) {
+		this.cluster = new LocalCluster(maxMembers);
+	}
+
+	public static void main(String args[]) throws Exception {
+		String scenario = args.length > 0 ? args[0] : DEFAULT_SCENARIO;
+		ScalingScenario scalingScenario = new ScalingScenario(Integer.getInteger("local.maxMembers", 8));
+		try {
+			scalingScenario.run(scenario);
+		} finally {
+			scalingScenario.shutdown();
+		}
+		scalingScenario.printReport();
+		System.exit(0);
+	}
+
+	public void run(String scenario) throws Exception {
+		for(String step: scenario.split(",")) {
+			String[] arguments = step.trim().split("\\s+");
+			if (arguments[0].equals("members")) {
+				int count = Integer.parseInt(arguments[1]);
+				while(cluster.getMemberCount() < count) {
+					changeMembers("add");
+				}
+			} else if (arguments[0].equals("run")) {
+				runWorkload(step.trim(), Integer.parseInt(arguments[1]), arguments);
+			} else {
+				changeMembers(step.trim().replace(' ', ':'));
+			}
+		}
+	}
+
+	private void runWorkload(String step, int seconds, String[] arguments) throws Exception {
+		if (client == null) {
+			ClientConfig clientConfig = new ClientConfig();
+			clientConfig.getGroupConfig().setName("dev").setPassword("dev-pass");
+			for(String address: cluster.getAddresses()) {
+				clientConfig.addAddress(address);
+			}
+			client = HazelcastClient.newHazelcastClient(clientConfig);
+			driver = WorkloadDriver.fromSystemProperties(client, client.<String, BudgetAccount>getMap("budget-account"),
+					client.<String, Person>getMap("person"), "account-update:50,person-get:50");
+		} else {
+			// preloaded and warmed up by the first run
+			driver.setPreload(false);
+			driver.setWarmupSeconds(0);
+		}
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		for(int i = 2 ; i < arguments.length ; i++) {
+			final String[] action = arguments[i].split("@");
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						changeMembers(action[0]);
+					} catch (Exception e) {
+						System.err.println("Cannot " + action[0] + ": " + e);
+					}
+				}
+			}, Long.parseLong(action[1]), TimeUnit.SECONDS);
+		}
+
+		int membersBefore = cluster.getMemberCount();
+		driver.setDurationSeconds(seconds);
+		List<WorkloadDriver.PhaseResult> results = driver.run();
+		scheduler.shutdown();
+		scheduler.awaitTermination(LocalCluster.REPARTITION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		int membersAfter = cluster.getMemberCount();
+
+		for(WorkloadDriver.PhaseResult result: results) {
+			LatencyHistogram.Snapshot latency = result.getTotalResponseTime();
+			runReports.add(String.format("%-30s %8s %10s %12.0f %10.2f %10.2f %10d", step,
+					membersBefore == membersAfter ? String.valueOf(membersAfter) : membersBefore + "->" + membersAfter,
+					result.getRate() == 0 ? "max" : String.valueOf(result.getRate()), result.getThroughput(),
+					latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6,
+					result.getFailureCount()));
+		}
+	}
+
+	/**
+	 * Runs add, kill[:index] or leave[:index] and waits for the repartitioning.
+	 */
+	private void changeMembers(String action) throws Exception {
+		String[] arguments = action.split(":");
+		int index = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 0;
+		long migrationsBefore = cluster.getMigrationCount();
+		long changeMillis = System.currentTimeMillis();
+		if (arguments[0].equals("add")) {
+			cluster.addMember();
+		} else if (arguments[0].equals("kill")) {
+			cluster.killMember(index);
+		} else if (arguments[0].equals("leave")) {
+			cluster.removeMember(index);
+		} else {
+			throw new IllegalArgumentException("Invalid step " + action);
+		}
+		long repartitionMillis = cluster.waitForRepartition(changeMillis, LocalCluster.REPARTITION_TIMEOUT_MILLIS);
+		String report = String.format("%8.1f %-12s %8d %18s %10d", (changeMillis - startMillis) / 1000.0, action,
+				cluster.getMemberCount(), repartitionMillis < 0 ? "timeout" : String.valueOf(repartitionMillis),
+				cluster.getMigrationCount() - migrationsBefore);
+		System.out.println("Members changed: " + report);
+		synchronized(changeReports) {
+			changeReports.add(report);
+		}
+	}
+
+	public void printReport() {
+		System.out.println("Scaling report:");
+		System.out.println(String.format("%-30s %8s %10s %12s %10s %10s %10s", "run", "members", "target/s", "ops/s",
+				"p50 (ms)", "p99 (ms)", "failures"));
+		for(String report: runReports) {
+			System.out.println(report);
+		}
+		System.out.println("Member changes:");
+		System.out.println(String.format("%8s %-12s %8s %18s %10s", "time (s)", "change", "members",
+				"repartition (ms)", "migrations"));
+		synchronized(changeReports) {
+			for(String report: changeReports) {
+				System.out.println(report);
+			}
+		}
+		System.out.println("Metrics (the member.* metrics are merged across all the members of this JVM):");
+		System.out.print(Metrics.report(false));
+	}
+
+	public void shutdown() {
+		if (client != null) {
+			client.getLifecycleService().shutdown();
+		}
+		cluster.shutdown();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a person with the compact format and with java serialization.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SerializationBenchmark {
+	private Person person;
+	private byte[] compactBytes;
+	private byte[] javaBytes;
+
+	@Setup
+	public void setUp() throws Exception {
+		person = PersonClient.generatePerson(new Random(42));
+		compactBytes = SerializationUtils.toBytes(person);
+		javaBytes = SerializationUtils.toJavaBytes(person);
+	}
+
+	@Benchmark
+	public byte[] writeCompact() throws Exception {
+		return SerializationUtils.toBytes(person);
+	}
+
+	@Benchmark
+	public Person readCompact() throws Exception {
+		return SerializationUtils.fromBytes(compactBytes, new Person());
+	}
+
+	@Benchmark
+	public byte[] writeJava() throws Exception {
+		return SerializationUtils.toJavaBytes(person);
+	}
+
+	@Benchmark
+	public Object readJava() throws Exception {
+		return SerializationUtils.fromJavaBytes(javaBytes);
+	}
+}
@@ -16,76 +16,243 @@
 
 package com.chimpler.example.hazelcast;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
-import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.GroupIdentifier;
-import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Reservation;
-import com.hazelcast.client.ClientConfig;
-import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.core.DistributedTask;
 import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.EntryListener;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
 import com.hazelcast.core.Member;
+import com.hazelcast.query.SqlPredicate;
 
 public class AccountClient {
+	private static final LatencyHistogram lockLatency = Metrics.histogram("account.lock");
+	private static final LatencyHistogram getLatency = Metrics.histogram("account.get");
+	private static final LatencyHistogram putLatency = Metrics.histogram("account.put");
+	private static final LatencyHistogram updateLatency = Metrics.histogram("account.update");
+	private static final LatencyHistogram listenerLag = Metrics.histogram("account.listener.lag");
+	private static final AtomicLong updateCount = Metrics.counter("account.update.count");
+	private static final AtomicLong insufficientBudgetCount = Metrics.counter("account.update.insufficientBudget");
+	private static final AtomicLong failureCount = Metrics.counter("account.update.failure");
+	private static final AdmissionLimiter accountWrites = AdmissionLimiter.forName("budget-account");
+	private static final long LISTENER_STATS_INTERVAL_MILLIS = 5000;
+	private static final double TRANSFER_BENCHMARK_BALANCE = 1000;
+
+	/**
+	 * How an account is updated: LOCK takes the cluster lock on the account and
+	 * does a get then a put from the client, ATOMIC runs an AddMoneyTask on the member
+	 * owning the account (one round trip, no cluster lock).
+	 */
+	public enum UpdateMode {
+		LOCK, ATOMIC
+	}
 	
 	public static void printHelp() {
 		System.out.println("Arguments:");
-		System.out.println("	add-money [accountId] [amount]: add money to the account. Set to negative to withdraw money");
-		System.out.println("	continuous-spend [accountId]: spend money at random on the account");
+		System.out.println("	add-money [accountId] [amount] [lock|atomic]: add money to the account. Set to negative to withdraw money");
+		System.out.println("	workload: run the workload configured with -Dworkload.* (see WorkloadDriver)");
+		System.out.println("	stripe-account [accountId] [stripes]: split the account in stripes on different partitions");
+		System.out.println("	deposit [groupId/accountId] [amount]: add money to a grouped account, or to an account of");
+		System.out.println("		budget-account without groupId/");
+		System.out.println("	transfer [groupId/accountId] [groupId/accountId] [amount]: transfer money between accounts");
+		System.out.println("	transfer-benchmark [groups] [accountsPerGroup] [transfers] [batchSize]: compare the throughput of");
+		System.out.println("		the transfers within a group and between groups");
 		System.out.println("	list-accounts: list all accounts");
+		System.out.println("	export [snapshot]: export the accounts (plain, striped and grouped) to snapshot files written");
+		System.out.println("		by the members on their disk");
+		System.out.println("	import [snapshot]: import the accounts of a snapshot exported by the members");
 		System.out.println("	list-members: list all members");
-		System.out.println("	listen: listen to changes to the account");
+		System.out.println("	listen: listen to changes to the account, the listener lag is recorded when the members and");
+		System.out.println("		the clients updating the accounts run with -Daccount.trackUpdateTime=true");
+		System.out.println("	listen-coalesced [windowMillis] [key-only|values] [queueCapacity] [drop-oldest|drop-newest|block]:");
+		System.out.println("		listen to the changes coalesced by account over a window, delivered asynchronously");
 	}
 	
-	public static void listAccountBudgets(IMap<String, BudgetAccount> budgetAccountMap) {
+	public static void listAccountBudgets(HazelcastInstance instance, IMap<String, BudgetAccount> budgetAccountMap) {
 		System.out.println("Budgets:");
 		for(BudgetAccount account: budgetAccountMap.values()) {
-			System.out.println(account);
+			// the tombstones of the striped accounts are listed with the stripes
+			if (!account.isStriped()) {
+				System.out.println(account);
+			}
+		}
+		for(BudgetAccount account: StripedBudgetAccounts.forInstance(instance).getAccounts()) {
+			System.out.println(account + " (striped)");
+		}
+		for(BudgetAccount account: instance.<AccountKey, BudgetAccount>getMap(TransferTask.GROUPED_ACCOUNT_MAP).values()) {
+			System.out.println(account + " (grouped)");
+		}
+	}
+
+	/**
+	 * Exports the maps of the accounts together: the stripes of the striped
+	 * accounts, the grouped accounts and the budget-account map with the tombstones
+	 * of the striped accounts, from which the striping map is rebuilt on import.
+	 */
+	public static void exportAccounts(HazelcastInstance instance, String snapshotName) throws Exception {
+		MapSnapshots.export(instance, StripedBudgetAccounts.STRIPE_MAP, snapshotName);
+		MapSnapshots.export(instance, TransferTask.GROUPED_ACCOUNT_MAP, snapshotName);
+		MapSnapshots.export(instance, TransferTask.ACCOUNT_MAP, snapshotName);
+	}
+
+	public static void importAccounts(HazelcastInstance instance, String snapshotName) throws Exception {
+		MapSnapshots.importSnapshot(instance, StripedBudgetAccounts.STRIPE_MAP, snapshotName);
+		MapSnapshots.importSnapshot(instance, TransferTask.GROUPED_ACCOUNT_MAP, snapshotName);
+		MapSnapshots.importSnapshot(instance, TransferTask.ACCOUNT_MAP, snapshotName);
+		IMap<String, BudgetAccount> budgetAccountMap = instance.getMap(TransferTask.ACCOUNT_MAP);
+		IMap<String, Integer> stripingMap = instance.getMap(StripedBudgetAccounts.STRIPING_MAP);
+		int stripedCount = 0;
+		for(Map.Entry<String, BudgetAccount> entry: budgetAccountMap.entrySet(new SqlPredicate("stripes > 0"))) {
+			stripingMap.put(entry.getKey(), entry.getValue().getStripes());
+			stripedCount++;
 		}
+		System.out.println("Restored the striping of " + stripedCount + " accounts");
 	}
 
-	public static void addMoney(IMap<String, BudgetAccount> budgetAccountMap, String accountId, Double amount) throws Exception{
+	/**
+	 * Splits the account in stripes, through the AdmissionLimiter of the budget-account map.
+	 */
+	public static void stripeAccount(final HazelcastInstance instance,
+			final IMap<String, BudgetAccount> budgetAccountMap, final String accountId, final int stripes)
+			throws Exception {
+		accountWrites.call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				StripedBudgetAccounts.forInstance(instance).stripe(budgetAccountMap, accountId, stripes);
+				return null;
+			}
+		});
+		System.out.println("Account " + accountId + " split in " + stripes + " stripes");
+	}
+
+	public static void addMoney(HazelcastInstance instance, IMap<String, BudgetAccount> budgetAccountMap,
+			String accountId, Double amount, UpdateMode mode) throws Exception {
+		double balance = updateBudget(instance, budgetAccountMap, accountId, amount, mode);
+		System.out.println("Added " + amount + " to account " + accountId + ", new balance: " + balance);
+	}
+
+	/**
+	 * Adds the amount to the account and returns the new balance. Striped accounts
+	 * are always updated atomically and the balance returned is the one of the stripe
+	 * that was updated.
+	 *
+	 * The updates go through the AdmissionLimiter of the budget-account map and fail
+	 * with a RejectedExecutionException when they are shed.
+	 */
+	public static double updateBudget(final HazelcastInstance instance,
+			final IMap<String, BudgetAccount> budgetAccountMap, final String accountId, final double amount,
+			final UpdateMode mode) throws Exception {
+		long start = System.nanoTime();
+		try {
+			double balance = accountWrites.call(new Callable<Double>() {
+				@Override
+				public Double call() throws Exception {
+					StripedBudgetAccounts stripedAccounts = StripedBudgetAccounts.forInstance(instance);
+					if (stripedAccounts.isStriped(accountId)) {
+						return stripedAccounts.updateBudget(accountId, amount);
+					}
+					try {
+						if (mode == UpdateMode.ATOMIC) {
+							return updateBudgetAtomic(instance, budgetAccountMap, accountId, amount);
+						}
+						return updateBudgetWithLock(budgetAccountMap, accountId, amount);
+					} catch (AccountStripedException e) {
+						// the account was striped by another client, its listener did not tell us yet
+						stripedAccounts.setStriped(accountId, e.getStripes());
+						return stripedAccounts.updateBudget(accountId, amount);
+					}
+				}
+			});
+			updateCount.incrementAndGet();
+			return balance;
+		} catch (InsufficientBudgetException e) {
+			insufficientBudgetCount.incrementAndGet();
+			throw e;
+		} catch (Exception e) {
+			failureCount.incrementAndGet();
+			throw e;
+		} finally {
+			updateLatency.recordSince(start);
+		}
+	}
+
+	public static double updateBudgetAtomic(HazelcastInstance instance, IMap<String, BudgetAccount> budgetAccountMap,
+			String accountId, double amount) throws Exception {
+		DistributedTask<Double> task = new DistributedTask<Double>(
+				new AddMoneyTask(budgetAccountMap.getName(), accountId, amount), accountId);
+		instance.getExecutorService().execute(task);
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public static double updateBudgetWithLock(IMap<String, BudgetAccount> budgetAccountMap, String accountId,
+			double amount) throws Exception {
 		// this is not optimal to use a lock but uses it to keep it simple
+		long start = System.nanoTime();
 		budgetAccountMap.lock(accountId);
+		lockLatency.recordSince(start);
 		try {
 			BudgetAccount updatedAccount = new BudgetAccount();
 			updatedAccount.setAccountId(accountId);
 			
+			start = System.nanoTime();
 			BudgetAccount existingAccount = budgetAccountMap.get(accountId);
+			getLatency.recordSince(start);
+			if (existingAccount != null && existingAccount.isStriped()) {
+				throw new AccountStripedException(accountId, existingAccount.getStripes());
+			}
 			if (existingAccount != null) {
-				if (existingAccount.getBudget() < amount) {
-					throw new Exception("Not enough money on the account");
+				if (existingAccount.getBudget() + amount < 0) {
+					throw new InsufficientBudgetException();
 				}
 				updatedAccount.setBudget(existingAccount.getBudget() + amount);
 			} else {
 				if (amount < 0) {
-					throw new Exception("Not enough money on the account");
+					throw new InsufficientBudgetException();
 				}
 				updatedAccount.setBudget(amount);
 			}
+			updatedAccount.setUpdateTime(BudgetAccount.currentUpdateTime());
+			start = System.nanoTime();
 			budgetAccountMap.put(accountId, updatedAccount);
+			putLatency.recordSince(start);
+			return updatedAccount.getBudget();
 		} finally {
 			budgetAccountMap.unlock(accountId);
 		}
-		System.out.println("Added " + amount + " to account " + accountId);
 	}
 	
+	/**
+	 * Prints the changes to the accounts. When the writers of the accounts track
+	 * the update times (see BudgetAccount.currentUpdateTime), the time between an
+	 * update and its notification is recorded in the account.listener.lag
+	 * histogram, which assumes that the clocks of the clients and of the members
+	 * are synchronized.
+	 */
 	public static void listenAccountBudgets(IMap<String, BudgetAccount> budgetAccountMap) {
 		budgetAccountMap.addEntryListener(new EntryListener<String, BudgetAccount>() {
 			
 			@Override
 			public void entryUpdated(EntryEvent<String, BudgetAccount> budgetAccount) {
+				if (budgetAccount.getValue().isStriped()) {
+					printStriped(budgetAccount.getValue());
+					return;
+				}
+				recordLag(budgetAccount.getValue());
 				System.out.println("Updated: " + budgetAccount);
 			}
 			
@@ -101,63 +268,140 @@ public class AccountClient {
 			
 			@Override
 			public void entryAdded(EntryEvent<String, BudgetAccount> budgetAccount) {
+				if (budgetAccount.getValue().isStriped()) {
+					printStriped(budgetAccount.getValue());
+					return;
+				}
+				recordLag(budgetAccount.getValue());
 				System.out.println("Added: " + budgetAccount);
 			}
 		}, true);
 	}
+
+	// the tombstone left by the conversion is not an account, the changes of the stripes are not listened to
+	private static void printStriped(BudgetAccount tombstone) {
+		System.out.println("Striped: " + tombstone.getAccountId() + " split in " + tombstone.getStripes() + " stripes");
+	}
+
+	private static void recordLag(BudgetAccount account) {
+		if (account != null && account.getUpdateTime() > 0) {
+			listenerLag.recordNanos(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - account.getUpdateTime()));
+		}
+	}
 	
+	/**
+	 * Prints the latest change of each account over a window, the changes being
+	 * printed by another thread than the event thread. The listener stats are
+	 * printed every few seconds.
+	 */
+	public static void listenCoalescedAccountBudgets(IMap<String, BudgetAccount> budgetAccountMap,
+			long windowMillis, boolean keyOnly, int queueCapacity, CoalescingEntryListener.OverflowPolicy policy)
+			throws InterruptedException {
+		CoalescingEntryListener<String, BudgetAccount> listener = new CoalescingEntryListener<String, BudgetAccount>(
+				budgetAccountMap, keyOnly, windowMillis, queueCapacity, policy,
+				new CoalescingEntryListener.Sink<String, BudgetAccount>() {
+					@Override
+					public void accept(Map<String, BudgetAccount> changes) {
+						for(Map.Entry<String, BudgetAccount> change: changes.entrySet()) {
+							if (change.getValue() == null) {
+								System.out.println("Removed: " + change.getKey());
+							} else if (change.getValue().isStriped()) {
+								printStriped(change.getValue());
+							} else {
+								recordLag(change.getValue());
+								System.out.println("Changed: " + change.getValue());
+							}
+						}
+					}
+				});
+		listener.start();
+		while(true) {
+			Thread.sleep(LISTENER_STATS_INTERVAL_MILLIS);
+			System.out.println("Listener: " + listener + ", " + listenerLag.snapshot(false));
+		}
+	}
+
 	public static void listMembers(HazelcastInstance instance) {
 		for(Member member: instance.getCluster().getMembers()) {
 			System.out.println(member);
 		}
 	}
 	
-	public static void continuousSpend(final IMap<String, BudgetAccount> budgetAccountMap, final String accountId) throws Exception {
-		ExecutorService executorService = Executors.newFixedThreadPool(10);
-		for(int i = 0 ; i < 10 ; i++) {
-			executorService.submit(new Runnable() {
-				@Override
-				public void run() {
-					Random random = new Random();
-					try {
-						while(true) {
-							addMoney(budgetAccountMap, accountId, -random.nextDouble());
-						}
-					} catch (Exception e) {
-					}
+	/**
+	 * Runs the workload configured with the workload.* system properties (by
+	 * default, atomic updates of the accounts), see WorkloadDriver.
+	 */
+	public static void runWorkload(HazelcastInstance instance, IMap<String, BudgetAccount> budgetAccountMap)
+			throws Exception {
+		WorkloadDriver.fromSystemProperties(instance, budgetAccountMap, instance.<String, Person>getMap("person"),
+				"account-update:100").run();
+		System.out.print(Metrics.report(false));
+	}
+
+	public static void transfer(HazelcastInstance instance, AccountKey from, AccountKey to, double amount)
+			throws Exception {
+		AccountTransfers transfers = new AccountTransfers(instance);
+		if (from == null) {
+			transfers.deposit(to, amount);
+			System.out.println("Added " + amount + " to account " + to + ", new balance: " + transfers.getBalance(to));
+		} else {
+			transfers.transfer(from, to, amount);
+			System.out.println("Transferred " + amount + " from " + from + " (new balance: "
+					+ transfers.getBalance(from) + ") to " + to + " (new balance: " + transfers.getBalance(to) + ")");
+		}
+	}
+
+	/**
+	 * Creates the accounts bench-[group]/[account] and runs the same number of
+	 * random transfers within the groups (one task per group and batch) and between
+	 * groups (transactions), then checks that the total balance did not change.
+	 */
+	public static void runTransferBenchmark(HazelcastInstance instance, int groups, int accountsPerGroup,
+			int transferCount, int batchSize) throws Exception {
+		AccountTransfers transfers = new AccountTransfers(instance);
+		List<Transfer> deposits = new ArrayList<Transfer>();
+		for(int group = 0 ; group < groups ; group++) {
+			for(int account = 0 ; account < accountsPerGroup ; account++) {
+				AccountKey key = new AccountKey("bench-" + group, String.valueOf(account));
+				transfers.remove(key);
+				deposits.add(new Transfer(null, key, TRANSFER_BENCHMARK_BALANCE));
+			}
+		}
+		transfers.transferAll(deposits);
+
+		Random random = new Random();
+		for(boolean local: new boolean[] { true, false }) {
+			long start = System.currentTimeMillis();
+			int done = 0;
+			for(int count = 0 ; count < transferCount ; count += batchSize) {
+				List<Transfer> batch = new ArrayList<Transfer>(batchSize);
+				for(int i = 0 ; i < Math.min(batchSize, transferCount - count) ; i++) {
+					int fromGroup = random.nextInt(groups);
+					int toGroup = local || groups == 1 ? fromGroup : (fromGroup + 1 + random.nextInt(groups - 1)) % groups;
+					AccountKey from = new AccountKey("bench-" + fromGroup, String.valueOf(random.nextInt(accountsPerGroup)));
+					AccountKey to = new AccountKey("bench-" + toGroup, String.valueOf(random.nextInt(accountsPerGroup)));
+					batch.add(new Transfer(from, to, 1 + random.nextInt(100)));
 				}
-			});
+				for(boolean result: transfers.transferAll(batch)) {
+					done += result ? 1 : 0;
+				}
+			}
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println(String.format("%s transfers: %d in %.1fs (%.0f transfers/s), %d done",
+					local ? "Local" : "Transactional", transferCount, elapsed / 1000.0,
+					transferCount * 1000.0 / elapsed, done));
+		}
+
+		double total = 0;
+		for(Transfer deposit: deposits) {
+			total += transfers.getBalance(deposit.getTo());
 		}
-		executorService.shutdown();
-		executorService.awaitTermination(5, TimeUnit.MINUTES);
+		System.out.println("Total balance: " + total + " (expected " + deposits.size() * TRANSFER_BENCHMARK_BALANCE + ")");
+		System.out.print(Metrics.report(false));
 	}
 
 	public static HazelcastInstance initHazelcastClient() throws Exception {
-		ClientConfig hazelCastClientConfig = new ClientConfig();
-		hazelCastClientConfig.getGroupConfig().setName("dev").setPassword("dev-pass");
-		
-		AWSCredentialsProvider awsCredentialProvider = new ClasspathPropertiesFileCredentialsProvider("aws.properties");
-		AmazonEC2Client ec2 = new AmazonEC2Client(awsCredentialProvider);
-        DescribeAvailabilityZonesResult availabilityZonesResult = ec2.describeAvailabilityZones();
-        System.out.println("You have access to " + availabilityZonesResult.getAvailabilityZones().size() +
-        		" Availability Zones.");
-
-        DescribeInstancesResult describeInstancesRequest = ec2.describeInstances();
-
-        for (Reservation reservation: describeInstancesRequest.getReservations()) {
-        	for(Instance instance: reservation.getInstances()) {
-        		for(GroupIdentifier group: instance.getSecurityGroups()) {
-        			if (group.getGroupName().equals("jclouds#hazelcast")) {
-                        System.out.println("EC2 instance " + instance.getPublicIpAddress());
-                		hazelCastClientConfig.addAddress(instance.getPublicIpAddress(),
-                				instance.getPublicIpAddress() + ":5701");
-        			}
-        		}
-        	}
-        }		
-        HazelcastInstance hazelCastClient = HazelcastClient.newHazelcastClient(hazelCastClientConfig);
-        
-        return hazelCastClient;
+		return HazelcastClientFactory.newHazelcastClient();
 	}
 
 	
@@ -168,7 +412,17 @@ public class AccountClient {
 		}
 		String action = args[0];
 		String accountId = null;
+		String snapshotName = null;
 		Double amount = null;
+		int stripes = 0;
+		UpdateMode mode = UpdateMode.ATOMIC;
+		long windowMillis = 100;
+		boolean keyOnly = true;
+		int queueCapacity = 16;
+		AccountKey fromKey = null;
+		AccountKey toKey = null;
+		int[] benchmarkArgs = { 100, 10, 100000, 100 };
+		CoalescingEntryListener.OverflowPolicy policy = CoalescingEntryListener.OverflowPolicy.DROP_OLDEST;
 		if (action.equals("list-accounts")
 				|| action.equals("list-members")
 				|| action.equals("listen")) {
@@ -176,31 +430,81 @@ public class AccountClient {
 		} else if (action.equals("add-money")) {
 			accountId = args[1]; 
 			amount = Double.parseDouble(args[2]);
-		} else if (action.equals("continuous-spend")) {
-			accountId = args[1]; 
+			if (args.length > 3) {
+				mode = UpdateMode.valueOf(args[3].toUpperCase());
+			}
+		} else if (action.equals("export") || action.equals("import")) {
+			snapshotName = args[1];
+		} else if (action.equals("stripe-account")) {
+			accountId = args[1];
+			stripes = Integer.parseInt(args[2]);
+		} else if (action.equals("deposit")) {
+			toKey = AccountKey.parse(args[1]);
+			amount = Double.parseDouble(args[2]);
+		} else if (action.equals("transfer")) {
+			fromKey = AccountKey.parse(args[1]);
+			toKey = AccountKey.parse(args[2]);
+			amount = Double.parseDouble(args[3]);
+		} else if (action.equals("transfer-benchmark")) {
+			for(int i = 1 ; i < args.length && i <= benchmarkArgs.length ; i++) {
+				benchmarkArgs[i - 1] = Integer.parseInt(args[i]);
+			}
+		} else if (action.equals("workload")) {
+			// configured with system properties
+		} else if (action.equals("listen-coalesced")) {
+			if (args.length > 1) {
+				windowMillis = Long.parseLong(args[1]);
+			}
+			if (args.length > 2) {
+				keyOnly = args[2].equals("key-only");
+			}
+			if (args.length > 3) {
+				queueCapacity = Integer.parseInt(args[3]);
+			}
+			if (args.length > 4) {
+				policy = CoalescingEntryListener.OverflowPolicy.valueOf(args[4].toUpperCase().replace('-', '_'));
+			}
 		} else {
 			System.out.println("Invalid action");
 			printHelp();
 			return;
 		}
 
+		Metrics.startFromSystemProperties("account-client");
 		HazelcastInstance instance = initHazelcastClient();
 		IMap<String, BudgetAccount> budgetAccountMap = instance.getMap("budget-account");
 		try {
 			if (action.equals("list-accounts")) {
-				listAccountBudgets(budgetAccountMap);
+				listAccountBudgets(instance, budgetAccountMap);
 				instance.getLifecycleService().shutdown();
 			} else if (action.equals("list-members")) {
 				listMembers(instance);
 				instance.getLifecycleService().shutdown();
+			} else if (action.equals("export")) {
+				exportAccounts(instance, snapshotName);
+				instance.getLifecycleService().shutdown();
+			} else if (action.equals("import")) {
+				importAccounts(instance, snapshotName);
+				instance.getLifecycleService().shutdown();
 			} else if (action.equals("add-money")) {
-				addMoney(budgetAccountMap, accountId, amount);
+				addMoney(instance, budgetAccountMap, accountId, amount, mode);
+				instance.getLifecycleService().shutdown();
+			} else if (action.equals("stripe-account")) {
+				stripeAccount(instance, budgetAccountMap, accountId, stripes);
+				instance.getLifecycleService().shutdown();
+			} else if (action.equals("deposit") || action.equals("transfer")) {
+				transfer(instance, fromKey, toKey, amount);
+				instance.getLifecycleService().shutdown();
+			} else if (action.equals("transfer-benchmark")) {
+				runTransferBenchmark(instance, benchmarkArgs[0], benchmarkArgs[1], benchmarkArgs[2], benchmarkArgs[3]);
 				instance.getLifecycleService().shutdown();
-			} else if (action.equals("continuous-spend")) {
-				continuousSpend(budgetAccountMap, accountId);
+			} else if (action.equals("workload")) {
+				runWorkload(instance, budgetAccountMap);
 				instance.getLifecycleService().shutdown();
 			} else if (action.equals("listen")) {
 				listenAccountBudgets(budgetAccountMap);
+			} else if (action.equals("listen-coalesced")) {
+				listenCoalescedAccountBudgets(budgetAccountMap, windowMillis, keyOnly, queueCapacity, policy);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
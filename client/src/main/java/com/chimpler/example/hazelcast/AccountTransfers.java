@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Transaction;
+
+/**
+ * Transfers between the budget accounts of the grouped-budget-account map, keyed
+ * by AccountKey so that the accounts of a group are on the same partition, and
+ * the accounts of the budget-account map, each one being its own group.
+ *
+ * The transfers between accounts of the same group run as a TransferTask on the
+ * member owning the group, a batch of transfers sends one task per group. The
+ * transfers between groups lock both accounts from the client and write them in a
+ * transaction.
+ *
+ * The transfers go through the AdmissionLimiter of the map of their destination
+ * account and fail with a RejectedExecutionException when they are shed. A group
+ * task holds its permit until it is done: when the limit is reached, the oldest
+ * task of the batch is waited for before the next one is sent.
+ */
+public class AccountTransfers {
+	private static final LatencyHistogram localLatency = Metrics.histogram("account.transfer.local");
+	private static final LatencyHistogram transactionalLatency = Metrics.histogram("account.transfer.transactional");
+	private static final AtomicLong transferCount = Metrics.counter("account.transfer.count");
+	private static final AtomicLong insufficientBudgetCount = Metrics.counter("account.transfer.insufficientBudget");
+
+	private final HazelcastInstance instance;
+
+	public AccountTransfers(HazelcastInstance instance) {
+		this.instance = instance;
+	}
+
+	public double getBalance(AccountKey key) {
+		return TransferTask.getBalance(TransferTask.getAccountMap(instance, key).get(TransferTask.getMapKey(key)));
+	}
+
+	public void remove(AccountKey key) {
+		TransferTask.getAccountMap(instance, key).remove(TransferTask.getMapKey(key));
+	}
+
+	/**
+	 * Adds the amount to the account (set to negative to withdraw money).
+	 */
+	public void deposit(AccountKey key, double amount) throws Exception {
+		transfer(new Transfer(null, key, amount));
+	}
+
+	public void transfer(AccountKey from, AccountKey to, double amount) throws Exception {
+		transfer(new Transfer(from, to, amount));
+	}
+
+	private void transfer(Transfer transfer) throws Exception {
+		if (!transferAll(Collections.singletonList(transfer))[0]) {
+			throw new InsufficientBudgetException();
+		}
+	}
+
+	/**
+	 * Runs the transfers and returns for each of them whether it was done (a
+	 * transfer is not done if the source account does not have enough money). The
+	 * transfers within a group run in the order of the list, the transfers between
+	 * groups run after them.
+	 */
+	public boolean[] transferAll(List<Transfer> transfers) throws Exception {
+		boolean[] results = new boolean[transfers.size()];
+		Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		List<Integer> crossGroupTransfers = new ArrayList<Integer>();
+		for(int i = 0 ; i < transfers.size() ; i++) {
+			Transfer transfer = transfers.get(i);
+			if (transfer.isLocal()) {
+				String groupId = transfer.getTo().getGroupId();
+				List<Integer> group = groups.get(groupId);
+				if (group == null) {
+					group = new ArrayList<Integer>();
+					groups.put(groupId, group);
+				}
+				group.add(i);
+			} else {
+				crossGroupTransfers.add(i);
+			}
+		}
+
+		// the tasks of the groups run in parallel on their members
+		long start = System.nanoTime();
+		LinkedList<GroupTask> pendingTasks = new LinkedList<GroupTask>();
+		boolean failed = false;
+		try {
+			for(Map.Entry<String, List<Integer>> group: groups.entrySet()) {
+				List<Transfer> groupTransfers = new ArrayList<Transfer>(group.getValue().size());
+				for(int i: group.getValue()) {
+					groupTransfers.add(transfers.get(i));
+				}
+				AdmissionLimiter limiter = getLimiter(groupTransfers.get(0).getTo());
+				AdmissionLimiter.Permit permit = limiter.tryAcquirePermit();
+				// the permits are held by the tasks of the batch, waiting would only shed this one
+				while(permit == null && !pendingTasks.isEmpty()) {
+					pendingTasks.getFirst().collect(results);
+					pendingTasks.removeFirst();
+					permit = limiter.tryAcquirePermit();
+				}
+				if (permit == null) {
+					permit = limiter.acquirePermit();
+				}
+				DistributedTask<boolean[]> task = new DistributedTask<boolean[]>(
+						new TransferTask(groupTransfers), group.getKey());
+				pendingTasks.add(new GroupTask(group.getValue(), task, permit));
+				instance.getExecutorService().execute(task);
+			}
+			while(!pendingTasks.isEmpty()) {
+				pendingTasks.getFirst().collect(results);
+				pendingTasks.removeFirst();
+			}
+		} catch (RuntimeException e) {
+			failed = true;
+			throw e;
+		} finally {
+			// the permits of the tasks not collected when a task failed
+			for(GroupTask task: pendingTasks) {
+				task.permit.release(failed);
+			}
+		}
+		if (!groups.isEmpty()) {
+			localLatency.recordSince(start);
+		}
+
+		for(int i: crossGroupTransfers) {
+			final Transfer transfer = transfers.get(i);
+			start = System.nanoTime();
+			results[i] = getLimiter(transfer.getTo()).call(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return transferInTransaction(transfer);
+				}
+			});
+			transactionalLatency.recordSince(start);
+			count(results[i]);
+		}
+		return results;
+	}
+
+	private static AdmissionLimiter getLimiter(AccountKey key) {
+		return AdmissionLimiter.forName(key.isGrouped() ? TransferTask.GROUPED_ACCOUNT_MAP : TransferTask.ACCOUNT_MAP);
+	}
+
+	private boolean transferInTransaction(Transfer transfer) throws AccountStripedException {
+		AccountKey from = transfer.getFrom();
+		AccountKey to = transfer.getTo();
+		// the accounts can be in different maps
+		IMap<Object, BudgetAccount> fromMap = TransferTask.getAccountMap(instance, from);
+		IMap<Object, BudgetAccount> toMap = TransferTask.getAccountMap(instance, to);
+		// the accounts are always locked in the same order to avoid deadlocks
+		AccountKey first = from.compareTo(to) < 0 ? from : to;
+		AccountKey second = first == from ? to : from;
+		IMap<Object, BudgetAccount> firstMap = first == from ? fromMap : toMap;
+		IMap<Object, BudgetAccount> secondMap = first == from ? toMap : fromMap;
+		firstMap.lock(TransferTask.getMapKey(first));
+		try {
+			secondMap.lock(TransferTask.getMapKey(second));
+			try {
+				double fromBalance = TransferTask.getBalance(TransferTask.getAccount(fromMap, from))
+						- transfer.getAmount();
+				if (fromBalance < 0) {
+					return false;
+				}
+				double toBalance = TransferTask.getBalance(TransferTask.getAccount(toMap, to)) + transfer.getAmount();
+				long now = BudgetAccount.currentUpdateTime();
+				Transaction transaction = instance.getTransaction();
+				transaction.begin();
+				try {
+					fromMap.put(TransferTask.getMapKey(from), TransferTask.createAccount(from, fromBalance, now));
+					toMap.put(TransferTask.getMapKey(to), TransferTask.createAccount(to, toBalance, now));
+					transaction.commit();
+				} catch (RuntimeException e) {
+					transaction.rollback();
+					throw e;
+				}
+				return true;
+			} finally {
+				secondMap.unlock(TransferTask.getMapKey(second));
+			}
+		} finally {
+			firstMap.unlock(TransferTask.getMapKey(first));
+		}
+	}
+
+	/**
+	 * A TransferTask sent for the transfers of a group, holding its admission permit.
+	 */
+	private static class GroupTask {
+		private final List<Integer> transferIndexes;
+		private final DistributedTask<boolean[]> task;
+		private final AdmissionLimiter.Permit permit;
+
+		public GroupTask(List<Integer> transferIndexes, DistributedTask<boolean[]> task,
+				AdmissionLimiter.Permit permit) {
+			this.transferIndexes = transferIndexes;
+			this.task = task;
+			this.permit = permit;
+		}
+
+		/**
+		 * Waits for the task and copies its results to the results of the batch.
+		 */
+		public void collect(boolean[] results) throws Exception {
+			boolean[] groupResults;
+			try {
+				groupResults = task.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+			permit.release(false);
+			for(int i = 0 ; i < groupResults.length ; i++) {
+				results[transferIndexes.get(i)] = groupResults[i];
+				count(groupResults[i]);
+			}
+		}
+	}
+
+	private static void count(boolean done) {
+		if (done) {
+			transferCount.incrementAndGet();
+		} else {
+			insufficientBudgetCount.incrementAndGet();
+		}
+	}
+}
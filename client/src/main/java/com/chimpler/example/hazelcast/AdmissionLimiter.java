@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of write operations a client has in flight, adapting the
+ * limit to the latency and the errors observed so that a client backs off when
+ * the cluster is overloaded instead of piling up operations until they time out.
+ *
+ * The limit is adjusted after every window of operations:
+ * - if more than maxErrorRatio of the operations failed with a runtime exception
+ *   or a timeout, the limit is halved,
+ * - if the p99 latency is above latencyTolerance times the baseline (the lowest
+ *   p99 seen, slowly forgotten so that it follows lasting changes of the
+ *   cluster), the limit is reduced in proportion (latency gradient), by half at
+ *   most,
+ * - otherwise, if the limit was reached during the window, it is increased by one.
+ * The limit stays between minInFlight and maxInFlight, the hard cap of the client.
+ *
+ * The operations above the limit wait in a queue of at most maxQueued operations
+ * for at most queueTimeoutMillis. The operations that cannot be queued or wait
+ * too long are shed: they fail with a RejectedExecutionException without being
+ * sent. The asynchronous operations take a Permit, released once they are done. The admitted, queued and shed operations and the current limit are
+ * published as the [name].admission.* counters.
+ */
+public class AdmissionLimiter {
+	private static final ConcurrentMap<String, AdmissionLimiter> limiters =
+			new ConcurrentHashMap<String, AdmissionLimiter>();
+	private static final double BASELINE_DRIFT = 1.05;
+	private static final double MIN_DECREASE_RATIO = 0.5;
+
+	private final String name;
+	private final int minInFlight;
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final long queueTimeoutNanos;
+	private final double latencyTolerance;
+	private final double maxErrorRatio;
+	private final int windowSize;
+
+	private final AtomicLong admittedCount;
+	private final AtomicLong queuedCount;
+	private final AtomicLong shedCount;
+	private final AtomicLong limitGauge;
+	private final LatencyHistogram waitLatency;
+
+	// guarded by this
+	private double limit;
+	private int inFlight;
+	private int queued;
+	private double baselineNanos;
+	private final LatencyHistogram windowLatency;
+	private int windowCount;
+	private int windowErrors;
+	private boolean windowSaturated;
+
+	public AdmissionLimiter(String name, int initialInFlight, int minInFlight, int maxInFlight, int maxQueued,
+			long queueTimeoutMillis, double latencyTolerance, double maxErrorRatio, int windowSize) {
+		this.name = name;
+		this.minInFlight = minInFlight;
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+		this.latencyTolerance = latencyTolerance;
+		this.maxErrorRatio = maxErrorRatio;
+		this.windowSize = windowSize;
+		this.limit = Math.max(minInFlight, Math.min(maxInFlight, initialInFlight));
+		this.windowLatency = new LatencyHistogram(name + ".admission.window");
+		this.admittedCount = Metrics.counter(name + ".admission.admitted");
+		this.queuedCount = Metrics.counter(name + ".admission.queued");
+		this.shedCount = Metrics.counter(name + ".admission.shed");
+		this.limitGauge = Metrics.counter(name + ".admission.limit");
+		this.waitLatency = Metrics.histogram(name + ".admission.wait");
+		limitGauge.set((long) limit);
+	}
+
+	/**
+	 * Returns the limiter of the writes of the given name (usually a map name),
+	 * created on first use with the system properties:
+	 *
+	 *   admission.maxInFlight       hard cap of the operations in flight (64)
+	 *   admission.minInFlight       lowest limit (1)
+	 *   admission.initialInFlight   limit before any adjustment (8)
+	 *   admission.maxQueued         operations waiting for the limit (256)
+	 *   admission.queueTimeoutMillis longest wait before an operation is shed (1000)
+	 *   admission.latencyTolerance  p99 over baseline ratio above which the limit decreases (2)
+	 *   admission.maxErrorRatio     error ratio above which the limit is halved (0.01)
+	 *   admission.windowSize        operations between two adjustments (100)
+	 */
+	public static AdmissionLimiter forName(String name) {
+		AdmissionLimiter limiter = limiters.get(name);
+		if (limiter == null) {
+			limiter = new AdmissionLimiter(name,
+					Integer.getInteger("admission.initialInFlight", 8),
+					Integer.getInteger("admission.minInFlight", 1),
+					Integer.getInteger("admission.maxInFlight", 64),
+					Integer.getInteger("admission.maxQueued", 256),
+					Long.getLong("admission.queueTimeoutMillis", 1000),
+					Double.parseDouble(System.getProperty("admission.latencyTolerance", "2")),
+					Double.parseDouble(System.getProperty("admission.maxErrorRatio", "0.01")),
+					Integer.getInteger("admission.windowSize", 100));
+			AdmissionLimiter existingLimiter = limiters.putIfAbsent(name, limiter);
+			if (existingLimiter != null) {
+				limiter = existingLimiter;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Runs the operation once admitted.
+	 *
+	 * @throws RejectedExecutionException if the operation was shed, in which case it was not run
+	 */
+	public <T> T call(Callable<T> operation) throws Exception {
+		acquire();
+		long start = System.nanoTime();
+		boolean failed = false;
+		try {
+			return operation.call();
+		} catch (RuntimeException e) {
+			failed = true;
+			throw e;
+		} catch (TimeoutException e) {
+			failed = true;
+			throw e;
+		} finally {
+			release(System.nanoTime() - start, failed);
+		}
+	}
+
+	/**
+	 * Admits an operation which completes asynchronously. The permit must be
+	 * released once the operation is done.
+	 *
+	 * @throws RejectedExecutionException if the operation was shed, in which case it must not be run
+	 */
+	public Permit acquirePermit() throws InterruptedException {
+		acquire();
+		return new Permit();
+	}
+
+	/**
+	 * Returns the permit of an operation admitted right away, or null if the limit
+	 * is reached (the operation is not queued).
+	 */
+	public Permit tryAcquirePermit() {
+		synchronized(this) {
+			if (inFlight >= (int) limit) {
+				return null;
+			}
+			admit();
+		}
+		return new Permit();
+	}
+
+	private synchronized void acquire() throws InterruptedException {
+		if (inFlight < (int) limit) {
+			admit();
+			return;
+		}
+		if (queued >= maxQueued) {
+			shedCount.incrementAndGet();
+			throw new RejectedExecutionException(name + ": " + queued + " operations already waiting");
+		}
+		long start = System.nanoTime();
+		long deadline = start + queueTimeoutNanos;
+		queued++;
+		queuedCount.incrementAndGet();
+		try {
+			while(inFlight >= (int) limit) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					shedCount.incrementAndGet();
+					throw new RejectedExecutionException(name + ": not admitted after "
+							+ TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos) + "ms");
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		} finally {
+			queued--;
+		}
+		waitLatency.recordSince(start);
+		admit();
+	}
+
+	private void admit() {
+		inFlight++;
+		admittedCount.incrementAndGet();
+		if (inFlight >= (int) limit) {
+			windowSaturated = true;
+		}
+	}
+
+	private synchronized void release(long latencyNanos, boolean failed) {
+		inFlight--;
+		windowLatency.recordNanos(latencyNanos);
+		windowCount++;
+		if (failed) {
+			windowErrors++;
+		}
+		if (windowCount >= windowSize) {
+			adjust();
+		}
+		notifyAll();
+	}
+
+	private void adjust() {
+		long p99 = windowLatency.snapshot(true).getPercentileNanos(99);
+		baselineNanos = baselineNanos == 0 ? p99 : Math.min(baselineNanos * BASELINE_DRIFT, p99);
+		double threshold = baselineNanos * latencyTolerance;
+		if (windowErrors > maxErrorRatio * windowCount) {
+			limit *= MIN_DECREASE_RATIO;
+		} else if (p99 > threshold) {
+			limit *= Math.max(MIN_DECREASE_RATIO, threshold / p99);
+		} else if (windowSaturated) {
+			limit += 1;
+		}
+		limit = Math.max(minInFlight, Math.min(maxInFlight, limit));
+		limitGauge.set((long) limit);
+		windowCount = 0;
+		windowErrors = 0;
+		windowSaturated = false;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * An admitted operation, only the first release counts.
+	 */
+	public class Permit {
+		private final long start = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		/**
+		 * @param failed whether the operation failed with a runtime exception or a timeout
+		 */
+		public void release(boolean failed) {
+			if (released.compareAndSet(false, true)) {
+				AdmissionLimiter.this.release(System.nanoTime() - start, failed);
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("AdmissionLimiter %s: limit=%.1f inFlight=%d queued=%d admitted=%d queuedTotal=%d shed=%d",
+				name, limit, inFlight, queued, admittedCount.get(), queuedCount.get(), shedCount.get());
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+
+/**
+ * Asynchronous and batched access to a map, so that many lookups do not cost one
+ * round trip each.
+ *
+ * getAsync and putAsync return the futures of IMap.getAsync and IMap.putAsync:
+ * the requests are sent without waiting for the previous responses. With a
+ * callback, the callback of a future already done is called right away by the
+ * calling thread, otherwise a thread of the callback pool waits for the response
+ * and calls the callback. Each pending callback has its own thread, so at most
+ * callbackThreads callbacks are pending at the same time and the next calls wait
+ * until one of them is called.
+ *
+ * The puts go through the AdmissionLimiter of the map: the permit of a put is
+ * released when its future is done, by the thread waiting for the response, so a
+ * put without callback also takes a callback thread while it is pending.
+ *
+ * getAll groups the keys by the member owning their partition (the owners of
+ * all the partitions are read once per call with PartitionOwners) and sends one
+ * getAll per member in parallel, on up to MAX_GET_ALL_THREADS threads shared by
+ * the calls: beyond that, the calling thread sends the getAll itself.
+ */
+public class AsyncMap<K, V> {
+	public static final int MAX_GET_ALL_THREADS = 16;
+
+	private final HazelcastInstance instance;
+	private final IMap<K, V> map;
+	private final ExecutorService callbackExecutor;
+	private final Semaphore pendingCallbacks;
+	private final ExecutorService memberExecutor;
+	private final LatencyHistogram getAllLatency;
+	private final AdmissionLimiter putLimiter;
+
+	public AsyncMap(HazelcastInstance instance, IMap<K, V> map, int callbackThreads) {
+		this.instance = instance;
+		this.map = map;
+		this.getAllLatency = Metrics.histogram(map.getName() + ".getAll");
+		this.putLimiter = AdmissionLimiter.forName(map.getName());
+		ThreadFactory threadFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "async-map-" + AsyncMap.this.map.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		this.callbackExecutor = Executors.newFixedThreadPool(callbackThreads, threadFactory);
+		this.pendingCallbacks = new Semaphore(callbackThreads);
+		this.memberExecutor = new ThreadPoolExecutor(0, MAX_GET_ALL_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	public IMap<K, V> getMap() {
+		return map;
+	}
+
+	public Future<V> getAsync(K key) {
+		return map.getAsync(key);
+	}
+
+	/**
+	 * Gets the value and calls the callback with the future once it is done.
+	 */
+	public Future<V> getAsync(K key, ExecutionCallback<V> callback) throws InterruptedException {
+		return whenDone(map.getAsync(key), callback);
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the put was shed because the cluster is overloaded
+	 */
+	public Future<V> putAsync(K key, V value) throws InterruptedException {
+		return putAsync(key, value, null);
+	}
+
+	/**
+	 * Puts the value and calls the callback (if not null) with the future (of the
+	 * previous value) once it is done.
+	 *
+	 * @throws RejectedExecutionException if the put was shed because the cluster is overloaded
+	 */
+	public Future<V> putAsync(K key, V value, final ExecutionCallback<V> callback) throws InterruptedException {
+		final AdmissionLimiter.Permit permit = putLimiter.acquirePermit();
+		Future<V> future;
+		try {
+			future = map.putAsync(key, value);
+		} catch (RuntimeException e) {
+			permit.release(true);
+			throw e;
+		}
+		try {
+			return whenDone(future, new ExecutionCallback<V>() {
+				@Override
+				public void done(Future<V> future) {
+					permit.release(isFailed(future));
+					if (callback != null) {
+						callback.done(future);
+					}
+				}
+			});
+		} catch (InterruptedException e) {
+			// the put was sent, nothing waits for it anymore
+			permit.release(false);
+			throw e;
+		}
+	}
+
+	private static boolean isFailed(Future<?> future) {
+		try {
+			future.get();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		}
+	}
+
+	private Future<V> whenDone(final Future<V> future, final ExecutionCallback<V> callback)
+			throws InterruptedException {
+		if (future.isDone()) {
+			callback.done(future);
+			return future;
+		}
+		// a permit per thread of the pool, a callback never waits behind the others
+		pendingCallbacks.acquire();
+		callbackExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// the callback gets the failure from the future
+				}
+				try {
+					callback.done(future);
+				} finally {
+					pendingCallbacks.release();
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns the values of the keys found in the map.
+	 */
+	public Map<K, V> getAll(Set<K> keys) throws Exception {
+		long start = System.nanoTime();
+		// the owner is null while a partition is being migrated, those keys are read together
+		Map<Member, Set<K>> keysByMember = new PartitionOwners(instance).groupByOwner(keys);
+
+		List<Future<Map<K, V>>> futures = new ArrayList<Future<Map<K, V>>>(keysByMember.size());
+		for(final Set<K> memberKeys: keysByMember.values()) {
+			futures.add(memberExecutor.submit(new Callable<Map<K, V>>() {
+				@Override
+				public Map<K, V> call() {
+					return map.getAll(memberKeys);
+				}
+			}));
+		}
+		Map<K, V> values = new HashMap<K, V>(keys.size() * 2);
+		for(Future<Map<K, V>> future: futures) {
+			try {
+				values.putAll(future.get());
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+		getAllLatency.recordSince(start);
+		return values;
+	}
+
+	public void shutdown() {
+		callbackExecutor.shutdown();
+		memberExecutor.shutdown();
+	}
+}
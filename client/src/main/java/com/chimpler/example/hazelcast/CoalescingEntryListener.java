@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.IMap;
+
+/**
+ * Entry listener which coalesces the changes of a map over a window and hands them
+ * in batches to a sink running in its own thread, so that a slow sink does not
+ * hold the event thread of the client.
+ *
+ * Within a window only the latest change of a key is kept. The batches wait in a
+ * bounded queue: when it is full, the policy either drops the oldest or the newest
+ * batch, or blocks the flush, in which case the changes keep being coalesced in the
+ * pending batch until the sink catches up. Registered key-only, the members do
+ * not send the values with the events and the values of a batch are read with one
+ * getAll when the batch is delivered.
+ */
+public class CoalescingEntryListener<K, V> implements EntryListener<K, V> {
+	public enum OverflowPolicy {
+		DROP_OLDEST, DROP_NEWEST, BLOCK
+	}
+
+	/**
+	 * Receives the batches of changes, a removed key has a null value.
+	 */
+	public interface Sink<K, V> {
+		void accept(Map<K, V> changes) throws Exception;
+	}
+
+	private final IMap<K, V> map;
+	private final boolean keyOnly;
+	private final long windowMillis;
+	private final OverflowPolicy policy;
+	private final Sink<K, V> sink;
+	private final BlockingQueue<Batch<K, V>> queue;
+
+	private final Object pendingLock = new Object();
+	private Batch<K, V> pending = new Batch<K, V>();
+
+	private final AtomicLong eventCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final LatencyHistogram deliveryLag;
+
+	private ScheduledExecutorService flusher;
+	private Thread sinkThread;
+	private volatile boolean running;
+
+	public CoalescingEntryListener(IMap<K, V> map, boolean keyOnly, long windowMillis, int queueCapacity,
+			OverflowPolicy policy, Sink<K, V> sink) {
+		this.map = map;
+		this.keyOnly = keyOnly;
+		this.windowMillis = windowMillis;
+		this.policy = policy;
+		this.sink = sink;
+		this.queue = new ArrayBlockingQueue<Batch<K, V>>(queueCapacity);
+		this.deliveryLag = Metrics.histogram(map.getName() + ".listener.delivery");
+	}
+
+	/**
+	 * Registers the listener on the map and starts delivering the batches.
+	 */
+	public void start() {
+		running = true;
+		sinkThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "coalescing-listener-sink");
+		sinkThread.setDaemon(true);
+		sinkThread.start();
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "coalescing-listener-flusher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+		map.addEntryListener(this, !keyOnly);
+	}
+
+	/**
+	 * Unregisters the listener and delivers the changes received so far: the
+	 * pending batch is queued and the sink thread drains the queue. The changes not
+	 * delivered within timeoutMillis (slow or blocked sink) are counted as dropped.
+	 */
+	public void stop(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		map.removeEntryListener(this);
+		flusher.shutdown();
+		flusher.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		Batch<K, V> batch = takePending();
+		if (batch != null && !queue.offer(batch, Math.max(0, deadline - System.currentTimeMillis()),
+				TimeUnit.MILLISECONDS)) {
+			droppedCount.addAndGet(batch.changes.size());
+		}
+		running = false;
+		sinkThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+		if (sinkThread.isAlive()) {
+			sinkThread.interrupt();
+		}
+		while((batch = queue.poll()) != null) {
+			droppedCount.addAndGet(batch.changes.size());
+		}
+	}
+
+	@Override
+	public void entryAdded(EntryEvent<K, V> event) {
+		record(event.getKey(), event.getValue(), false);
+	}
+
+	@Override
+	public void entryUpdated(EntryEvent<K, V> event) {
+		record(event.getKey(), event.getValue(), false);
+	}
+
+	@Override
+	public void entryRemoved(EntryEvent<K, V> event) {
+		record(event.getKey(), null, true);
+	}
+
+	@Override
+	public void entryEvicted(EntryEvent<K, V> event) {
+		record(event.getKey(), null, true);
+	}
+
+	private void record(K key, V value, boolean removed) {
+		eventCount.incrementAndGet();
+		synchronized(pendingLock) {
+			if (pending.changes.isEmpty()) {
+				pending.firstEventTime = System.nanoTime();
+			}
+			if (pending.changes.containsKey(key)) {
+				coalescedCount.incrementAndGet();
+			}
+			pending.changes.put(key, value);
+			if (removed) {
+				pending.removedKeys.add(key);
+			} else {
+				pending.removedKeys.remove(key);
+			}
+		}
+	}
+
+	private Batch<K, V> takePending() {
+		synchronized(pendingLock) {
+			if (pending.changes.isEmpty()) {
+				return null;
+			}
+			Batch<K, V> batch = pending;
+			pending = new Batch<K, V>();
+			return batch;
+		}
+	}
+
+	private void flush() throws InterruptedException {
+		Batch<K, V> batch = takePending();
+		if (batch == null) {
+			return;
+		}
+		switch(policy) {
+		case BLOCK:
+			queue.put(batch);
+			break;
+		case DROP_NEWEST:
+			if (!queue.offer(batch)) {
+				droppedCount.addAndGet(batch.changes.size());
+			}
+			break;
+		case DROP_OLDEST:
+			while(!queue.offer(batch)) {
+				Batch<K, V> oldest = queue.poll();
+				if (oldest != null) {
+					droppedCount.addAndGet(oldest.changes.size());
+				}
+			}
+			break;
+		}
+	}
+
+	// once stopped, the thread delivers the batches left in the queue and exits
+	private void deliver() {
+		while(true) {
+			Batch<K, V> batch;
+			try {
+				batch = queue.poll(windowMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch == null) {
+				if (!running) {
+					return;
+				}
+				continue;
+			}
+			try {
+				if (keyOnly) {
+					Set<K> keys = new HashSet<K>(batch.changes.keySet());
+					keys.removeAll(batch.removedKeys);
+					// keys removed since the event are delivered as removed
+					Map<K, V> values = map.getAll(keys);
+					for(K key: keys) {
+						batch.changes.put(key, values.get(key));
+					}
+				}
+				sink.accept(batch.changes);
+				deliveredCount.addAndGet(batch.changes.size());
+			} catch (Exception e) {
+				failureCount.incrementAndGet();
+				System.err.println("Cannot deliver " + batch.changes.size() + " changes: " + e);
+			}
+			deliveryLag.recordSince(batch.firstEventTime);
+		}
+	}
+
+	public long getEventCount() {
+		return eventCount.get();
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * Returns the number of events replaced by a later event of the same key
+	 * before being delivered.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public int getPendingCount() {
+		int count = 0;
+		for(Batch<K, V> batch: queue) {
+			count += batch.changes.size();
+		}
+		synchronized(pendingLock) {
+			return count + pending.changes.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		LatencyHistogram.Snapshot lag = deliveryLag.snapshot(false);
+		return String.format("events=%d delivered=%d coalesced=%d dropped=%d failures=%d pending=%d"
+				+ " delivery p50=%.1fms p99=%.1fms", getEventCount(), getDeliveredCount(), getCoalescedCount(),
+				getDroppedCount(), getFailureCount(), getPendingCount(),
+				lag.getPercentileNanos(50) / 1e6, lag.getPercentileNanos(99) / 1e6);
+	}
+
+	private static class Batch<K, V> {
+		private final Map<K, V> changes = new HashMap<K, V>();
+		private final Set<K> removedKeys = new HashSet<K>();
+		private long firstEventTime;
+	}
+}
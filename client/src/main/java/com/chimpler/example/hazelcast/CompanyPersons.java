@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+
+/**
+ * Persons stored in the person-by-company map, keyed by PersonKey so that the
+ * employees of a company are on the partition of the company name. The queries
+ * and aggregations on the employees of a company are sent to the member owning
+ * that partition only, instead of all the members.
+ *
+ * The person-company map gives the company of each ssn, so that a person can
+ * still be read by ssn (two gets instead of one). Co-locating by company suits a
+ * large number of companies: the employees of a company are not spread over the
+ * members, so a few very large companies would concentrate the data and the
+ * load on a few members.
+ */
+public class CompanyPersons {
+	public static final String PERSON_MAP = "person-by-company";
+	public static final String COMPANY_LOOKUP_MAP = "person-company";
+	private static final int RESULT_PAGE_SIZE = 1000;
+	private static final int MAX_QUERY_ATTEMPTS = 3;
+
+	private static final LatencyHistogram getLatency = Metrics.histogram("person.company.get");
+	private static final LatencyHistogram queryLatency = Metrics.histogram("person.company.query");
+	private static final LatencyHistogram aggregationLatency = Metrics.histogram("person.company.aggregation");
+
+	private final HazelcastInstance instance;
+	private final IMap<PersonKey, Person> personMap;
+	private final IMap<String, String> companyLookupMap;
+
+	public CompanyPersons(HazelcastInstance instance) {
+		this.instance = instance;
+		this.personMap = instance.getMap(PERSON_MAP);
+		this.companyLookupMap = instance.getMap(COMPANY_LOOKUP_MAP);
+	}
+
+	public IMap<PersonKey, Person> getPersonMap() {
+		return personMap;
+	}
+
+	/**
+	 * Puts the person, moving it to its new company if it changed company.
+	 */
+	public void put(Person person) {
+		PersonKey key = PersonKey.forPerson(person);
+		personMap.put(key, person);
+		String previousCompanyName = companyLookupMap.put(person.getSsn(), key.getCompanyName());
+		if (previousCompanyName != null && !previousCompanyName.equals(key.getCompanyName())) {
+			personMap.remove(new PersonKey(previousCompanyName, person.getSsn()));
+		}
+	}
+
+	/**
+	 * Puts new persons in bulk (the persons changing company must be put with put),
+	 * through the AdmissionLimiter of the person-by-company map.
+	 *
+	 * @throws RejectedExecutionException if the batch was shed because the cluster is overloaded
+	 */
+	public void putAll(Collection<Person> persons) throws Exception {
+		final Map<PersonKey, Person> entries = new HashMap<PersonKey, Person>(persons.size() * 2);
+		final Map<String, String> companyNames = new HashMap<String, String>(persons.size() * 2);
+		for(Person person: persons) {
+			PersonKey key = PersonKey.forPerson(person);
+			entries.put(key, person);
+			companyNames.put(person.getSsn(), key.getCompanyName());
+		}
+		AdmissionLimiter.forName(PERSON_MAP).call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				personMap.putAll(entries);
+				companyLookupMap.putAll(companyNames);
+				return null;
+			}
+		});
+	}
+
+	public Person get(String ssn) {
+		long start = System.nanoTime();
+		try {
+			String companyName = companyLookupMap.get(ssn);
+			return companyName == null ? null : personMap.get(new PersonKey(companyName, ssn));
+		} finally {
+			getLatency.recordSince(start);
+		}
+	}
+
+	public void remove(String ssn) {
+		String companyName = companyLookupMap.remove(ssn);
+		if (companyName != null) {
+			personMap.remove(new PersonKey(companyName, ssn));
+		}
+	}
+
+	/**
+	 * Returns the employees of the company matching the query (all of them if the
+	 * query is null), read from the member owning the company.
+	 *
+	 * All the pages are read from the member which had the partition of the company
+	 * when the query started, since only that member has the cursor. The query is
+	 * run again from the start if the partition migrated in the meantime, or if the
+	 * cursor expired (the pages read so far are dropped, no person is returned twice).
+	 */
+	public List<Person> query(String companyName, String query) throws Exception {
+		long start = System.nanoTime();
+		String companyQuery = getCompanyQuery(companyName, query);
+		for(int attempt = 1 ; ; attempt++) {
+			Member owner = getOwner(companyName);
+			try {
+				List<Person> persons = query(owner, companyQuery);
+				if (owner.equals(getOwner(companyName))) {
+					queryLatency.recordSince(start);
+					return persons;
+				}
+			} catch (IllegalStateException e) {
+				// the cursor expired
+				if (attempt >= MAX_QUERY_ATTEMPTS) {
+					throw e;
+				}
+				continue;
+			} catch (Exception e) {
+				if (attempt >= MAX_QUERY_ATTEMPTS || owner.equals(getOwner(companyName))) {
+					throw e;
+				}
+			}
+			if (attempt >= MAX_QUERY_ATTEMPTS) {
+				throw new IllegalStateException("The partition of the company " + companyName
+						+ " migrated during the last " + MAX_QUERY_ATTEMPTS + " queries");
+			}
+		}
+	}
+
+	private List<Person> query(Member member, String companyQuery) throws Exception {
+		QueryPageTask<Person> task = new QueryPageTask<Person>(PERSON_MAP, companyQuery,
+				UUID.randomUUID().toString(), RESULT_PAGE_SIZE);
+		List<Person> persons = new ArrayList<Person>();
+		QueryPage<Person> page;
+		do {
+			page = execute(new DistributedTask<QueryPage<Person>>(task, member));
+			// the next page is numbered so that the cursor rejects a page read twice
+			task = task.nextPage();
+			persons.addAll(page.getValues());
+		} while(!page.isLast());
+		return persons;
+	}
+
+	private Member getOwner(String companyName) {
+		Member owner = instance.getPartitionService().getPartition(companyName).getOwner();
+		if (owner == null) {
+			throw new IllegalStateException("The partition of the company " + companyName + " has no owner");
+		}
+		return owner;
+	}
+
+	/**
+	 * Aggregates the attribute (or counts the persons if the attribute is null) of
+	 * the employees of the company matching the query, on the member owning the
+	 * company.
+	 */
+	public AggregationTask.Result aggregate(String companyName, String attribute, String groupBy, String query)
+			throws Exception {
+		long start = System.nanoTime();
+		AggregationTask.Result result = execute(new DistributedTask<AggregationTask.Result>(
+				new AggregationTask(PERSON_MAP, attribute, groupBy, getCompanyQuery(companyName, query)), companyName));
+		aggregationLatency.recordSince(start);
+		return result;
+	}
+
+	/**
+	 * Returns the query restricted to the employees of the company.
+	 */
+	public static String getCompanyQuery(String companyName, String query) {
+		if (companyName == null || companyName.length() == 0) {
+			throw new IllegalArgumentException("The company name is empty");
+		}
+		String companyQuery = "company.name = '" + companyName.replace("'", "''") + "'";
+		return query == null ? companyQuery : companyQuery + " AND (" + query + ")";
+	}
+
+	private <T> T execute(DistributedTask<T> task) throws Exception {
+		instance.getExecutorService().execute(task);
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
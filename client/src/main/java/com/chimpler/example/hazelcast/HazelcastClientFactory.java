@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.List;
+
+import com.hazelcast.client.ClientConfig;
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * Connects the clients to the cluster, using the members found by the discovery
+ * configured by the system properties (see MemberDiscoveryFactory).
+ *
+ * With -Dperson.dictionary=true, the StringDictionary of the cluster is installed
+ * so that the persons are encoded like on the members.
+ */
+public final class HazelcastClientFactory {
+
+	private HazelcastClientFactory() {
+	}
+
+	public static HazelcastInstance newHazelcastClient() throws Exception {
+		return newHazelcastClient(MemberDiscoveryFactory.fromSystemProperties());
+	}
+
+	public static HazelcastInstance newHazelcastClient(MemberDiscovery discovery) throws Exception {
+		long begin = System.currentTimeMillis();
+		List<String> members = discovery.discoverMembers();
+		long discoveryTime = System.currentTimeMillis() - begin;
+		HazelcastInstance client;
+		try {
+			client = connect(members);
+		} catch (RuntimeException e) {
+			if (!(discovery instanceof CachedMemberDiscovery)) {
+				throw e;
+			}
+			// the cached members may be gone
+			System.out.println("Cannot connect to the cached members " + members + ", discovering the members again");
+			long start = System.currentTimeMillis();
+			members = ((CachedMemberDiscovery) discovery).refresh();
+			discoveryTime += System.currentTimeMillis() - start;
+			client = connect(members);
+		}
+		System.out.println("Connected to " + members.size() + " members (discovery: " + discoveryTime
+				+ "ms, total: " + (System.currentTimeMillis() - begin) + "ms)");
+		if (Boolean.getBoolean("person.dictionary")) {
+			StringDictionary.install(client);
+		}
+		return client;
+	}
+
+	private static HazelcastInstance connect(List<String> members) {
+		ClientConfig clientConfig = new ClientConfig();
+		clientConfig.getGroupConfig().setName("dev").setPassword("dev-pass");
+		for(String member: members) {
+			clientConfig.addAddress(member);
+		}
+		return HazelcastClient.newHazelcastClient(clientConfig);
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+
+/**
+ * Exports a map to snapshot files written by the members on their local disk, in
+ * parallel by partition, and imports it back (see SnapshotTask).
+ *
+ * The snapshots are in the directory data/snapshots/[name] of the members (or in
+ * -Dsnapshot.directory/[name]), and the number of partitions read or written in
+ * parallel by a member is set by -Dsnapshot.threads (the number of processors of
+ * the member by default).
+ *
+ * An import fails if the snapshot does not have all the partitions of the
+ * cluster (a snapshot of a cluster with another partition count, or files
+ * missing from the disks of the members).
+ */
+public final class MapSnapshots {
+	private static final String DEFAULT_DIRECTORY = "data/snapshots";
+
+	private MapSnapshots() {
+	}
+
+	public static SnapshotTask.Result export(HazelcastInstance instance, String mapName, String snapshotName)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		SnapshotTask task = new SnapshotTask(mapName, getDirectory(snapshotName), true, null, getThreads());
+		SnapshotTask.Result result = merge(execute(instance, task, instance.getCluster().getMembers()));
+		printResult("Exported", "to", mapName, snapshotName, result, System.currentTimeMillis() - start);
+		return result;
+	}
+
+	public static SnapshotTask.Result importSnapshot(HazelcastInstance instance, String mapName, String snapshotName)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		String directory = getDirectory(snapshotName);
+		Map<Member, SnapshotTask.Result> results = execute(instance,
+				new SnapshotTask(mapName, directory, false, null, getThreads()), instance.getCluster().getMembers());
+
+		// the partitions whose owner does not have the file are imported by a member having it
+		Set<Integer> importedPartitionIds = new HashSet<Integer>();
+		for(SnapshotTask.Result result: results.values()) {
+			importedPartitionIds.addAll(result.getPartitionIds());
+		}
+		Map<Member, Set<Integer>> remainingPartitionIds = new HashMap<Member, Set<Integer>>();
+		for(Map.Entry<Member, SnapshotTask.Result> entry: results.entrySet()) {
+			for(int partitionId: entry.getValue().getSkippedPartitionIds()) {
+				if (importedPartitionIds.add(partitionId)) {
+					Set<Integer> partitionIds = remainingPartitionIds.get(entry.getKey());
+					if (partitionIds == null) {
+						partitionIds = new HashSet<Integer>();
+						remainingPartitionIds.put(entry.getKey(), partitionIds);
+					}
+					partitionIds.add(partitionId);
+				}
+			}
+		}
+		SnapshotTask.Result result = merge(results);
+		for(Map.Entry<Member, Set<Integer>> entry: remainingPartitionIds.entrySet()) {
+			int[] partitionIds = new int[entry.getValue().size()];
+			int i = 0;
+			for(int partitionId: entry.getValue()) {
+				partitionIds[i++] = partitionId;
+			}
+			System.out.println("Importing " + partitionIds.length + " partitions not found by their owner from "
+					+ entry.getKey());
+			Map<Member, SnapshotTask.Result> remainingResults = execute(instance,
+					new SnapshotTask(mapName, directory, false, partitionIds, getThreads()),
+					Collections.singleton(entry.getKey()));
+			result.merge(remainingResults.get(entry.getKey()));
+		}
+		printResult("Imported", "from", mapName, snapshotName, result, System.currentTimeMillis() - start);
+
+		Set<Integer> missingPartitionIds = new TreeSet<Integer>();
+		int partitionCount = instance.getPartitionService().getPartitions().size();
+		for(int partitionId = 0 ; partitionId < partitionCount ; partitionId++) {
+			if (!result.getPartitionIds().contains(partitionId)) {
+				missingPartitionIds.add(partitionId);
+			}
+		}
+		if (!missingPartitionIds.isEmpty()) {
+			throw new IllegalStateException("The snapshot " + snapshotName + " of " + mapName + " is missing "
+					+ missingPartitionIds.size() + " of the " + partitionCount + " partitions, the entries of the"
+					+ " other partitions were imported: " + missingPartitionIds);
+		}
+		return result;
+	}
+
+	private static Map<Member, SnapshotTask.Result> execute(HazelcastInstance instance, SnapshotTask task,
+			Set<Member> members) throws Exception {
+		Map<Member, DistributedTask<SnapshotTask.Result>> tasks =
+				new LinkedHashMap<Member, DistributedTask<SnapshotTask.Result>>();
+		for(Member member: members) {
+			DistributedTask<SnapshotTask.Result> distributedTask = new DistributedTask<SnapshotTask.Result>(task, member);
+			instance.getExecutorService().execute(distributedTask);
+			tasks.put(member, distributedTask);
+		}
+		Map<Member, SnapshotTask.Result> results = new LinkedHashMap<Member, SnapshotTask.Result>();
+		try {
+			for(Map.Entry<Member, DistributedTask<SnapshotTask.Result>> entry: tasks.entrySet()) {
+				SnapshotTask.Result result = entry.getValue().get();
+				System.out.println(entry.getKey() + ": " + result);
+				results.put(entry.getKey(), result);
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	private static SnapshotTask.Result merge(Map<Member, SnapshotTask.Result> results) {
+		SnapshotTask.Result merged = new SnapshotTask.Result();
+		for(SnapshotTask.Result result: results.values()) {
+			merged.merge(result);
+		}
+		return merged;
+	}
+
+	private static void printResult(String operation, String preposition, String mapName, String snapshotName,
+			SnapshotTask.Result result, long millis) {
+		System.out.println(String.format("%s %d entries of %s in %d partitions (%d bytes) %s snapshot %s in %dms"
+				+ " (%.0f entries/s, %.1f MB/s)", operation, result.getEntryCount(), mapName,
+				result.getPartitionIds().size(), result.getSize(), preposition, snapshotName, millis,
+				result.getEntryCount() * 1000.0 / Math.max(1, millis),
+				result.getSize() * 1000.0 / Math.max(1, millis) / (1024 * 1024)));
+	}
+
+	private static String getDirectory(String snapshotName) {
+		return System.getProperty("snapshot.directory", DEFAULT_DIRECTORY) + "/" + snapshotName;
+	}
+
+	private static int getThreads() {
+		return Integer.getInteger("snapshot.threads", 0);
+	}
+}
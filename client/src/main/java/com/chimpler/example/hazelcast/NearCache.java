@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.IMap;
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Client side cache in front of an IMap.
+ *
+ * The cache is bounded by a number of entries and/or an estimated size in bytes
+ * (the size of the compact form of the values), and entries expire after a TTL.
+ * When the cache is full, the least recently used entry is evicted (LRU) or, with
+ * LFU, the least used entry among the EVICTION_SAMPLE_SIZE least recently used.
+ * The members notify the cache of every update of the map with a key-only entry
+ * listener, which bounds stale reads to the event delivery delay.
+ *
+ * wrap() returns an IMap delegating to the map: get() and getAll() are served from
+ * the cache, the updates done through the wrapper invalidate the cached keys.
+ */
+public class NearCache<K, V> implements EntryListener<K, V> {
+	public enum EvictionPolicy {
+		LRU, LFU
+	}
+
+	public static final int EVICTION_SAMPLE_SIZE = 8;
+	private static final int DEFAULT_VALUE_SIZE = 64;
+
+	private final IMap<K, V> map;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttlMillis;
+	private final EvictionPolicy evictionPolicy;
+
+	// in access order, the least recently used entry first
+	private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+	private long bytes;
+	// incremented on each invalidation so that values read during an invalidation are not cached
+	private long invalidationSequence;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+
+	private static class CacheEntry<V> {
+		final V value;
+		final long expirationTime;
+		final int size;
+		long hits;
+
+		CacheEntry(V value, long expirationTime, int size) {
+			this.value = value;
+			this.expirationTime = expirationTime;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param maxEntries maximum number of entries, 0 for no limit
+	 * @param maxBytes maximum estimated size of the values, 0 for no limit
+	 * @param ttlMillis time after which an entry expires, 0 for no expiration
+	 */
+	public NearCache(IMap<K, V> map, int maxEntries, long maxBytes, long ttlMillis, EvictionPolicy evictionPolicy) {
+		this.map = map;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+		this.evictionPolicy = evictionPolicy;
+		map.addEntryListener(this, false);
+	}
+
+	/**
+	 * Returns an IMap backed by the map and this cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public IMap<K, V> wrap() {
+		return (IMap<K, V>) Proxy.newProxyInstance(IMap.class.getClassLoader(),
+				new Class<?>[] {IMap.class}, new CachingHandler());
+	}
+
+	/**
+	 * Returns the cache behind a map returned by wrap(), null if the map is not cached.
+	 */
+	public static NearCache<?, ?> getNearCache(IMap<?, ?> map) {
+		if (Proxy.isProxyClass(map.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(map);
+			if (handler instanceof NearCache.CachingHandler) {
+				return ((NearCache<?, ?>.CachingHandler) handler).getNearCache();
+			}
+		}
+		return null;
+	}
+
+	public V get(K key) {
+		long sequence;
+		synchronized (this) {
+			CacheEntry<V> entry = getEntry(key);
+			if (entry != null) {
+				hits++;
+				entry.hits++;
+				return entry.value;
+			}
+			misses++;
+			sequence = invalidationSequence;
+		}
+		V value = map.get(key);
+		cache(key, value, sequence);
+		return value;
+	}
+
+	public Map<K, V> getAll(Set<K> keys) {
+		Map<K, V> result = new HashMap<K, V>();
+		Set<K> missingKeys = new HashSet<K>();
+		long sequence;
+		synchronized (this) {
+			for(K key: keys) {
+				CacheEntry<V> entry = getEntry(key);
+				if (entry != null) {
+					hits++;
+					entry.hits++;
+					result.put(key, entry.value);
+				} else {
+					misses++;
+					missingKeys.add(key);
+				}
+			}
+			sequence = invalidationSequence;
+		}
+		if (!missingKeys.isEmpty()) {
+			Map<K, V> values = map.getAll(missingKeys);
+			for(Map.Entry<K, V> entry: values.entrySet()) {
+				cache(entry.getKey(), entry.getValue(), sequence);
+			}
+			result.putAll(values);
+		}
+		return result;
+	}
+
+	private CacheEntry<V> getEntry(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if (entry != null && entry.expirationTime < System.currentTimeMillis()) {
+			removeEntry(key);
+			expirations++;
+			return null;
+		}
+		return entry;
+	}
+
+	private synchronized void cache(K key, V value, long sequence) {
+		if (value == null || sequence != invalidationSequence) {
+			return;
+		}
+		int size = maxBytes > 0 ? estimateSize(value) : 0;
+		long expirationTime = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+		removeEntry(key);
+		entries.put(key, new CacheEntry<V>(value, expirationTime, size));
+		bytes += size;
+		while((maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes)) {
+			removeEntry(selectEvictedKey());
+			evictions++;
+		}
+	}
+
+	private K selectEvictedKey() {
+		Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+		Map.Entry<K, CacheEntry<V>> evicted = iterator.next();
+		if (evictionPolicy == EvictionPolicy.LFU) {
+			for(int i = 1 ; i < EVICTION_SAMPLE_SIZE && iterator.hasNext() ; i++) {
+				Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+				if (entry.getValue().hits < evicted.getValue().hits) {
+					evicted = entry;
+				}
+			}
+		}
+		return evicted.getKey();
+	}
+
+	private void removeEntry(K key) {
+		CacheEntry<V> entry = entries.remove(key);
+		if (entry != null) {
+			bytes -= entry.size;
+		}
+	}
+
+	private static int estimateSize(Object value) {
+		if (value instanceof DataSerializable) {
+			try {
+				return SerializationUtils.toBytes((DataSerializable) value).length;
+			} catch (Exception e) {
+				// fall back to the default size
+			}
+		}
+		return DEFAULT_VALUE_SIZE;
+	}
+
+	public synchronized void invalidate(K key) {
+		invalidationSequence++;
+		if (entries.containsKey(key)) {
+			removeEntry(key);
+			invalidations++;
+		}
+	}
+
+	public synchronized void clear() {
+		invalidationSequence++;
+		invalidations += entries.size();
+		entries.clear();
+		bytes = 0;
+	}
+
+	@Override
+	public void entryAdded(EntryEvent<K, V> event) {
+		invalidate(event.getKey());
+	}
+
+	@Override
+	public void entryUpdated(EntryEvent<K, V> event) {
+		invalidate(event.getKey());
+	}
+
+	@Override
+	public void entryRemoved(EntryEvent<K, V> event) {
+		invalidate(event.getKey());
+	}
+
+	@Override
+	public void entryEvicted(EntryEvent<K, V> event) {
+		invalidate(event.getKey());
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getExpirations() {
+		return expirations;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "NearCache [map=" + map.getName() + ", entries=" + entries.size() + ", bytes=" + bytes
+				+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+				+ ", expirations=" + expirations + ", invalidations=" + invalidations + "]";
+	}
+
+	private class CachingHandler implements InvocationHandler {
+
+		public NearCache<K, V> getNearCache() {
+			return NearCache.this;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			int argCount = args == null ? 0 : args.length;
+			if (name.equals("get") && argCount == 1) {
+				return get((K) args[0]);
+			} else if (name.equals("getAll") && argCount == 1) {
+				return getAll((Set<K>) args[0]);
+			} else if (name.equals("putAll") && argCount == 1) {
+				for(Object key: ((Map<K, V>) args[0]).keySet()) {
+					invalidate((K) key);
+				}
+			} else if (name.equals("clear") || name.equals("destroy")) {
+				clear();
+			} else if (argCount > 0 && isUpdate(name)) {
+				invalidate((K) args[0]);
+			} else if (name.equals("equals") && argCount == 1) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode") && argCount == 0) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString") && argCount == 0) {
+				return NearCache.this.toString();
+			}
+			try {
+				return method.invoke(map, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		private boolean isUpdate(String name) {
+			return name.startsWith("put") || name.startsWith("set") || name.startsWith("remove")
+					|| name.startsWith("replace") || name.startsWith("tryPut") || name.startsWith("tryRemove")
+					|| name.equals("evict");
+		}
+	}
+
+	/**
+	 * Wraps the map with a near cache configured by the system properties
+	 * [prefix].maxEntries, [prefix].maxBytes, [prefix].ttlSeconds and
+	 * [prefix].evictionPolicy. The map is returned as is if none of the size limits
+	 * is set.
+	 */
+	public static <K, V> IMap<K, V> wrapFromSystemProperties(IMap<K, V> map, String prefix) {
+		int maxEntries = Integer.getInteger(prefix + ".maxEntries", 0);
+		long maxBytes = Long.getLong(prefix + ".maxBytes", 0);
+		if (maxEntries <= 0 && maxBytes <= 0) {
+			return map;
+		}
+		long ttlMillis = Long.getLong(prefix + ".ttlSeconds", 0) * 1000;
+		EvictionPolicy evictionPolicy = EvictionPolicy.valueOf(
+				System.getProperty(prefix + ".evictionPolicy", "LRU").toUpperCase());
+		return new NearCache<K, V>(map, maxEntries, maxBytes, ttlMillis, evictionPolicy).wrap();
+	}
+}
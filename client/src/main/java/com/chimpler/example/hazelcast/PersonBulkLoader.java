@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+
+/**
+ * Loads persons into the person map in bulk. Persons are grouped by the member
+ * owning their partition (the owners of the partitions are read once with
+ * PartitionOwners) and each group is sent with putAll once it reaches the batch
+ * size. Up to maxInFlight batches are sent concurrently by a worker pool, and the
+ * progress is reported every few seconds as an aggregate rate.
+ *
+ * The batches go through the AdmissionLimiter of the map, a batch shed because
+ * the cluster is overloaded is sent again after a delay doubling from
+ * MIN_RETRY_DELAY_MILLIS to MAX_RETRY_DELAY_MILLIS (a batch is shed right away
+ * when the queue of the limiter is full).
+ */
+public class PersonBulkLoader {
+	private static final long REPORT_INTERVAL_SECONDS = 5;
+	private static final int MIN_RETRY_DELAY_MILLIS = 10;
+	private static final int MAX_RETRY_DELAY_MILLIS = 1000;
+	private static final LatencyHistogram putAllLatency = Metrics.histogram("person.putAll");
+	private static final AtomicLong shedBatches = Metrics.counter("person.putAll.shed");
+
+	private final HazelcastInstance instance;
+	private final IMap<String, Person> personMap;
+	private final int batchSize;
+	private final int maxInFlight;
+	private final AdmissionLimiter writes;
+
+	private final AtomicLong loadedCount = new AtomicLong();
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+	private final Random random = new Random();
+
+	public PersonBulkLoader(HazelcastInstance instance, IMap<String, Person> personMap,
+			int batchSize, int maxInFlight) {
+		this.instance = instance;
+		this.personMap = personMap;
+		this.batchSize = batchSize;
+		this.maxInFlight = maxInFlight;
+		this.writes = AdmissionLimiter.forName(personMap.getName());
+	}
+
+	/**
+	 * Loads all the persons and returns the number of persons loaded.
+	 */
+	public long load(Iterator<Person> persons) throws Exception {
+		final long start = System.currentTimeMillis();
+		ExecutorService workers = Executors.newFixedThreadPool(maxInFlight);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				printProgress(start);
+			}
+		}, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		PartitionOwners partitionOwners = new PartitionOwners(instance);
+		// the owner is null while a partition is being migrated, those persons are batched together
+		Map<Member, Map<String, Person>> batches = new HashMap<Member, Map<String, Person>>();
+		try {
+			while(persons.hasNext() && failure.get() == null) {
+				Person person = persons.next();
+				Member owner = partitionOwners.getOwner(person.getSsn());
+				Map<String, Person> batch = batches.get(owner);
+				if (batch == null) {
+					batch = new HashMap<String, Person>(batchSize * 2);
+					batches.put(owner, batch);
+				}
+				batch.put(person.getSsn(), person);
+				if (batch.size() >= batchSize) {
+					batches.remove(owner);
+					submit(workers, inFlight, batch);
+				}
+			}
+			for(Map<String, Person> batch: batches.values()) {
+				submit(workers, inFlight, batch);
+			}
+			// wait for the batches in flight to complete
+			inFlight.acquire(maxInFlight);
+		} finally {
+			workers.shutdown();
+			reporter.shutdown();
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		printProgress(start);
+		return loadedCount.get();
+	}
+
+	private void submit(ExecutorService workers, final Semaphore inFlight,
+			final Map<String, Person> batch) throws InterruptedException {
+		inFlight.acquire();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+					while(true) {
+						try {
+							writes.call(new Callable<Void>() {
+								@Override
+								public Void call() {
+									long start = System.nanoTime();
+									personMap.putAll(batch);
+									putAllLatency.recordSince(start);
+									return null;
+								}
+							});
+							break;
+						} catch (RejectedExecutionException e) {
+							shedBatches.incrementAndGet();
+							// jittered so that the shed batches are not all sent again at once
+							Thread.sleep(retryDelayMillis / 2 + random.nextInt(retryDelayMillis / 2 + 1));
+							retryDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis * 2);
+						}
+					}
+					loadedCount.addAndGet(batch.size());
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	private void printProgress(long start) {
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		long count = loadedCount.get();
+		System.out.println(String.format("Loaded %d persons in %.1fs (%.0f persons/s)",
+				count, elapsed / 1000.0, count * 1000.0 / elapsed));
+	}
+}
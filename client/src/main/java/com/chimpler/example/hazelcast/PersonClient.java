@@ -16,28 +16,25 @@
 
 package com.chimpler.example.hazelcast;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
-import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.GroupIdentifier;
-import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Reservation;
-import com.hazelcast.client.ClientConfig;
-import com.hazelcast.client.HazelcastClient;
 import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.EntryListener;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
+import com.hazelcast.core.MultiTask;
 import com.hazelcast.core.Member;
-import com.hazelcast.query.SqlPredicate;
 
 public class PersonClient {
 
@@ -78,40 +75,39 @@ public class PersonClient {
 		{"San Antonia", "TX"}, {"San Diego", "CA"}, {"Dallas", "TX"}
 	};
 	
+	private final static int RESULT_PAGE_SIZE = 1000;
+	private final static int RESULT_BUFFERED_PAGES = 16;
+
+	private static final LatencyHistogram getLatency = Metrics.histogram("person.get");
+	private static final LatencyHistogram putLatency = Metrics.histogram("person.put");
+	private static final LatencyHistogram queryLatency = Metrics.histogram("person.query");
+	private static final AdmissionLimiter personWrites = AdmissionLimiter.forName("person");
+	private static final LatencyHistogram aggregationLatency = Metrics.histogram("person.aggregation");
+
 	public static void printHelp() {
 		System.out.println("Arguments:");
 		System.out.println("	add-random-data [count]: add random persons in the cache");
-		System.out.println("	query [query]: run query");
+		System.out.println("	bulk-load [count|file] [batchSize] [maxInFlight]: load random persons or persons from a csv/json lines file in batches");
+		System.out.println("	query [query] [cached|fresh]: run query, cached to accept results from the query cache of the members");
+		System.out.println("		the query can select attributes: \"select ssn, address.state where age > 60\"");
 		System.out.println("	get [ssn]: get person by ssn");
+		System.out.println("	lookup-file [file] [maxInFlight] [batchSize]: look up the ssns of a file (one per line) with");
+		System.out.println("		maxInFlight requests in flight, one getAsync per ssn or getAll by batches of batchSize");
 		System.out.println("	get-all: get all persons");
+		System.out.println("	export [snapshot]: export the persons to snapshot files written by the members on their disk");
+		System.out.println("	import [snapshot]: import the persons of a snapshot exported by the members");
+		System.out.println("	aggregate [count|sum|min|max|avg] [attribute|-] [groupBy|-] [query]: aggregate on the members");
+		System.out.println("	company-load [count]: add random persons to the person-by-company map, co-located by company");
+		System.out.println("	company-get [ssn]: get a person of the person-by-company map by ssn");
+		System.out.println("	company-query [companyName] [query|-]: query the employees of a company on its member only");
+		System.out.println("	company-aggregate [count|sum|min|max|avg] [attribute|-] [groupBy|-] [companyName] [query]:");
+		System.out.println("		aggregate the employees of a company on its member only");
+		System.out.println("	serialization-stats [count]: compare java, compact and dictionary encoded serialization of random persons");
+		System.out.println("	workload: run the workload configured with -Dworkload.* (see WorkloadDriver)");
 	}
 
 	public static HazelcastInstance initHazelcastClient() throws Exception {
-		ClientConfig hazelCastClientConfig = new ClientConfig();
-		hazelCastClientConfig.getGroupConfig().setName("dev").setPassword("dev-pass");
-		
-		AWSCredentialsProvider awsCredentialProvider = new ClasspathPropertiesFileCredentialsProvider("aws.properties");
-		AmazonEC2Client ec2 = new AmazonEC2Client(awsCredentialProvider);
-        DescribeAvailabilityZonesResult availabilityZonesResult = ec2.describeAvailabilityZones();
-        System.out.println("You have access to " + availabilityZonesResult.getAvailabilityZones().size() +
-        		" Availability Zones.");
-
-        DescribeInstancesResult describeInstancesRequest = ec2.describeInstances();
-
-        for (Reservation reservation: describeInstancesRequest.getReservations()) {
-        	for(Instance instance: reservation.getInstances()) {
-        		for(GroupIdentifier group: instance.getSecurityGroups()) {
-        			if (group.getGroupName().equals("jclouds#hazelcast")) {
-                        System.out.println("EC2 instance " + instance.getPublicIpAddress());
-                		hazelCastClientConfig.addAddress(instance.getPublicIpAddress(),
-                				instance.getPublicIpAddress() + ":5701");
-        			}
-        		}
-        	}
-        }		
-        HazelcastInstance hazelCastClient = HazelcastClient.newHazelcastClient(hazelCastClientConfig);
-        
-        return hazelCastClient;
+		return HazelcastClientFactory.newHazelcastClient();
 	}
 
 	protected static Address generateAddress() {
@@ -126,49 +122,352 @@ public class PersonClient {
 		return address;
 	}
 	
-	public static void addRandomPersons(IMap<String, Person> personMap, int count) {
+	protected static Person generatePerson(Random random) {
+		Person person = new Person();		
+		person.setSsn(String.format("%09d", random.nextInt(1000000000)));
+		person.setFirstName(firstNames[random.nextInt(firstNames.length)]);
+		person.setLastName(lastNames[random.nextInt(lastNames.length)]);
+		person.setAddress(generateAddress());
+		person.setAge(random.nextInt(100));
+		
+		Company company = new Company();
+		company.setName(companyNames[random.nextInt(companyNames.length)]);
+		company.setAddress(generateAddress());
+		person.setCompany(company);
+		return person;
+	}
+
+	public static void addRandomPersons(IMap<String, Person> personMap, int count) throws Exception {
 		Random random = new Random();
 		
 		for(int i = 0 ; i < count ; i++) {
-			Person person = new Person();		
-			person.setSsn(String.format("%09d", random.nextInt(1000000000)));
-			person.setFirstName(firstNames[random.nextInt(firstNames.length)]);
-			person.setLastName(lastNames[random.nextInt(lastNames.length)]);
-			person.setAddress(generateAddress());
-			person.setAge(random.nextInt(100));
-			
-			Company company = new Company();
-			company.setName(companyNames[random.nextInt(companyNames.length)]);
-			company.setAddress(generateAddress());
-			person.setCompany(company);
-			
-			personMap.put(person.getSsn(), person);
+			Person person = generatePerson(random);
+			putPerson(personMap, person);
 			System.out.println("Add person " + person);
 		}
 	}
+
+	/**
+	 * Puts the person through the AdmissionLimiter of the person map.
+	 *
+	 * @throws RejectedExecutionException if the put was shed because the cluster is overloaded
+	 */
+	public static void putPerson(final IMap<String, Person> personMap, final Person person) throws Exception {
+		personWrites.call(new Callable<Void>() {
+			@Override
+			public Void call() {
+				long start = System.nanoTime();
+				personMap.put(person.getSsn(), person);
+				putLatency.recordSince(start);
+				return null;
+			}
+		});
+	}
 	
+	public static Iterator<Person> randomPersons(final int count) {
+		final Random random = new Random();
+		return new Iterator<Person>() {
+			private int generated = 0;
+
+			@Override
+			public boolean hasNext() {
+				return generated < count;
+			}
+
+			@Override
+			public Person next() {
+				if (generated >= count) {
+					throw new NoSuchElementException();
+				}
+				generated++;
+				return generatePerson(random);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public static void bulkLoadPersons(HazelcastInstance instance, IMap<String, Person> personMap,
+			String source, int batchSize, int maxInFlight) throws Exception {
+		PersonBulkLoader loader = new PersonBulkLoader(instance, personMap, batchSize, maxInFlight);
+		if (source.matches("\\d+")) {
+			loader.load(randomPersons(Integer.parseInt(source)));
+		} else {
+			PersonFileReader reader = new PersonFileReader(source);
+			try {
+				loader.load(reader);
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	public static void lookupPersons(HazelcastInstance instance, IMap<String, Person> personMap, String fileName,
+			int maxInFlight, int batchSize) throws Exception {
+		AsyncMap<String, Person> asyncMap = new AsyncMap<String, Person>(instance, personMap, maxInFlight);
+		try {
+			new PersonLookupPipeline(asyncMap, maxInFlight, batchSize).lookup(fileName);
+		} finally {
+			asyncMap.shutdown();
+		}
+	}
+
 	public static void getPerson(IMap<String, Person> personMap, String ssn) {
+		long start = System.nanoTime();
 		Person person = personMap.get(ssn);
+		getLatency.recordSince(start);
 		System.out.println("Person with ssn " + ssn + ": " + person);
 	}
 
-	public static void getAllPersons(IMap<String, Person> personMap) {
-		Collection<Person> persons = personMap.values();
-		for(Person person: persons) {
-			System.out.println(person);
+	/**
+	 * Returns the persons matching the query (all the persons if the query is null),
+	 * read from the members page by page as the iterator is consumed.
+	 */
+	public static QueryResultIterator<Person> streamPersons(HazelcastInstance instance, IMap<String, Person> personMap,
+			String query) {
+		return streamPersons(instance, personMap, query, false);
+	}
+
+	/**
+	 * Same as streamPersons(instance, personMap, query), cached set to let the
+	 * members answer from their query result cache.
+	 */
+	public static QueryResultIterator<Person> streamPersons(HazelcastInstance instance, IMap<String, Person> personMap,
+			String query, boolean cached) {
+		return new QueryResultIterator<Person>(instance, personMap.getName(), query,
+				RESULT_PAGE_SIZE, RESULT_BUFFERED_PAGES, cached);
+	}
+
+	public static void getAllPersons(HazelcastInstance instance, IMap<String, Person> personMap) {
+		Iterator<Person> persons = streamPersons(instance, personMap, null);
+		while(persons.hasNext()) {
+			System.out.println(persons.next());
 		}
 	}
 
-	public static void runQuery(IMap<String, Person> personMap, String query) {
+	/**
+	 * Runs a query and prints the matching persons, or only the selected attributes
+	 * for a projection query such as "select ssn, address.state where age > 60".
+	 */
+	public static void runQuery(HazelcastInstance instance, IMap<String, Person> personMap, String query,
+			boolean cached) {
+		Projection projection = Projection.parse(query);
+		if (projection != null) {
+			runProjectionQuery(instance, personMap, projection, cached);
+			return;
+		}
 		System.out.println("Persons matching predicate: " + query );
-		Collection<Person> persons = personMap.values(
-				new SqlPredicate(query)
-		);
-		for(Person person: persons) {
+		long start = System.nanoTime();
+		QueryResultIterator<Person> persons = streamPersons(instance, personMap, query, cached);
+		long count = 0;
+		while(persons.hasNext()) {
+			System.out.println(persons.next());
+			count++;
+		}
+		queryLatency.recordSince(start);
+		printTransferSize(persons, count);
+	}
+
+	public static void runProjectionQuery(HazelcastInstance instance, IMap<String, Person> personMap,
+			Projection projection, boolean cached) {
+		String[] attributes = projection.getAttributes();
+		System.out.println("Attributes of persons matching predicate: " + projection.getWhere());
+		StringBuilder header = new StringBuilder();
+		for(String attribute: attributes) {
+			header.append(header.length() == 0 ? "" : "\t").append(attribute);
+		}
+		System.out.println(header);
+		long start = System.nanoTime();
+		QueryResultIterator<Tuple> tuples = new QueryResultIterator<Tuple>(instance, personMap.getName(),
+				projection.getWhere(), attributes, RESULT_PAGE_SIZE, RESULT_BUFFERED_PAGES, cached);
+		long count = 0;
+		while(tuples.hasNext()) {
+			Tuple tuple = tuples.next();
+			StringBuilder row = new StringBuilder();
+			for(int i = 0 ; i < tuple.size() ; i++) {
+				row.append(i == 0 ? "" : "\t").append(tuple.get(i));
+			}
+			System.out.println(row);
+			count++;
+		}
+		queryLatency.recordSince(start);
+		printTransferSize(tuples, count);
+	}
+
+	private static void printTransferSize(QueryResultIterator<?> results, long count) {
+		System.out.println(String.format("%d results, %d bytes of requests, %d bytes of results (%.1f bytes/result)",
+				count, results.getRequestBytes(), results.getResponseBytes(),
+				count == 0 ? 0.0 : results.getResponseBytes() / (double) count));
+	}
+
+	/**
+	 * Aggregates the attribute (or counts the persons if the attribute is null) of the
+	 * persons matching the query, grouped by the groupBy attribute. Each member
+	 * aggregates its own entries and only the partial aggregates are sent back.
+	 */
+	public static AggregationTask.Result aggregate(HazelcastInstance instance, IMap<String, Person> personMap,
+			String attribute, String groupBy, String query) throws Exception {
+		long start = System.nanoTime();
+		MultiTask<AggregationTask.Result> task = new MultiTask<AggregationTask.Result>(
+				new AggregationTask(personMap.getName(), attribute, groupBy, query),
+				instance.getCluster().getMembers());
+		instance.getExecutorService().execute(task);
+		AggregationTask.Result result = new AggregationTask.Result();
+		for(AggregationTask.Result memberResult: task.get()) {
+			result.merge(memberResult);
+		}
+		aggregationLatency.recordSince(start);
+		return result;
+	}
+
+	public static void runAggregation(HazelcastInstance instance, IMap<String, Person> personMap,
+			AggregateValue.Aggregation aggregation, String attribute, String groupBy, String query) throws Exception {
+		AggregationTask.Result result = aggregate(instance, personMap, attribute, groupBy, query);
+		System.out.println(aggregation + (attribute == null ? "" : " of " + attribute)
+				+ (groupBy == null ? "" : " by " + groupBy) + (query == null ? "" : " where " + query));
+		printAggregates(result, aggregation, groupBy);
+	}
+
+	private static void printAggregates(AggregationTask.Result result, AggregateValue.Aggregation aggregation,
+			String groupBy) {
+		if (result.getAggregates().isEmpty()) {
+			System.out.println("No values");
+			return;
+		}
+		Map<String, AggregateValue> aggregates = new TreeMap<String, AggregateValue>();
+		for(Map.Entry<String, AggregateValue> entry: result.getAggregates().entrySet()) {
+			aggregates.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		for(Map.Entry<String, AggregateValue> entry: aggregates.entrySet()) {
+			AggregateValue value = entry.getValue();
+			System.out.println((groupBy == null ? "" : entry.getKey() + ": ")
+					+ (value.hasValue(aggregation) ? String.valueOf(value.get(aggregation)) : "no values"));
+		}
+	}
+
+	public static void addRandomCompanyPersons(CompanyPersons companyPersons, int count) throws Exception {
+		Iterator<Person> persons = randomPersons(count);
+		List<Person> batch = new ArrayList<Person>();
+		long start = System.currentTimeMillis();
+		while(persons.hasNext()) {
+			batch.add(persons.next());
+			if (batch.size() == 1000 || !persons.hasNext()) {
+				companyPersons.putAll(batch);
+				batch.clear();
+			}
+		}
+		System.out.println("Added " + count + " persons in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	public static void runCompanyQuery(CompanyPersons companyPersons, String companyName, String query)
+			throws Exception {
+		System.out.println("Persons matching predicate: " + CompanyPersons.getCompanyQuery(companyName, query));
+		for(Person person: companyPersons.query(companyName, query)) {
 			System.out.println(person);
 		}
 	}
 
+	public static void runCompanyAggregation(CompanyPersons companyPersons, AggregateValue.Aggregation aggregation,
+			String attribute, String groupBy, String companyName, String query) throws Exception {
+		AggregationTask.Result result = companyPersons.aggregate(companyName, attribute, groupBy, query);
+		System.out.println(aggregation + (attribute == null ? "" : " of " + attribute)
+				+ (groupBy == null ? "" : " by " + groupBy) + " where " + CompanyPersons.getCompanyQuery(companyName, query));
+		printAggregates(result, aggregation, groupBy);
+	}
+
+	public static void printSerializationStats(int count) throws Exception {
+		Random random = new Random();
+		List<Person> persons = new ArrayList<Person>(count);
+		for(int i = 0 ; i < count ; i++) {
+			persons.add(generatePerson(random));
+		}
+
+		long javaBytes = 0;
+		long start = System.nanoTime();
+		for(Person person: persons) {
+			byte[] data = SerializationUtils.toJavaBytes(person);
+			javaBytes += data.length;
+			SerializationUtils.fromJavaBytes(data);
+		}
+		long javaTime = System.nanoTime() - start;
+
+		List<byte[]> compactData = new ArrayList<byte[]>(count);
+		start = System.nanoTime();
+		int mismatches = countMismatches(persons, compactData);
+		long compactTime = System.nanoTime() - start;
+
+		// the dictionary is local to this JVM, the codes are the same as with a cluster-wide dictionary
+		StringDictionary dictionary = new StringDictionary();
+		StringDictionary previousDictionary = StringDictionary.get();
+		StringDictionary.install(dictionary);
+		List<byte[]> encodedData = new ArrayList<byte[]>(count);
+		long encodedTime;
+		long encodedHeap;
+		try {
+			start = System.nanoTime();
+			mismatches += countMismatches(persons, encodedData);
+			encodedTime = System.nanoTime() - start;
+			encodedHeap = getHeapPerPerson(encodedData);
+		} finally {
+			StringDictionary.install(previousDictionary);
+		}
+		long compactHeap = getHeapPerPerson(compactData);
+
+		// the map stores the serialized persons, the members deserialize them to evaluate the queries
+		System.out.println(String.format("java:       %d bytes/entry, %.0f round trips/s",
+				javaBytes / count, count * 1e9 / javaTime));
+		System.out.println(String.format("compact:    %d bytes/entry, %.0f round trips/s, %d bytes/entry on heap once read",
+				getSize(compactData) / count, count * 1e9 / compactTime, compactHeap));
+		System.out.println(String.format("dictionary: %d bytes/entry, %.0f round trips/s, %d bytes/entry on heap once read"
+				+ " (%d strings in the dictionary)", getSize(encodedData) / count, count * 1e9 / encodedTime,
+				encodedHeap, dictionary.size()));
+		System.out.println("Persons not read back identically: " + mismatches);
+	}
+
+	// serializes and reads back the persons, keeping their serialized form in data
+	private static int countMismatches(List<Person> persons, List<byte[]> data) throws Exception {
+		int mismatches = 0;
+		for(Person person: persons) {
+			byte[] bytes = SerializationUtils.toBytes(person);
+			data.add(bytes);
+			Person copy = SerializationUtils.fromBytes(bytes, new Person());
+			if (!copy.toString().equals(person.toString())) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	private static long getSize(List<byte[]> data) {
+		long size = 0;
+		for(byte[] bytes: data) {
+			size += bytes.length;
+		}
+		return size;
+	}
+
+	// approximate heap used by the persons read from their serialized form
+	private static long getHeapPerPerson(List<byte[]> data) throws Exception {
+		long before = getUsedHeap();
+		List<Person> persons = new ArrayList<Person>(data.size());
+		for(byte[] bytes: data) {
+			persons.add(SerializationUtils.fromBytes(bytes, new Person()));
+		}
+		long heap = getUsedHeap() - before;
+		return persons.isEmpty() ? 0 : heap / persons.size();
+	}
+
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0 ; i < 3 ; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
 	public static void main(String args[]) throws Exception {
 		if (args.length < 1) {
 			printHelp();
@@ -178,34 +477,103 @@ public class PersonClient {
 		String query = null;
 		String ssn = null;
 		int count = 0;
-		if (action.equals("add-random-data")) {
+		String source = null;
+		int batchSize = 1000;
+		int maxInFlight = 8;
+		AggregateValue.Aggregation aggregation = null;
+		String attribute = null;
+		String groupBy = null;
+		boolean cached = false;
+		String companyName = null;
+		if (action.equals("add-random-data") || action.equals("company-load")) {
 			count = Integer.parseInt(args[1]);
+		} else if (action.equals("bulk-load")) {
+			source = args[1];
+			if (args.length > 2) {
+				batchSize = Integer.parseInt(args[2]);
+			}
+			if (args.length > 3) {
+				maxInFlight = Integer.parseInt(args[3]);
+			}
+		} else if (action.equals("serialization-stats")) {
+			printSerializationStats(Integer.parseInt(args[1]));
+			return;
 		} else if (action.equals("get-all")
-				|| action.equals("add-indexes")) {
+				|| action.equals("add-indexes")
+				|| action.equals("workload")) {
 			// no extra argument expected
 		} else if (action.equals("query")) {
 			query = args[1]; 
-		} else if (!action.equals("get")) {
+			cached = args.length > 2 && args[2].equals("cached");
+		} else if (action.equals("aggregate")) {
+			aggregation = AggregateValue.Aggregation.valueOf(args[1].toUpperCase());
+			attribute = args.length > 2 && !args[2].equals("-") ? args[2] : null;
+			groupBy = args.length > 3 && !args[3].equals("-") ? args[3] : null;
+			query = args.length > 4 ? args[4] : null;
+		} else if (action.equals("export") || action.equals("import")) {
+			source = args[1];
+		} else if (action.equals("lookup-file")) {
+			source = args[1];
+			maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+			batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		} else if (action.equals("get") || action.equals("company-get")) {
 			ssn = args[1]; 
+		} else if (action.equals("company-query")) {
+			companyName = args[1];
+			query = args.length > 2 && !args[2].equals("-") ? args[2] : null;
+		} else if (action.equals("company-aggregate")) {
+			aggregation = AggregateValue.Aggregation.valueOf(args[1].toUpperCase());
+			attribute = !args[2].equals("-") ? args[2] : null;
+			groupBy = !args[3].equals("-") ? args[3] : null;
+			companyName = args[4];
+			query = args.length > 5 ? args[5] : null;
 		} else {
 			System.out.println("Invalid action");
 			printHelp();
 			return;
 		}
 
+		Metrics.startFromSystemProperties("person-client");
 		HazelcastInstance instance = initHazelcastClient();
-		IMap<String, Person> personMap = instance.getMap("person");
+		// near cache enabled with -Dperson.nearCache.maxEntries or -Dperson.nearCache.maxBytes
+		IMap<String, Person> personMap = NearCache.wrapFromSystemProperties(
+				instance.<String, Person>getMap("person"), "person.nearCache");
 		
 		try {
 			if (action.equals("add-random-data")) {
 				addRandomPersons(personMap, count);
+			} else if (action.equals("bulk-load")) {
+				bulkLoadPersons(instance, personMap, source, batchSize, maxInFlight);
 			} else if (action.equals("get")) {
 				getPerson(personMap, ssn);
+			} else if (action.equals("lookup-file")) {
+				lookupPersons(instance, personMap, source, maxInFlight, batchSize);
 			} else if (action.equals("get-all")) {
-				getAllPersons(personMap);
+				getAllPersons(instance, personMap);
+			} else if (action.equals("export")) {
+				MapSnapshots.export(instance, personMap.getName(), source);
+			} else if (action.equals("import")) {
+				MapSnapshots.importSnapshot(instance, personMap.getName(), source);
 			} else if (action.equals("query")) {
-				runQuery(personMap, query);
+				runQuery(instance, personMap, query, cached);
+			} else if (action.equals("aggregate")) {
+				runAggregation(instance, personMap, aggregation, attribute, groupBy, query);
+			} else if (action.equals("company-load")) {
+				addRandomCompanyPersons(new CompanyPersons(instance), count);
+			} else if (action.equals("company-get")) {
+				System.out.println("Person with ssn " + ssn + ": " + new CompanyPersons(instance).get(ssn));
+			} else if (action.equals("company-query")) {
+				runCompanyQuery(new CompanyPersons(instance), companyName, query);
+			} else if (action.equals("company-aggregate")) {
+				runCompanyAggregation(new CompanyPersons(instance), aggregation, attribute, groupBy, companyName, query);
+			} else if (action.equals("workload")) {
+				WorkloadDriver.fromSystemProperties(instance, instance.<String, BudgetAccount>getMap("budget-account"),
+						personMap, "person-get:80,person-put:15,person-query:5").run();
+			}
+			if (NearCache.getNearCache(personMap) != null) {
+				System.out.println(NearCache.getNearCache(personMap));
 			}
+			System.out.print(Metrics.report(false));
 			instance.getLifecycleService().shutdown();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads persons from a file, one person per line. Files ending with .csv are read as
+ * CSV with the columns:
+ *
+ *   ssn,firstName,lastName,age,company.name,company.address.line,company.address.city,
+ *   company.address.state,address.line,address.city,address.state
+ *
+ * (an optional header line starting with "ssn" is skipped). Other files are read as
+ * JSON lines, each line being an object with the same nested structure as Person.
+ */
+public class PersonFileReader implements Iterator<Person> {
+	private final BufferedReader reader;
+	private final boolean csv;
+	private Person next;
+	private int lineNumber;
+
+	public PersonFileReader(String fileName) throws IOException {
+		this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+		this.csv = fileName.toLowerCase().endsWith(".csv");
+		this.next = readNext();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	@Override
+	public Person next() {
+		if (next == null) {
+			throw new NoSuchElementException();
+		}
+		Person person = next;
+		try {
+			next = readNext();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read line " + (lineNumber + 1), e);
+		}
+		return person;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private Person readNext() throws IOException {
+		String line;
+		while((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || (csv && lineNumber == 1 && line.startsWith("ssn"))) {
+				continue;
+			}
+			try {
+				return csv ? parseCsv(line) : parseJson(line);
+			} catch (RuntimeException e) {
+				throw new IOException("Invalid person on line " + lineNumber + ": " + e.getMessage(), e);
+			}
+		}
+		reader.close();
+		return null;
+	}
+
+	protected static Person parseCsv(String line) {
+		List<String> fields = splitCsv(line);
+		if (fields.size() != 11) {
+			throw new IllegalArgumentException("expected 11 columns, got " + fields.size());
+		}
+		Person person = new Person();
+		person.setSsn(fields.get(0));
+		person.setFirstName(fields.get(1));
+		person.setLastName(fields.get(2));
+		person.setAge(Integer.parseInt(fields.get(3)));
+		Company company = new Company();
+		company.setName(fields.get(4));
+		company.setAddress(createAddress(fields.get(5), fields.get(6), fields.get(7)));
+		person.setCompany(company);
+		person.setAddress(createAddress(fields.get(8), fields.get(9), fields.get(10)));
+		return person;
+	}
+
+	private static Address createAddress(String line, String city, String state) {
+		Address address = new Address();
+		address.setLine(line);
+		address.setCity(city);
+		address.setState(state);
+		return address;
+	}
+
+	private static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0 ; i < line.length() ; i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static Person parseJson(String line) {
+		Map<String, Object> object = (Map<String, Object>) new JsonParser(line).parse();
+		Person person = new Person();
+		person.setSsn((String) object.get("ssn"));
+		person.setFirstName((String) object.get("firstName"));
+		person.setLastName((String) object.get("lastName"));
+		Object age = object.get("age");
+		if (age != null) {
+			person.setAge(((Number) age).intValue());
+		}
+		Map<String, Object> company = (Map<String, Object>) object.get("company");
+		if (company != null) {
+			Company personCompany = new Company();
+			personCompany.setName((String) company.get("name"));
+			personCompany.setAddress(toAddress((Map<String, Object>) company.get("address")));
+			person.setCompany(personCompany);
+		}
+		person.setAddress(toAddress((Map<String, Object>) object.get("address")));
+		return person;
+	}
+
+	private static Address toAddress(Map<String, Object> object) {
+		if (object == null) {
+			return null;
+		}
+		return createAddress((String) object.get("line"), (String) object.get("city"), (String) object.get("state"));
+	}
+
+	/**
+	 * Minimal JSON parser for objects, strings, numbers, booleans and null
+	 * (arrays are not used by the person format).
+	 */
+	private static class JsonParser {
+		private final String text;
+		private int position;
+
+		public JsonParser(String text) {
+			this.text = text;
+		}
+
+		public Object parse() {
+			Object value = parseValue();
+			skipWhitespaces();
+			if (position != text.length()) {
+				throw error("unexpected trailing characters");
+			}
+			return value;
+		}
+
+		private Object parseValue() {
+			skipWhitespaces();
+			if (position >= text.length()) {
+				throw error("unexpected end of line");
+			}
+			char c = text.charAt(position);
+			if (c == '{') {
+				return parseObject();
+			} else if (c == '"') {
+				return parseString();
+			} else if (text.startsWith("null", position)) {
+				position += 4;
+				return null;
+			} else if (text.startsWith("true", position)) {
+				position += 4;
+				return Boolean.TRUE;
+			} else if (text.startsWith("false", position)) {
+				position += 5;
+				return Boolean.FALSE;
+			}
+			return parseNumber();
+		}
+
+		private Map<String, Object> parseObject() {
+			Map<String, Object> object = new HashMap<String, Object>();
+			position++;
+			skipWhitespaces();
+			if (peek() == '}') {
+				position++;
+				return object;
+			}
+			while(true) {
+				skipWhitespaces();
+				String name = parseString();
+				skipWhitespaces();
+				expect(':');
+				object.put(name, parseValue());
+				skipWhitespaces();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect('}');
+					return object;
+				}
+			}
+		}
+
+		private String parseString() {
+			expect('"');
+			StringBuilder value = new StringBuilder();
+			while(true) {
+				char c = next();
+				if (c == '"') {
+					return value.toString();
+				} else if (c == '\\') {
+					char escaped = next();
+					switch(escaped) {
+					case 'n': value.append('\n'); break;
+					case 't': value.append('\t'); break;
+					case 'r': value.append('\r'); break;
+					case 'b': value.append('\b'); break;
+					case 'f': value.append('\f'); break;
+					case 'u':
+						if (position + 4 > text.length()) {
+							throw error("invalid unicode escape");
+						}
+						value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+						position += 4;
+						break;
+					default: value.append(escaped);
+					}
+				} else {
+					value.append(c);
+				}
+			}
+		}
+
+		private Number parseNumber() {
+			int start = position;
+			while(position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			if (start == position) {
+				throw error("unexpected character '" + text.charAt(position) + "'");
+			}
+			String number = text.substring(start, position);
+			if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+				return Double.parseDouble(number);
+			}
+			return Long.parseLong(number);
+		}
+
+		private void skipWhitespaces() {
+			while(position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+
+		private char peek() {
+			if (position >= text.length()) {
+				throw error("unexpected end of line");
+			}
+			return text.charAt(position);
+		}
+
+		private char next() {
+			char c = peek();
+			position++;
+			return c;
+		}
+
+		private void expect(char c) {
+			if (next() != c) {
+				throw error("expected '" + c + "'");
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at column " + position);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.ExecutionCallback;
+
+/**
+ * Looks up the persons of a list of ssns (one ssn per line in a file) with up to
+ * maxInFlight requests in flight, so that the throughput grows with the number
+ * of requests in flight instead of being bound by the round trip time. With a
+ * batch size of 1 each ssn is read with getAsync, otherwise the ssns are read by
+ * batches with AsyncMap.getAll. The progress is reported every few seconds.
+ */
+public class PersonLookupPipeline {
+	private static final long REPORT_INTERVAL_SECONDS = 5;
+	private static final LatencyHistogram lookupLatency = Metrics.histogram("person.lookup");
+
+	private final AsyncMap<String, Person> personMap;
+	private final int maxInFlight;
+	private final int batchSize;
+
+	private final AtomicLong foundCount = new AtomicLong();
+	private final AtomicLong missingCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+
+	public PersonLookupPipeline(AsyncMap<String, Person> personMap, int maxInFlight, int batchSize) {
+		this.personMap = personMap;
+		this.maxInFlight = maxInFlight;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Looks up all the ssns of the file and returns the number of persons found.
+	 */
+	public long lookup(String fileName) throws Exception {
+		final long start = System.currentTimeMillis();
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				printProgress(start);
+			}
+		}, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		ExecutorService batchWorkers = batchSize > 1 ? Executors.newFixedThreadPool(maxInFlight) : null;
+
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+		try {
+			Set<String> batch = new HashSet<String>();
+			String line;
+			while((line = reader.readLine()) != null) {
+				String ssn = line.trim();
+				if (ssn.length() == 0) {
+					continue;
+				}
+				if (batchWorkers == null) {
+					inFlight.acquire();
+					get(ssn, inFlight);
+				} else {
+					batch.add(ssn);
+					if (batch.size() >= batchSize) {
+						inFlight.acquire();
+						getAll(batchWorkers, batch, inFlight);
+						batch = new HashSet<String>();
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				inFlight.acquire();
+				getAll(batchWorkers, batch, inFlight);
+			}
+			// wait for the requests in flight to complete
+			inFlight.acquire(maxInFlight);
+		} finally {
+			reader.close();
+			reporter.shutdown();
+			if (batchWorkers != null) {
+				batchWorkers.shutdown();
+			}
+		}
+		printProgress(start);
+		return foundCount.get();
+	}
+
+	private void get(String ssn, final Semaphore inFlight) throws InterruptedException {
+		final long start = System.nanoTime();
+		personMap.getAsync(ssn, new ExecutionCallback<Person>() {
+			@Override
+			public void done(Future<Person> future) {
+				try {
+					if (future.get() != null) {
+						foundCount.incrementAndGet();
+					} else {
+						missingCount.incrementAndGet();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failureCount.incrementAndGet();
+				} catch (ExecutionException e) {
+					failureCount.incrementAndGet();
+				} finally {
+					lookupLatency.recordSince(start);
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	private void getAll(ExecutorService workers, final Set<String> ssns, final Semaphore inFlight) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					Map<String, Person> persons = personMap.getAll(ssns);
+					foundCount.addAndGet(persons.size());
+					missingCount.addAndGet(ssns.size() - persons.size());
+				} catch (Exception e) {
+					failureCount.addAndGet(ssns.size());
+				} finally {
+					lookupLatency.recordSince(start);
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	private void printProgress(long start) {
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		long count = foundCount.get() + missingCount.get() + failureCount.get();
+		System.out.println(String.format("Looked up %d ssns in %.1fs (%.0f lookups/s): %d found, %d missing, %d failed",
+				count, elapsed / 1000.0, count * 1000.0 / elapsed, foundCount.get(), missingCount.get(),
+				failureCount.get()));
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Iterates over the result of a query without loading it all in the client.
+ *
+ * Each member is read by its own thread, page by page, with QueryPageTask. The
+ * pages are handed to the iterator through a queue of maxBufferedPages pages, so
+ * at most (maxBufferedPages + number of members) * pageSize values are held by the
+ * client at any time. The readers block when the queue is full, which also stops
+ * the members from computing pages that are not consumed. A reader blocked for
+ * longer than QueryCursorRegistry.CURSOR_TIMEOUT_MILLIS finds its cursor expired
+ * and the iteration fails.
+ *
+ * The bytes of the page requests and of the values received are counted so the
+ * cost of a query on the network can be reported.
+ */
+public class QueryResultIterator<V extends DataSerializable> implements Iterator<V> {
+	// marks the end of the pages of a member
+	private static final QueryPage<DataSerializable> END = new QueryPage<DataSerializable>();
+
+	private final BlockingQueue<QueryPage<?>> pages;
+	private final ExecutorService readers;
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+	private final AtomicLong requestBytes = new AtomicLong();
+	private final AtomicLong responseBytes = new AtomicLong();
+	private int remainingMembers;
+	private Iterator<V> current = Collections.<V>emptyList().iterator();
+
+	/**
+	 * @param query the SQL predicate to evaluate, null to iterate over all the entries
+	 */
+	public QueryResultIterator(HazelcastInstance instance, String mapName, String query,
+			int pageSize, int maxBufferedPages) {
+		this(instance, mapName, query, pageSize, maxBufferedPages, false);
+	}
+
+	/**
+	 * @param cached whether the members can serve the query from their QueryResultCache
+	 */
+	public QueryResultIterator(HazelcastInstance instance, String mapName, String query,
+			int pageSize, int maxBufferedPages, boolean cached) {
+		this(instance, mapName, query, null, pageSize, maxBufferedPages, cached);
+	}
+
+	/**
+	 * @param attributes the attributes to read, V being then Tuple, null to read the whole entries
+	 */
+	public QueryResultIterator(HazelcastInstance instance, String mapName, String query, String[] attributes,
+			int pageSize, int maxBufferedPages, boolean cached) {
+		this.pages = new ArrayBlockingQueue<QueryPage<?>>(maxBufferedPages);
+		Set<Member> members = instance.getCluster().getMembers();
+		this.remainingMembers = members.size();
+		this.readers = Executors.newFixedThreadPool(Math.max(1, members.size()));
+		String cursorId = UUID.randomUUID().toString();
+		for(Member member: members) {
+			readers.execute(new MemberReader(instance, member,
+					new QueryPageTask<V>(mapName, query, attributes, cursorId, pageSize, cached)));
+		}
+		readers.shutdown();
+	}
+
+	private class MemberReader implements Runnable {
+		private final HazelcastInstance instance;
+		private final Member member;
+		private QueryPageTask<V> task;
+
+		public MemberReader(HazelcastInstance instance, Member member, QueryPageTask<V> task) {
+			this.instance = instance;
+			this.member = member;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int requestSize = SerializationUtils.toJavaBytes(task).length;
+				QueryPage<V> page;
+				do {
+					DistributedTask<QueryPage<V>> distributedTask = new DistributedTask<QueryPage<V>>(task, member);
+					instance.getExecutorService().execute(distributedTask);
+					page = distributedTask.get();
+					task = task.nextPage();
+					requestBytes.addAndGet(requestSize);
+					responseBytes.addAndGet(page.getSerializedSize());
+					if (!page.getValues().isEmpty()) {
+						pages.put(page);
+					}
+				} while(!page.isLast());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				try {
+					pages.put(END);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean hasNext() {
+		while(!current.hasNext()) {
+			if (remainingMembers == 0) {
+				return false;
+			}
+			QueryPage<?> page;
+			try {
+				page = pages.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for results", e);
+			}
+			if (page == END) {
+				remainingMembers--;
+				if (failure.get() != null) {
+					close();
+					throw new IllegalStateException("Cannot read query results", failure.get());
+				}
+			} else {
+				current = ((List<V>) page.getValues()).iterator();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public V next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns the number of bytes of the page requests sent so far.
+	 */
+	public long getRequestBytes() {
+		return requestBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes of the values received so far.
+	 */
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+
+	/**
+	 * Stops reading the results. The cursors left on the members expire after
+	 * QueryCursorRegistry.CURSOR_TIMEOUT_MILLIS.
+	 */
+	public void close() {
+		remainingMembers = 0;
+		current = Collections.<V>emptyList().iterator();
+		readers.shutdownNow();
+		pages.clear();
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Budget accounts split in several stripes so that the updates of a hot account are
+ * spread over several partitions (and so over several members).
+ *
+ * The stripes are stored in the budget-account-stripe map with the keys
+ * [accountId]#[stripe] and the number of stripes of each striped account is stored
+ * in the budget-account-striping map. An update goes to a random stripe and runs as
+ * an AddMoneyTask on its owner. When a withdrawal cannot be done on its stripe, all
+ * the stripes are locked, the withdrawal is done on the total and the remaining money
+ * is spread evenly over the stripes. No stripe can go negative so the total cannot
+ * either.
+ *
+ * The account converted to a striped account is replaced in the budget-account
+ * map by a tombstone holding its number of stripes. The AddMoneyTask of a client
+ * that did not receive the striping map event yet fails on the tombstone with an
+ * AccountStripedException instead of creating a plain account again, and the
+ * client sends the update to the stripes.
+ */
+public class StripedBudgetAccounts {
+	public static final String STRIPE_MAP = "budget-account-stripe";
+	public static final String STRIPING_MAP = "budget-account-striping";
+
+	private static final Map<HazelcastInstance, StripedBudgetAccounts> instances =
+			new IdentityHashMap<HazelcastInstance, StripedBudgetAccounts>();
+
+	private final HazelcastInstance instance;
+	private final IMap<String, BudgetAccount> stripeMap;
+	private final IMap<String, Integer> stripingMap;
+	// local copy of the striping map, kept up to date with an entry listener
+	private final Map<String, Integer> stripeCounts = new ConcurrentHashMap<String, Integer>();
+	private final Random random = new Random();
+
+	public StripedBudgetAccounts(HazelcastInstance instance) {
+		this.instance = instance;
+		this.stripeMap = instance.getMap(STRIPE_MAP);
+		this.stripingMap = instance.getMap(STRIPING_MAP);
+		stripingMap.addEntryListener(new EntryListener<String, Integer>() {
+			@Override
+			public void entryAdded(EntryEvent<String, Integer> event) {
+				stripeCounts.put(event.getKey(), event.getValue());
+			}
+
+			@Override
+			public void entryUpdated(EntryEvent<String, Integer> event) {
+				stripeCounts.put(event.getKey(), event.getValue());
+			}
+
+			@Override
+			public void entryRemoved(EntryEvent<String, Integer> event) {
+				stripeCounts.remove(event.getKey());
+			}
+
+			@Override
+			public void entryEvicted(EntryEvent<String, Integer> event) {
+				stripeCounts.remove(event.getKey());
+			}
+		}, true);
+		for(Map.Entry<String, Integer> entry: stripingMap.entrySet()) {
+			stripeCounts.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public static synchronized StripedBudgetAccounts forInstance(HazelcastInstance instance) {
+		StripedBudgetAccounts stripedAccounts = instances.get(instance);
+		if (stripedAccounts == null) {
+			stripedAccounts = new StripedBudgetAccounts(instance);
+			instances.put(instance, stripedAccounts);
+		}
+		return stripedAccounts;
+	}
+
+	public static String getStripeKey(String accountId, int stripe) {
+		return accountId + "#" + stripe;
+	}
+
+	public boolean isStriped(String accountId) {
+		return stripeCounts.containsKey(accountId);
+	}
+
+	/**
+	 * Records that the account is striped, when it is known before the striping
+	 * map event is received.
+	 */
+	public void setStriped(String accountId, int stripes) {
+		stripeCounts.put(accountId, stripes);
+	}
+
+	/**
+	 * Adds the amount to a stripe of the account and returns the new balance of
+	 * that stripe (use getBudget to get the total).
+	 */
+	public double updateBudget(String accountId, double amount) throws Exception {
+		int stripes = stripeCounts.get(accountId);
+		String stripeKey = getStripeKey(accountId, random.nextInt(stripes));
+		if (amount >= 0) {
+			return AccountClient.updateBudgetAtomic(instance, stripeMap, stripeKey, amount);
+		}
+		try {
+			return AccountClient.updateBudgetAtomic(instance, stripeMap, stripeKey, amount);
+		} catch (InsufficientBudgetException e) {
+			return withdrawAndRebalance(accountId, stripes, amount);
+		}
+	}
+
+	private double withdrawAndRebalance(String accountId, int stripes, double amount) throws Exception {
+		List<String> stripeKeys = lockStripes(accountId, stripes);
+		try {
+			double balance = getTotal(stripeKeys) + amount;
+			if (balance < 0) {
+				throw new InsufficientBudgetException();
+			}
+			double share = balance / stripes;
+			for(int i = 0 ; i < stripes ; i++) {
+				// the first stripe gets the rounding error
+				double stripeBalance = i == 0 ? balance - share * (stripes - 1) : share;
+				stripeMap.put(stripeKeys.get(i), createAccount(stripeKeys.get(i), stripeBalance));
+			}
+			return share;
+		} finally {
+			unlockStripes(stripeKeys);
+		}
+	}
+
+	/**
+	 * Returns the total budget of a striped account. The stripes are locked while they
+	 * are read so the total is consistent.
+	 */
+	public double getBudget(String accountId) {
+		List<String> stripeKeys = lockStripes(accountId, stripeCounts.get(accountId));
+		try {
+			return getTotal(stripeKeys);
+		} finally {
+			unlockStripes(stripeKeys);
+		}
+	}
+
+	/**
+	 * Returns the striped accounts with their total budget.
+	 */
+	public List<BudgetAccount> getAccounts() {
+		List<BudgetAccount> accounts = new ArrayList<BudgetAccount>();
+		for(String accountId: new TreeMap<String, Integer>(stripeCounts).keySet()) {
+			accounts.add(createAccount(accountId, getBudget(accountId)));
+		}
+		return accounts;
+	}
+
+	/**
+	 * Converts a budget account to a striped account. The balance is moved from the
+	 * budget-account map and spread evenly over the stripes.
+	 *
+	 * The AddMoneyTasks do not take the lock of the account, so the tombstone
+	 * replaces the account only if it was not updated since it was read. Until then
+	 * no update goes to the stripes, and they are written again from the new balance
+	 * when the account changed.
+	 */
+	public void stripe(IMap<String, BudgetAccount> budgetAccountMap, String accountId, int stripes) {
+		if (isStriped(accountId)) {
+			throw new IllegalStateException("Account " + accountId + " is already striped");
+		}
+		budgetAccountMap.lock(accountId);
+		try {
+			BudgetAccount tombstone = createAccount(accountId, 0);
+			tombstone.setStripes(stripes);
+			while(true) {
+				BudgetAccount account = budgetAccountMap.get(accountId);
+				if (account != null && account.isStriped()) {
+					throw new IllegalStateException("Account " + accountId + " is already striped");
+				}
+				double balance = account == null || account.getBudget() == null ? 0 : account.getBudget();
+				double share = balance / stripes;
+				for(int i = 0 ; i < stripes ; i++) {
+					String stripeKey = getStripeKey(accountId, i);
+					double stripeBalance = i == 0 ? balance - share * (stripes - 1) : share;
+					stripeMap.put(stripeKey, createAccount(stripeKey, stripeBalance));
+				}
+				if (account == null ? budgetAccountMap.putIfAbsent(accountId, tombstone) == null
+						: budgetAccountMap.replace(accountId, account, tombstone)) {
+					break;
+				}
+			}
+			stripingMap.put(accountId, stripes);
+			stripeCounts.put(accountId, stripes);
+		} finally {
+			budgetAccountMap.unlock(accountId);
+		}
+	}
+
+	// the stripes are always locked in the same order to avoid deadlocks
+	private List<String> lockStripes(String accountId, int stripes) {
+		List<String> stripeKeys = new ArrayList<String>(stripes);
+		try {
+			for(int i = 0 ; i < stripes ; i++) {
+				String stripeKey = getStripeKey(accountId, i);
+				stripeMap.lock(stripeKey);
+				stripeKeys.add(stripeKey);
+			}
+		} catch (RuntimeException e) {
+			unlockStripes(stripeKeys);
+			throw e;
+		}
+		return stripeKeys;
+	}
+
+	private void unlockStripes(List<String> stripeKeys) {
+		for(String stripeKey: stripeKeys) {
+			stripeMap.unlock(stripeKey);
+		}
+	}
+
+	private double getTotal(List<String> stripeKeys) {
+		double total = 0;
+		for(BudgetAccount stripe: stripeMap.getAll(new HashSet<String>(stripeKeys)).values()) {
+			total += stripe.getBudget();
+		}
+		return total;
+	}
+
+	private static BudgetAccount createAccount(String accountId, double budget) {
+		BudgetAccount account = new BudgetAccount();
+		account.setAccountId(accountId);
+		account.setBudget(budget);
+		account.setUpdateTime(BudgetAccount.currentUpdateTime());
+		return account;
+	}
+}
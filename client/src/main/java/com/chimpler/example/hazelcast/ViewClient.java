@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MultiTask;
+
+/**
+ * Defines the materialized views maintained by the members (see MaterializedView)
+ * and reads them: each member only sends the totals of its groups, so reading a
+ * view does not scan the map.
+ */
+public class ViewClient {
+	private static final LatencyHistogram readLatency = Metrics.histogram("view.read");
+
+	private static final MaterializedView.Definition[] defaultDefinitions = {
+		new MaterializedView.Definition("persons-by-state", "person", null, "address.state"),
+		new MaterializedView.Definition("persons-by-company", "person", null, "company.name"),
+		// the budget of the striped accounts is in their stripes, their entry in budget-account is a tombstone
+		new MaterializedView.Definition("total-budget", TransferTask.ACCOUNT_MAP + "," + StripedBudgetAccounts.STRIPE_MAP
+				+ "," + TransferTask.GROUPED_ACCOUNT_MAP, "budget", null)
+	};
+
+	public static void printHelp() {
+		System.out.println("Arguments:");
+		System.out.println("	define [name] [map[,map...]] [attribute|-] [groupBy|-]: define a view counting the entries of");
+		System.out.println("		the maps (and summing the attribute) by group");
+		System.out.println("	define-defaults: define the persons-by-state, persons-by-company and total-budget views");
+		System.out.println("	remove [name]: remove the view");
+		System.out.println("	list-views: list the views defined");
+		System.out.println("	get [name]: print the totals of the view");
+		System.out.println("	verify [name]: compute the view again on the members and print the groups that were different");
+	}
+
+	public static void define(HazelcastInstance instance, MaterializedView.Definition definition) {
+		IMap<String, MaterializedView.Definition> definitionMap = instance.getMap(MaterializedView.DEFINITION_MAP);
+		definitionMap.put(definition.getName(), definition);
+		System.out.println("Defined " + definition);
+	}
+
+	public static void remove(HazelcastInstance instance, String name) {
+		IMap<String, MaterializedView.Definition> definitionMap = instance.getMap(MaterializedView.DEFINITION_MAP);
+		if (definitionMap.remove(name) == null) {
+			System.out.println("Unknown view " + name);
+		} else {
+			System.out.println("Removed view " + name);
+		}
+	}
+
+	public static void listViews(HazelcastInstance instance) {
+		IMap<String, MaterializedView.Definition> definitionMap = instance.getMap(MaterializedView.DEFINITION_MAP);
+		for(MaterializedView.Definition definition: definitionMap.values()) {
+			System.out.println(definition);
+		}
+	}
+
+	/**
+	 * Merges the totals of the view of all the members, the view being computed
+	 * again from scratch by the members if verify is true.
+	 */
+	public static MaterializedView.Result getView(HazelcastInstance instance, String name, boolean verify)
+			throws Exception {
+		long start = System.nanoTime();
+		MultiTask<MaterializedView.Result> task = new MultiTask<MaterializedView.Result>(
+				new ViewTask(name, verify), instance.getCluster().getMembers());
+		instance.getExecutorService().execute(task);
+		MaterializedView.Result result = new MaterializedView.Result();
+		try {
+			for(MaterializedView.Result memberResult: task.get()) {
+				result.merge(memberResult);
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		if (!verify) {
+			readLatency.recordSince(start);
+		}
+		return result;
+	}
+
+	public static void printView(HazelcastInstance instance, String name, boolean verify) throws Exception {
+		long start = System.currentTimeMillis();
+		MaterializedView.Result result = getView(instance, name, verify);
+		long elapsed = System.currentTimeMillis() - start;
+		Map<String, MaterializedView.Group> groups = new TreeMap<String, MaterializedView.Group>();
+		for(Map.Entry<String, MaterializedView.Group> entry: result.getGroups().entrySet()) {
+			groups.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		for(Map.Entry<String, MaterializedView.Group> entry: groups.entrySet()) {
+			MaterializedView.Group group = entry.getValue();
+			System.out.println(entry.getKey() + ": count=" + group.getCount() + ", sum=" + group.getSum());
+		}
+		System.out.println(groups.size() + " groups in " + elapsed + "ms");
+		if (verify) {
+			System.out.println(result.getMismatches() + " groups were different on the members");
+		}
+		if (result.isStale()) {
+			System.out.println("Warning: some members are rebuilding the view after a migration, the totals may be incomplete");
+		}
+	}
+
+	public static HazelcastInstance initHazelcastClient() throws Exception {
+		return HazelcastClientFactory.newHazelcastClient();
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 1) {
+			printHelp();
+			return;
+		}
+		String action = args[0];
+		String name = null;
+		MaterializedView.Definition definition = null;
+		if (action.equals("define-defaults")
+				|| action.equals("list-views")) {
+			// no extra argument expected
+		} else if (action.equals("define")) {
+			definition = new MaterializedView.Definition(args[1], args[2],
+					args[3].equals("-") ? null : args[3], args[4].equals("-") ? null : args[4]);
+		} else if (action.equals("remove") || action.equals("get") || action.equals("verify")) {
+			name = args[1];
+		} else {
+			System.out.println("Invalid action");
+			printHelp();
+			return;
+		}
+
+		Metrics.startFromSystemProperties("view-client");
+		HazelcastInstance instance = initHazelcastClient();
+		try {
+			if (action.equals("define")) {
+				define(instance, definition);
+			} else if (action.equals("define-defaults")) {
+				for(MaterializedView.Definition defaultDefinition: defaultDefinitions) {
+					define(instance, defaultDefinition);
+				}
+			} else if (action.equals("remove")) {
+				remove(instance, name);
+			} else if (action.equals("list-views")) {
+				listViews(instance);
+			} else if (action.equals("get")) {
+				printView(instance, name, false);
+			} else if (action.equals("verify")) {
+				printView(instance, name, true);
+			}
+			instance.getLifecycleService().shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
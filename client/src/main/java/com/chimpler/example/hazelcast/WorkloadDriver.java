@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Runs a mix of account and person operations against the cluster at a target
+ * rate and reports the throughput and latencies of each phase.
+ *
+ * The driver is open loop: operation n of a phase is due at start + n / rate
+ * whether or not the previous operations have completed, and its latency is
+ * measured from that time. The latencies then include the time an operation
+ * waited because the cluster (or the concurrency) could not keep up, which a
+ * closed loop hides (coordinated omission). The time spent in the call itself
+ * is reported separately as the service time. A rate of 0 runs the operations
+ * back to back (closed loop).
+ *
+ * A warm-up phase at the first rate is followed by one phase per rate, so that
+ * running increasing rates shows where the cluster saturates. The workload is
+ * configured with the system properties:
+ *
+ *   workload.mix             operations and weights, e.g. person-get:80,person-put:15,person-query:5
+ *   workload.rates           target rates in operations/s, e.g. 1000,2000,4000 (0 for closed loop)
+ *   workload.durationSeconds duration of each phase (30)
+ *   workload.warmupSeconds   duration of the warm-up phase (10)
+ *   workload.concurrency     maximum number of operations in flight (32)
+ *   workload.keys            key distribution: uniform, zipfian or hot (zipfian)
+ *   workload.keyCount        number of distinct keys (10000)
+ *   workload.zipfianTheta    skew of the zipfian distribution, below 1 (0.99)
+ *   workload.accountMode     how accounts are updated: atomic or lock (atomic)
+ *   workload.query           query of person-query (age = [random age] by default)
+ *   workload.cachedQueries   let the members answer person-query from their query cache (false)
+ *   workload.preload         put the accounts and persons before the warm-up (true)
+ */
+public class WorkloadDriver {
+	private static final double INITIAL_BUDGET = 1000000;
+	private static final double SATURATION_RATIO = 0.95;
+	private static final int PRELOAD_BATCH_SIZE = 1000;
+	private static final int PRELOAD_MAX_IN_FLIGHT = 8;
+
+	public enum Operation {
+		ACCOUNT_GET, ACCOUNT_UPDATE, PERSON_GET, PERSON_PUT, PERSON_QUERY;
+
+		public String getName() {
+			return name().toLowerCase().replace('_', '-');
+		}
+
+		public static Operation forName(String name) {
+			return valueOf(name.toUpperCase().replace('-', '_'));
+		}
+	}
+
+	public enum KeyDistribution {
+		UNIFORM, ZIPFIAN, HOT
+	}
+
+	private final HazelcastInstance instance;
+	private final IMap<String, BudgetAccount> budgetAccountMap;
+	private final IMap<String, Person> personMap;
+
+	private Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+	private long[] rates = {0};
+	private int durationSeconds = 30;
+	private int warmupSeconds = 10;
+	private int concurrency = 32;
+	private KeyDistribution keyDistribution = KeyDistribution.ZIPFIAN;
+	private int keyCount = 10000;
+	private double zipfianTheta = 0.99;
+	private AccountClient.UpdateMode accountMode = AccountClient.UpdateMode.ATOMIC;
+	private String query;
+	private boolean cachedQueries;
+	private boolean preload = true;
+
+	// set when the workload starts
+	private Operation[] operations;
+	private int[] cumulativeWeights;
+	private ZipfianGenerator zipfian;
+
+	public WorkloadDriver(HazelcastInstance instance, IMap<String, BudgetAccount> budgetAccountMap,
+			IMap<String, Person> personMap) {
+		this.instance = instance;
+		this.budgetAccountMap = budgetAccountMap;
+		this.personMap = personMap;
+	}
+
+	public static WorkloadDriver fromSystemProperties(HazelcastInstance instance,
+			IMap<String, BudgetAccount> budgetAccountMap, IMap<String, Person> personMap, String defaultMix) {
+		WorkloadDriver driver = new WorkloadDriver(instance, budgetAccountMap, personMap);
+		driver.setMix(parseMix(System.getProperty("workload.mix", defaultMix)));
+		String[] rates = System.getProperty("workload.rates", "0").split(",");
+		long[] parsedRates = new long[rates.length];
+		for(int i = 0 ; i < rates.length ; i++) {
+			parsedRates[i] = Long.parseLong(rates[i].trim());
+		}
+		driver.setRates(parsedRates);
+		driver.setDurationSeconds(Integer.getInteger("workload.durationSeconds", 30));
+		driver.setWarmupSeconds(Integer.getInteger("workload.warmupSeconds", 10));
+		driver.setConcurrency(Integer.getInteger("workload.concurrency", 32));
+		driver.setKeyDistribution(KeyDistribution.valueOf(System.getProperty("workload.keys", "zipfian").toUpperCase()));
+		driver.setKeyCount(Integer.getInteger("workload.keyCount", 10000));
+		driver.setZipfianTheta(Double.parseDouble(System.getProperty("workload.zipfianTheta", "0.99")));
+		driver.setAccountMode(AccountClient.UpdateMode.valueOf(
+				System.getProperty("workload.accountMode", "atomic").toUpperCase()));
+		driver.setQuery(System.getProperty("workload.query"));
+		driver.setCachedQueries(Boolean.getBoolean("workload.cachedQueries"));
+		driver.setPreload(Boolean.parseBoolean(System.getProperty("workload.preload", "true")));
+		return driver;
+	}
+
+	/**
+	 * Parses a mix such as "account-update:80,account-get:20".
+	 */
+	public static Map<Operation, Integer> parseMix(String mix) {
+		Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+		for(String entry: mix.split(",")) {
+			String[] nameAndWeight = entry.trim().split(":");
+			weights.put(Operation.forName(nameAndWeight[0]),
+					nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1]) : 1);
+		}
+		return weights;
+	}
+
+	public void setMix(Map<Operation, Integer> mix) {
+		this.mix = mix;
+	}
+
+	public void setRates(long[] rates) {
+		this.rates = rates;
+	}
+
+	public void setDurationSeconds(int durationSeconds) {
+		this.durationSeconds = durationSeconds;
+	}
+
+	public void setWarmupSeconds(int warmupSeconds) {
+		this.warmupSeconds = warmupSeconds;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public void setKeyDistribution(KeyDistribution keyDistribution) {
+		this.keyDistribution = keyDistribution;
+	}
+
+	public void setKeyCount(int keyCount) {
+		this.keyCount = keyCount;
+	}
+
+	public void setZipfianTheta(double zipfianTheta) {
+		this.zipfianTheta = zipfianTheta;
+	}
+
+	public void setAccountMode(AccountClient.UpdateMode accountMode) {
+		this.accountMode = accountMode;
+	}
+
+	public void setQuery(String query) {
+		this.query = query;
+	}
+
+	public void setCachedQueries(boolean cachedQueries) {
+		this.cachedQueries = cachedQueries;
+	}
+
+	public void setPreload(boolean preload) {
+		this.preload = preload;
+	}
+
+	/**
+	 * Runs the warm-up and the phases and returns the results of the phases (the
+	 * warm-up excluded).
+	 */
+	public List<PhaseResult> run() throws Exception {
+		operations = new Operation[mix.size()];
+		cumulativeWeights = new int[mix.size()];
+		int totalWeight = 0;
+		int index = 0;
+		for(Map.Entry<Operation, Integer> entry: mix.entrySet()) {
+			totalWeight += entry.getValue();
+			operations[index] = entry.getKey();
+			cumulativeWeights[index] = totalWeight;
+			index++;
+		}
+		if (keyDistribution == KeyDistribution.ZIPFIAN) {
+			zipfian = new ZipfianGenerator(keyCount, zipfianTheta);
+		}
+		System.out.println("Workload: mix=" + mix + " keys=" + keyDistribution + "(" + keyCount + ")"
+				+ " concurrency=" + concurrency);
+
+		if (preload) {
+			preload();
+		}
+
+		List<PhaseResult> results = new ArrayList<PhaseResult>();
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		try {
+			if (warmupSeconds > 0) {
+				System.out.println(runPhase(workers, "warm-up", rates[0], warmupSeconds));
+			}
+			for(long rate: rates) {
+				PhaseResult result = runPhase(workers, rate == 0 ? "max" : rate + " ops/s", rate, durationSeconds);
+				System.out.println(result);
+				results.add(result);
+			}
+		} finally {
+			workers.shutdown();
+		}
+
+		System.out.println("Summary:");
+		System.out.println(String.format("%12s %12s %12s %12s %12s", "target/s", "achieved/s", "p50 (ms)",
+				"p99 (ms)", "p99.9 (ms)"));
+		for(PhaseResult result: results) {
+			LatencyHistogram.Snapshot total = result.getTotalResponseTime();
+			System.out.println(String.format("%12s %12.0f %12.2f %12.2f %12.2f%s",
+					result.rate == 0 ? "max" : String.valueOf(result.rate), result.getThroughput(),
+					total.getPercentileNanos(50) / 1e6, total.getPercentileNanos(99) / 1e6,
+					total.getPercentileNanos(99.9) / 1e6, result.isSaturated() ? "  saturated" : ""));
+		}
+		return results;
+	}
+
+	private void preload() throws Exception {
+		long start = System.currentTimeMillis();
+		if (mix.containsKey(Operation.ACCOUNT_GET) || mix.containsKey(Operation.ACCOUNT_UPDATE)) {
+			Map<String, BudgetAccount> batch = new HashMap<String, BudgetAccount>();
+			for(int i = 0 ; i < keyCount ; i++) {
+				BudgetAccount account = new BudgetAccount();
+				account.setAccountId(getAccountId(i));
+				account.setBudget(INITIAL_BUDGET);
+				account.setUpdateTime(BudgetAccount.currentUpdateTime());
+				batch.put(account.getAccountId(), account);
+				if (batch.size() == PRELOAD_BATCH_SIZE || i == keyCount - 1) {
+					budgetAccountMap.putAll(batch);
+					batch.clear();
+				}
+			}
+			System.out.println("Preloaded " + keyCount + " accounts");
+		}
+		if (mix.containsKey(Operation.PERSON_GET) || mix.containsKey(Operation.PERSON_QUERY)) {
+			final Random random = new Random();
+			new PersonBulkLoader(instance, personMap, PRELOAD_BATCH_SIZE, PRELOAD_MAX_IN_FLIGHT).load(
+					new Iterator<Person>() {
+						private int key = 0;
+
+						@Override
+						public boolean hasNext() {
+							return key < keyCount;
+						}
+
+						@Override
+						public Person next() {
+							if (key >= keyCount) {
+								throw new NoSuchElementException();
+							}
+							return createPerson(key++, random);
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					});
+		}
+		System.out.println("Preloaded in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private PhaseResult runPhase(ExecutorService workers, String name, final long rate, int seconds)
+			throws InterruptedException {
+		final PhaseResult result = new PhaseResult(name, rate, operations);
+		final long phaseStart = System.nanoTime();
+		final long phaseEnd = phaseStart + TimeUnit.SECONDS.toNanos(seconds);
+		final double intervalNanos = rate == 0 ? 0 : 1e9 / rate;
+		final AtomicLong sequence = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		for(int i = 0 ; i < concurrency ; i++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					try {
+						while(true) {
+							long now = System.nanoTime();
+							if (now >= phaseEnd) {
+								break;
+							}
+							long intendedStart = rate == 0 ? now
+									: phaseStart + (long) (sequence.getAndIncrement() * intervalNanos);
+							if (intendedStart >= phaseEnd) {
+								break;
+							}
+							waitUntil(intendedStart);
+							execute(result, random, intendedStart);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		result.elapsedNanos = System.nanoTime() - phaseStart;
+		if (rate > 0) {
+			// operations due before the end of the phase that no worker could start in time
+			long due = (long) Math.ceil(TimeUnit.SECONDS.toNanos(seconds) / intervalNanos);
+			result.notStarted = Math.max(0, due - result.getCompletedCount());
+		}
+		return result;
+	}
+
+	private void execute(PhaseResult result, Random random, long intendedStart) {
+		int operationIndex = pickOperation(random);
+		Operation operation = operations[operationIndex];
+		int key = nextKey(random);
+		long start = System.nanoTime();
+		try {
+			switch(operation) {
+			case ACCOUNT_GET:
+				budgetAccountMap.get(getAccountId(key));
+				break;
+			case ACCOUNT_UPDATE:
+				// deposits and withdrawals so that the accounts do not run out of money
+				AccountClient.updateBudget(instance, budgetAccountMap, getAccountId(key),
+						random.nextDouble() * 2 - 1, accountMode);
+				break;
+			case PERSON_GET:
+				personMap.get(getSsn(key));
+				break;
+			case PERSON_PUT:
+				PersonClient.putPerson(personMap, createPerson(key, random));
+				break;
+			case PERSON_QUERY:
+				Iterator<Person> persons = PersonClient.streamPersons(instance, personMap,
+						query != null ? query : "age = " + random.nextInt(100), cachedQueries);
+				while(persons.hasNext()) {
+					persons.next();
+				}
+				break;
+			}
+		} catch (Exception e) {
+			result.recordFailure(operationIndex, e);
+		}
+		long end = System.nanoTime();
+		result.responseTimes[operationIndex].recordNanos(end - intendedStart);
+		result.serviceTimes[operationIndex].recordNanos(end - start);
+	}
+
+	private int pickOperation(Random random) {
+		int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for(int i = 0 ; i < cumulativeWeights.length ; i++) {
+			if (value < cumulativeWeights[i]) {
+				return i;
+			}
+		}
+		return cumulativeWeights.length - 1;
+	}
+
+	private int nextKey(Random random) {
+		switch(keyDistribution) {
+		case HOT:
+			return 0;
+		case ZIPFIAN:
+			return (int) zipfian.next(random);
+		default:
+			return random.nextInt(keyCount);
+		}
+	}
+
+	private static void waitUntil(long nanoTime) {
+		long remaining;
+		while((remaining = nanoTime - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private static String getAccountId(int key) {
+		return "workload-" + key;
+	}
+
+	private static String getSsn(int key) {
+		return String.format("%09d", key);
+	}
+
+	private static Person createPerson(int key, Random random) {
+		Person person = PersonClient.generatePerson(random);
+		person.setSsn(getSsn(key));
+		return person;
+	}
+
+	/**
+	 * Zipfian distribution over [0, n) where key 0 is the most frequent, as generated
+	 * by YCSB (Gray et al., Quickly Generating Billion-Record Synthetic Databases).
+	 */
+	static class ZipfianGenerator {
+		private final long n;
+		private final double theta;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+
+		public ZipfianGenerator(long n, double theta) {
+			if (theta <= 0 || theta >= 1) {
+				throw new IllegalArgumentException("The zipfian theta must be between 0 and 1");
+			}
+			this.n = n;
+			this.theta = theta;
+			this.zetan = zeta(n, theta);
+			this.alpha = 1 / (1 - theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0;
+			for(long i = 1 ; i <= n ; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			return sum;
+		}
+
+		public long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < 1 + Math.pow(0.5, theta)) {
+				return 1;
+			}
+			return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+	public static class PhaseResult {
+		private final String name;
+		private final long rate;
+		private final Operation[] operations;
+		private final LatencyHistogram[] responseTimes;
+		private final LatencyHistogram[] serviceTimes;
+		private final AtomicLong[] failures;
+		private final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+		private long elapsedNanos;
+		private long notStarted;
+
+		PhaseResult(String name, long rate, Operation[] operations) {
+			this.name = name;
+			this.rate = rate;
+			this.operations = operations;
+			this.responseTimes = new LatencyHistogram[operations.length];
+			this.serviceTimes = new LatencyHistogram[operations.length];
+			this.failures = new AtomicLong[operations.length];
+			for(int i = 0 ; i < operations.length ; i++) {
+				responseTimes[i] = new LatencyHistogram(operations[i].getName() + " response");
+				serviceTimes[i] = new LatencyHistogram(operations[i].getName() + " service");
+				failures[i] = new AtomicLong();
+			}
+		}
+
+		void recordFailure(int operationIndex, Exception e) {
+			failures[operationIndex].incrementAndGet();
+			firstFailure.compareAndSet(null, e);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getRate() {
+			return rate;
+		}
+
+		public long getCompletedCount() {
+			long count = 0;
+			for(LatencyHistogram histogram: responseTimes) {
+				count += histogram.getCount();
+			}
+			return count;
+		}
+
+		public long getFailureCount() {
+			long count = 0;
+			for(AtomicLong failure: failures) {
+				count += failure.get();
+			}
+			return count;
+		}
+
+		public double getThroughput() {
+			return getCompletedCount() * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * Returns true if the cluster did not sustain the target rate.
+		 */
+		public boolean isSaturated() {
+			return rate > 0 && getThroughput() < rate * SATURATION_RATIO;
+		}
+
+		public LatencyHistogram.Snapshot getTotalResponseTime() {
+			LatencyHistogram total = new LatencyHistogram("total");
+			for(LatencyHistogram histogram: responseTimes) {
+				total.add(histogram);
+			}
+			return total.snapshot(false);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("Phase %s: %d operations in %.1fs (%.0f ops/s), %d failures, %d not started%s%n",
+					name, getCompletedCount(), elapsedNanos / 1e9, getThroughput(), getFailureCount(), notStarted,
+					isSaturated() ? ", saturated" : ""));
+			for(int i = 0 ; i < operations.length ; i++) {
+				report.append("  ").append(responseTimes[i].snapshot(false)).append('\n');
+				report.append("  ").append(serviceTimes[i].snapshot(false)).append('\n');
+				if (failures[i].get() > 0) {
+					report.append("  ").append(operations[i].getName()).append(" failures: ")
+							.append(failures[i].get()).append('\n');
+				}
+			}
+			if (firstFailure.get() != null) {
+				report.append("  first failure: ").append(firstFailure.get()).append('\n');
+			}
+			return report.toString();
+		}
+	}
+}
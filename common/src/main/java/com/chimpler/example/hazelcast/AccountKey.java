@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.core.PartitionAware;
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Key of a budget account belonging to a group (e.g. the accounts of a customer).
+ * The partition of the key is the one of the group id so that all the accounts
+ * of a group are owned by the same member.
+ *
+ * The string form is [groupId]/[accountId]. An account without a group is its
+ * own group, its string form is [accountId]: it is the account of the
+ * budget-account map with this id.
+ */
+public class AccountKey implements PartitionAware<String>, DataSerializable, Comparable<AccountKey> {
+	private static final long serialVersionUID = 1L;
+
+	private String groupId;
+	private String accountId;
+
+	public AccountKey() {
+	}
+
+	public AccountKey(String groupId, String accountId) {
+		this.groupId = groupId;
+		this.accountId = accountId;
+	}
+
+	public static AccountKey parse(String key) {
+		int separator = key.indexOf('/');
+		if (separator < 0) {
+			return new AccountKey(key, key);
+		}
+		return new AccountKey(key.substring(0, separator), key.substring(separator + 1));
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public String getAccountId() {
+		return accountId;
+	}
+
+	/**
+	 * Returns false for an account without a group, whose group id is its account id.
+	 */
+	public boolean isGrouped() {
+		return !groupId.equals(accountId);
+	}
+
+	@Override
+	public String getPartitionKey() {
+		return groupId;
+	}
+
+	@Override
+	public int compareTo(AccountKey other) {
+		int result = groupId.compareTo(other.groupId);
+		return result != 0 ? result : accountId.compareTo(other.accountId);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * groupId.hashCode() + accountId.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof AccountKey)) {
+			return false;
+		}
+		AccountKey other = (AccountKey) obj;
+		return groupId.equals(other.groupId) && accountId.equals(other.accountId);
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		out.writeUTF(groupId);
+		out.writeUTF(accountId);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		groupId = in.readUTF();
+		accountId = in.readUTF();
+	}
+
+	@Override
+	public String toString() {
+		return isGrouped() ? groupId + "/" + accountId : accountId;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+
+/**
+ * Adds an amount to a budget account. The task is meant to be submitted as a
+ * DistributedTask keyed by the account id so that it runs on the member owning
+ * the account: the read and the compare-and-set are then local calls and no
+ * cluster lock is taken.
+ *
+ * Returns the new balance or fails if the account does not have enough money.
+ * The task fails with an AccountStripedException if the account was converted
+ * to a striped account: the tombstone left by the conversion is checked on the
+ * member, so a client that does not know yet that the account is striped cannot
+ * create a plain account again.
+ */
+public class AddMoneyTask implements Callable<Double>, Serializable, HazelcastInstanceAware {
+	private static final long serialVersionUID = 1L;
+	private static final LatencyHistogram updateLatency = Metrics.histogram("member.account.update");
+	private static final AtomicLong updateRetries = Metrics.counter("member.account.update.retries");
+
+	private final String mapName;
+	private final String accountId;
+	private final double amount;
+
+	private transient HazelcastInstance hazelcastInstance;
+
+	public AddMoneyTask(String mapName, String accountId, double amount) {
+		this.mapName = mapName;
+		this.accountId = accountId;
+		this.amount = amount;
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	@Override
+	public Double call() throws Exception {
+		long start = System.nanoTime();
+		try {
+			return update();
+		} finally {
+			updateLatency.recordSince(start);
+		}
+	}
+
+	private double update() throws InsufficientBudgetException, AccountStripedException {
+		IMap<String, BudgetAccount> budgetAccountMap = hazelcastInstance.getMap(mapName);
+		while(true) {
+			BudgetAccount existingAccount = budgetAccountMap.get(accountId);
+			if (existingAccount != null && existingAccount.isStriped()) {
+				throw new AccountStripedException(accountId, existingAccount.getStripes());
+			}
+			double balance = getBalance(existingAccount) + amount;
+			if (balance < 0) {
+				throw new InsufficientBudgetException();
+			}
+
+			BudgetAccount updatedAccount = new BudgetAccount();
+			updatedAccount.setAccountId(accountId);
+			updatedAccount.setBudget(balance);
+			updatedAccount.setUpdateTime(BudgetAccount.currentUpdateTime());
+
+			// another task may have updated the account in between, in which case we retry
+			if (existingAccount == null) {
+				if (budgetAccountMap.putIfAbsent(accountId, updatedAccount) == null) {
+					return balance;
+				}
+			} else if (budgetAccountMap.replace(accountId, existingAccount, updatedAccount)) {
+				return balance;
+			}
+			updateRetries.incrementAndGet();
+		}
+	}
+
+	private static double getBalance(BudgetAccount account) {
+		return account == null || account.getBudget() == null ? 0 : account.getBudget();
+	}
+}
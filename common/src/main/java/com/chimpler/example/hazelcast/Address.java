@@ -16,9 +16,15 @@
 
 package com.chimpler.example.hazelcast;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.nio.DataSerializable;
+
+public class Address implements DataSerializable {
+	private static final long serialVersionUID = 4825259917808282540L;
 
-public class Address implements Serializable{
 	private String line;
 	private String city;
 	private String state;
@@ -47,6 +53,32 @@ public class Address implements Serializable{
 		this.state = state;
 	}
 	
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		writeData(out, null);
+	}
+
+	/**
+	 * Writes the address, the city and the state as codes of the dictionary if
+	 * there is one. The line has a street number and is always written as is.
+	 */
+	public void writeData(DataOutput out, StringDictionary dictionary) throws IOException {
+		SerializationUtils.writeString(out, line);
+		SerializationUtils.writeString(out, city, dictionary);
+		SerializationUtils.writeString(out, state, dictionary);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		readData(in, null);
+	}
+
+	public void readData(DataInput in, StringDictionary dictionary) throws IOException {
+		line = SerializationUtils.readString(in);
+		city = SerializationUtils.readString(in, dictionary);
+		state = SerializationUtils.readString(in, dictionary);
+	}
+
 	@Override
 	public String toString() {
 		return "Address [line=" + line + ", city="
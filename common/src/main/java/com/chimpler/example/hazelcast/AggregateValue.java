@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Count, sum, min and max of a set of values, from which the supported
+ * aggregations are computed. Partial aggregates computed by the members are
+ * merged by the client.
+ *
+ * Only the numeric values are aggregated, the entries are counted with
+ * increment when there is no attribute to aggregate. MIN, MAX and AVG have no
+ * value (NaN) when no numeric value was added.
+ */
+public class AggregateValue implements DataSerializable {
+	private static final long serialVersionUID = 1L;
+
+	public enum Aggregation {
+		COUNT, SUM, MIN, MAX, AVG
+	}
+
+	private long count;
+	private double sum;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Adds a value. Null and non numeric values are ignored.
+	 */
+	public void add(Object value) {
+		if (value instanceof Number) {
+			count++;
+			double number = ((Number) value).doubleValue();
+			sum += number;
+			min = Math.min(min, number);
+			max = Math.max(max, number);
+		}
+	}
+
+	public void merge(AggregateValue other) {
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Counts an entry without aggregating a value.
+	 */
+	public void increment() {
+		count++;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns whether the aggregation has a value, MIN, MAX and AVG need at least
+	 * one numeric value.
+	 */
+	public boolean hasValue(Aggregation aggregation) {
+		switch(aggregation) {
+		case MIN:
+		case MAX:
+		case AVG:
+			return min <= max;
+		default:
+			return true;
+		}
+	}
+
+	public double get(Aggregation aggregation) {
+		if (!hasValue(aggregation)) {
+			return Double.NaN;
+		}
+		switch(aggregation) {
+		case COUNT: return count;
+		case SUM: return sum;
+		case MIN: return min;
+		case MAX: return max;
+		case AVG: return sum / count;
+		default: throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+		}
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		out.writeLong(count);
+		out.writeDouble(sum);
+		out.writeDouble(min);
+		out.writeDouble(max);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		count = in.readLong();
+		sum = in.readDouble();
+		min = in.readDouble();
+		max = in.readDouble();
+	}
+
+	@Override
+	public String toString() {
+		return "AggregateValue [count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + "]";
+	}
+}
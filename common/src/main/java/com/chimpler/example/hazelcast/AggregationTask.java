@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Aggregates an attribute of the entries owned by the member executing the task,
+ * grouped by another attribute. The query (if any) is evaluated with localKeySet so
+ * the map indexes are used, and only the partial aggregate of each group is sent
+ * back. The bitmap index is updated asynchronously, so the values read are
+ * checked against the query again (when QueryExpression supports it).
+ */
+public class AggregationTask implements Callable<AggregationTask.Result>, Serializable, HazelcastInstanceAware {
+	private static final long serialVersionUID = 1L;
+	private static final LatencyHistogram queryLatency = Metrics.histogram("member.query");
+	private static final LatencyHistogram aggregationLatency = Metrics.histogram("member.aggregation");
+
+	private final String mapName;
+	private final String attribute;
+	private final String groupBy;
+	private final String query;
+
+	private transient HazelcastInstance hazelcastInstance;
+
+	/**
+	 * @param attribute the attribute to aggregate, null to count the entries
+	 * @param groupBy the attribute to group by, null for a single group
+	 * @param query the SQL predicate selecting the entries, null for all the entries
+	 */
+	public AggregationTask(String mapName, String attribute, String groupBy, String query) {
+		this.mapName = mapName;
+		this.attribute = attribute;
+		this.groupBy = groupBy;
+		this.query = query;
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	@Override
+	public Result call() throws Exception {
+		IMap<Object, Object> map = hazelcastInstance.getMap(mapName);
+		long start = System.nanoTime();
+		Set<Object> keys = BitmapIndex.localKeySet(hazelcastInstance, map, query);
+		queryLatency.recordSince(start);
+		QueryExpression expression = query == null ? null : QueryExpression.tryParse(query);
+		Result result = new Result();
+		for(Object value: OffHeapTierStore.getAll(hazelcastInstance, map, keys).values()) {
+			if (value == null || BudgetAccount.isTombstone(value)
+					|| (expression != null && !expression.matches(value))) {
+				continue;
+			}
+			String group = groupBy == null ? null : String.valueOf(AttributeExtractor.extract(value, groupBy));
+			if (attribute == null) {
+				result.getAggregate(group).increment();
+			} else {
+				result.getAggregate(group).add(AttributeExtractor.extract(value, attribute));
+			}
+		}
+		aggregationLatency.recordSince(start);
+		return result;
+	}
+
+	/**
+	 * Aggregates by group, the group is null when there is no group by.
+	 */
+	public static class Result implements DataSerializable {
+		private static final long serialVersionUID = 1L;
+
+		private Map<String, AggregateValue> aggregates = new HashMap<String, AggregateValue>();
+
+		public Map<String, AggregateValue> getAggregates() {
+			return aggregates;
+		}
+
+		public AggregateValue getAggregate(String group) {
+			AggregateValue aggregate = aggregates.get(group);
+			if (aggregate == null) {
+				aggregate = new AggregateValue();
+				aggregates.put(group, aggregate);
+			}
+			return aggregate;
+		}
+
+		public void merge(Result other) {
+			for(Map.Entry<String, AggregateValue> entry: other.aggregates.entrySet()) {
+				getAggregate(entry.getKey()).merge(entry.getValue());
+			}
+		}
+
+		@Override
+		public void writeData(DataOutput out) throws IOException {
+			out.writeInt(aggregates.size());
+			for(Map.Entry<String, AggregateValue> entry: aggregates.entrySet()) {
+				SerializationUtils.writeString(out, entry.getKey());
+				entry.getValue().writeData(out);
+			}
+		}
+
+		@Override
+		public void readData(DataInput in) throws IOException {
+			int size = in.readInt();
+			aggregates = new HashMap<String, AggregateValue>(size * 2);
+			for(int i = 0 ; i < size ; i++) {
+				String group = SerializationUtils.readString(in);
+				AggregateValue aggregate = new AggregateValue();
+				aggregate.readData(in);
+				aggregates.put(group, aggregate);
+			}
+		}
+	}
+}
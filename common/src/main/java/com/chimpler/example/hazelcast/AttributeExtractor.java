@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads attributes of objects by path, using the same syntax as the map indexes
+ * and the SQL predicates (e.g. "company.address.state" calls getCompany(), then
+ * getAddress(), then getState()).
+ */
+public final class AttributeExtractor {
+	private static final Map<String, Method> getters = new ConcurrentHashMap<String, Method>();
+
+	private AttributeExtractor() {
+	}
+
+	/**
+	 * Returns the value of the attribute, null if one of the objects on the path is null.
+	 */
+	public static Object extract(Object object, String path) {
+		Object value = object;
+		for(String attribute: path.split("\\.")) {
+			if (value == null) {
+				return null;
+			}
+			Method getter = getGetter(value.getClass(), attribute);
+			try {
+				value = getter.invoke(value);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Cannot read " + attribute + " of " + value.getClass().getName(), e);
+			}
+		}
+		return value;
+	}
+
+	private static Method getGetter(Class<?> objectClass, String attribute) {
+		String key = objectClass.getName() + "." + attribute;
+		Method getter = getters.get(key);
+		if (getter == null) {
+			String suffix = Character.toUpperCase(attribute.charAt(0)) + attribute.substring(1);
+			try {
+				getter = objectClass.getMethod("get" + suffix);
+			} catch (NoSuchMethodException e) {
+				try {
+					getter = objectClass.getMethod("is" + suffix);
+				} catch (NoSuchMethodException e2) {
+					throw new IllegalArgumentException("No attribute " + attribute + " in " + objectClass.getName());
+				}
+			}
+			getters.put(key, getter);
+		}
+		return getter;
+	}
+}
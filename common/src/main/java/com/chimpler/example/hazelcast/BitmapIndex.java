@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.nio.DataSerializable;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.query.SqlPredicate;
+
+/**
+ * Bitmap index of the entries owned by a member on low cardinality attributes
+ * (states, company names...): each entry gets a dense id and each distinct value
+ * of an attribute has the compressed bitmap of the ids of the entries with this
+ * value. The queries combining these attributes with AND, OR, IN and NOT are
+ * evaluated on the bitmaps, and the entries are only read when the query has
+ * other conditions.
+ *
+ * The index is kept up to date by a local entry listener. The entries moved by a
+ * migration do not generate events, so the index is not used from the start of a
+ * migration until it is rebuilt from the local entries, shortly after the last
+ * migration completed.
+ *
+ * When the map has an OffHeapTierStore, the index covers the entries evicted to
+ * the tier as well: it is rebuilt from the tier, the evictions do not remove the
+ * entries from the index and the entries read to check the conditions on other
+ * attributes are read from the tier without being promoted to the heap.
+ *
+ * When a StringDictionary is installed, the string values are indexed by their
+ * code if this JVM already knows it, as plain strings otherwise (assigning a code
+ * would block the listener and the rebuild on cluster calls): the literals of the
+ * queries are looked up both by their code and as plain strings.
+ */
+public class BitmapIndex {
+	private static final ConcurrentMap<String, BitmapIndex> indexes = new ConcurrentHashMap<String, BitmapIndex>();
+	private static final long REBUILD_DELAY_MILLIS = 1000;
+	private static final AtomicLong indexedQueries = Metrics.counter("member.bitmapIndex.queries");
+	private static final AtomicLong fallbackQueries = Metrics.counter("member.bitmapIndex.fallbacks");
+	private static final AtomicLong heapOnlyQueries = Metrics.counter("member.offHeap.heapOnlyQueries");
+
+	private final List<String> attributes;
+	private final Map<String, Map<Object, CompressedBitmap>> bitmaps = new HashMap<String, Map<Object, CompressedBitmap>>();
+	private final Map<Object, Integer> ids = new HashMap<Object, Integer>();
+	private final List<Object> keys = new ArrayList<Object>();
+	private final List<Object[]> indexedValues = new ArrayList<Object[]>();
+	private final List<Integer> freeIds = new ArrayList<Integer>();
+	// attributes whose values are indexed by their dictionary code (or as plain strings)
+	private final Set<String> codedAttributes = new HashSet<String>();
+	private CompressedBitmap allIds = new CompressedBitmap();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private OffHeapTierStore<?> tier;
+	private volatile boolean stale;
+	private final AtomicLong migrations = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> rebuild;
+
+	public BitmapIndex(String... attributes) {
+		this.attributes = Arrays.asList(attributes);
+		for(String attribute: attributes) {
+			bitmaps.put(attribute, new HashMap<Object, CompressedBitmap>());
+		}
+	}
+
+	/**
+	 * Creates the index of the map on the attributes and keeps it up to date.
+	 */
+	public static BitmapIndex register(HazelcastInstance instance, String mapName, String... attributes) {
+		final IMap<Object, Object> map = instance.getMap(mapName);
+		final BitmapIndex index = new BitmapIndex(attributes);
+		// creating the map initializes its store
+		index.tier = OffHeapTierStore.get(instance, mapName);
+		index.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "bitmap-index-rebuild");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		map.addLocalEntryListener(new EntryListener<Object, Object>() {
+			@Override
+			public void entryAdded(EntryEvent<Object, Object> event) {
+				index.put(event.getKey(), event.getValue());
+			}
+
+			@Override
+			public void entryUpdated(EntryEvent<Object, Object> event) {
+				index.put(event.getKey(), event.getValue());
+			}
+
+			@Override
+			public void entryRemoved(EntryEvent<Object, Object> event) {
+				index.remove(event.getKey());
+			}
+
+			@Override
+			public void entryEvicted(EntryEvent<Object, Object> event) {
+				// the evicted entries are still in the off-heap tier
+				if (index.tier == null) {
+					index.remove(event.getKey());
+				}
+			}
+		});
+		instance.getPartitionService().addMigrationListener(new MigrationListener() {
+			@Override
+			public void migrationStarted(MigrationEvent migrationEvent) {
+				index.migrations.incrementAndGet();
+				index.stale = true;
+			}
+
+			@Override
+			public void migrationCompleted(MigrationEvent migrationEvent) {
+				index.scheduleRebuild(map);
+			}
+
+			public void migrationFailed(MigrationEvent migrationEvent) {
+				index.scheduleRebuild(map);
+			}
+		});
+		index.rebuild(map);
+		indexes.put(getIndexName(instance, mapName), index);
+		return index;
+	}
+
+	public static BitmapIndex get(HazelcastInstance instance, String mapName) {
+		return indexes.get(getIndexName(instance, mapName));
+	}
+
+	private static String getIndexName(HazelcastInstance instance, String mapName) {
+		// several members can run in the same JVM
+		return instance.getName() + ":" + mapName;
+	}
+
+	/**
+	 * Returns the keys of the local entries matching the query (all the local
+	 * entries if the query is null), using the bitmap index of the map if there is
+	 * one and if it supports the query.
+	 *
+	 * The entries evicted to the off-heap tier of the map are included, except for
+	 * the queries not supported by QueryExpression which only see the entries in
+	 * the heap.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K> Set<K> localKeySet(HazelcastInstance instance, IMap<K, ?> map, String query) {
+		OffHeapTierStore<?> tier = OffHeapTierStore.get(instance, map.getName());
+		if (query == null) {
+			if (tier == null) {
+				return map.localKeySet();
+			}
+			Set<K> keys = new HashSet<K>(map.localKeySet());
+			keys.addAll((Set<K>) tier.scan(null));
+			return keys;
+		}
+		BitmapIndex index = get(instance, map.getName());
+		if (index != null) {
+			Set<Object> keys = index.query((IMap<Object, Object>) map, query);
+			if (keys != null) {
+				indexedQueries.incrementAndGet();
+				return (Set<K>) keys;
+			}
+			fallbackQueries.incrementAndGet();
+		}
+		Set<K> keys = map.localKeySet(new SqlPredicate(query));
+		if (tier != null) {
+			QueryExpression expression = QueryExpression.tryParse(query);
+			if (expression == null) {
+				heapOnlyQueries.incrementAndGet();
+			} else {
+				keys = new HashSet<K>(keys);
+				keys.addAll((Set<K>) tier.scan(expression));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the keys of the entries matching the query, or null if the query
+	 * does not use the indexed attributes, uses a syntax not supported by
+	 * QueryExpression, or if the index is being rebuilt.
+	 */
+	public Set<Object> query(IMap<Object, Object> map, String query) {
+		if (stale) {
+			return null;
+		}
+		QueryExpression expression = QueryExpression.tryParse(query);
+		if (expression == null) {
+			return null;
+		}
+		QueryExpression.IndexResult result;
+		Set<Object> candidates;
+		lock.readLock().lock();
+		try {
+			result = expression.evaluate(this);
+			if (result == null) {
+				return null;
+			}
+			int[] candidateIds = result.getIds().toArray();
+			candidates = new HashSet<Object>(candidateIds.length * 2);
+			for(int id: candidateIds) {
+				candidates.add(keys.get(id));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (result.isExact()) {
+			return candidates;
+		}
+		Set<Object> matchingKeys = new HashSet<Object>();
+		if (tier != null) {
+			for(Object key: candidates) {
+				Object value = tier.read((String) key);
+				if (value != null && expression.matches(value)) {
+					matchingKeys.add(key);
+				}
+			}
+			return matchingKeys;
+		}
+		for(Map.Entry<Object, Object> entry: map.getAll(candidates).entrySet()) {
+			if (entry.getValue() != null && expression.matches(entry.getValue())) {
+				matchingKeys.add(entry.getKey());
+			}
+		}
+		return matchingKeys;
+	}
+
+	public void put(Object key, Object value) {
+		Object[] values = new Object[attributes.size()];
+		boolean[] coded = new boolean[values.length];
+		StringDictionary dictionary = StringDictionary.get();
+		for(int i = 0 ; i < values.length ; i++) {
+			values[i] = AttributeExtractor.extract(value, attributes.get(i));
+			if (dictionary != null && values[i] instanceof String) {
+				// the boxed code shared by all the entries with this value
+				Integer code = dictionary.getCode((String) values[i]);
+				if (code != null) {
+					values[i] = code;
+					coded[i] = true;
+				}
+			}
+		}
+		lock.writeLock().lock();
+		try {
+			for(int i = 0 ; i < coded.length ; i++) {
+				if (coded[i]) {
+					codedAttributes.add(attributes.get(i));
+				}
+			}
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = freeIds.isEmpty() ? keys.size() : freeIds.remove(freeIds.size() - 1);
+				if (id == keys.size()) {
+					keys.add(key);
+					indexedValues.add(values);
+				} else {
+					keys.set(id, key);
+					indexedValues.set(id, values);
+				}
+				ids.put(key, id);
+				allIds.add(id);
+			} else {
+				clearBits(id);
+				indexedValues.set(id, values);
+			}
+			for(int i = 0 ; i < values.length ; i++) {
+				Map<Object, CompressedBitmap> attributeBitmaps = bitmaps.get(attributes.get(i));
+				CompressedBitmap bitmap = attributeBitmaps.get(values[i]);
+				if (bitmap == null) {
+					bitmap = new CompressedBitmap();
+					attributeBitmaps.put(values[i], bitmap);
+				}
+				bitmap.add(id);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(Object key) {
+		lock.writeLock().lock();
+		try {
+			Integer id = ids.remove(key);
+			if (id != null) {
+				clearBits(id);
+				keys.set(id, null);
+				indexedValues.set(id, null);
+				allIds.remove(id);
+				freeIds.add(id);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void clearBits(int id) {
+		Object[] values = indexedValues.get(id);
+		for(int i = 0 ; i < values.length ; i++) {
+			Map<Object, CompressedBitmap> attributeBitmaps = bitmaps.get(attributes.get(i));
+			CompressedBitmap bitmap = attributeBitmaps.get(values[i]);
+			bitmap.remove(id);
+			if (bitmap.isEmpty()) {
+				attributeBitmaps.remove(values[i]);
+			}
+		}
+	}
+
+	private void clear() {
+		for(Map<Object, CompressedBitmap> attributeBitmaps: bitmaps.values()) {
+			attributeBitmaps.clear();
+		}
+		ids.clear();
+		keys.clear();
+		indexedValues.clear();
+		freeIds.clear();
+		allIds = new CompressedBitmap();
+	}
+
+	private synchronized void scheduleRebuild(final IMap<Object, Object> map) {
+		// migrations come in bursts, the index is rebuilt once they are over
+		if (rebuild != null) {
+			rebuild.cancel(false);
+		}
+		rebuild = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				rebuild(map);
+			}
+		}, REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Indexes the entries owned by the member again.
+	 */
+	public void rebuild(IMap<Object, Object> map) {
+		long migrationCount = migrations.get();
+		lock.writeLock().lock();
+		try {
+			clear();
+			if (tier != null) {
+				indexTier(tier);
+			} else {
+				for(Map.Entry<Object, Object> entry: map.getAll(map.localKeySet()).entrySet()) {
+					put(entry.getKey(), entry.getValue());
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		// a migration started during the rebuild schedules another one
+		if (migrations.get() == migrationCount) {
+			stale = false;
+		}
+	}
+
+	private <V extends DataSerializable> void indexTier(OffHeapTierStore<V> tier) {
+		// the tier has all the local entries, reading them from the heap would promote the evicted ones
+		tier.visitLocalEntries(new OffHeapTierStore.EntryVisitor<V>() {
+			@Override
+			public void visit(String key, V value) {
+				put(key, value);
+			}
+		});
+	}
+
+	// the methods below are called by QueryExpression with the read lock held
+
+	boolean isIndexed(String attribute) {
+		return bitmaps.containsKey(attribute);
+	}
+
+	CompressedBitmap getIds(String attribute, Object value) {
+		Map<Object, CompressedBitmap> attributeBitmaps = bitmaps.get(attribute);
+		CompressedBitmap bitmap = attributeBitmaps.get(value);
+		if (value instanceof String && codedAttributes.contains(attribute)) {
+			// the entries indexed before their value got a code are under the plain string
+			Integer code = StringDictionary.get().getCode((String) value);
+			CompressedBitmap codeBitmap = code == null ? null : attributeBitmaps.get(code);
+			if (codeBitmap != null) {
+				bitmap = bitmap == null ? codeBitmap : bitmap.or(codeBitmap);
+			}
+		}
+		return bitmap == null ? new CompressedBitmap() : bitmap;
+	}
+
+	Collection<Object> getValues(String attribute) {
+		if (!codedAttributes.contains(attribute)) {
+			return bitmaps.get(attribute).keySet();
+		}
+		StringDictionary dictionary = StringDictionary.get();
+		Set<Object> values = new HashSet<Object>();
+		for(Object value: bitmaps.get(attribute).keySet()) {
+			values.add(value instanceof Integer ? dictionary.getString((Integer) value) : value);
+		}
+		return values;
+	}
+
+	CompressedBitmap getAllIds() {
+		return allIds;
+	}
+
+	public int getEntryCount() {
+		lock.readLock().lock();
+		try {
+			return ids.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the approximate memory used by the bitmaps.
+	 */
+	public long getSizeInBytes() {
+		lock.readLock().lock();
+		try {
+			long size = allIds.getSizeInBytes();
+			for(Map<Object, CompressedBitmap> attributeBitmaps: bitmaps.values()) {
+				for(CompressedBitmap bitmap: attributeBitmaps.values()) {
+					size += bitmap.getSizeInBytes();
+				}
+			}
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BitmapIndex " + attributes + ": " + getEntryCount() + " entries, " + getSizeInBytes() + " bytes"
+				+ (stale ? " (stale)" : "");
+	}
+}
@@ -16,11 +16,20 @@
 
 package com.chimpler.example.hazelcast;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.nio.DataSerializable;
+
+public class BudgetAccount implements DataSerializable {
+	private static final long serialVersionUID = 3224008855554663184L;
+	private static final boolean trackUpdateTime = Boolean.getBoolean("account.trackUpdateTime");
 
-public class BudgetAccount implements Serializable{
 	private String accountId;
 	private Double budget;
+	private long updateTime;
+	private int stripes;
 	
 	public String getAccountId() {
 		return accountId;
@@ -37,9 +46,102 @@ public class BudgetAccount implements Serializable{
 	public void setBudget(Double budget) {
 		this.budget = budget;
 	}
+
+	/**
+	 * Returns the time (in ms since the epoch) of the update which set the budget,
+	 * used to measure how long the change takes to reach the listeners, or 0 if the
+	 * update times are not tracked. It is not part of the value of the account:
+	 * equals and hashCode ignore it.
+	 */
+	public long getUpdateTime() {
+		return updateTime;
+	}
+
+	/**
+	 * Returns the update time to set on the accounts written now: the current time
+	 * with -Daccount.trackUpdateTime=true (on the members and the clients writing
+	 * the accounts), 0 otherwise. An account without update time is 8 bytes
+	 * smaller.
+	 */
+	public static long currentUpdateTime() {
+		return trackUpdateTime ? System.currentTimeMillis() : 0;
+	}
+
+	public void setUpdateTime(long updateTime) {
+		this.updateTime = updateTime;
+	}
+
+	/**
+	 * Returns the number of stripes of the account if it was converted to a
+	 * striped account, 0 otherwise. The entry left in the budget-account map by
+	 * the conversion is a tombstone redirecting the updates to the stripes (see
+	 * StripedBudgetAccounts).
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+
+	public boolean isStriped() {
+		return stripes > 0;
+	}
+
+	/**
+	 * Returns true if the value is the tombstone of a striped account. It is not
+	 * an account: the readers of the entries of a map (listeners, views,
+	 * aggregations) skip it, the budget is in the stripes.
+	 */
+	public static boolean isTombstone(Object value) {
+		return value instanceof BudgetAccount && ((BudgetAccount) value).isStriped();
+	}
 	
+	@Override
+	public int hashCode() {
+		int result = accountId == null ? 0 : accountId.hashCode();
+		result = 31 * result + (budget == null ? 0 : budget.hashCode());
+		return 31 * result + stripes;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof BudgetAccount)) {
+			return false;
+		}
+		BudgetAccount other = (BudgetAccount) obj;
+		return (accountId == null ? other.accountId == null : accountId.equals(other.accountId))
+				&& (budget == null ? other.budget == null : budget.equals(other.budget))
+				&& stripes == other.stripes;
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		SerializationUtils.writeString(out, accountId);
+		SerializationUtils.writeDouble(out, budget);
+		// the lowest bit tells if the update time follows
+		SerializationUtils.writeVarInt(out, stripes << 1 | (updateTime == 0 ? 0 : 1));
+		if (updateTime != 0) {
+			out.writeLong(updateTime);
+		}
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		accountId = SerializationUtils.readString(in);
+		budget = SerializationUtils.readDouble(in);
+		int flags = SerializationUtils.readVarInt(in);
+		stripes = flags >>> 1;
+		updateTime = (flags & 1) == 0 ? 0 : in.readLong();
+	}
+
 	@Override
 	public String toString() {
-		return "BudgetAccount [accountId=" + accountId + ", budget=" + budget + "]";
+		return "BudgetAccount [accountId=" + accountId + ", budget=" + budget
+				+ (stripes == 0 ? "" : ", stripes=" + stripes) + "]";
 	}
 }
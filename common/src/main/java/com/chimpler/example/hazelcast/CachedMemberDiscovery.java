@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches the members found by another discovery in a file.
+ *
+ * The cached members are returned right away. When the cache is older than the TTL,
+ * the members are discovered again in a background thread and the cache is updated
+ * for the next calls. The discovery is only done synchronously when there is no
+ * cache, or when refresh() is called (e.g. because the cached members cannot be
+ * reached).
+ *
+ * The first line of the cache file is a comment holding the key of the cache (the
+ * configuration of the discovery). A cache written with another key is ignored,
+ * so the members of another cluster are never returned.
+ */
+public class CachedMemberDiscovery implements MemberDiscovery {
+	private static final String KEY_PREFIX = "# discovery: ";
+
+	private final MemberDiscovery discovery;
+	private final String cacheKey;
+	private final File cacheFile;
+	private final long ttlMillis;
+	private volatile Thread refreshThread;
+
+	/**
+	 * @param cacheKey the configuration of the discovery, which must be the same as the
+	 *   one of the cache
+	 */
+	public CachedMemberDiscovery(MemberDiscovery discovery, String cacheKey, File cacheFile, long ttlMillis) {
+		this.discovery = discovery;
+		this.cacheKey = cacheKey;
+		this.cacheFile = cacheFile;
+		this.ttlMillis = ttlMillis;
+	}
+
+	@Override
+	public List<String> discoverMembers() throws Exception {
+		if (cacheFile.exists() && cacheKey.equals(readCacheKey())) {
+			List<String> members = FileMemberDiscovery.readMembers(cacheFile);
+			if (!members.isEmpty()) {
+				if (System.currentTimeMillis() - cacheFile.lastModified() > ttlMillis) {
+					refreshInBackground();
+				}
+				return members;
+			}
+		}
+		return refresh();
+	}
+
+	/**
+	 * Discovers the members and updates the cache.
+	 */
+	public List<String> refresh() throws Exception {
+		long start = System.currentTimeMillis();
+		List<String> members = discovery.discoverMembers();
+		System.out.println("Discovered " + members.size() + " members in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		writeCache(members);
+		return members;
+	}
+
+	private String readCacheKey() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			return line != null && line.startsWith(KEY_PREFIX) ? line.substring(KEY_PREFIX.length()) : null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void writeCache(List<String> members) throws IOException {
+		File temporaryFile = new File(cacheFile.getPath() + ".tmp");
+		List<String> lines = new ArrayList<String>(members.size() + 1);
+		// read back as a comment by FileMemberDiscovery
+		lines.add(KEY_PREFIX + cacheKey);
+		lines.addAll(members);
+		FileMemberDiscovery.writeMembers(temporaryFile, lines);
+		cacheFile.delete();
+		if (!temporaryFile.renameTo(cacheFile)) {
+			throw new IOException("Cannot write " + cacheFile);
+		}
+	}
+
+	private synchronized void refreshInBackground() {
+		if (refreshThread != null && refreshThread.isAlive()) {
+			return;
+		}
+		refreshThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception e) {
+					System.err.println("Cannot refresh the members in " + cacheFile + ": " + e);
+				}
+			}
+		}, "member-discovery-refresh");
+		// the refresh is abandoned if the client exits before it completes
+		refreshThread.setDaemon(true);
+		refreshThread.start();
+	}
+}
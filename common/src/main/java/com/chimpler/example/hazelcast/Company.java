@@ -16,9 +16,15 @@
 
 package com.chimpler.example.hazelcast;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.nio.DataSerializable;
+
+public class Company implements DataSerializable {
+	private static final long serialVersionUID = 3514122216037571217L;
 
-public class Company implements Serializable {
 	private String name;
 	private Address address;
 	
@@ -38,6 +44,29 @@ public class Company implements Serializable {
 		this.address = address;
 	}
 
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		writeData(out, null);
+	}
+
+	/**
+	 * Writes the company, its name and its address with the codes of the dictionary if there is one.
+	 */
+	public void writeData(DataOutput out, StringDictionary dictionary) throws IOException {
+		SerializationUtils.writeString(out, name, dictionary);
+		SerializationUtils.writeAddress(out, address, dictionary);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		readData(in, null);
+	}
+
+	public void readData(DataInput in, StringDictionary dictionary) throws IOException {
+		name = SerializationUtils.readString(in, dictionary);
+		address = SerializationUtils.readAddress(in, dictionary);
+	}
+
 	@Override
 	public String toString() {
 		return "Company [name=" + name + ", address=" + address + "]";
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non negative ints in the style of Roaring bitmaps: the ints
+ * are split by their 16 high bits in containers which store the 16 low bits either
+ * as a sorted array (up to 4096 values) or as a 65536 bits bitmap.
+ *
+ * The containers are indexed by their high bits, which suits the dense ids of the
+ * bitmap index. Not thread-safe.
+ */
+public class CompressedBitmap {
+	private static final int ARRAY_MAX_SIZE = 4096;
+	private static final int BITMAP_WORDS = 1024;
+
+	private Container[] containers;
+
+	public CompressedBitmap() {
+		this(new Container[0]);
+	}
+
+	private CompressedBitmap(Container[] containers) {
+		this.containers = containers;
+	}
+
+	public void add(int value) {
+		int high = value >>> 16;
+		if (high >= containers.length) {
+			containers = Arrays.copyOf(containers, high + 1);
+		}
+		if (containers[high] == null) {
+			containers[high] = new ArrayContainer();
+		}
+		containers[high] = containers[high].add((char) value);
+	}
+
+	public void remove(int value) {
+		int high = value >>> 16;
+		if (high < containers.length && containers[high] != null) {
+			Container container = containers[high].remove((char) value);
+			containers[high] = container.getCardinality() == 0 ? null : container;
+		}
+	}
+
+	public boolean contains(int value) {
+		int high = value >>> 16;
+		return high < containers.length && containers[high] != null && containers[high].contains((char) value);
+	}
+
+	public int getCardinality() {
+		int cardinality = 0;
+		for(Container container: containers) {
+			if (container != null) {
+				cardinality += container.getCardinality();
+			}
+		}
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		for(Container container: containers) {
+			if (container != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public CompressedBitmap and(CompressedBitmap other) {
+		Container[] result = new Container[Math.min(containers.length, other.containers.length)];
+		for(int i = 0 ; i < result.length ; i++) {
+			if (containers[i] != null && other.containers[i] != null) {
+				result[i] = nullIfEmpty(containers[i].and(other.containers[i]));
+			}
+		}
+		return new CompressedBitmap(result);
+	}
+
+	public CompressedBitmap or(CompressedBitmap other) {
+		Container[] result = new Container[Math.max(containers.length, other.containers.length)];
+		for(int i = 0 ; i < result.length ; i++) {
+			Container container = i < containers.length ? containers[i] : null;
+			Container otherContainer = i < other.containers.length ? other.containers[i] : null;
+			if (container == null) {
+				result[i] = otherContainer == null ? null : otherContainer.copy();
+			} else if (otherContainer == null) {
+				result[i] = container.copy();
+			} else {
+				result[i] = container.or(otherContainer);
+			}
+		}
+		return new CompressedBitmap(result);
+	}
+
+	public CompressedBitmap andNot(CompressedBitmap other) {
+		Container[] result = new Container[containers.length];
+		for(int i = 0 ; i < result.length ; i++) {
+			if (containers[i] != null) {
+				result[i] = i < other.containers.length && other.containers[i] != null
+						? nullIfEmpty(containers[i].andNot(other.containers[i])) : containers[i].copy();
+			}
+		}
+		return new CompressedBitmap(result);
+	}
+
+	public CompressedBitmap copy() {
+		Container[] result = new Container[containers.length];
+		for(int i = 0 ; i < result.length ; i++) {
+			result[i] = containers[i] == null ? null : containers[i].copy();
+		}
+		return new CompressedBitmap(result);
+	}
+
+	/**
+	 * Returns the values in increasing order.
+	 */
+	public int[] toArray() {
+		int[] values = new int[getCardinality()];
+		int size = 0;
+		for(int i = 0 ; i < containers.length ; i++) {
+			if (containers[i] != null) {
+				size = containers[i].copyTo(values, size, i << 16);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the approximate memory used by the containers.
+	 */
+	public long getSizeInBytes() {
+		long size = 16 + 4L * containers.length;
+		for(Container container: containers) {
+			if (container != null) {
+				size += container.getSizeInBytes();
+			}
+		}
+		return size;
+	}
+
+	private static Container nullIfEmpty(Container container) {
+		return container.getCardinality() == 0 ? null : container;
+	}
+
+	private static abstract class Container {
+		abstract Container add(char value);
+
+		abstract Container remove(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int getCardinality();
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract Container copy();
+
+		abstract int copyTo(int[] values, int offset, int high);
+
+		abstract long getSizeInBytes();
+
+		abstract long[] toWords();
+	}
+
+	private static class ArrayContainer extends Container {
+		private char[] values;
+		private int size;
+
+		ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		ArrayContainer(char[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		@Override
+		Container add(char value) {
+			int index = Arrays.binarySearch(values, 0, size, value);
+			if (index >= 0) {
+				return this;
+			}
+			if (size == ARRAY_MAX_SIZE) {
+				return toBitmap().add(value);
+			}
+			index = -index - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX_SIZE, size * 2));
+			}
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = value;
+			size++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			int index = Arrays.binarySearch(values, 0, size, value);
+			if (index >= 0) {
+				System.arraycopy(values, index + 1, values, index, size - index - 1);
+				size--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, size, value) >= 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return size;
+		}
+
+		@Override
+		Container and(Container other) {
+			char[] result = new char[size];
+			int resultSize = 0;
+			for(int i = 0 ; i < size ; i++) {
+				if (other.contains(values[i])) {
+					result[resultSize++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, resultSize);
+		}
+
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer otherArray = (ArrayContainer) other;
+			char[] result = new char[size + otherArray.size];
+			int resultSize = 0;
+			int i = 0;
+			int j = 0;
+			while(i < size || j < otherArray.size) {
+				if (j == otherArray.size || (i < size && values[i] < otherArray.values[j])) {
+					result[resultSize++] = values[i++];
+				} else if (i == size || otherArray.values[j] < values[i]) {
+					result[resultSize++] = otherArray.values[j++];
+				} else {
+					result[resultSize++] = values[i++];
+					j++;
+				}
+			}
+			ArrayContainer union = new ArrayContainer(result, resultSize);
+			return resultSize > ARRAY_MAX_SIZE ? union.toBitmap() : union;
+		}
+
+		@Override
+		Container andNot(Container other) {
+			char[] result = new char[size];
+			int resultSize = 0;
+			for(int i = 0 ; i < size ; i++) {
+				if (!other.contains(values[i])) {
+					result[resultSize++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, resultSize);
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(1, size)), size);
+		}
+
+		@Override
+		int copyTo(int[] target, int offset, int high) {
+			for(int i = 0 ; i < size ; i++) {
+				target[offset++] = high | values[i];
+			}
+			return offset;
+		}
+
+		@Override
+		long getSizeInBytes() {
+			return 24 + 2L * values.length;
+		}
+
+		@Override
+		long[] toWords() {
+			long[] words = new long[BITMAP_WORDS];
+			for(int i = 0 ; i < size ; i++) {
+				words[values[i] >>> 6] |= 1L << values[i];
+			}
+			return words;
+		}
+
+		private BitmapContainer toBitmap() {
+			return new BitmapContainer(toWords(), size);
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+		private final long[] words;
+		private int cardinality;
+
+		BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			long bit = 1L << value;
+			if ((words[value >>> 6] & bit) == 0) {
+				words[value >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			long bit = 1L << value;
+			if ((words[value >>> 6] & bit) != 0) {
+				words[value >>> 6] &= ~bit;
+				cardinality--;
+			}
+			return cardinality <= ARRAY_MAX_SIZE / 2 ? toArray() : this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			long[] otherWords = ((BitmapContainer) other).words;
+			long[] result = new long[BITMAP_WORDS];
+			for(int i = 0 ; i < BITMAP_WORDS ; i++) {
+				result[i] = words[i] & otherWords[i];
+			}
+			return normalize(result);
+		}
+
+		@Override
+		Container or(Container other) {
+			long[] result = other.toWords();
+			for(int i = 0 ; i < BITMAP_WORDS ; i++) {
+				result[i] |= words[i];
+			}
+			return normalize(result);
+		}
+
+		@Override
+		Container andNot(Container other) {
+			long[] result = words.clone();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for(int i = 0 ; i < array.size ; i++) {
+					result[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				for(int i = 0 ; i < BITMAP_WORDS ; i++) {
+					result[i] &= ~otherWords[i];
+				}
+			}
+			return normalize(result);
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		int copyTo(int[] values, int offset, int high) {
+			for(int i = 0 ; i < BITMAP_WORDS ; i++) {
+				long word = words[i];
+				while(word != 0) {
+					values[offset++] = high | (i << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+
+		@Override
+		long getSizeInBytes() {
+			return 24 + 8L * BITMAP_WORDS;
+		}
+
+		@Override
+		long[] toWords() {
+			return words.clone();
+		}
+
+		private ArrayContainer toArray() {
+			char[] values = new char[Math.max(1, cardinality)];
+			int size = 0;
+			for(int i = 0 ; i < BITMAP_WORDS ; i++) {
+				long word = words[i];
+				while(word != 0) {
+					values[size++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+
+		private static Container normalize(long[] words) {
+			int cardinality = 0;
+			for(long word: words) {
+				cardinality += Long.bitCount(word);
+			}
+			BitmapContainer container = new BitmapContainer(words, cardinality);
+			return cardinality <= ARRAY_MAX_SIZE ? container.toArray() : container;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.GroupIdentifier;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Finds the running EC2 instances of a security group.
+ */
+public class Ec2MemberDiscovery implements MemberDiscovery {
+	private final AWSCredentialsProvider credentialsProvider;
+	private final String securityGroup;
+	private final int port;
+
+	public Ec2MemberDiscovery(AWSCredentialsProvider credentialsProvider, String securityGroup, int port) {
+		this.credentialsProvider = credentialsProvider;
+		this.securityGroup = securityGroup;
+		this.port = port;
+	}
+
+	@Override
+	public List<String> discoverMembers() {
+		AmazonEC2Client ec2 = new AmazonEC2Client(credentialsProvider);
+		// only the running instances are returned by EC2
+		DescribeInstancesResult result = ec2.describeInstances(new DescribeInstancesRequest()
+				.withFilters(new Filter().withName("instance-state-name").withValues("running")));
+		List<String> members = new ArrayList<String>();
+		for(Reservation reservation: result.getReservations()) {
+			for(Instance instance: reservation.getInstances()) {
+				if (isInSecurityGroup(instance)) {
+					members.add(instance.getPublicIpAddress() + ":" + port);
+				}
+			}
+		}
+		return members;
+	}
+
+	private boolean isInSecurityGroup(Instance instance) {
+		for(GroupIdentifier group: instance.getSecurityGroups()) {
+			if (group.getGroupName().equals(securityGroup)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
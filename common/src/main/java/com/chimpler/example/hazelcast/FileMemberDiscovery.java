@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the members from a file, one host:port per line (empty lines and lines
+ * starting with # are ignored).
+ */
+public class FileMemberDiscovery implements MemberDiscovery {
+	private final File file;
+
+	public FileMemberDiscovery(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public List<String> discoverMembers() throws IOException {
+		return readMembers(file);
+	}
+
+	public static List<String> readMembers(File file) throws IOException {
+		List<String> members = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					members.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return members;
+	}
+
+	public static void writeMembers(File file, List<String> members) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for(String member: members) {
+				writer.write(member);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
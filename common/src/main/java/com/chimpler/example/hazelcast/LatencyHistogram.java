@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a relative precision of 1/64 (about
+ * 1.6%), in the spirit of HdrHistogram: values below 128 have their own bucket and
+ * each power of two above is split in 64 buckets.
+ *
+ * Recording is lock-free and does not allocate. The counts can be read while
+ * values are recorded, in which case a snapshot may miss the values recorded
+ * during the read.
+ */
+public class LatencyHistogram {
+	private static final int LINEAR_BUCKETS = 128;
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 7) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void recordNanos(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(getBucket(value));
+		totalCount.incrementAndGet();
+		long currentMax = max.get();
+		while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since start, as returned by System.nanoTime().
+	 */
+	public void recordSince(long start) {
+		recordNanos(System.nanoTime() - start);
+	}
+
+	/**
+	 * Adds the values recorded by another histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		long count = 0;
+		for(int i = 0 ; i < BUCKET_COUNT ; i++) {
+			long bucketCount = other.counts.get(i);
+			if (bucketCount > 0) {
+				counts.addAndGet(i, bucketCount);
+				count += bucketCount;
+			}
+		}
+		totalCount.addAndGet(count);
+		long otherMax = other.max.get();
+		long currentMax = max.get();
+		while(otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+			currentMax = max.get();
+		}
+	}
+
+	static int getBucket(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 7) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the highest value counted in the bucket.
+	 */
+	static long getBucketValue(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 7;
+		long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		long lowest = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+		return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * Returns a copy of the histogram and, if reset is set, resets it.
+	 */
+	public Snapshot snapshot(boolean reset) {
+		long[] snapshotCounts = new long[BUCKET_COUNT];
+		long count = 0;
+		for(int i = 0 ; i < BUCKET_COUNT ; i++) {
+			snapshotCounts[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+			count += snapshotCounts[i];
+		}
+		long snapshotMax = reset ? max.getAndSet(0) : max.get();
+		if (reset) {
+			totalCount.addAndGet(-count);
+		}
+		return new Snapshot(name, snapshotCounts, count, snapshotMax);
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public static class Snapshot {
+		private final String name;
+		private final long[] counts;
+		private final long count;
+		private final long max;
+
+		Snapshot(String name, long[] counts, long count, long max) {
+			this.name = name;
+			this.counts = counts;
+			this.count = count;
+			this.max = max;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * Returns the latency under which the given percentage of the values are
+		 * (e.g. 99.9), 0 if there are no values.
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for(int i = 0 ; i < counts.length ; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(getBucketValue(i), max);
+				}
+			}
+			return max;
+		}
+
+		public double getMeanNanos() {
+			if (count == 0) {
+				return 0;
+			}
+			double sum = 0;
+			for(int i = 0 ; i < counts.length ; i++) {
+				if (counts[i] > 0) {
+					sum += (double) counts[i] * Math.min(getBucketValue(i), max);
+				}
+			}
+			return sum / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+					name, count, toMicros(getMeanNanos()), toMicros(getPercentileNanos(50)),
+					toMicros(getPercentileNanos(90)), toMicros(getPercentileNanos(99)),
+					toMicros(getPercentileNanos(99.9)), toMicros(max));
+		}
+
+		private static double toMicros(double nanos) {
+			return nanos / TimeUnit.MICROSECONDS.toNanos(1);
+		}
+	}
+}
@@ -0,0 +1,642 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import com.hazelcast.nio.DataSerializable;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+
+/**
+ * Count and sum of an attribute of the entries of a map, grouped by another
+ * attribute, maintained by each member for the entries it owns. The definitions of
+ * the views are stored in the materialized-views map, and every member creates the
+ * views defined there. A view can cover several maps, such as the budget of the
+ * accounts of the budget-account, budget-account-stripe and grouped-budget-account
+ * maps.
+ *
+ * A view is updated by a local entry listener on each of its maps: the group and
+ * the amount of each local entry are kept, so an update subtracts the previous
+ * contribution of the entry and adds the new one, and a remove subtracts it.
+ * Reading a view only returns the totals of the groups. The tombstones of the
+ * striped accounts are not entries of the view. The listeners are removed when
+ * the view is replaced by a new definition or removed.
+ *
+ * The local entry listeners are not called for the backups, and the entries moved
+ * by a migration or promoted from a backup when a member leaves do not generate
+ * events. The view is marked stale from the start of a migration (or from the
+ * departure of a member) and rebuilt from the local entries shortly after the last
+ * migration completed, like the BitmapIndex.
+ */
+public class MaterializedView {
+	public static final String DEFINITION_MAP = "materialized-views";
+	private static final ConcurrentMap<String, MaterializedView> views = new ConcurrentHashMap<String, MaterializedView>();
+	private static final long REBUILD_DELAY_MILLIS = 1000;
+	private static final AtomicLong updates = Metrics.counter("member.views.updates");
+	private static final AtomicLong rebuilds = Metrics.counter("member.views.rebuilds");
+	private static final AtomicLong mismatches = Metrics.counter("member.views.mismatches");
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "materialized-view-rebuild");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Definition definition;
+	private final List<Source> sources = new ArrayList<Source>();
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+
+	private volatile boolean stale;
+	private volatile boolean closed;
+	private final AtomicLong migrations = new AtomicLong();
+	private ScheduledFuture<?> rebuild;
+
+	private MaterializedView(HazelcastInstance instance, Definition definition) {
+		this.definition = definition;
+		for(String mapName: definition.getMapNames()) {
+			sources.add(new Source(instance, mapName));
+		}
+	}
+
+	/**
+	 * Creates the views defined in the cluster and the ones defined later on this
+	 * member, and keeps them up to date.
+	 */
+	public static void start(final HazelcastInstance instance) {
+		IMap<String, Definition> definitionMap = instance.getMap(DEFINITION_MAP);
+		definitionMap.addEntryListener(new EntryListener<String, Definition>() {
+			@Override
+			public void entryAdded(EntryEvent<String, Definition> event) {
+				register(instance, event.getValue());
+			}
+
+			@Override
+			public void entryUpdated(EntryEvent<String, Definition> event) {
+				register(instance, event.getValue());
+			}
+
+			@Override
+			public void entryRemoved(EntryEvent<String, Definition> event) {
+				unregister(instance, event.getKey());
+			}
+
+			@Override
+			public void entryEvicted(EntryEvent<String, Definition> event) {
+				unregister(instance, event.getKey());
+			}
+		}, true);
+		instance.getPartitionService().addMigrationListener(new MigrationListener() {
+			@Override
+			public void migrationStarted(MigrationEvent migrationEvent) {
+				for(MaterializedView view: getViews(instance)) {
+					view.markStale();
+				}
+			}
+
+			@Override
+			public void migrationCompleted(MigrationEvent migrationEvent) {
+				for(MaterializedView view: getViews(instance)) {
+					view.scheduleRebuild();
+				}
+			}
+
+			public void migrationFailed(MigrationEvent migrationEvent) {
+				for(MaterializedView view: getViews(instance)) {
+					view.scheduleRebuild();
+				}
+			}
+		});
+		instance.getCluster().addMembershipListener(new MembershipListener() {
+			@Override
+			public void memberAdded(MembershipEvent membershipEvent) {
+				// the partitions are moved to the new member by migrations
+			}
+
+			@Override
+			public void memberRemoved(MembershipEvent membershipEvent) {
+				// the backups of the partitions of the member are promoted without events
+				for(MaterializedView view: getViews(instance)) {
+					view.markStale();
+					view.scheduleRebuild();
+				}
+			}
+		});
+		for(Definition definition: definitionMap.values()) {
+			register(instance, definition);
+		}
+	}
+
+	/**
+	 * Creates the view of the definition on this member, replacing the view with
+	 * the same name if its definition is different.
+	 */
+	public static synchronized MaterializedView register(HazelcastInstance instance, Definition definition) {
+		String viewName = getViewName(instance, definition.getName());
+		MaterializedView view = views.get(viewName);
+		if (view != null) {
+			if (view.definition.equals(definition)) {
+				return view;
+			}
+			view.close();
+		}
+		MaterializedView newView = new MaterializedView(instance, definition);
+		for(Source source: newView.sources) {
+			source.map.addLocalEntryListener(source);
+		}
+		newView.rebuild();
+		views.put(viewName, newView);
+		return newView;
+	}
+
+	public static synchronized void unregister(HazelcastInstance instance, String name) {
+		MaterializedView view = views.remove(getViewName(instance, name));
+		if (view != null) {
+			view.close();
+		}
+	}
+
+	public static MaterializedView get(HazelcastInstance instance, String name) {
+		return views.get(getViewName(instance, name));
+	}
+
+	private static Iterable<MaterializedView> getViews(HazelcastInstance instance) {
+		String prefix = instance.getName() + ":";
+		Map<String, MaterializedView> instanceViews = new HashMap<String, MaterializedView>();
+		for(Map.Entry<String, MaterializedView> entry: views.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				instanceViews.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return instanceViews.values();
+	}
+
+	private static String getViewName(HazelcastInstance instance, String name) {
+		// several members can run in the same JVM
+		return instance.getName() + ":" + name;
+	}
+
+	public Definition getDefinition() {
+		return definition;
+	}
+
+	private void close() {
+		closed = true;
+		for(Source source: sources) {
+			source.map.removeEntryListener(source);
+		}
+	}
+
+	private void put(Source source, Object key, Object value) {
+		if (closed) {
+			return;
+		}
+		if (BudgetAccount.isTombstone(value)) {
+			// the account was striped, its budget is not in this map anymore
+			remove(source, key);
+			return;
+		}
+		Contribution contribution = getContribution(value);
+		synchronized(this) {
+			subtract(source.contributions.put(key, contribution));
+			add(contribution);
+		}
+		updates.incrementAndGet();
+	}
+
+	private void remove(Source source, Object key) {
+		if (closed) {
+			return;
+		}
+		synchronized(this) {
+			subtract(source.contributions.remove(key));
+		}
+		updates.incrementAndGet();
+	}
+
+	/**
+	 * Returns the totals of the groups of the local entries.
+	 */
+	public synchronized Result read() {
+		Result result = new Result();
+		for(Map.Entry<String, Group> entry: groups.entrySet()) {
+			result.getGroup(entry.getKey()).merge(entry.getValue());
+		}
+		result.stale = stale;
+		return result;
+	}
+
+	/**
+	 * Computes the view again from the local entries, counts the groups whose
+	 * maintained totals were different, and replaces the maintained view with the
+	 * one computed.
+	 */
+	public Result verify() {
+		Result result = new Result();
+		synchronized(this) {
+			Map<String, Group> maintainedGroups = new HashMap<String, Group>(groups);
+			rebuild();
+			for(Map.Entry<String, Group> entry: groups.entrySet()) {
+				result.getGroup(entry.getKey()).merge(entry.getValue());
+				if (!entry.getValue().equals(maintainedGroups.remove(entry.getKey()))) {
+					result.mismatches++;
+				}
+			}
+			// groups that have no entry anymore
+			result.mismatches += maintainedGroups.size();
+			result.stale = stale;
+		}
+		mismatches.addAndGet(result.mismatches);
+		return result;
+	}
+
+	private Contribution getContribution(Object value) {
+		String group = definition.getGroupBy() == null ? null
+				: String.valueOf(AttributeExtractor.extract(value, definition.getGroupBy()));
+		double amount = 0;
+		if (definition.getAttribute() != null) {
+			Object attributeValue = AttributeExtractor.extract(value, definition.getAttribute());
+			if (attributeValue instanceof Number) {
+				amount = ((Number) attributeValue).doubleValue();
+			}
+		}
+		return new Contribution(group, amount);
+	}
+
+	private void add(Contribution contribution) {
+		Group group = groups.get(contribution.group);
+		if (group == null) {
+			group = new Group();
+			groups.put(contribution.group, group);
+		}
+		group.count++;
+		group.sum += contribution.amount;
+	}
+
+	private void subtract(Contribution contribution) {
+		if (contribution == null) {
+			return;
+		}
+		Group group = groups.get(contribution.group);
+		group.count--;
+		group.sum -= contribution.amount;
+		if (group.count == 0) {
+			groups.remove(contribution.group);
+		}
+	}
+
+	private void markStale() {
+		migrations.incrementAndGet();
+		stale = true;
+	}
+
+	private synchronized void scheduleRebuild() {
+		// migrations come in bursts, the view is rebuilt once they are over
+		if (rebuild != null) {
+			rebuild.cancel(false);
+		}
+		rebuild = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				rebuild();
+			}
+		}, REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Computes the view again from the entries owned by the member.
+	 */
+	public void rebuild() {
+		if (closed) {
+			return;
+		}
+		long migrationCount = migrations.get();
+		synchronized(this) {
+			groups.clear();
+			for(Source source: sources) {
+				source.contributions.clear();
+				if (source.tier != null) {
+					addTier(source, source.tier);
+				} else {
+					for(Map.Entry<Object, Object> entry: source.map.getAll(source.map.localKeySet()).entrySet()) {
+						if (BudgetAccount.isTombstone(entry.getValue())) {
+							continue;
+						}
+						Contribution contribution = getContribution(entry.getValue());
+						source.contributions.put(entry.getKey(), contribution);
+						add(contribution);
+					}
+				}
+			}
+		}
+		rebuilds.incrementAndGet();
+		// a migration started during the rebuild schedules another one
+		if (migrations.get() == migrationCount) {
+			stale = false;
+		}
+	}
+
+	private <V extends DataSerializable> void addTier(final Source source, OffHeapTierStore<V> tier) {
+		// the tier has all the local entries, reading them from the heap would promote the evicted ones
+		tier.visitLocalEntries(new OffHeapTierStore.EntryVisitor<V>() {
+			@Override
+			public void visit(String key, V value) {
+				if (BudgetAccount.isTombstone(value)) {
+					return;
+				}
+				Contribution contribution = getContribution(value);
+				source.contributions.put(key, contribution);
+				add(contribution);
+			}
+		});
+	}
+
+	/**
+	 * A map of the view, with the contributions of its local entries (the keys of
+	 * the maps can be the same) and the listener of their events.
+	 */
+	private class Source implements EntryListener<Object, Object> {
+		private final IMap<Object, Object> map;
+		private final OffHeapTierStore<?> tier;
+		private final Map<Object, Contribution> contributions = new HashMap<Object, Contribution>();
+
+		private Source(HazelcastInstance instance, String mapName) {
+			this.map = instance.getMap(mapName);
+			// creating the map initializes its store
+			this.tier = OffHeapTierStore.get(instance, mapName);
+		}
+
+		@Override
+		public void entryAdded(EntryEvent<Object, Object> event) {
+			put(this, event.getKey(), event.getValue());
+		}
+
+		@Override
+		public void entryUpdated(EntryEvent<Object, Object> event) {
+			put(this, event.getKey(), event.getValue());
+		}
+
+		@Override
+		public void entryRemoved(EntryEvent<Object, Object> event) {
+			remove(this, event.getKey());
+		}
+
+		@Override
+		public void entryEvicted(EntryEvent<Object, Object> event) {
+			// the evicted entries are still in the off-heap tier
+			if (tier == null) {
+				remove(this, event.getKey());
+			}
+		}
+	}
+
+	private static class Contribution {
+		private final String group;
+		private final double amount;
+
+		private Contribution(String group, double amount) {
+			this.group = group;
+			this.amount = amount;
+		}
+	}
+
+	/**
+	 * Name of the view, map of the entries (or maps, separated by commas),
+	 * attribute summed (null to only count the entries) and attribute grouped by
+	 * (null for a single group).
+	 */
+	public static class Definition implements DataSerializable {
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private String mapName;
+		private String attribute;
+		private String groupBy;
+
+		public Definition() {
+		}
+
+		public Definition(String name, String mapName, String attribute, String groupBy) {
+			this.name = name;
+			this.mapName = mapName;
+			this.attribute = attribute;
+			this.groupBy = groupBy;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getMapName() {
+			return mapName;
+		}
+
+		public String[] getMapNames() {
+			return mapName.split(",");
+		}
+
+		public String getAttribute() {
+			return attribute;
+		}
+
+		public String getGroupBy() {
+			return groupBy;
+		}
+
+		@Override
+		public void writeData(DataOutput out) throws IOException {
+			out.writeUTF(name);
+			out.writeUTF(mapName);
+			SerializationUtils.writeString(out, attribute);
+			SerializationUtils.writeString(out, groupBy);
+		}
+
+		@Override
+		public void readData(DataInput in) throws IOException {
+			name = in.readUTF();
+			mapName = in.readUTF();
+			attribute = SerializationUtils.readString(in);
+			groupBy = SerializationUtils.readString(in);
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Definition)) {
+				return false;
+			}
+			Definition other = (Definition) object;
+			return name.equals(other.name) && mapName.equals(other.mapName)
+					&& (attribute == null ? other.attribute == null : attribute.equals(other.attribute))
+					&& (groupBy == null ? other.groupBy == null : groupBy.equals(other.groupBy));
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + (attribute == null ? "count" : "count and sum of " + attribute)
+					+ " of " + mapName + (groupBy == null ? "" : " by " + groupBy);
+		}
+	}
+
+	/**
+	 * Number of entries of a group and sum of their attribute.
+	 */
+	public static class Group implements DataSerializable {
+		private static final long serialVersionUID = 1L;
+
+		private long count;
+		private double sum;
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public void merge(Group other) {
+			count += other.count;
+			sum += other.sum;
+		}
+
+		@Override
+		public void writeData(DataOutput out) throws IOException {
+			out.writeLong(count);
+			out.writeDouble(sum);
+		}
+
+		@Override
+		public void readData(DataInput in) throws IOException {
+			count = in.readLong();
+			sum = in.readDouble();
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Group)) {
+				return false;
+			}
+			Group other = (Group) object;
+			// the sums maintained by deltas have rounding errors
+			return count == other.count && Math.abs(sum - other.sum) <= 1e-6 * Math.max(1, Math.abs(sum));
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) count;
+		}
+	}
+
+	/**
+	 * Totals by group of one or several members, the group is null when the view
+	 * has no group by. The result is stale when a member was rebuilding its view,
+	 * and mismatches is the number of groups found different by a verification.
+	 */
+	public static class Result implements DataSerializable {
+		private static final long serialVersionUID = 1L;
+
+		private Map<String, Group> groups = new HashMap<String, Group>();
+		private boolean stale;
+		private int mismatches;
+
+		public Map<String, Group> getGroups() {
+			return groups;
+		}
+
+		public Group getGroup(String name) {
+			Group group = groups.get(name);
+			if (group == null) {
+				group = new Group();
+				groups.put(name, group);
+			}
+			return group;
+		}
+
+		public boolean isStale() {
+			return stale;
+		}
+
+		public void setStale(boolean stale) {
+			this.stale = stale;
+		}
+
+		public int getMismatches() {
+			return mismatches;
+		}
+
+		public void merge(Result other) {
+			for(Map.Entry<String, Group> entry: other.groups.entrySet()) {
+				getGroup(entry.getKey()).merge(entry.getValue());
+			}
+			stale |= other.stale;
+			mismatches += other.mismatches;
+		}
+
+		@Override
+		public void writeData(DataOutput out) throws IOException {
+			out.writeInt(groups.size());
+			for(Map.Entry<String, Group> entry: groups.entrySet()) {
+				SerializationUtils.writeString(out, entry.getKey());
+				entry.getValue().writeData(out);
+			}
+			out.writeBoolean(stale);
+			out.writeInt(mismatches);
+		}
+
+		@Override
+		public void readData(DataInput in) throws IOException {
+			int size = in.readInt();
+			groups = new HashMap<String, Group>(size * 2);
+			for(int i = 0 ; i < size ; i++) {
+				String name = SerializationUtils.readString(in);
+				Group group = new Group();
+				group.readData(in);
+				groups.put(name, group);
+			}
+			stale = in.readBoolean();
+			mismatches = in.readInt();
+		}
+	}
+}
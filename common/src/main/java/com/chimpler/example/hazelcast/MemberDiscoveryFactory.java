@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
+
+/**
+ * Creates the member discovery configured by the system properties:
+ *
+ *   discovery: ec2 (default), static or file
+ *   discovery.members: comma separated host:port list for the static discovery
+ *   discovery.file: file listing the members for the file discovery
+ *   discovery.cacheFile: file caching the members, none to disable the cache
+ *     (default: .hazelcast-members-[discovery]-[hash of the configuration] in the
+ *     user home)
+ *   discovery.cacheTtlSeconds: age after which the cache is refreshed (default 300)
+ *
+ * The ec2 and file discoveries are cached, with the configuration of the discovery
+ * as the key of the cache so that a cache written by another configuration is not
+ * used. The static discovery is not cached.
+ */
+public final class MemberDiscoveryFactory {
+	public static final String SECURITY_GROUP = "jclouds#hazelcast";
+	public static final int PORT = 5701;
+
+	private MemberDiscoveryFactory() {
+	}
+
+	public static MemberDiscovery fromSystemProperties() {
+		String type = System.getProperty("discovery", "ec2");
+		MemberDiscovery discovery;
+		String cacheKey;
+		if (type.equals("ec2")) {
+			AWSCredentialsProvider credentialsProvider = new ClasspathPropertiesFileCredentialsProvider("aws.properties");
+			discovery = new Ec2MemberDiscovery(credentialsProvider, SECURITY_GROUP, PORT);
+			// the same security group can exist in several accounts
+			cacheKey = "ec2 " + credentialsProvider.getCredentials().getAWSAccessKeyId() + " " + SECURITY_GROUP
+					+ ":" + PORT;
+		} else if (type.equals("static")) {
+			// nothing to discover, so nothing to cache
+			return new StaticMemberDiscovery(getStaticMembers());
+		} else if (type.equals("file")) {
+			String fileName = System.getProperty("discovery.file");
+			if (fileName == null || fileName.trim().length() == 0) {
+				throw new IllegalArgumentException("The file discovery needs the file listing the members in -Ddiscovery.file");
+			}
+			File file = new File(fileName.trim());
+			discovery = new FileMemberDiscovery(file);
+			cacheKey = "file " + file.getAbsolutePath();
+		} else {
+			throw new IllegalArgumentException("Unknown discovery " + type);
+		}
+
+		String cacheFile = System.getProperty("discovery.cacheFile",
+				new File(System.getProperty("user.home"), ".hazelcast-members-" + type + "-"
+						+ Integer.toHexString(cacheKey.hashCode())).getPath());
+		if (cacheFile.equals("none")) {
+			return discovery;
+		}
+		long ttlMillis = Long.getLong("discovery.cacheTtlSeconds", 300) * 1000;
+		return new CachedMemberDiscovery(discovery, cacheKey, new File(cacheFile), ttlMillis);
+	}
+
+	// the blank entries of the list (unset property, trailing comma) are ignored
+	private static List<String> getStaticMembers() {
+		List<String> members = new ArrayList<String>();
+		for(String member: System.getProperty("discovery.members", "").split(",")) {
+			if (member.trim().length() > 0) {
+				members.add(member.trim());
+			}
+		}
+		if (members.isEmpty()) {
+			throw new IllegalArgumentException("The static discovery needs the members in -Ddiscovery.members"
+					+ " (comma separated host:port list)");
+		}
+		return members;
+	}
+}
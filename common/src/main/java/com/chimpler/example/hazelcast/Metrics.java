@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Latency histograms and counters of the process, by name.
+ *
+ * The histograms and counters should be looked up once and kept in fields (or
+ * looked up with constant names) so that recording stays cheap.
+ */
+public final class Metrics {
+	private static final ConcurrentMap<String, LatencyHistogram> histograms =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * View of the metrics exposed through JMX. The histograms are not reset when
+	 * read through JMX.
+	 */
+	public interface MBean {
+		String[] getHistograms();
+
+		String[] getCounters();
+
+		long getCounter(String name);
+	}
+
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new LatencyHistogram(name));
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	public static AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns the histograms sorted by name, reset if reset is set.
+	 */
+	public static List<LatencyHistogram.Snapshot> snapshotHistograms(boolean reset) {
+		List<LatencyHistogram.Snapshot> snapshots = new ArrayList<LatencyHistogram.Snapshot>();
+		for(LatencyHistogram histogram: new TreeMap<String, LatencyHistogram>(histograms).values()) {
+			snapshots.add(histogram.snapshot(reset));
+		}
+		return snapshots;
+	}
+
+	public static Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry: counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the counters and the histograms (since the last reset) as text.
+	 */
+	public static String report(boolean reset) {
+		StringBuilder report = new StringBuilder();
+		for(Map.Entry<String, Long> entry: getCounters().entrySet()) {
+			report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		for(LatencyHistogram.Snapshot snapshot: snapshotHistograms(reset)) {
+			if (snapshot.getCount() > 0) {
+				report.append(snapshot).append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Appends the report to the file every intervalSeconds, the histograms being
+	 * reset after each report. The returned executor runs a daemon thread.
+	 */
+	public static ScheduledExecutorService startFileReporter(final String fileName, long intervalSeconds) {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					appendReport(fileName, report(true));
+				} catch (IOException e) {
+					System.err.println("Cannot write the metrics to " + fileName + ": " + e);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		return executor;
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server under the given name
+	 * (e.g. com.chimpler.example.hazelcast:type=Metrics).
+	 */
+	public static void registerMBean(String objectName) throws JMException {
+		MBean mbean = new MBean() {
+			@Override
+			public String[] getHistograms() {
+				List<String> histograms = new ArrayList<String>();
+				for(LatencyHistogram.Snapshot snapshot: snapshotHistograms(false)) {
+					histograms.add(snapshot.toString());
+				}
+				return histograms.toArray(new String[histograms.size()]);
+			}
+
+			@Override
+			public String[] getCounters() {
+				List<String> values = new ArrayList<String>();
+				for(Map.Entry<String, Long> entry: Metrics.getCounters().entrySet()) {
+					values.add(entry.getKey() + ": " + entry.getValue());
+				}
+				return values.toArray(new String[values.size()]);
+			}
+
+			@Override
+			public long getCounter(String name) {
+				return counter(name).get();
+			}
+		};
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(mbean, MBean.class),
+				new ObjectName(objectName));
+	}
+
+	/**
+	 * Registers the metrics in JMX with the given process name and, if the system
+	 * property metrics.file is set, appends them to this file every
+	 * metrics.intervalSeconds (10 by default).
+	 */
+	public static void startFromSystemProperties(String processName) {
+		try {
+			registerMBean("com.chimpler.example.hazelcast:type=Metrics,name=" + ObjectName.quote(processName));
+		} catch (InstanceAlreadyExistsException e) {
+			// the metrics are shared by the processes running in the same JVM
+		} catch (JMException e) {
+			System.err.println("Cannot register the metrics in JMX: " + e);
+		}
+		String fileName = System.getProperty("metrics.file");
+		if (fileName != null) {
+			startFileReporter(fileName, Long.getLong("metrics.intervalSeconds", 10));
+		}
+	}
+
+	public static void appendReport(String fileName, String report) throws IOException {
+		File parent = new File(fileName).getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		PrintWriter writer = new PrintWriter(new FileWriter(fileName, true));
+		try {
+			writer.println("--- " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+			writer.print(report);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,1121 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import com.hazelcast.nio.DataSerializable;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.Partition;
+import com.hazelcast.partition.PartitionService;
+
+/**
+ * Cold tier of a map kept outside of the java heap: the entries are serialized in
+ * their compact binary form into direct byte buffers (slabs) allocated up to a
+ * memory budget, only the position of each entry is kept on the heap.
+ *
+ * The tier is used as a write-through map store (write-delay-seconds 0) of a map
+ * evicting its least recently used entries beyond a used heap size: it has a copy
+ * of every entry owned by the member, the heap only keeps the hot ones, and the
+ * evicted entries are loaded back into the heap when they are read again.
+ * The entries are kept until they are removed from the map, even if the map is
+ * configured with a time to live.
+ *
+ * A slab is filled sequentially. The records replaced or deleted are garbage until
+ * the slab is compacted, which happens when no slab has enough free space left and
+ * all the slabs of the budget are allocated. A store fails when the compaction does
+ * not free enough space.
+ *
+ * Hazelcast only migrates the entries in the heap: when a partition moves, the
+ * previous owner sends the records of the partition to the new owner, which keeps
+ * the records it does not already have. The new owner remembers the keys stored or
+ * deleted from the start of the migration until the last records are handed over:
+ * the records of these keys are older than the entries of the map and are dropped
+ * (a deleted entry is not brought back).
+ *
+ * The records are replicated like the backups of the map: the owner of a record
+ * sends it synchronously to the backupCount members following it in the member
+ * list, which keep it in their own tier. When a member leaves, the new owner of
+ * each of its partitions fetches the records from one of its replicas if it was
+ * not one of them, the records are replicated again to the members which became
+ * replicas and the members which are not replicas of a partition anymore drop its
+ * records. A tier holds up to backupCount + 1 times the records owned by its member.
+ */
+public class OffHeapTierStore<V extends DataSerializable> implements MapStore<String, V>, MapLoaderLifecycleSupport {
+	public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+	private static final int HANDOVER_BATCH_SIZE = 1000;
+	private static final long OWNER_TIMEOUT_MILLIS = 30000;
+	private static final ConcurrentMap<String, OffHeapTierStore<?>> stores = new ConcurrentHashMap<String, OffHeapTierStore<?>>();
+	private static final AtomicLong promotions = Metrics.counter("member.offHeap.promotions");
+	private static final AtomicLong compactions = Metrics.counter("member.offHeap.compactions");
+	private static final AtomicLong rejections = Metrics.counter("member.offHeap.rejections");
+	private static final AtomicLong handedOver = Metrics.counter("member.offHeap.handedOver");
+	private static final AtomicLong replicated = Metrics.counter("member.offHeap.replicated");
+	private static final AtomicLong replicationFailures = Metrics.counter("member.offHeap.replicationFailures");
+	private static final AtomicLong recovered = Metrics.counter("member.offHeap.recovered");
+
+	public interface EntryVisitor<V> {
+		void visit(String key, V value);
+	}
+
+	private final Class<V> valueClass;
+	private final int slabSize;
+	private final int maxSlabs;
+	private final int backupCount;
+
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private final List<Integer> slabPositions = new ArrayList<Integer>();
+	private final List<Integer> slabGarbage = new ArrayList<Integer>();
+	private int activeSlab = -1;
+	// slab index in the high 32 bits, offset of the record in the low 32 bits
+	private final Map<String, Long> addresses = new HashMap<String, Long>();
+	// keys of the local entries currently in the heap
+	private final Set<String> residentKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// keys stored or deleted by partition id, for the partitions migrating to the member
+	// whose records are not all handed over yet
+	private final Map<Integer, Set<String>> receivingPartitions = new HashMap<Integer, Set<String>>();
+
+	private HazelcastInstance hazelcastInstance;
+	private String mapName;
+	// runs the handovers and the replica placements one at a time
+	private ExecutorService handoverExecutor;
+	// members and partition owners when the replicas were last placed
+	private volatile List<Member> members;
+	private Member[] partitionOwners;
+
+	/**
+	 * @param backupCount number of members keeping a replica of the records,
+	 *        the backup count of the map
+	 */
+	public OffHeapTierStore(Class<V> valueClass, long maxBytes, int backupCount) {
+		this(valueClass, maxBytes, DEFAULT_SLAB_SIZE, backupCount);
+	}
+
+	public OffHeapTierStore(Class<V> valueClass, long maxBytes, int slabSize, int backupCount) {
+		this.valueClass = valueClass;
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.max(1, maxBytes / slabSize);
+		this.backupCount = backupCount;
+	}
+
+	@Override
+	public void init(HazelcastInstance hazelcastInstance, Properties properties, final String mapName) {
+		this.hazelcastInstance = hazelcastInstance;
+		this.mapName = mapName;
+		handoverExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "off-heap-handover-" + mapName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		IMap<String, V> map = hazelcastInstance.getMap(mapName);
+		map.addLocalEntryListener(new EntryListener<String, V>() {
+			@Override
+			public void entryAdded(EntryEvent<String, V> event) {
+				residentKeys.add(event.getKey());
+			}
+
+			@Override
+			public void entryUpdated(EntryEvent<String, V> event) {
+				residentKeys.add(event.getKey());
+			}
+
+			@Override
+			public void entryRemoved(EntryEvent<String, V> event) {
+				residentKeys.remove(event.getKey());
+			}
+
+			@Override
+			public void entryEvicted(EntryEvent<String, V> event) {
+				residentKeys.remove(event.getKey());
+			}
+		});
+		hazelcastInstance.getPartitionService().addMigrationListener(new MigrationListener() {
+			@Override
+			public void migrationStarted(MigrationEvent migrationEvent) {
+				Member oldOwner = migrationEvent.getOldOwner();
+				if (oldOwner != null && !oldOwner.localMember()
+						&& migrationEvent.getNewOwner() != null && migrationEvent.getNewOwner().localMember()) {
+					synchronized(OffHeapTierStore.this) {
+						receivingPartitions.put(migrationEvent.getPartitionId(), new HashSet<String>());
+					}
+				}
+			}
+
+			@Override
+			public void migrationCompleted(final MigrationEvent migrationEvent) {
+				final Member newOwner = migrationEvent.getNewOwner();
+				handoverExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (partitionOwners != null && migrationEvent.getPartitionId() < partitionOwners.length) {
+							partitionOwners[migrationEvent.getPartitionId()] = newOwner;
+						}
+					}
+				});
+				if (migrationEvent.getOldOwner() != null && migrationEvent.getOldOwner().localMember()
+						&& newOwner != null && !newOwner.localMember()) {
+					synchronized(OffHeapTierStore.this) {
+						// the previous handover of the partition did not complete
+						receivingPartitions.remove(migrationEvent.getPartitionId());
+					}
+					handoverExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							handOver(migrationEvent.getPartitionId(), newOwner);
+						}
+					});
+				}
+			}
+
+			public void migrationFailed(MigrationEvent migrationEvent) {
+				if (migrationEvent.getNewOwner() != null && migrationEvent.getNewOwner().localMember()) {
+					synchronized(OffHeapTierStore.this) {
+						receivingPartitions.remove(migrationEvent.getPartitionId());
+					}
+				}
+			}
+		});
+		hazelcastInstance.getCluster().addMembershipListener(new MembershipListener() {
+			@Override
+			public void memberAdded(MembershipEvent membershipEvent) {
+				schedulePlacement(null);
+			}
+
+			@Override
+			public void memberRemoved(MembershipEvent membershipEvent) {
+				schedulePlacement(membershipEvent.getMember());
+			}
+		});
+		handoverExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				members = new ArrayList<Member>(OffHeapTierStore.this.hazelcastInstance.getCluster().getMembers());
+				partitionOwners = getPartitionOwners(null);
+			}
+		});
+		stores.put(getStoreName(hazelcastInstance, mapName), this);
+	}
+
+	@Override
+	public void destroy() {
+		stores.remove(getStoreName(hazelcastInstance, mapName));
+		if (handoverExecutor != null) {
+			handoverExecutor.shutdown();
+		}
+	}
+
+	public static OffHeapTierStore<?> get(HazelcastInstance instance, String mapName) {
+		return stores.get(getStoreName(instance, mapName));
+	}
+
+	private static String getStoreName(HazelcastInstance instance, String mapName) {
+		// several members can run in the same JVM
+		return instance.getName() + ":" + mapName;
+	}
+
+	@Override
+	public void store(String key, V value) {
+		storeAll(Collections.singletonMap(key, value));
+	}
+
+	@Override
+	public void storeAll(Map<String, V> entries) {
+		Map<String, byte[]> records = new HashMap<String, byte[]>(entries.size() * 2);
+		for(Map.Entry<String, V> entry: entries.entrySet()) {
+			records.put(entry.getKey(), serialize(entry.getValue()));
+		}
+		synchronized(this) {
+			for(Map.Entry<String, byte[]> record: records.entrySet()) {
+				write(record.getKey(), record.getValue());
+				touch(record.getKey());
+			}
+		}
+		replicate(records, Collections.<String>emptySet());
+	}
+
+	@Override
+	public void delete(String key) {
+		deleteAll(Collections.singleton(key));
+	}
+
+	@Override
+	public void deleteAll(Collection<String> keys) {
+		synchronized(this) {
+			for(String key: keys) {
+				residentKeys.remove(key);
+				Long address = addresses.remove(key);
+				if (address != null) {
+					release(address);
+				}
+				touch(key);
+			}
+		}
+		replicate(Collections.<String, byte[]>emptyMap(), keys);
+	}
+
+	/**
+	 * Called by Hazelcast when the entry is not in the heap: the entry is promoted
+	 * back to the heap.
+	 */
+	@Override
+	public V load(String key) {
+		V value = read(key);
+		if (value != null) {
+			promotions.incrementAndGet();
+			residentKeys.add(key);
+		}
+		return value;
+	}
+
+	@Override
+	public Map<String, V> loadAll(Collection<String> keys) {
+		Map<String, V> values = new HashMap<String, V>();
+		for(String key: keys) {
+			V value = load(key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public Set<String> loadAllKeys() {
+		// the tier is empty when the map is created
+		return null;
+	}
+
+	/**
+	 * Returns the entry without promoting it to the heap, or null if the tier does
+	 * not have it.
+	 */
+	public V read(String key) {
+		byte[] data;
+		synchronized(this) {
+			Long address = addresses.get(key);
+			if (address == null) {
+				return null;
+			}
+			data = readValue(address);
+		}
+		return deserialize(data);
+	}
+
+	/**
+	 * Returns the values of the keys like IMap.getAll, but the values of a map with
+	 * a tier are read from the tier, which has a copy of every entry, so that the
+	 * evicted entries are not promoted to the heap.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> Map<K, V> getAll(HazelcastInstance instance, IMap<K, V> map, Collection<K> keys) {
+		OffHeapTierStore<?> tier = get(instance, map.getName());
+		if (tier == null) {
+			return map.getAll(new HashSet<K>(keys));
+		}
+		Map<K, V> values = new HashMap<K, V>(keys.size() * 2);
+		for(K key: keys) {
+			V value = (V) tier.read((String) key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the keys of the entries owned by the member which are only in the
+	 * tier and match the expression (all of them if the expression is null).
+	 */
+	public Set<String> scan(QueryExpression expression) {
+		Set<String> matchingKeys = new HashSet<String>();
+		for(String key: getLocalKeys()) {
+			if (residentKeys.contains(key)) {
+				continue;
+			}
+			if (expression == null) {
+				matchingKeys.add(key);
+			} else {
+				V value = read(key);
+				if (value != null && expression.matches(value)) {
+					matchingKeys.add(key);
+				}
+			}
+		}
+		return matchingKeys;
+	}
+
+	/**
+	 * Visits all the entries owned by the member, whether they are in the heap or not.
+	 */
+	public void visitLocalEntries(EntryVisitor<V> visitor) {
+		for(String key: getLocalKeys()) {
+			V value = read(key);
+			if (value != null) {
+				visitor.visit(key, value);
+			}
+		}
+	}
+
+	private List<String> getLocalKeys() {
+		List<String> keys;
+		synchronized(this) {
+			keys = new ArrayList<String>(addresses.keySet());
+		}
+		// the tier can still have the records of partitions not handed over yet
+		PartitionService partitionService = hazelcastInstance.getPartitionService();
+		List<String> localKeys = new ArrayList<String>(keys.size());
+		for(String key: keys) {
+			Member owner = partitionService.getPartition(key).getOwner();
+			if (owner != null && owner.localMember()) {
+				localKeys.add(key);
+			}
+		}
+		return localKeys;
+	}
+
+	/**
+	 * Sends the records of a partition to its new owner and deletes them unless the
+	 * member is one of the replicas of the new owner, the last batch (empty if there
+	 * is no record) tells the new owner the handover is done.
+	 */
+	private void handOver(int partitionId, Member newOwner) {
+		PartitionService partitionService = hazelcastInstance.getPartitionService();
+		List<String> keys;
+		synchronized(this) {
+			keys = new ArrayList<String>(addresses.keySet());
+		}
+		Map<String, byte[]> batch = new HashMap<String, byte[]>();
+		try {
+			for(String key: keys) {
+				if (partitionService.getPartition(key).getPartitionId() != partitionId) {
+					continue;
+				}
+				synchronized(this) {
+					Long address = addresses.get(key);
+					if (address != null) {
+						batch.put(key, readValue(address));
+					}
+				}
+				if (batch.size() >= HANDOVER_BATCH_SIZE) {
+					sendRecords(partitionId, batch, false, newOwner);
+					batch = new HashMap<String, byte[]>();
+				}
+			}
+			sendRecords(partitionId, batch, true, newOwner);
+		} catch (Exception e) {
+			System.err.println("Cannot hand over the off-heap entries of the partition " + partitionId
+					+ " of the map " + mapName + " to " + newOwner + ": " + e);
+			return;
+		}
+		// the replicas of the member are not the replicas of the partition anymore
+		Member localMember = hazelcastInstance.getCluster().getLocalMember();
+		for(Member replica: getReplicas(localMember, members)) {
+			sendDrop(Collections.singleton(partitionId), replica);
+		}
+	}
+
+	private void sendRecords(int partitionId, Map<String, byte[]> records, boolean last, Member member)
+			throws Exception {
+		send(new HandoverTask(mapName, partitionId, records, last), member);
+		handedOver.addAndGet(records.size());
+		residentKeys.removeAll(records.keySet());
+		if (getReplicas(member, members).contains(hazelcastInstance.getCluster().getLocalMember())) {
+			// the member keeps the records as a replica of the new owner
+			return;
+		}
+		// the member does not own the partition anymore, its entries are not stored here again
+		synchronized(this) {
+			for(String key: records.keySet()) {
+				Long address = addresses.remove(key);
+				if (address != null) {
+					release(address);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs on the new owner of a partition to receive the records of the partition.
+	 */
+	public static class HandoverTask implements Callable<Integer>, Serializable, HazelcastInstanceAware {
+		private static final long serialVersionUID = 1L;
+
+		private final String mapName;
+		private final int partitionId;
+		private final HashMap<String, byte[]> records;
+		private final boolean last;
+
+		private transient HazelcastInstance hazelcastInstance;
+
+		/**
+		 * @param last true for the last records of the partition
+		 */
+		public HandoverTask(String mapName, int partitionId, Map<String, byte[]> records, boolean last) {
+			this.mapName = mapName;
+			this.partitionId = partitionId;
+			this.records = new HashMap<String, byte[]>(records);
+			this.last = last;
+		}
+
+		@Override
+		public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+			this.hazelcastInstance = hazelcastInstance;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			return getStore(hazelcastInstance, mapName).receive(partitionId, records, last);
+		}
+	}
+
+	/**
+	 * Keeps the records handed over by the previous owner of a partition that the
+	 * tier does not already have and whose keys were not stored or deleted since the
+	 * start of the migration, and indexes them.
+	 */
+	int receive(final int partitionId, Map<String, byte[]> records, boolean last) {
+		Map<String, byte[]> received = new HashMap<String, byte[]>();
+		synchronized(this) {
+			Set<String> changedKeys = last ? receivingPartitions.remove(partitionId)
+					: receivingPartitions.get(partitionId);
+			for(Map.Entry<String, byte[]> record: records.entrySet()) {
+				if (!addresses.containsKey(record.getKey())
+						&& (changedKeys == null || !changedKeys.contains(record.getKey()))) {
+					write(record.getKey(), record.getValue());
+					received.put(record.getKey(), record.getValue());
+				}
+			}
+		}
+		BitmapIndex index = BitmapIndex.get(hazelcastInstance, mapName);
+		if (index != null) {
+			for(Map.Entry<String, byte[]> record: received.entrySet()) {
+				index.put(record.getKey(), deserialize(record.getValue()));
+			}
+		}
+		QueryResultCache queryCache = QueryResultCache.get(hazelcastInstance, mapName);
+		if (queryCache != null) {
+			queryCache.clear();
+		}
+		if (last) {
+			handoverExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Member localMember = hazelcastInstance.getCluster().getLocalMember();
+					for(Member replica: getReplicas(localMember, members)) {
+						sendPartitions(Collections.singleton(partitionId), replica);
+					}
+				}
+			});
+		}
+		return received.size();
+	}
+
+	/**
+	 * Sends the records stored or deleted by the owner to its replicas and waits for
+	 * them, a replica which cannot be reached gets the records again when the
+	 * replicas are placed after it left.
+	 */
+	private void replicate(Map<String, byte[]> records, Collection<String> deletedKeys) {
+		List<Member> currentMembers = members;
+		if (backupCount == 0 || currentMembers == null) {
+			return;
+		}
+		for(Member replica: getReplicas(hazelcastInstance.getCluster().getLocalMember(), currentMembers)) {
+			try {
+				send(new ReplicaTask(mapName, records, deletedKeys, Collections.<Integer>emptySet()), replica);
+				replicated.addAndGet(records.size() + deletedKeys.size());
+			} catch (Exception e) {
+				replicationFailures.incrementAndGet();
+				System.err.println("Cannot replicate the off-heap entries of the map " + mapName + " to "
+						+ replica + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the backupCount members following the owner in the member list.
+	 */
+	private List<Member> getReplicas(Member owner, List<Member> memberList) {
+		List<Member> replicas = new ArrayList<Member>();
+		int index = memberList == null ? -1 : memberList.indexOf(owner);
+		if (index < 0) {
+			return replicas;
+		}
+		for(int i = 1 ; i <= Math.min(backupCount, memberList.size() - 1) ; i++) {
+			replicas.add(memberList.get((index + i) % memberList.size()));
+		}
+		return replicas;
+	}
+
+	private void schedulePlacement(final Member removedMember) {
+		handoverExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					placeReplicas(removedMember);
+				} catch (Exception e) {
+					System.err.println("Cannot place the off-heap replicas of the map " + mapName + ": " + e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs after a member joined or left: the new owners of the partitions of the
+	 * member which left recover their records, and each member sends the records it
+	 * owns to its new replicas and tells the members which are not its replicas
+	 * anymore to drop them.
+	 */
+	private void placeReplicas(Member removedMember) {
+		List<Member> previousMembers = members;
+		List<Member> currentMembers = new ArrayList<Member>(hazelcastInstance.getCluster().getMembers());
+		members = currentMembers;
+		if (backupCount == 0) {
+			return;
+		}
+		Member localMember = hazelcastInstance.getCluster().getLocalMember();
+		Set<Integer> recoveredPartitions = new HashSet<Integer>();
+		if (removedMember != null) {
+			List<Member> removedReplicas = getReplicas(removedMember, previousMembers);
+			Member[] owners = getPartitionOwners(removedMember);
+			for(int partitionId = 0 ; partitionId < owners.length ; partitionId++) {
+				if (removedMember.equals(partitionOwners[partitionId]) && owners[partitionId] != null
+						&& owners[partitionId].localMember()) {
+					recoveredPartitions.add(partitionId);
+				}
+			}
+			partitionOwners = owners;
+			if (!recoveredPartitions.isEmpty()) {
+				if (!removedReplicas.contains(localMember)) {
+					fetchPartitions(recoveredPartitions, removedReplicas, currentMembers);
+				}
+				indexPartitions(recoveredPartitions);
+				for(Member replica: removedReplicas) {
+					if (currentMembers.contains(replica) && !replica.localMember()) {
+						sendDrop(recoveredPartitions, replica);
+					}
+				}
+			}
+		}
+
+		Set<Integer> ownedPartitions = new HashSet<Integer>();
+		for(int partitionId = 0 ; partitionId < partitionOwners.length ; partitionId++) {
+			if (partitionOwners[partitionId] != null && partitionOwners[partitionId].localMember()) {
+				ownedPartitions.add(partitionId);
+			}
+		}
+		List<Member> previousReplicas = getReplicas(localMember, previousMembers);
+		for(Member replica: getReplicas(localMember, currentMembers)) {
+			// the replicas of the removed member which are still replicas may miss the recovered records
+			sendPartitions(previousReplicas.contains(replica) ? recoveredPartitions : ownedPartitions, replica);
+		}
+		for(Member replica: previousReplicas) {
+			if (currentMembers.contains(replica) && !getReplicas(localMember, currentMembers).contains(replica)) {
+				sendDrop(ownedPartitions, replica);
+			}
+		}
+	}
+
+	/**
+	 * Returns the owner of each partition, waiting until none of them is the member
+	 * which left.
+	 */
+	private Member[] getPartitionOwners(Member removedMember) {
+		long start = System.currentTimeMillis();
+		while(true) {
+			Set<Partition> partitions = hazelcastInstance.getPartitionService().getPartitions();
+			Member[] owners = new Member[partitions.size()];
+			boolean assigned = true;
+			for(Partition partition: partitions) {
+				owners[partition.getPartitionId()] = partition.getOwner();
+				if (removedMember != null && removedMember.equals(partition.getOwner())) {
+					assigned = false;
+				}
+			}
+			if (assigned || System.currentTimeMillis() - start > OWNER_TIMEOUT_MILLIS) {
+				return owners;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return owners;
+			}
+		}
+	}
+
+	/**
+	 * Receives the records of the partitions from the first replica still in the cluster.
+	 */
+	private void fetchPartitions(Set<Integer> partitionIds, List<Member> replicas, List<Member> currentMembers) {
+		for(Member replica: replicas) {
+			if (!currentMembers.contains(replica)) {
+				continue;
+			}
+			try {
+				DistributedTask<HashMap<String, byte[]>> task = new DistributedTask<HashMap<String, byte[]>>(
+						new FetchTask(mapName, partitionIds), replica);
+				hazelcastInstance.getExecutorService().execute(task);
+				Map<String, byte[]> records = task.get();
+				PartitionService partitionService = hazelcastInstance.getPartitionService();
+				for(int partitionId: partitionIds) {
+					Map<String, byte[]> partitionRecords = new HashMap<String, byte[]>();
+					for(Map.Entry<String, byte[]> record: records.entrySet()) {
+						if (partitionService.getPartition(record.getKey()).getPartitionId() == partitionId) {
+							partitionRecords.put(record.getKey(), record.getValue());
+						}
+					}
+					recovered.addAndGet(receive(partitionId, partitionRecords, false));
+				}
+				return;
+			} catch (Exception e) {
+				System.err.println("Cannot fetch the off-heap entries of the map " + mapName + " from "
+						+ replica + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Indexes the records of the partitions the member now owns, a replica is not
+	 * indexed until then.
+	 */
+	private void indexPartitions(Set<Integer> partitionIds) {
+		BitmapIndex index = BitmapIndex.get(hazelcastInstance, mapName);
+		if (index != null) {
+			for(Map.Entry<String, byte[]> record: getRecords(partitionIds).entrySet()) {
+				index.put(record.getKey(), deserialize(record.getValue()));
+			}
+		}
+		QueryResultCache queryCache = QueryResultCache.get(hazelcastInstance, mapName);
+		if (queryCache != null) {
+			queryCache.clear();
+		}
+	}
+
+	private void sendPartitions(Set<Integer> partitionIds, Member replica) {
+		if (partitionIds.isEmpty()) {
+			return;
+		}
+		try {
+			Map<String, byte[]> records = getRecords(partitionIds);
+			Map<String, byte[]> batch = new HashMap<String, byte[]>();
+			for(Map.Entry<String, byte[]> record: records.entrySet()) {
+				batch.put(record.getKey(), record.getValue());
+				if (batch.size() >= HANDOVER_BATCH_SIZE) {
+					send(new ReplicaTask(mapName, batch, Collections.<String>emptySet(),
+							Collections.<Integer>emptySet()), replica);
+					batch = new HashMap<String, byte[]>();
+				}
+			}
+			send(new ReplicaTask(mapName, batch, Collections.<String>emptySet(),
+					Collections.<Integer>emptySet()), replica);
+			replicated.addAndGet(records.size());
+		} catch (Exception e) {
+			replicationFailures.incrementAndGet();
+			System.err.println("Cannot replicate the off-heap entries of the map " + mapName + " to "
+					+ replica + ": " + e);
+		}
+	}
+
+	private void sendDrop(Set<Integer> partitionIds, Member replica) {
+		if (partitionIds.isEmpty()) {
+			return;
+		}
+		try {
+			send(new ReplicaTask(mapName, Collections.<String, byte[]>emptyMap(), Collections.<String>emptySet(),
+					partitionIds), replica);
+		} catch (Exception e) {
+			System.err.println("Cannot drop the off-heap replicas of the map " + mapName + " on "
+					+ replica + ": " + e);
+		}
+	}
+
+	private void send(Callable<Integer> callable, Member member) throws Exception {
+		DistributedTask<Integer> task = new DistributedTask<Integer>(callable, member);
+		hazelcastInstance.getExecutorService().execute(task);
+		task.get();
+	}
+
+	/**
+	 * Returns the records of the partitions, whether the member owns them or is a replica.
+	 */
+	Map<String, byte[]> getRecords(Set<Integer> partitionIds) {
+		PartitionService partitionService = hazelcastInstance.getPartitionService();
+		List<String> keys;
+		synchronized(this) {
+			keys = new ArrayList<String>(addresses.keySet());
+		}
+		Map<String, byte[]> records = new HashMap<String, byte[]>();
+		for(String key: keys) {
+			if (!partitionIds.contains(partitionService.getPartition(key).getPartitionId())) {
+				continue;
+			}
+			synchronized(this) {
+				Long address = addresses.get(key);
+				if (address != null) {
+					records.put(key, readValue(address));
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Applies the records stored or deleted by the owner, and drops the records of
+	 * the partitions the member neither owns nor replicates anymore.
+	 */
+	int applyReplica(Map<String, byte[]> records, Set<String> deletedKeys, Set<Integer> droppedPartitions) {
+		List<String> droppedKeys = new ArrayList<String>();
+		if (!droppedPartitions.isEmpty()) {
+			PartitionService partitionService = hazelcastInstance.getPartitionService();
+			Member localMember = hazelcastInstance.getCluster().getLocalMember();
+			Member[] owners = getPartitionOwners(null);
+			Set<Integer> keptPartitions = new HashSet<Integer>();
+			for(int partitionId: droppedPartitions) {
+				Member owner = owners[partitionId];
+				if (owner != null && (owner.localMember() || getReplicas(owner, members).contains(localMember))) {
+					keptPartitions.add(partitionId);
+				}
+			}
+			List<String> keys;
+			synchronized(this) {
+				keys = new ArrayList<String>(addresses.keySet());
+			}
+			for(String key: keys) {
+				int partitionId = partitionService.getPartition(key).getPartitionId();
+				if (droppedPartitions.contains(partitionId) && !keptPartitions.contains(partitionId)) {
+					droppedKeys.add(key);
+				}
+			}
+		}
+		synchronized(this) {
+			for(Map.Entry<String, byte[]> record: records.entrySet()) {
+				write(record.getKey(), record.getValue());
+			}
+			for(String key: deletedKeys) {
+				Long address = addresses.remove(key);
+				if (address != null) {
+					release(address);
+				}
+			}
+			for(String key: droppedKeys) {
+				Long address = addresses.remove(key);
+				if (address != null) {
+					release(address);
+				}
+			}
+		}
+		residentKeys.removeAll(droppedKeys);
+		return records.size() + deletedKeys.size() + droppedKeys.size();
+	}
+
+	/**
+	 * Runs on a replica to apply the records stored or deleted by the owner, or to
+	 * drop the records of partitions.
+	 */
+	public static class ReplicaTask implements Callable<Integer>, Serializable, HazelcastInstanceAware {
+		private static final long serialVersionUID = 1L;
+
+		private final String mapName;
+		private final HashMap<String, byte[]> records;
+		private final HashSet<String> deletedKeys;
+		private final HashSet<Integer> droppedPartitions;
+
+		private transient HazelcastInstance hazelcastInstance;
+
+		public ReplicaTask(String mapName, Map<String, byte[]> records, Collection<String> deletedKeys,
+				Set<Integer> droppedPartitions) {
+			this.mapName = mapName;
+			this.records = new HashMap<String, byte[]>(records);
+			this.deletedKeys = new HashSet<String>(deletedKeys);
+			this.droppedPartitions = new HashSet<Integer>(droppedPartitions);
+		}
+
+		@Override
+		public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+			this.hazelcastInstance = hazelcastInstance;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			return getStore(hazelcastInstance, mapName).applyReplica(records, deletedKeys, droppedPartitions);
+		}
+	}
+
+	/**
+	 * Runs on a replica to return the records of partitions to their new owner.
+	 */
+	public static class FetchTask implements Callable<HashMap<String, byte[]>>, Serializable, HazelcastInstanceAware {
+		private static final long serialVersionUID = 1L;
+
+		private final String mapName;
+		private final HashSet<Integer> partitionIds;
+
+		private transient HazelcastInstance hazelcastInstance;
+
+		public FetchTask(String mapName, Set<Integer> partitionIds) {
+			this.mapName = mapName;
+			this.partitionIds = new HashSet<Integer>(partitionIds);
+		}
+
+		@Override
+		public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+			this.hazelcastInstance = hazelcastInstance;
+		}
+
+		@Override
+		public HashMap<String, byte[]> call() throws Exception {
+			return new HashMap<String, byte[]>(getStore(hazelcastInstance, mapName).getRecords(partitionIds));
+		}
+	}
+
+	private static OffHeapTierStore<?> getStore(HazelcastInstance hazelcastInstance, String mapName) {
+		OffHeapTierStore<?> store = get(hazelcastInstance, mapName);
+		if (store == null) {
+			throw new IllegalStateException("The map " + mapName + " has no off-heap tier on "
+					+ hazelcastInstance.getName());
+		}
+		return store;
+	}
+
+	// the methods below are called with the lock held
+
+	/**
+	 * Remembers the key if its partition is migrating to the member.
+	 */
+	private void touch(String key) {
+		if (receivingPartitions.isEmpty()) {
+			return;
+		}
+		Set<String> changedKeys = receivingPartitions.get(
+				hazelcastInstance.getPartitionService().getPartition(key).getPartitionId());
+		if (changedKeys != null) {
+			changedKeys.add(key);
+		}
+	}
+
+	private void write(String key, byte[] value) {
+		byte[] keyBytes;
+		try {
+			keyBytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		// record: length (int), key length (short), key, value
+		int recordSize = 4 + 2 + keyBytes.length + value.length;
+		int slab = allocate(recordSize);
+		int offset = slabPositions.get(slab);
+		ByteBuffer buffer = slabs.get(slab);
+		buffer.putInt(offset, recordSize);
+		buffer.putShort(offset + 4, (short) keyBytes.length);
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset + 6);
+		target.put(keyBytes);
+		target.put(value);
+		slabPositions.set(slab, offset + recordSize);
+
+		// the previous record may have been moved by a compaction
+		Long previousAddress = addresses.put(key, ((long) slab << 32) | offset);
+		if (previousAddress != null) {
+			release(previousAddress);
+		}
+	}
+
+	/**
+	 * Returns a slab with recordSize bytes free at its position.
+	 */
+	private int allocate(int recordSize) {
+		if (recordSize > slabSize) {
+			throw new IllegalArgumentException("Entry of " + recordSize + " bytes larger than the off-heap slabs ("
+					+ slabSize + " bytes)");
+		}
+		if (activeSlab >= 0 && slabPositions.get(activeSlab) + recordSize <= slabSize) {
+			return activeSlab;
+		}
+		for(int slab = 0 ; slab < slabs.size() ; slab++) {
+			if (slabPositions.get(slab) + recordSize <= slabSize) {
+				activeSlab = slab;
+				return slab;
+			}
+		}
+		if (slabs.size() < maxSlabs) {
+			slabs.add(ByteBuffer.allocateDirect(slabSize));
+			slabPositions.add(0);
+			slabGarbage.add(0);
+			activeSlab = slabs.size() - 1;
+			return activeSlab;
+		}
+		int candidate = 0;
+		for(int slab = 1 ; slab < slabs.size() ; slab++) {
+			if (slabGarbage.get(slab) > slabGarbage.get(candidate)) {
+				candidate = slab;
+			}
+		}
+		if (slabPositions.get(candidate) - slabGarbage.get(candidate) + recordSize > slabSize) {
+			rejections.incrementAndGet();
+			throw new IllegalStateException("The off-heap tier of the map " + mapName + " is full ("
+					+ getAllocatedBytes() + " bytes)");
+		}
+		compact(candidate);
+		activeSlab = candidate;
+		return candidate;
+	}
+
+	/**
+	 * Moves the live records of the slab to its start.
+	 */
+	private void compact(int slab) {
+		ByteBuffer buffer = slabs.get(slab);
+		int position = slabPositions.get(slab);
+		int readOffset = 0;
+		int writeOffset = 0;
+		while(readOffset < position) {
+			int recordSize = buffer.getInt(readOffset);
+			String key = readKey(buffer, readOffset);
+			long address = ((long) slab << 32) | readOffset;
+			Long currentAddress = addresses.get(key);
+			if (currentAddress != null && currentAddress == address) {
+				if (writeOffset != readOffset) {
+					byte[] record = new byte[recordSize];
+					ByteBuffer source = buffer.duplicate();
+					source.position(readOffset);
+					source.get(record);
+					ByteBuffer target = buffer.duplicate();
+					target.position(writeOffset);
+					target.put(record);
+					addresses.put(key, ((long) slab << 32) | writeOffset);
+				}
+				writeOffset += recordSize;
+			}
+			readOffset += recordSize;
+		}
+		slabPositions.set(slab, writeOffset);
+		slabGarbage.set(slab, 0);
+		compactions.incrementAndGet();
+	}
+
+	private void release(long address) {
+		int slab = (int) (address >>> 32);
+		int offset = (int) address;
+		slabGarbage.set(slab, slabGarbage.get(slab) + slabs.get(slab).getInt(offset));
+	}
+
+	private String readKey(ByteBuffer buffer, int offset) {
+		byte[] keyBytes = new byte[buffer.getShort(offset + 4)];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + 6);
+		source.get(keyBytes);
+		try {
+			return new String(keyBytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] readValue(long address) {
+		ByteBuffer buffer = slabs.get((int) (address >>> 32));
+		int offset = (int) address;
+		int recordSize = buffer.getInt(offset);
+		int keySize = buffer.getShort(offset + 4);
+		byte[] value = new byte[recordSize - 6 - keySize];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + 6 + keySize);
+		source.get(value);
+		return value;
+	}
+
+	private byte[] serialize(V value) {
+		try {
+			return SerializationUtils.toBytes(value);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot serialize " + value, e);
+		}
+	}
+
+	private V deserialize(byte[] data) {
+		try {
+			return SerializationUtils.fromBytes(data, valueClass.newInstance());
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot deserialize a " + valueClass.getName(), e);
+		}
+	}
+
+	public synchronized int getEntryCount() {
+		return addresses.size();
+	}
+
+	public int getResidentEntryCount() {
+		return residentKeys.size();
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return (long) slabs.size() * slabSize;
+	}
+
+	public synchronized long getUsedBytes() {
+		long used = 0;
+		for(int slab = 0 ; slab < slabs.size() ; slab++) {
+			used += slabPositions.get(slab) - slabGarbage.get(slab);
+		}
+		return used;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("OffHeapTierStore %s: %d entries with the replicas (%d in the heap), %d/%d bytes used,"
+				+ " %d bytes budget, %d promotions, %d compactions, %d rejected, %d replicas,"
+				+ " %d replication failures",
+				mapName, getEntryCount(), getResidentEntryCount(), getUsedBytes(), getAllocatedBytes(),
+				(long) maxSlabs * slabSize, promotions.get(), compactions.get(), rejections.get(),
+				backupCount, replicationFailures.get());
+	}
+}
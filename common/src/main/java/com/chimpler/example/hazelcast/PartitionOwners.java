@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.chimpler.example.hazelcast;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.nio.IOUtil;
+import com.hazelcast.partition.Partition;
+
+/**
+ * Owners of the partitions read once with PartitionService.getPartitions(), so
+ * that a client can group keys by member without the remote call per key of
+ * PartitionService.getPartition(key). The partition of a key is computed like
+ * the members do, from the partition hash of its serialized form.
+ *
+ * The owners can change after they are read: a key sent to a member which does
+ * not own it anymore is still served, only with one more hop.
+ */
+public class PartitionOwners {
+	private final Member[] owners;
+
+	public PartitionOwners(HazelcastInstance instance) {
+		Set<Partition> partitions = instance.getPartitionService().getPartitions();
+		owners = new Member[partitions.size()];
+		for(Partition partition: partitions) {
+			owners[partition.getPartitionId()] = partition.getOwner();
+		}
+	}
+
+	public int getPartitionId(Object key) {
+		int hash = IOUtil.toData(key).getPartitionHash();
+		return hash == Integer.MIN_VALUE ? 0 : Math.abs(hash) % owners.length;
+	}
+
+	/**
+	 * Returns the owner of the partition of the key, null while the partition has
+	 * no owner (during a migration).
+	 */
+	public Member getOwner(Object key) {
+		return owners[getPartitionId(key)];
+	}
+
+	/**
+	 * Groups the keys by owner, the keys of the partitions without owner are
+	 * grouped under null.
+	 */
+	public <K> Map<Member, Set<K>> groupByOwner(Collection<K> keys) {
+		Map<Member, Set<K>> keysByOwner = new HashMap<Member, Set<K>>();
+		for(K key: keys) {
+			Member owner = getOwner(key);
+			Set<K> ownerKeys = keysByOwner.get(owner);
+			if (ownerKeys == null) {
+				ownerKeys = new HashSet<K>();
+				keysByOwner.put(owner, ownerKeys);
+			}
+			ownerKeys.add(key);
+		}
+		return keysByOwner;
+	}
+}
@@ -16,9 +16,18 @@
 
 package com.chimpler.example.hazelcast;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.nio.DataSerializable;
+
+public class Person implements DataSerializable {
+	private static final long serialVersionUID = -2617764241263789582L;
+	// first byte of the compact format, telling whether the strings are codes of the StringDictionary
+	private static final byte PLAIN_FORMAT = 0;
+	private static final byte ENCODED_FORMAT = 1;
 
-public class Person implements Serializable{
 	private String ssn;
 	private String firstName;
 	private String lastName;
@@ -74,6 +83,42 @@ public class Person implements Serializable{
 		this.address = address;
 	}
 
+	/**
+	 * Writes the person, with the names, cities and states encoded when a
+	 * StringDictionary is installed in this JVM.
+	 */
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		StringDictionary dictionary = StringDictionary.get();
+		out.writeByte(dictionary == null ? PLAIN_FORMAT : ENCODED_FORMAT);
+		SerializationUtils.writeString(out, ssn);
+		SerializationUtils.writeString(out, firstName, dictionary);
+		SerializationUtils.writeString(out, lastName, dictionary);
+		out.writeInt(age);
+		SerializationUtils.writeCompany(out, company, dictionary);
+		SerializationUtils.writeAddress(out, address, dictionary);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		StringDictionary dictionary = null;
+		byte format = in.readByte();
+		if (format == ENCODED_FORMAT) {
+			dictionary = StringDictionary.get();
+			if (dictionary == null) {
+				throw new IOException("Person encoded with a string dictionary, start with -Dperson.dictionary=true");
+			}
+		} else if (format != PLAIN_FORMAT) {
+			throw new IOException("Unknown person format " + format);
+		}
+		ssn = SerializationUtils.readString(in);
+		firstName = SerializationUtils.readString(in, dictionary);
+		lastName = SerializationUtils.readString(in, dictionary);
+		age = in.readInt();
+		company = SerializationUtils.readCompany(in, dictionary);
+		address = SerializationUtils.readAddress(in, dictionary);
+	}
+
 	@Override
 	public String toString() {
 		return "Person [ssn=" + ssn + ", firstName=" + firstName
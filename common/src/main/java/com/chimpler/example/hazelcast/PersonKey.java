@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.core.PartitionAware;
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Key of a person co-located with the other employees of its company: the
+ * partition of the key is the one of the company name, so that all the employees
+ * of a company are owned by the same member and the queries on a company can be
+ * sent to that member only. The persons without company are partitioned by ssn.
+ */
+public class PersonKey implements PartitionAware<String>, DataSerializable {
+	private static final long serialVersionUID = 1L;
+
+	private String companyName;
+	private String ssn;
+
+	public PersonKey() {
+	}
+
+	/**
+	 * @param companyName the name of the company, empty if the person has no company
+	 */
+	public PersonKey(String companyName, String ssn) {
+		this.companyName = companyName;
+		this.ssn = ssn;
+	}
+
+	public static PersonKey forPerson(Person person) {
+		return new PersonKey(getCompanyName(person), person.getSsn());
+	}
+
+	public static String getCompanyName(Person person) {
+		if (person.getCompany() == null || person.getCompany().getName() == null) {
+			return "";
+		}
+		return person.getCompany().getName();
+	}
+
+	public String getCompanyName() {
+		return companyName;
+	}
+
+	public String getSsn() {
+		return ssn;
+	}
+
+	@Override
+	public String getPartitionKey() {
+		return companyName.length() == 0 ? ssn : companyName;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * companyName.hashCode() + ssn.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PersonKey)) {
+			return false;
+		}
+		PersonKey other = (PersonKey) obj;
+		return companyName.equals(other.companyName) && ssn.equals(other.ssn);
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		out.writeUTF(companyName);
+		out.writeUTF(ssn);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		companyName = in.readUTF();
+		ssn = in.readUTF();
+	}
+
+	@Override
+	public String toString() {
+		return "PersonKey [companyName=" + companyName + ", ssn=" + ssn + "]";
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A query selecting a few attributes of the matching entries, written
+ * "select ssn, address.state where age > 60" (the where clause is optional).
+ * The attributes are extracted by the members, which send back Tuples instead
+ * of the whole entries.
+ */
+public class Projection {
+	private static final Pattern SELECT_PATTERN = Pattern.compile(
+			"^\\s*select\\s+(.+?)(?:\\s+where\\s+(.+?))?\\s*$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private final String[] attributes;
+	private final String where;
+
+	public Projection(String[] attributes, String where) {
+		this.attributes = attributes;
+		this.where = where;
+	}
+
+	/**
+	 * Returns the projection of a select query, null if the query is a plain predicate.
+	 */
+	public static Projection parse(String query) {
+		if (query == null) {
+			return null;
+		}
+		Matcher matcher = SELECT_PATTERN.matcher(query);
+		if (!matcher.matches()) {
+			return null;
+		}
+		String[] attributes = matcher.group(1).split(",");
+		for(int i = 0 ; i < attributes.length ; i++) {
+			attributes[i] = attributes[i].trim();
+			if (attributes[i].length() == 0) {
+				throw new IllegalArgumentException("Empty attribute in " + query);
+			}
+		}
+		return new Projection(attributes, matcher.group(2));
+	}
+
+	/**
+	 * Returns the tuple of the values of the attributes of the object.
+	 */
+	public static Tuple project(Object object, String[] attributes) {
+		Object[] values = new Object[attributes.length];
+		for(int i = 0 ; i < attributes.length ; i++) {
+			values[i] = AttributeExtractor.extract(object, attributes[i]);
+		}
+		return new Tuple(values);
+	}
+
+	public String[] getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Returns the predicate of the query, null to select all the entries.
+	 */
+	public String getWhere() {
+		return where;
+	}
+}
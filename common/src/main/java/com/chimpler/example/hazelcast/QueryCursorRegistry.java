@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Query cursors opened on a member. A cursor holds the keys of the local entries
+ * matching a query so that the predicate is evaluated once per query and not once
+ * per page. Cursors not used for CURSOR_TIMEOUT_MILLIS are discarded, which
+ * releases the cursors of clients that stopped reading.
+ *
+ * The pages of a cursor are numbered from 0 and must be read in order, so that a
+ * page sent again or a page of a cursor that expired is detected instead of
+ * returning the same keys twice or none.
+ */
+public class QueryCursorRegistry {
+	public static final long CURSOR_TIMEOUT_MILLIS = 60000;
+
+	private static final Map<String, QueryCursor> cursors = new ConcurrentHashMap<String, QueryCursor>();
+
+	public static class QueryCursor {
+		private final Iterator<Object> keys;
+		private int nextPageNumber;
+		private volatile long lastAccessTime;
+
+		public QueryCursor(Iterator<Object> keys) {
+			this.keys = keys;
+			this.lastAccessTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns up to pageSize keys of the page, an empty list when the cursor is
+		 * exhausted.
+		 *
+		 * @throws IllegalStateException if the page is not the page following the last one read
+		 */
+		public synchronized List<Object> nextKeys(int pageNumber, int pageSize) {
+			if (pageNumber != nextPageNumber) {
+				throw new IllegalStateException("Expected page " + nextPageNumber + " of the query cursor, got page "
+						+ pageNumber);
+			}
+			nextPageNumber++;
+			lastAccessTime = System.currentTimeMillis();
+			List<Object> page = new ArrayList<Object>(pageSize);
+			while(page.size() < pageSize && keys.hasNext()) {
+				page.add(keys.next());
+			}
+			return page;
+		}
+
+		public synchronized boolean hasNext() {
+			return keys.hasNext();
+		}
+	}
+
+	public static QueryCursor get(String cursorId) {
+		expireCursors();
+		return cursors.get(cursorId);
+	}
+
+	public static void put(String cursorId, QueryCursor cursor) {
+		cursors.put(cursorId, cursor);
+	}
+
+	public static void remove(String cursorId) {
+		cursors.remove(cursorId);
+	}
+
+	private static void expireCursors() {
+		long now = System.currentTimeMillis();
+		Iterator<QueryCursor> iterator = cursors.values().iterator();
+		while(iterator.hasNext()) {
+			if (now - iterator.next().lastAccessTime > CURSOR_TIMEOUT_MILLIS) {
+				iterator.remove();
+			}
+		}
+	}
+}
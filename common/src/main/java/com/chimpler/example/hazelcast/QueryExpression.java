@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parsed form of the subset of the SQL predicates made of comparisons (=, !=, <>,
+ * <, <=, >, >=), IN, AND, OR, NOT and parentheses, e.g.
+ *
+ *   address.state = 'TX' AND company.name IN ('Globex', 'VirtuCon') AND age > 30
+ *
+ * Numbers are compared as numbers, the other values by their string form.
+ * An expression can be evaluated on the bitmaps of a BitmapIndex to select the
+ * candidate entries before evaluating it on the entries.
+ */
+public abstract class QueryExpression {
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+			"AND", "OR", "NOT", "IN", "LIKE", "BETWEEN", "REGEX", "TRUE", "FALSE"));
+
+	/**
+	 * Ids selected by the bitmap index for an expression. When exact is set,
+	 * the ids are the entries matching the expression, otherwise a superset.
+	 */
+	public static class IndexResult {
+		private final CompressedBitmap ids;
+		private final boolean exact;
+
+		public IndexResult(CompressedBitmap ids, boolean exact) {
+			this.ids = ids;
+			this.exact = exact;
+		}
+
+		public CompressedBitmap getIds() {
+			return ids;
+		}
+
+		public boolean isExact() {
+			return exact;
+		}
+	}
+
+	/**
+	 * Returns true if the object matches the expression.
+	 */
+	public abstract boolean matches(Object object);
+
+	/**
+	 * Returns the ids of the candidate entries, or null if the index cannot
+	 * narrow down the entries.
+	 */
+	public abstract IndexResult evaluate(BitmapIndex index);
+
+	abstract void collectAttributes(Set<String> attributes);
+
+	/**
+	 * Returns the attributes read by the expression.
+	 */
+	public Set<String> getAttributes() {
+		Set<String> attributes = new HashSet<String>();
+		collectAttributes(attributes);
+		return attributes;
+	}
+
+	/**
+	 * Returns the query with its keywords in upper case and single spaces between
+	 * its tokens, so that the same query written differently has the same form.
+	 * The queries which cannot be tokenized only have their spaces collapsed.
+	 */
+	public static String normalize(String query) {
+		try {
+			StringBuilder normalized = new StringBuilder();
+			for(String token: new Parser(query).tokens) {
+				if (normalized.length() > 0) {
+					normalized.append(' ');
+				}
+				if (token.startsWith("'")) {
+					normalized.append('\'').append(token.substring(1).replace("'", "''")).append('\'');
+				} else if (KEYWORDS.contains(token.toUpperCase())) {
+					normalized.append(token.toUpperCase());
+				} else {
+					normalized.append(token);
+				}
+			}
+			return normalized.toString();
+		} catch (IllegalArgumentException e) {
+			return query.trim().replaceAll("\\s+", " ");
+		}
+	}
+
+	/**
+	 * Returns the parsed query or null if it uses a syntax not supported here
+	 * (e.g. LIKE or BETWEEN), in which case the query is left to SqlPredicate.
+	 */
+	public static QueryExpression tryParse(String query) {
+		try {
+			Parser parser = new Parser(query);
+			QueryExpression expression = parser.parseOr();
+			if (parser.peek() != null) {
+				return null;
+			}
+			return expression;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static class And extends QueryExpression {
+		private final List<QueryExpression> operands;
+
+		And(List<QueryExpression> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public boolean matches(Object object) {
+			for(QueryExpression operand: operands) {
+				if (!operand.matches(object)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void collectAttributes(Set<String> attributes) {
+			for(QueryExpression operand: operands) {
+				operand.collectAttributes(attributes);
+			}
+		}
+
+		@Override
+		public IndexResult evaluate(BitmapIndex index) {
+			CompressedBitmap ids = null;
+			boolean exact = true;
+			for(QueryExpression operand: operands) {
+				IndexResult result = operand.evaluate(index);
+				if (result == null) {
+					exact = false;
+				} else {
+					ids = ids == null ? result.getIds() : ids.and(result.getIds());
+					exact &= result.isExact();
+				}
+			}
+			return ids == null ? null : new IndexResult(ids, exact);
+		}
+	}
+
+	private static class Or extends QueryExpression {
+		private final List<QueryExpression> operands;
+
+		Or(List<QueryExpression> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		void collectAttributes(Set<String> attributes) {
+			for(QueryExpression operand: operands) {
+				operand.collectAttributes(attributes);
+			}
+		}
+
+		@Override
+		public boolean matches(Object object) {
+			for(QueryExpression operand: operands) {
+				if (operand.matches(object)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public IndexResult evaluate(BitmapIndex index) {
+			CompressedBitmap ids = null;
+			boolean exact = true;
+			for(QueryExpression operand: operands) {
+				IndexResult result = operand.evaluate(index);
+				if (result == null) {
+					// an operand which can match any entry
+					return null;
+				}
+				ids = ids == null ? result.getIds() : ids.or(result.getIds());
+				exact &= result.isExact();
+			}
+			return new IndexResult(ids, exact);
+		}
+	}
+
+	private static class Not extends QueryExpression {
+		private final QueryExpression operand;
+
+		Not(QueryExpression operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		void collectAttributes(Set<String> attributes) {
+			operand.collectAttributes(attributes);
+		}
+
+		@Override
+		public boolean matches(Object object) {
+			return !operand.matches(object);
+		}
+
+		@Override
+		public IndexResult evaluate(BitmapIndex index) {
+			IndexResult result = operand.evaluate(index);
+			if (result == null || !result.isExact()) {
+				return null;
+			}
+			return new IndexResult(index.getAllIds().andNot(result.getIds()), true);
+		}
+	}
+
+	private static class Comparison extends QueryExpression {
+		private final String attribute;
+		private final String operator;
+		private final Object literal;
+
+		Comparison(String attribute, String operator, Object literal) {
+			this.attribute = attribute;
+			this.operator = operator;
+			this.literal = literal;
+		}
+
+		@Override
+		void collectAttributes(Set<String> attributes) {
+			attributes.add(attribute);
+		}
+
+		@Override
+		public boolean matches(Object object) {
+			Object value = AttributeExtractor.extract(object, attribute);
+			return value != null && test(value);
+		}
+
+		private boolean test(Object value) {
+			int comparison = compare(value, literal);
+			if (operator.equals("=")) {
+				return comparison == 0;
+			} else if (operator.equals("!=")) {
+				return comparison != 0;
+			} else if (operator.equals("<")) {
+				return comparison < 0;
+			} else if (operator.equals("<=")) {
+				return comparison <= 0;
+			} else if (operator.equals(">")) {
+				return comparison > 0;
+			}
+			return comparison >= 0;
+		}
+
+		@Override
+		public IndexResult evaluate(BitmapIndex index) {
+			if (!index.isIndexed(attribute)) {
+				return null;
+			}
+			if (operator.equals("=") && literal instanceof String) {
+				return new IndexResult(index.getIds(attribute, literal), true);
+			}
+			// the attribute has few distinct values, they are compared one by one
+			CompressedBitmap ids = new CompressedBitmap();
+			for(Object value: index.getValues(attribute)) {
+				if (value != null && test(value)) {
+					ids = ids.or(index.getIds(attribute, value));
+				}
+			}
+			return new IndexResult(ids, true);
+		}
+	}
+
+	private static class In extends QueryExpression {
+		private final String attribute;
+		private final List<Object> literals;
+
+		In(String attribute, List<Object> literals) {
+			this.attribute = attribute;
+			this.literals = literals;
+		}
+
+		@Override
+		void collectAttributes(Set<String> attributes) {
+			attributes.add(attribute);
+		}
+
+		@Override
+		public boolean matches(Object object) {
+			Object value = AttributeExtractor.extract(object, attribute);
+			return value != null && test(value);
+		}
+
+		private boolean test(Object value) {
+			for(Object literal: literals) {
+				if (compare(value, literal) == 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public IndexResult evaluate(BitmapIndex index) {
+			if (!index.isIndexed(attribute)) {
+				return null;
+			}
+			CompressedBitmap ids = new CompressedBitmap();
+			for(Object value: index.getValues(attribute)) {
+				if (value != null && test(value)) {
+					ids = ids.or(index.getIds(attribute, value));
+				}
+			}
+			return new IndexResult(ids, true);
+		}
+	}
+
+	static int compare(Object value, Object literal) {
+		if (value instanceof Number && literal instanceof Number) {
+			return Double.compare(((Number) value).doubleValue(), ((Number) literal).doubleValue());
+		}
+		return String.valueOf(value).compareTo(String.valueOf(literal));
+	}
+
+	private static class Parser {
+		private final List<String> tokens = new ArrayList<String>();
+		private int position;
+
+		Parser(String query) {
+			int i = 0;
+			while(i < query.length()) {
+				char c = query.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '\'') {
+					StringBuilder literal = new StringBuilder("'");
+					i++;
+					while(true) {
+						if (i >= query.length()) {
+							throw new IllegalArgumentException("Unterminated string");
+						}
+						if (query.charAt(i) == '\'') {
+							if (i + 1 < query.length() && query.charAt(i + 1) == '\'') {
+								literal.append('\'');
+								i += 2;
+								continue;
+							}
+							i++;
+							break;
+						}
+						literal.append(query.charAt(i++));
+					}
+					tokens.add(literal.toString());
+				} else if ("(),".indexOf(c) >= 0) {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else if ("=!<>".indexOf(c) >= 0) {
+					int start = i++;
+					if (i < query.length() && "=>".indexOf(query.charAt(i)) >= 0) {
+						i++;
+					}
+					tokens.add(query.substring(start, i));
+				} else {
+					int start = i;
+					while(i < query.length() && (Character.isLetterOrDigit(query.charAt(i))
+							|| "_.-+".indexOf(query.charAt(i)) >= 0)) {
+						i++;
+					}
+					if (start == i) {
+						throw new IllegalArgumentException("Unexpected character " + c);
+					}
+					tokens.add(query.substring(start, i));
+				}
+			}
+		}
+
+		String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private String next() {
+			if (position >= tokens.size()) {
+				throw new IllegalArgumentException("Unexpected end of query");
+			}
+			return tokens.get(position++);
+		}
+
+		private boolean accept(String keyword) {
+			if (keyword.equalsIgnoreCase(peek())) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (!accept(token)) {
+				throw new IllegalArgumentException("Expected " + token);
+			}
+		}
+
+		QueryExpression parseOr() {
+			List<QueryExpression> operands = new ArrayList<QueryExpression>();
+			operands.add(parseAnd());
+			while(accept("OR")) {
+				operands.add(parseAnd());
+			}
+			return operands.size() == 1 ? operands.get(0) : new Or(operands);
+		}
+
+		private QueryExpression parseAnd() {
+			List<QueryExpression> operands = new ArrayList<QueryExpression>();
+			operands.add(parseFactor());
+			while(accept("AND")) {
+				operands.add(parseFactor());
+			}
+			return operands.size() == 1 ? operands.get(0) : new And(operands);
+		}
+
+		private QueryExpression parseFactor() {
+			if (accept("NOT")) {
+				return new Not(parseFactor());
+			}
+			if (accept("(")) {
+				QueryExpression expression = parseOr();
+				expect(")");
+				return expression;
+			}
+			String attribute = next();
+			if (!Character.isLetter(attribute.charAt(0))) {
+				throw new IllegalArgumentException("Expected an attribute");
+			}
+			if (accept("IN")) {
+				expect("(");
+				List<Object> literals = new ArrayList<Object>();
+				do {
+					literals.add(parseLiteral());
+				} while(accept(","));
+				expect(")");
+				return new In(attribute, literals);
+			}
+			String operator = next();
+			if (operator.equals("<>") || operator.equals("==")) {
+				operator = operator.equals("<>") ? "!=" : "=";
+			}
+			if (!operator.equals("=") && !operator.equals("!=") && !operator.equals("<")
+					&& !operator.equals("<=") && !operator.equals(">") && !operator.equals(">=")) {
+				throw new IllegalArgumentException("Unsupported operator " + operator);
+			}
+			return new Comparison(attribute, operator, parseLiteral());
+		}
+
+		private Object parseLiteral() {
+			String token = next();
+			if (token.startsWith("'")) {
+				return token.substring(1);
+			}
+			if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+				return token.toLowerCase();
+			}
+			try {
+				if (token.indexOf('.') >= 0 || token.indexOf('e') >= 0 || token.indexOf('E') >= 0) {
+					return Double.parseDouble(token);
+				}
+				return Long.parseLong(token);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid literal " + token);
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * A page of query results sent by a member. The values are written with their
+ * compact format, the class name being written once for the whole page.
+ */
+public class QueryPage<V extends DataSerializable> implements DataSerializable {
+	private static final long serialVersionUID = 1L;
+
+	private List<V> values;
+	private boolean last;
+	// size of the values once serialized, known after the page has been written or read
+	private transient int serializedSize;
+
+	public QueryPage() {
+		this.values = new ArrayList<V>();
+	}
+
+	public QueryPage(List<V> values, boolean last) {
+		this.values = values;
+		this.last = last;
+	}
+
+	public List<V> getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns true if there are no more results after this page.
+	 */
+	public boolean isLast() {
+		return last;
+	}
+
+	/**
+	 * Returns the number of bytes of the serialized values, 0 if the page was not serialized.
+	 */
+	public int getSerializedSize() {
+		return serializedSize;
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		out.writeBoolean(last);
+		out.writeInt(values.size());
+		if (!values.isEmpty()) {
+			// the values are written with their length so that the size of the page can be reported
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream valuesOut = new DataOutputStream(bytes);
+			valuesOut.writeUTF(values.get(0).getClass().getName());
+			for(V value: values) {
+				value.writeData(valuesOut);
+			}
+			valuesOut.flush();
+			serializedSize = bytes.size();
+			out.writeInt(serializedSize);
+			out.write(bytes.toByteArray());
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void readData(DataInput in) throws IOException {
+		last = in.readBoolean();
+		int size = in.readInt();
+		values = new ArrayList<V>(size);
+		if (size > 0) {
+			serializedSize = in.readInt();
+			byte[] bytes = new byte[serializedSize];
+			in.readFully(bytes);
+			DataInputStream valuesIn = new DataInputStream(new ByteArrayInputStream(bytes));
+			String className = valuesIn.readUTF();
+			try {
+				Class<V> valueClass = (Class<V>) Class.forName(className);
+				for(int i = 0 ; i < size ; i++) {
+					V value = valueClass.newInstance();
+					value.readData(valuesIn);
+					values.add(value);
+				}
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Cannot read values of class " + className, e);
+			} catch (InstantiationException e) {
+				throw new IOException("Cannot read values of class " + className, e);
+			} catch (IllegalAccessException e) {
+				throw new IOException("Cannot read values of class " + className, e);
+			}
+		}
+	}
+}
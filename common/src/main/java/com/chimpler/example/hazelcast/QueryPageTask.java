@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Returns the next page of the entries owned by the member executing the task and
+ * matching a query (all the entries if the query is null). The first page of a
+ * cursor id evaluates the query on the local entries, the following pages (tasks
+ * created with nextPage) return the next pages of the matching entries. A page
+ * other than the first one fails if the cursor expired or if it is not the page
+ * expected by the cursor, the query is never evaluated again in the middle of the
+ * pages, which would return the same entries twice.
+ *
+ * With cached set, the query is served by the QueryResultCache of the member if
+ * the member has one.
+ *
+ * The bitmap index and the query cache are updated asynchronously by entry
+ * listeners, and the entries can change between the pages. The values read are
+ * checked against the query again (when QueryExpression supports it), so an
+ * entry that no longer matches is not returned.
+ *
+ * With attributes set, only these attributes of the entries are returned, as
+ * Tuples (V is then Tuple), instead of the whole entries.
+ */
+public class QueryPageTask<V extends DataSerializable> implements Callable<QueryPage<V>>, Serializable,
+		HazelcastInstanceAware {
+	private static final long serialVersionUID = 1L;
+	private static final LatencyHistogram queryLatency = Metrics.histogram("member.query");
+
+	private final String mapName;
+	private final String query;
+	private final String cursorId;
+	private final int pageSize;
+	private final boolean cached;
+	private final String[] attributes;
+	private final int pageNumber;
+
+	private transient HazelcastInstance hazelcastInstance;
+
+	public QueryPageTask(String mapName, String query, String cursorId, int pageSize) {
+		this(mapName, query, cursorId, pageSize, false);
+	}
+
+	public QueryPageTask(String mapName, String query, String cursorId, int pageSize, boolean cached) {
+		this(mapName, query, null, cursorId, pageSize, cached);
+	}
+
+	/**
+	 * @param attributes the attributes to return, null to return the whole entries
+	 */
+	public QueryPageTask(String mapName, String query, String[] attributes, String cursorId, int pageSize,
+			boolean cached) {
+		this(mapName, query, attributes, cursorId, pageSize, cached, 0);
+	}
+
+	private QueryPageTask(String mapName, String query, String[] attributes, String cursorId, int pageSize,
+			boolean cached, int pageNumber) {
+		this.mapName = mapName;
+		this.query = query;
+		this.attributes = attributes;
+		this.cursorId = cursorId;
+		this.pageSize = pageSize;
+		this.cached = cached;
+		this.pageNumber = pageNumber;
+	}
+
+	/**
+	 * Returns the task reading the page following the page of this task.
+	 */
+	public QueryPageTask<V> nextPage() {
+		return new QueryPageTask<V>(mapName, query, attributes, cursorId, pageSize, cached, pageNumber + 1);
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public QueryPage<V> call() throws Exception {
+		IMap<Object, Object> map = hazelcastInstance.getMap(mapName);
+		// several members can run in the same JVM
+		String memberCursorId = hazelcastInstance.getName() + ":" + cursorId;
+		QueryCursorRegistry.QueryCursor cursor = QueryCursorRegistry.get(memberCursorId);
+		if (cursor == null) {
+			if (pageNumber > 0) {
+				throw new IllegalStateException("Query cursor " + cursorId + " expired");
+			}
+			long start = System.nanoTime();
+			QueryResultCache cache = cached && query != null ? QueryResultCache.get(hazelcastInstance, mapName) : null;
+			Set<Object> keys = cache != null ? cache.localKeySet(query)
+					: BitmapIndex.localKeySet(hazelcastInstance, map, query);
+			queryLatency.recordSince(start);
+			cursor = new QueryCursorRegistry.QueryCursor(new ArrayList<Object>(keys).iterator());
+			QueryCursorRegistry.put(memberCursorId, cursor);
+		}
+
+		List<Object> keys = cursor.nextKeys(pageNumber, pageSize);
+		List<V> values = new ArrayList<V>(keys.size());
+		if (!keys.isEmpty()) {
+			QueryExpression expression = query == null ? null : QueryExpression.tryParse(query);
+			// entries removed or changed since the query was evaluated are skipped
+			Map<Object, Object> entries = OffHeapTierStore.getAll(hazelcastInstance, map, keys);
+			for(Object key: keys) {
+				Object value = entries.get(key);
+				if (value != null && (expression == null || expression.matches(value))) {
+					values.add((V) (attributes == null ? value : Projection.project(value, attributes)));
+				}
+			}
+		}
+
+		boolean last = !cursor.hasNext();
+		if (last) {
+			QueryCursorRegistry.remove(memberCursorId);
+		}
+		return new QueryPage<V>(values, last);
+	}
+}
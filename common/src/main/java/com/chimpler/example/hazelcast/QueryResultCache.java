@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.Partition;
+import com.hazelcast.partition.PartitionService;
+
+/**
+ * Cache of the keys of the local entries matching a query, kept by a member for
+ * the queries of the clients asking for cached results. The queries are cached by
+ * their normalized form, with their results split by partition.
+ *
+ * A mutation of a local entry invalidates the results of its partition for the
+ * queries reading an attribute changed by the mutation (any query for added and
+ * removed entries, or for queries which cannot be parsed by QueryExpression). A
+ * query with invalid partitions is only evaluated on the local entries of these
+ * partitions, and their results are merged with the cached results of the other
+ * partitions, if the query can be parsed by QueryExpression and if at most half
+ * of the local partitions are invalid; otherwise it is evaluated again on all the
+ * local entries. The results computed while a partition is mutated are not cached
+ * for this partition. Migrations clear the cache. The least recently used queries
+ * are evicted beyond maxEntries.
+ */
+public class QueryResultCache {
+	private static final ConcurrentMap<String, QueryResultCache> caches = new ConcurrentHashMap<String, QueryResultCache>();
+
+	private final HazelcastInstance instance;
+	private final IMap<Object, Object> map;
+	private final int maxEntries;
+	private final Map<String, CachedQuery> queries;
+	private final AtomicLongArray partitionVersions;
+
+	private final AtomicLong hits = Metrics.counter("member.queryCache.hits");
+	private final AtomicLong partialHits = Metrics.counter("member.queryCache.partialHits");
+	private final AtomicLong misses = Metrics.counter("member.queryCache.misses");
+	private final AtomicLong invalidations = Metrics.counter("member.queryCache.invalidations");
+	private final AtomicLong evictions = Metrics.counter("member.queryCache.evictions");
+
+	public QueryResultCache(HazelcastInstance instance, IMap<Object, Object> map, final int maxEntries) {
+		this.instance = instance;
+		this.map = map;
+		this.maxEntries = maxEntries;
+		this.partitionVersions = new AtomicLongArray(instance.getPartitionService().getPartitions().size());
+		this.queries = new LinkedHashMap<String, CachedQuery>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedQuery> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Creates the cache of the map and keeps it up to date.
+	 */
+	public static QueryResultCache register(HazelcastInstance instance, String mapName, int maxEntries) {
+		IMap<Object, Object> map = instance.getMap(mapName);
+		final QueryResultCache cache = new QueryResultCache(instance, map, maxEntries);
+		// the entries evicted to an off-heap tier are still queried
+		final boolean tiered = OffHeapTierStore.get(instance, mapName) != null;
+		map.addLocalEntryListener(new EntryListener<Object, Object>() {
+			@Override
+			public void entryAdded(EntryEvent<Object, Object> event) {
+				cache.invalidate(event.getKey(), null, null);
+			}
+
+			@Override
+			public void entryUpdated(EntryEvent<Object, Object> event) {
+				cache.invalidate(event.getKey(), event.getOldValue(), event.getValue());
+			}
+
+			@Override
+			public void entryRemoved(EntryEvent<Object, Object> event) {
+				cache.invalidate(event.getKey(), null, null);
+			}
+
+			@Override
+			public void entryEvicted(EntryEvent<Object, Object> event) {
+				if (!tiered) {
+					cache.invalidate(event.getKey(), null, null);
+				}
+			}
+		});
+		instance.getPartitionService().addMigrationListener(new MigrationListener() {
+			@Override
+			public void migrationStarted(MigrationEvent migrationEvent) {
+				cache.clear();
+			}
+
+			@Override
+			public void migrationCompleted(MigrationEvent migrationEvent) {
+				cache.clear();
+			}
+
+			public void migrationFailed(MigrationEvent migrationEvent) {
+				cache.clear();
+			}
+		});
+		caches.put(instance.getName() + ":" + mapName, cache);
+		return cache;
+	}
+
+	public static QueryResultCache get(HazelcastInstance instance, String mapName) {
+		return caches.get(instance.getName() + ":" + mapName);
+	}
+
+	/**
+	 * Returns the keys of the local entries matching the query, from the cache if
+	 * possible.
+	 */
+	public Set<Object> localKeySet(String query) {
+		String normalizedQuery = QueryExpression.normalize(query);
+		QueryExpression expression = QueryExpression.tryParse(query);
+		long[] versions = new long[partitionVersions.length()];
+		CachedQuery partialQuery = null;
+		Set<Integer> invalidPartitions = null;
+		Set<Object> keys = null;
+		synchronized(this) {
+			CachedQuery cachedQuery = queries.get(normalizedQuery);
+			if (cachedQuery != null && cachedQuery.isComplete()) {
+				hits.incrementAndGet();
+				return cachedQuery.getKeys();
+			}
+			for(int i = 0 ; i < versions.length ; i++) {
+				versions[i] = partitionVersions.get(i);
+			}
+			if (cachedQuery != null && expression != null
+					&& cachedQuery.invalidPartitions.size() * 2 <= getLocalPartitionCount()) {
+				partialQuery = cachedQuery;
+				invalidPartitions = new HashSet<Integer>(cachedQuery.invalidPartitions);
+				keys = cachedQuery.getKeys();
+			}
+		}
+		PartitionService partitionService = instance.getPartitionService();
+		if (partialQuery != null) {
+			partialHits.incrementAndGet();
+			Set<Object> partitionKeys = localKeySet(expression, invalidPartitions);
+			keys.addAll(partitionKeys);
+			Map<Integer, Set<Object>> keysByPartition = new HashMap<Integer, Set<Object>>();
+			for(int partitionId: invalidPartitions) {
+				keysByPartition.put(partitionId, new HashSet<Object>());
+			}
+			for(Object key: partitionKeys) {
+				keysByPartition.get(partitionService.getPartition(key).getPartitionId()).add(key);
+			}
+			synchronized(this) {
+				// the query may have been evicted or cleared in between
+				if (queries.get(normalizedQuery) == partialQuery) {
+					for(Map.Entry<Integer, Set<Object>> entry: keysByPartition.entrySet()) {
+						if (partitionVersions.get(entry.getKey()) == versions[entry.getKey()]) {
+							partialQuery.revalidate(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+			}
+			return keys;
+		}
+		misses.incrementAndGet();
+
+		keys = BitmapIndex.localKeySet(instance, map, query);
+		CachedQuery cachedQuery = new CachedQuery(expression == null ? null : expression.getAttributes());
+		for(Object key: keys) {
+			cachedQuery.add(partitionService.getPartition(key).getPartitionId(), key);
+		}
+		synchronized(this) {
+			// the results of the partitions mutated during the query are not cached
+			for(int i = 0 ; i < versions.length ; i++) {
+				if (partitionVersions.get(i) != versions[i]) {
+					cachedQuery.invalidate(i);
+				}
+			}
+			queries.put(normalizedQuery, cachedQuery);
+		}
+		return keys;
+	}
+
+	// the keys of the local entries of the partitions matching the expression, including the ones of the tier
+	private Set<Object> localKeySet(QueryExpression expression, Set<Integer> partitionIds) {
+		PartitionService partitionService = instance.getPartitionService();
+		Set<Object> candidates = new HashSet<Object>();
+		for(Object key: BitmapIndex.localKeySet(instance, map, null)) {
+			if (partitionIds.contains(partitionService.getPartition(key).getPartitionId())) {
+				candidates.add(key);
+			}
+		}
+		Set<Object> keys = new HashSet<Object>();
+		for(Map.Entry<Object, Object> entry: OffHeapTierStore.getAll(instance, map, candidates).entrySet()) {
+			if (entry.getValue() != null && expression.matches(entry.getValue())) {
+				keys.add(entry.getKey());
+			}
+		}
+		return keys;
+	}
+
+	private int getLocalPartitionCount() {
+		int count = 0;
+		for(Partition partition: instance.getPartitionService().getPartitions()) {
+			if (partition.getOwner() != null && partition.getOwner().localMember()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Invalidates the partition of the key for the queries reading an attribute
+	 * which differs between the old and the new value (all the queries if one of
+	 * the values is null).
+	 */
+	public void invalidate(Object key, Object oldValue, Object newValue) {
+		int partitionId = instance.getPartitionService().getPartition(key).getPartitionId();
+		partitionVersions.incrementAndGet(partitionId);
+		Map<String, Boolean> changedAttributes = new HashMap<String, Boolean>();
+		synchronized(this) {
+			for(CachedQuery cachedQuery: queries.values()) {
+				if (cachedQuery.isInvalid(partitionId)) {
+					continue;
+				}
+				if (oldValue == null || newValue == null || cachedQuery.attributes == null
+						|| isChanged(cachedQuery.attributes, oldValue, newValue, changedAttributes)) {
+					cachedQuery.invalidate(partitionId);
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static boolean isChanged(Set<String> attributes, Object oldValue, Object newValue,
+			Map<String, Boolean> changedAttributes) {
+		for(String attribute: attributes) {
+			Boolean changed = changedAttributes.get(attribute);
+			if (changed == null) {
+				Object oldAttribute = AttributeExtractor.extract(oldValue, attribute);
+				Object newAttribute = AttributeExtractor.extract(newValue, attribute);
+				changed = oldAttribute == null ? newAttribute != null : !oldAttribute.equals(newAttribute);
+				changedAttributes.put(attribute, changed);
+			}
+			if (changed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized void clear() {
+		queries.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of queries answered from the cache after evaluating them
+	 * again on their invalid partitions only.
+	 */
+	public long getPartialHits() {
+		return partialHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long lookups = hits.get() + partialHits.get() + misses.get();
+		return lookups == 0 ? 0 : (double) hits.get() / lookups;
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("QueryResultCache %s: %d/%d queries, hit ratio %.1f%% (%d hits, %d partial hits,"
+				+ " %d misses), %d invalidations, %d evictions", map.getName(), queries.size(), maxEntries,
+				getHitRatio() * 100, getHits(), getPartialHits(), getMisses(), getInvalidations(), getEvictions());
+	}
+
+	private static class CachedQuery {
+		// null if the attributes read by the query are not known
+		private final Set<String> attributes;
+		private final Map<Integer, Set<Object>> keysByPartition = new HashMap<Integer, Set<Object>>();
+		private final Set<Integer> invalidPartitions = new HashSet<Integer>();
+
+		CachedQuery(Set<String> attributes) {
+			this.attributes = attributes;
+		}
+
+		void add(int partitionId, Object key) {
+			Set<Object> keys = keysByPartition.get(partitionId);
+			if (keys == null) {
+				keys = new HashSet<Object>();
+				keysByPartition.put(partitionId, keys);
+			}
+			keys.add(key);
+		}
+
+		void invalidate(int partitionId) {
+			invalidPartitions.add(partitionId);
+			keysByPartition.remove(partitionId);
+		}
+
+		void revalidate(int partitionId, Set<Object> keys) {
+			invalidPartitions.remove(partitionId);
+			if (!keys.isEmpty()) {
+				keysByPartition.put(partitionId, keys);
+			}
+		}
+
+		boolean isInvalid(int partitionId) {
+			return invalidPartitions.contains(partitionId);
+		}
+
+		boolean isComplete() {
+			return invalidPartitions.isEmpty();
+		}
+
+		Set<Object> getKeys() {
+			Set<Object> keys = new HashSet<Object>();
+			for(Set<Object> partitionKeys: keysByPartition.values()) {
+				keys.addAll(partitionKeys);
+			}
+			return keys;
+		}
+	}
+}
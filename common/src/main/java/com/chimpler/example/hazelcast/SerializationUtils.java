@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Helpers for the compact binary format of the domain classes.
+ *
+ * Nullable values are written as a presence byte followed by the value, nested
+ * objects are written inline in the same way. The domain classes keep the
+ * serialVersionUID of their former java.io.Serializable form so that data written
+ * with java serialization can still be read.
+ *
+ * With a StringDictionary, the low cardinality strings are written as the
+ * variable length code of the string plus two, 0 standing for null and 1 for a
+ * plain string following (the strings a full dictionary does not know).
+ */
+public final class SerializationUtils {
+
+	private SerializationUtils() {
+	}
+
+	public static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	public static void writeString(DataOutput out, String value, StringDictionary dictionary) throws IOException {
+		if (dictionary == null) {
+			writeString(out, value);
+		} else if (value == null) {
+			writeVarInt(out, 0);
+		} else {
+			int code = dictionary.encode(value);
+			if (code == StringDictionary.NOT_ENCODED) {
+				writeVarInt(out, 1);
+				writeString(out, value);
+			} else {
+				writeVarInt(out, code + 2);
+			}
+		}
+	}
+
+	public static String readString(DataInput in, StringDictionary dictionary) throws IOException {
+		if (dictionary == null) {
+			return readString(in);
+		}
+		int code = readVarInt(in);
+		if (code == 0) {
+			return null;
+		}
+		return code == 1 ? readString(in) : dictionary.decode(code - 2);
+	}
+
+	/**
+	 * Writes a positive int on 1 to 5 bytes, 7 bits per byte.
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for(int shift = 0 ; shift < 32 ; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length int");
+	}
+
+	public static void writeDouble(DataOutput out, Double value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeDouble(value);
+		}
+	}
+
+	public static Double readDouble(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readDouble() : null;
+	}
+
+	public static void writeAddress(DataOutput out, Address address) throws IOException {
+		writeAddress(out, address, null);
+	}
+
+	public static void writeAddress(DataOutput out, Address address, StringDictionary dictionary)
+			throws IOException {
+		out.writeBoolean(address != null);
+		if (address != null) {
+			address.writeData(out, dictionary);
+		}
+	}
+
+	public static Address readAddress(DataInput in) throws IOException {
+		return readAddress(in, null);
+	}
+
+	public static Address readAddress(DataInput in, StringDictionary dictionary) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		Address address = new Address();
+		address.readData(in, dictionary);
+		return address;
+	}
+
+	public static void writeCompany(DataOutput out, Company company) throws IOException {
+		writeCompany(out, company, null);
+	}
+
+	public static void writeCompany(DataOutput out, Company company, StringDictionary dictionary)
+			throws IOException {
+		out.writeBoolean(company != null);
+		if (company != null) {
+			company.writeData(out, dictionary);
+		}
+	}
+
+	public static Company readCompany(DataInput in) throws IOException {
+		return readCompany(in, null);
+	}
+
+	public static Company readCompany(DataInput in, StringDictionary dictionary) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		Company company = new Company();
+		company.readData(in, dictionary);
+		return company;
+	}
+
+	/**
+	 * Returns the compact binary form of the object.
+	 */
+	public static byte[] toBytes(DataSerializable object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		object.writeData(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static <T extends DataSerializable> T fromBytes(byte[] data, T object) throws IOException {
+		object.readData(new DataInputStream(new ByteArrayInputStream(data)));
+		return object;
+	}
+
+	/**
+	 * Returns the object in the java.io.Serializable form used before the compact format.
+	 */
+	public static byte[] toJavaBytes(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public static Object fromJavaBytes(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Compact file of map entries, written in compressed blocks.
+ *
+ * The file starts with [magic][version] followed by blocks written as
+ * [raw length][compressed length][crc32 of the raw bytes][deflated bytes]. Once
+ * inflated, a block has the class names of its keys and values, the number of
+ * entries and the entries in their compact format (the String keys are written
+ * with writeUTF, the other keys and the values must be DataSerializable). The
+ * StringDictionary is suspended while the entries are written: its codes are only
+ * valid in the cluster that assigned them, the snapshot has the plain strings.
+ *
+ * The blocks are written through a file channel and the file is memory-mapped to
+ * be read.
+ */
+public class SnapshotFile {
+	public static final String EXTENSION = ".snapshot";
+	public static final int BLOCK_SIZE = 256 * 1024;
+	private static final int MAGIC = 0x48534e50;
+	private static final int VERSION = 1;
+	private static final int BLOCK_HEADER_SIZE = 12;
+
+	public interface EntryHandler {
+		void handle(Object key, Object value) throws IOException;
+	}
+
+	/**
+	 * Writes the entries of a file in blocks of about BLOCK_SIZE bytes.
+	 */
+	public static class Writer {
+		private final FileChannel channel;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE / 4);
+		private final DataOutputStream blockOut = new DataOutputStream(block);
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final CRC32 crc = new CRC32();
+		private byte[] compressed = new byte[BLOCK_SIZE];
+		private Class<?> keyClass;
+		private Class<?> valueClass;
+		private int blockEntryCount;
+		private long entryCount;
+		private long size;
+
+		private Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public void write(Object key, DataSerializable value) throws IOException {
+			if (key.getClass() != keyClass || value.getClass() != valueClass) {
+				flushBlock();
+				keyClass = key.getClass();
+				valueClass = value.getClass();
+			}
+			StringDictionary.suspend();
+			try {
+				if (key instanceof String) {
+					blockOut.writeUTF((String) key);
+				} else if (key instanceof DataSerializable) {
+					((DataSerializable) key).writeData(blockOut);
+				} else {
+					throw new IOException("Cannot write key of class " + key.getClass().getName());
+				}
+				value.writeData(blockOut);
+			} finally {
+				StringDictionary.resume();
+			}
+			blockEntryCount++;
+			entryCount++;
+			if (block.size() >= BLOCK_SIZE) {
+				flushBlock();
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			if (blockEntryCount == 0) {
+				return;
+			}
+			blockOut.flush();
+			// the block starts with its classes and its entry count, written once the entries are known
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream headerOut = new DataOutputStream(header);
+			headerOut.writeUTF(keyClass.getName());
+			headerOut.writeUTF(valueClass.getName());
+			headerOut.writeInt(blockEntryCount);
+			headerOut.flush();
+			byte[] raw = new byte[header.size() + block.size()];
+			System.arraycopy(header.toByteArray(), 0, raw, 0, header.size());
+			System.arraycopy(block.toByteArray(), 0, raw, header.size(), block.size());
+
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			int compressedLength = 0;
+			while(!deflater.finished()) {
+				if (compressedLength == compressed.length) {
+					byte[] larger = new byte[compressed.length * 2];
+					System.arraycopy(compressed, 0, larger, 0, compressedLength);
+					compressed = larger;
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+			crc.reset();
+			crc.update(raw);
+
+			ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+			blockHeader.putInt(raw.length).putInt(compressedLength).putInt((int) crc.getValue()).flip();
+			writeFully(blockHeader);
+			writeFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+			block.reset();
+			blockEntryCount = 0;
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			size += buffer.remaining();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		public long getEntryCount() {
+			return entryCount;
+		}
+
+		/**
+		 * Returns the number of bytes written to the file.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public void close() throws IOException {
+			try {
+				flushBlock();
+				channel.force(false);
+			} finally {
+				deflater.end();
+				channel.close();
+			}
+		}
+	}
+
+	private SnapshotFile() {
+	}
+
+	/**
+	 * Creates a new file, failing if the file already exists so that a snapshot is never overwritten.
+	 */
+	public static Writer create(File file) throws IOException {
+		if (!file.createNewFile()) {
+			throw new IOException("Snapshot file " + file + " already exists");
+		}
+		FileChannel channel = new FileOutputStream(file).getChannel();
+		Writer writer = new Writer(channel);
+		ByteBuffer fileHeader = ByteBuffer.allocate(8);
+		fileHeader.putInt(MAGIC).putInt(VERSION).flip();
+		writer.writeFully(fileHeader);
+		return writer;
+	}
+
+	/**
+	 * Reads all the entries of the file and returns their number.
+	 */
+	public static long read(File file, EntryHandler handler) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		Inflater inflater = new Inflater();
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a snapshot file");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported version " + version + " of snapshot file " + file);
+			}
+			CRC32 crc = new CRC32();
+			byte[] compressed = new byte[0];
+			long entryCount = 0;
+			while(buffer.hasRemaining()) {
+				if (buffer.remaining() < BLOCK_HEADER_SIZE) {
+					throw new IOException("Truncated block in snapshot file " + file);
+				}
+				int rawLength = buffer.getInt();
+				int compressedLength = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (compressedLength > buffer.remaining()) {
+					throw new IOException("Truncated block in snapshot file " + file);
+				}
+				if (compressed.length < compressedLength) {
+					compressed = new byte[compressedLength];
+				}
+				buffer.get(compressed, 0, compressedLength);
+				byte[] raw = new byte[rawLength];
+				inflater.reset();
+				inflater.setInput(compressed, 0, compressedLength);
+				try {
+					if (inflater.inflate(raw) != rawLength) {
+						throw new IOException("Corrupted block in snapshot file " + file);
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupted block in snapshot file " + file, e);
+				}
+				crc.reset();
+				crc.update(raw);
+				if ((int) crc.getValue() != checksum) {
+					throw new IOException("Wrong checksum of block in snapshot file " + file);
+				}
+				entryCount += readBlock(raw, handler);
+			}
+			return entryCount;
+		} finally {
+			inflater.end();
+			randomAccessFile.close();
+		}
+	}
+
+	private static int readBlock(byte[] raw, EntryHandler handler) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+		Class<?> keyClass = getClass(in.readUTF());
+		Class<?> valueClass = getClass(in.readUTF());
+		int count = in.readInt();
+		for(int i = 0 ; i < count ; i++) {
+			Object key;
+			if (keyClass == String.class) {
+				key = in.readUTF();
+			} else {
+				DataSerializable serializableKey = newInstance(keyClass);
+				serializableKey.readData(in);
+				key = serializableKey;
+			}
+			DataSerializable value = newInstance(valueClass);
+			value.readData(in);
+			handler.handle(key, value);
+		}
+		return count;
+	}
+
+	private static Class<?> getClass(String className) throws IOException {
+		try {
+			return Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read entries of class " + className, e);
+		}
+	}
+
+	private static DataSerializable newInstance(Class<?> objectClass) throws IOException {
+		try {
+			return (DataSerializable) objectClass.newInstance();
+		} catch (InstantiationException e) {
+			throw new IOException("Cannot read entries of class " + objectClass.getName(), e);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot read entries of class " + objectClass.getName(), e);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.nio.DataSerializable;
+import com.hazelcast.partition.Partition;
+
+/**
+ * Exports the entries of a map owned by the member executing the task to local
+ * snapshot files, or imports them back. There is one SnapshotFile per partition,
+ * named [map]-[partition id].snapshot in the snapshot directory, and the
+ * partitions are written or read in parallel by a pool of threads.
+ *
+ * The export writes a file for each partition owned by the member, empty or not,
+ * so that a snapshot always has all the partitions and a second export to the
+ * same directory fails instead of mixing two snapshots. The entries evicted to
+ * the off-heap tier of the map are exported as well, read from the tier. The
+ * entries are not locked: the export should be run while the map is not updated
+ * and the cluster is not migrating partitions.
+ *
+ * The import reads the files of the partitions owned by the member, so the
+ * entries are put in the local partitions, and skips the others. The client then
+ * asks the members to import the partitions that no member owning them could
+ * find (when the members have their own disks and the partitions have moved
+ * since the export); their entries are then put remotely.
+ */
+public class SnapshotTask implements Callable<SnapshotTask.Result>, Serializable, HazelcastInstanceAware {
+	private static final long serialVersionUID = 1L;
+	private static final LatencyHistogram exportLatency = Metrics.histogram("member.snapshot.export");
+	private static final LatencyHistogram importLatency = Metrics.histogram("member.snapshot.import");
+	private static final int BATCH_SIZE = 1000;
+
+	private final String mapName;
+	private final String directory;
+	private final boolean export;
+	private final int[] partitionIds;
+	private final int threads;
+
+	private transient HazelcastInstance hazelcastInstance;
+
+	/**
+	 * @param directory the directory of the snapshot on the members
+	 * @param export true to export the map, false to import it
+	 * @param partitionIds the partitions to import whether they are owned by the member or not,
+	 *        null to import the files of the partitions owned by the member
+	 * @param threads the number of partitions written or read in parallel, 0 for the number of processors
+	 *        of the member
+	 */
+	public SnapshotTask(String mapName, String directory, boolean export, int[] partitionIds, int threads) {
+		this.mapName = mapName;
+		this.directory = directory;
+		this.export = export;
+		this.partitionIds = partitionIds;
+		this.threads = threads;
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	@Override
+	public Result call() throws Exception {
+		long start = System.currentTimeMillis();
+		IMap<Object, DataSerializable> map = hazelcastInstance.getMap(mapName);
+		File snapshotDirectory = new File(directory);
+		Result result = new Result();
+		Map<Integer, Callable<long[]>> partitionTasks = export ? getExportTasks(map, snapshotDirectory)
+				: getImportTasks(map, snapshotDirectory, result.skippedPartitionIds);
+
+		int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "snapshot-" + mapName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			Map<Integer, Future<long[]>> futures = new HashMap<Integer, Future<long[]>>();
+			for(Map.Entry<Integer, Callable<long[]>> entry: partitionTasks.entrySet()) {
+				futures.put(entry.getKey(), executor.submit(entry.getValue()));
+			}
+			for(Map.Entry<Integer, Future<long[]>> entry: futures.entrySet()) {
+				long[] counts = entry.getValue().get();
+				result.partitionIds.add(entry.getKey());
+				result.entryCount += counts[0];
+				result.size += counts[1];
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdownNow();
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	// returns the tasks returning the number of entries and bytes written for each partition
+	private Map<Integer, Callable<long[]>> getExportTasks(final IMap<Object, DataSerializable> map,
+			File snapshotDirectory) throws IOException {
+		if (!snapshotDirectory.isDirectory() && !snapshotDirectory.mkdirs()) {
+			throw new IOException("Cannot create the snapshot directory " + snapshotDirectory);
+		}
+		Map<Integer, List<Object>> partitionKeys = new HashMap<Integer, List<Object>>();
+		for(Partition partition: hazelcastInstance.getPartitionService().getPartitions()) {
+			Member owner = partition.getOwner();
+			if (owner != null && owner.localMember()) {
+				partitionKeys.put(partition.getPartitionId(), new ArrayList<Object>());
+			}
+		}
+		// includes the entries only in the off-heap tier
+		for(Object key: BitmapIndex.localKeySet(hazelcastInstance, map, null)) {
+			int partitionId = hazelcastInstance.getPartitionService().getPartition(key).getPartitionId();
+			List<Object> keys = partitionKeys.get(partitionId);
+			if (keys == null) {
+				keys = new ArrayList<Object>();
+				partitionKeys.put(partitionId, keys);
+			}
+			keys.add(key);
+		}
+
+		Map<Integer, Callable<long[]>> tasks = new HashMap<Integer, Callable<long[]>>();
+		for(Map.Entry<Integer, List<Object>> entry: partitionKeys.entrySet()) {
+			final File file = getFile(snapshotDirectory, entry.getKey());
+			final List<Object> keys = entry.getValue();
+			tasks.put(entry.getKey(), new Callable<long[]>() {
+				@Override
+				public long[] call() throws Exception {
+					long start = System.nanoTime();
+					SnapshotFile.Writer writer = SnapshotFile.create(file);
+					try {
+						for(int i = 0 ; i < keys.size() ; i += BATCH_SIZE) {
+							List<Object> batch = keys.subList(i, Math.min(keys.size(), i + BATCH_SIZE));
+							// entries removed since localKeySet are skipped
+							for(Map.Entry<Object, DataSerializable> entry:
+									OffHeapTierStore.getAll(hazelcastInstance, map, batch).entrySet()) {
+								if (entry.getValue() != null) {
+									writer.write(entry.getKey(), entry.getValue());
+								}
+							}
+						}
+					} finally {
+						writer.close();
+					}
+					exportLatency.recordSince(start);
+					return new long[] {writer.getEntryCount(), writer.getSize()};
+				}
+			});
+		}
+		return tasks;
+	}
+
+	// returns the tasks returning the number of entries and bytes read for each partition
+	private Map<Integer, Callable<long[]>> getImportTasks(final IMap<Object, DataSerializable> map,
+			File snapshotDirectory, Set<Integer> skippedPartitionIds) {
+		Set<Integer> importedPartitionIds = new HashSet<Integer>();
+		if (partitionIds != null) {
+			for(int partitionId: partitionIds) {
+				importedPartitionIds.add(partitionId);
+			}
+		} else {
+			for(Partition partition: hazelcastInstance.getPartitionService().getPartitions()) {
+				Member owner = partition.getOwner();
+				if (owner != null && owner.localMember()) {
+					importedPartitionIds.add(partition.getPartitionId());
+				}
+			}
+		}
+
+		Map<Integer, Callable<long[]>> tasks = new HashMap<Integer, Callable<long[]>>();
+		Pattern filePattern = Pattern.compile(Pattern.quote(mapName) + "-(\\d+)" + Pattern.quote(SnapshotFile.EXTENSION));
+		File[] files = snapshotDirectory.listFiles();
+		if (files == null) {
+			return tasks;
+		}
+		for(final File file: files) {
+			Matcher matcher = filePattern.matcher(file.getName());
+			if (!matcher.matches()) {
+				continue;
+			}
+			int partitionId = Integer.parseInt(matcher.group(1));
+			if (!importedPartitionIds.contains(partitionId)) {
+				skippedPartitionIds.add(partitionId);
+				continue;
+			}
+			tasks.put(partitionId, new Callable<long[]>() {
+				@Override
+				public long[] call() throws Exception {
+					long start = System.nanoTime();
+					final Map<Object, DataSerializable> batch = new HashMap<Object, DataSerializable>(BATCH_SIZE * 2);
+					long count = SnapshotFile.read(file, new SnapshotFile.EntryHandler() {
+						@Override
+						public void handle(Object key, Object value) {
+							batch.put(key, (DataSerializable) value);
+							if (batch.size() >= BATCH_SIZE) {
+								map.putAll(batch);
+								batch.clear();
+							}
+						}
+					});
+					if (!batch.isEmpty()) {
+						map.putAll(batch);
+					}
+					importLatency.recordSince(start);
+					return new long[] {count, file.length()};
+				}
+			});
+		}
+		return tasks;
+	}
+
+	private File getFile(File snapshotDirectory, int partitionId) {
+		return new File(snapshotDirectory, mapName + "-" + partitionId + SnapshotFile.EXTENSION);
+	}
+
+	/**
+	 * Partitions, number of entries and bytes exported or imported by a member.
+	 */
+	public static class Result implements DataSerializable {
+		private static final long serialVersionUID = 1L;
+
+		private Set<Integer> partitionIds = new HashSet<Integer>();
+		private long entryCount;
+		private long size;
+		private long millis;
+		private Set<Integer> skippedPartitionIds = new HashSet<Integer>();
+
+		public Set<Integer> getPartitionIds() {
+			return partitionIds;
+		}
+
+		/**
+		 * Adds the partitions, entries and bytes of another member, the time being the longest of the two.
+		 */
+		public void merge(Result other) {
+			partitionIds.addAll(other.partitionIds);
+			entryCount += other.entryCount;
+			size += other.size;
+			millis = Math.max(millis, other.millis);
+			skippedPartitionIds.addAll(other.skippedPartitionIds);
+		}
+
+		public long getEntryCount() {
+			return entryCount;
+		}
+
+		/**
+		 * Returns the number of bytes of the files written or read.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Returns the partitions whose files were found by an import but not imported
+		 * because the member does not own them.
+		 */
+		public Set<Integer> getSkippedPartitionIds() {
+			return skippedPartitionIds;
+		}
+
+		@Override
+		public void writeData(DataOutput out) throws IOException {
+			writePartitionIds(out, partitionIds);
+			out.writeLong(entryCount);
+			out.writeLong(size);
+			out.writeLong(millis);
+			writePartitionIds(out, skippedPartitionIds);
+		}
+
+		@Override
+		public void readData(DataInput in) throws IOException {
+			partitionIds = readPartitionIds(in);
+			entryCount = in.readLong();
+			size = in.readLong();
+			millis = in.readLong();
+			skippedPartitionIds = readPartitionIds(in);
+		}
+
+		private static void writePartitionIds(DataOutput out, Set<Integer> partitionIds) throws IOException {
+			out.writeInt(partitionIds.size());
+			for(int partitionId: partitionIds) {
+				out.writeInt(partitionId);
+			}
+		}
+
+		private static Set<Integer> readPartitionIds(DataInput in) throws IOException {
+			int count = in.readInt();
+			Set<Integer> partitionIds = new HashSet<Integer>(count * 2);
+			for(int i = 0 ; i < count ; i++) {
+				partitionIds.add(in.readInt());
+			}
+			return partitionIds;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d partitions, %d entries, %d bytes in %dms", partitionIds.size(), entryCount, size,
+					millis);
+		}
+	}
+}
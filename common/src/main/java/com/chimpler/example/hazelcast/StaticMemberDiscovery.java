@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Returns a fixed list of members.
+ */
+public class StaticMemberDiscovery implements MemberDiscovery {
+	private final List<String> members;
+
+	public StaticMemberDiscovery(List<String> members) {
+		this.members = new ArrayList<String>(members);
+	}
+
+	@Override
+	public List<String> discoverMembers() {
+		return new ArrayList<String>(members);
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.AtomicNumber;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Dictionary of the low cardinality strings of the persons (names, cities,
+ * states...) giving each string a small integer code, so that the persons are
+ * stored and sent with the codes instead of the strings.
+ *
+ * The codes are assigned cluster-wide: a new string gets the next value of an
+ * atomic number, its string is published in the strings map before the code is
+ * published in the codes map, so a code that can be read by another member or
+ * client can always be decoded. Each JVM keeps a local copy of the strings,
+ * preloaded when it is installed and filled by an entry listener, and only asks
+ * the cluster for the codes it does not know yet.
+ *
+ * The dictionary holds at most maxStrings strings (-Dperson.dictionary.maxStrings,
+ * 65536 by default): once it is full, the strings it does not know are written as
+ * plain strings, so a high cardinality attribute does not cost a new code and two
+ * cluster puts per value.
+ *
+ * The dictionary is installed once per JVM (Person reads it when it is
+ * serialized), so the members and the clients of a cluster must all install
+ * it, and all the instances of a JVM must belong to the same cluster. Every
+ * instance installing it is added to the dictionary, which reaches the cluster
+ * through the first one still running: the dictionary outlives the instance
+ * which installed it (e.g. a member killed in a LocalCluster). Without a cluster
+ * the codes are assigned locally, which is enough to measure the encoding.
+ *
+ * A thread can suspend the dictionary to write objects in their plain format,
+ * e.g. to files that must be readable by another cluster, whose codes differ.
+ */
+public class StringDictionary {
+	public static final String CODES_MAP = "string-dictionary-codes";
+	public static final String STRINGS_MAP = "string-dictionary-strings";
+	public static final int DEFAULT_MAX_STRINGS = 65536;
+	// returned by encode for the strings written as plain strings
+	public static final int NOT_ENCODED = -1;
+
+	private static final AtomicLong assignedCodes = Metrics.counter("dictionary.assigned");
+	private static final AtomicLong remoteLookups = Metrics.counter("dictionary.remoteLookups");
+	private static final AtomicLong plainStrings = Metrics.counter("dictionary.plainStrings");
+
+	private static volatile StringDictionary installed;
+	private static final ThreadLocal<Boolean> suspended = new ThreadLocal<Boolean>();
+	// the thread local is only read while a thread has suspended the dictionary
+	private static final AtomicInteger suspendedThreads = new AtomicInteger();
+
+	private final ConcurrentMap<String, Integer> localCodes = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<Integer, String> localStrings = new ConcurrentHashMap<Integer, String>();
+	private final int maxStrings;
+	private volatile boolean full;
+	// the instances of the cluster which installed the dictionary, empty for a local dictionary
+	private final CopyOnWriteArrayList<HazelcastInstance> instances = new CopyOnWriteArrayList<HazelcastInstance>();
+	// the maps of the running instance the dictionary currently uses
+	private HazelcastInstance currentInstance;
+	private IMap<String, Integer> codes;
+	private IMap<Integer, String> strings;
+	private AtomicNumber nextCode;
+	private final AtomicInteger nextLocalCode = new AtomicInteger();
+
+	/**
+	 * Creates a dictionary local to this JVM.
+	 */
+	public StringDictionary() {
+		this.maxStrings = Integer.getInteger("person.dictionary.maxStrings", DEFAULT_MAX_STRINGS);
+	}
+
+	/**
+	 * Creates a dictionary shared by the members and the clients of the cluster.
+	 */
+	public StringDictionary(HazelcastInstance instance) {
+		this(instance, Integer.getInteger("person.dictionary.maxStrings", DEFAULT_MAX_STRINGS));
+	}
+
+	public StringDictionary(HazelcastInstance instance, int maxStrings) {
+		this.maxStrings = maxStrings;
+		instances.add(instance);
+		connect();
+	}
+
+	/**
+	 * Adds an instance of the cluster through which the dictionary can reach it.
+	 */
+	public void addInstance(HazelcastInstance instance) {
+		if (!isClustered()) {
+			throw new IllegalStateException("The dictionary is local to this JVM");
+		}
+		instances.addIfAbsent(instance);
+	}
+
+	private boolean isClustered() {
+		return !instances.isEmpty();
+	}
+
+	/**
+	 * Uses the maps of the first running instance, if the current one is not
+	 * running anymore. The strings assigned in between are read with the
+	 * preloading of the strings of the new instance.
+	 */
+	private synchronized void connect() {
+		if (currentInstance != null && currentInstance.getLifecycleService().isRunning()) {
+			return;
+		}
+		HazelcastInstance instance = null;
+		for(HazelcastInstance candidate: instances) {
+			if (candidate.getLifecycleService().isRunning()) {
+				instance = candidate;
+				break;
+			}
+		}
+		if (instance == null) {
+			throw new IllegalStateException("No running instance of the cluster of the dictionary");
+		}
+		currentInstance = instance;
+		codes = instance.getMap(CODES_MAP);
+		strings = instance.getMap(STRINGS_MAP);
+		nextCode = instance.getAtomicNumber(CODES_MAP);
+		strings.addEntryListener(new EntryListener<Integer, String>() {
+			@Override
+			public void entryAdded(EntryEvent<Integer, String> event) {
+				addString(event.getKey(), event.getValue());
+			}
+
+			@Override
+			public void entryUpdated(EntryEvent<Integer, String> event) {
+				addString(event.getKey(), event.getValue());
+			}
+
+			@Override
+			public void entryRemoved(EntryEvent<Integer, String> event) {
+			}
+
+			@Override
+			public void entryEvicted(EntryEvent<Integer, String> event) {
+			}
+		}, true);
+		for(Map.Entry<Integer, String> entry: strings.entrySet()) {
+			addString(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Installs the dictionary of the cluster of the instance, or adds the instance
+	 * to the dictionary of the cluster already installed in this JVM, and returns
+	 * the installed dictionary.
+	 */
+	public static synchronized StringDictionary install(HazelcastInstance instance) {
+		if (installed == null || !installed.isClustered()) {
+			installed = new StringDictionary(instance);
+		} else {
+			installed.addInstance(instance);
+		}
+		return installed;
+	}
+
+	public static synchronized void install(StringDictionary dictionary) {
+		installed = dictionary;
+	}
+
+	public static synchronized void uninstall() {
+		installed = null;
+	}
+
+	/**
+	 * Returns the dictionary installed in this JVM, null if the persons are not
+	 * encoded or if the current thread suspended the dictionary.
+	 */
+	public static StringDictionary get() {
+		if (suspendedThreads.get() > 0 && suspended.get() != null) {
+			return null;
+		}
+		return installed;
+	}
+
+	/**
+	 * Makes get return null in the current thread until resume is called.
+	 */
+	public static void suspend() {
+		if (suspended.get() == null) {
+			suspended.set(Boolean.TRUE);
+			suspendedThreads.incrementAndGet();
+		}
+	}
+
+	public static void resume() {
+		if (suspended.get() != null) {
+			suspended.remove();
+			suspendedThreads.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the code of the string, assigning a new code if the string is not in
+	 * the dictionary yet, or NOT_ENCODED if the dictionary is full.
+	 */
+	public int encode(String value) {
+		Integer code = localCodes.get(value);
+		if (code != null) {
+			return code;
+		}
+		if (full) {
+			plainStrings.incrementAndGet();
+			return NOT_ENCODED;
+		}
+		if (!isClustered()) {
+			code = nextLocalCode.incrementAndGet();
+			if (code > maxStrings) {
+				full = true;
+				plainStrings.incrementAndGet();
+				return NOT_ENCODED;
+			}
+			Integer existingCode = localCodes.putIfAbsent(value, code);
+			if (existingCode != null) {
+				return existingCode;
+			}
+			localStrings.put(code, value);
+			assignedCodes.incrementAndGet();
+			return code;
+		}
+		connect();
+		IMap<String, Integer> codes;
+		IMap<Integer, String> strings;
+		AtomicNumber nextCode;
+		synchronized(this) {
+			codes = this.codes;
+			strings = this.strings;
+			nextCode = this.nextCode;
+		}
+		code = codes.get(value);
+		if (code == null) {
+			// the string is published before its code so that every published code can be decoded
+			long newCode = nextCode.incrementAndGet();
+			if (newCode > maxStrings) {
+				full = true;
+				plainStrings.incrementAndGet();
+				return NOT_ENCODED;
+			}
+			strings.put((int) newCode, value);
+			code = codes.putIfAbsent(value, (int) newCode);
+			if (code == null) {
+				code = (int) newCode;
+				assignedCodes.incrementAndGet();
+			}
+		}
+		localCodes.putIfAbsent(addString(code, value), code);
+		return code;
+	}
+
+	/**
+	 * Returns the string of the code.
+	 */
+	public String decode(int code) throws IOException {
+		String value = localStrings.get(code);
+		if (value != null) {
+			return value;
+		}
+		if (isClustered()) {
+			// the code was assigned by another member or client and its event has not been received yet
+			remoteLookups.incrementAndGet();
+			connect();
+			IMap<Integer, String> strings;
+			synchronized(this) {
+				strings = this.strings;
+			}
+			value = strings.get(code);
+		}
+		if (value == null) {
+			throw new IOException("Unknown dictionary code " + code);
+		}
+		return addString(code, value);
+	}
+
+	/**
+	 * Returns the code of the string if it is known by this JVM, null otherwise.
+	 */
+	public Integer getCode(String value) {
+		return localCodes.get(value);
+	}
+
+	/**
+	 * Returns the string of a code known by this JVM, null otherwise.
+	 */
+	public String getString(int code) {
+		return localStrings.get(code);
+	}
+
+	public int size() {
+		return localStrings.size();
+	}
+
+	public boolean isFull() {
+		return full;
+	}
+
+	// the persons decoded by this JVM all point to the same instance of a string
+	private String addString(int code, String value) {
+		String existingValue = localStrings.putIfAbsent(code, value);
+		if (localStrings.size() >= maxStrings) {
+			full = true;
+		}
+		return existingValue == null ? value : existingValue;
+	}
+
+	@Override
+	public String toString() {
+		return "StringDictionary [strings=" + localStrings.size() + "/" + maxStrings + (full ? " full" : "")
+				+ ", " + (isClustered() ? "cluster" : "local") + ", " + plainStrings.get() + " plain strings]";
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Transfer of an amount between two accounts. A transfer without source account
+ * is a deposit (a withdrawal if the amount is negative), the amount of a transfer
+ * with a source account must be positive.
+ */
+public class Transfer implements DataSerializable {
+	private static final long serialVersionUID = 1L;
+
+	private AccountKey from;
+	private AccountKey to;
+	private double amount;
+
+	public Transfer() {
+	}
+
+	public Transfer(AccountKey from, AccountKey to, double amount) {
+		// a negative amount would take the money from the destination account
+		if (from != null && !(amount > 0)) {
+			throw new IllegalArgumentException("The amount of a transfer must be positive: " + amount);
+		}
+		this.from = from;
+		this.to = to;
+		this.amount = amount;
+	}
+
+	public AccountKey getFrom() {
+		return from;
+	}
+
+	public AccountKey getTo() {
+		return to;
+	}
+
+	public double getAmount() {
+		return amount;
+	}
+
+	/**
+	 * Returns whether both accounts are in the same group, in which case the
+	 * transfer can be done by the member owning the group.
+	 */
+	public boolean isLocal() {
+		return from == null || from.getGroupId().equals(to.getGroupId());
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		out.writeBoolean(from != null);
+		if (from != null) {
+			from.writeData(out);
+		}
+		to.writeData(out);
+		out.writeDouble(amount);
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		if (in.readBoolean()) {
+			from = new AccountKey();
+			from.readData(in);
+		}
+		to = new AccountKey();
+		to.readData(in);
+		amount = in.readDouble();
+	}
+
+	@Override
+	public String toString() {
+		return "Transfer [from=" + from + ", to=" + to + ", amount=" + amount + "]";
+	}
+}
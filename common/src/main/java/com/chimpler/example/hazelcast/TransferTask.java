@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IMap;
+
+/**
+ * Runs a batch of transfers between accounts of the same group. The task is meant
+ * to be submitted as a DistributedTask keyed by the group id so that it runs on
+ * the member owning the accounts of the group: the locks, reads and writes are
+ * then local calls.
+ *
+ * The accounts of a group are in the grouped-budget-account map, keyed by their
+ * AccountKey. An account without a group is an account of the budget-account map,
+ * keyed by its account id, which is on the partition of its group id: the task
+ * deposits money to it like to a grouped account, and fails with an
+ * AccountStripedException if the account is striped.
+ *
+ * Each transfer locks its two accounts (in the key order, to avoid deadlocks with
+ * the other transfers), checks the balance of the source account and writes both
+ * accounts. Both writes are local to the member, they are not wrapped in a
+ * transaction. Returns for each transfer whether it was done, a transfer is not
+ * done when the source account does not have enough money.
+ */
+public class TransferTask implements Callable<boolean[]>, Serializable, HazelcastInstanceAware {
+	public static final String ACCOUNT_MAP = "budget-account";
+	public static final String GROUPED_ACCOUNT_MAP = "grouped-budget-account";
+
+	private static final long serialVersionUID = 1L;
+	private static final LatencyHistogram transferLatency = Metrics.histogram("member.account.transfer");
+
+	private final ArrayList<Transfer> transfers;
+
+	private transient HazelcastInstance hazelcastInstance;
+
+	public TransferTask(List<Transfer> transfers) {
+		for(Transfer transfer: transfers) {
+			if (!transfer.isLocal()) {
+				throw new IllegalArgumentException("The accounts of " + transfer + " are not in the same group");
+			}
+		}
+		this.transfers = new ArrayList<Transfer>(transfers);
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	@Override
+	public boolean[] call() throws Exception {
+		boolean[] results = new boolean[transfers.size()];
+		for(int i = 0 ; i < results.length ; i++) {
+			long start = System.nanoTime();
+			results[i] = transfer(hazelcastInstance, transfers.get(i));
+			transferLatency.recordSince(start);
+		}
+		return results;
+	}
+
+	private static boolean transfer(HazelcastInstance hazelcastInstance, Transfer transfer)
+			throws AccountStripedException {
+		AccountKey from = transfer.getFrom();
+		AccountKey to = transfer.getTo();
+		if (from == null || from.equals(to)) {
+			return deposit(getAccountMap(hazelcastInstance, to), to, from == null ? transfer.getAmount() : 0);
+		}
+		// the accounts of a group are in the same map
+		IMap<Object, BudgetAccount> accountMap = getAccountMap(hazelcastInstance, from);
+		AccountKey first = from.compareTo(to) < 0 ? from : to;
+		AccountKey second = first == from ? to : from;
+		accountMap.lock(getMapKey(first));
+		try {
+			accountMap.lock(getMapKey(second));
+			try {
+				double fromBalance = getBalance(getAccount(accountMap, from)) - transfer.getAmount();
+				if (fromBalance < 0) {
+					return false;
+				}
+				double toBalance = getBalance(getAccount(accountMap, to)) + transfer.getAmount();
+				long now = BudgetAccount.currentUpdateTime();
+				accountMap.put(getMapKey(from), createAccount(from, fromBalance, now));
+				accountMap.put(getMapKey(to), createAccount(to, toBalance, now));
+				return true;
+			} finally {
+				accountMap.unlock(getMapKey(second));
+			}
+		} finally {
+			accountMap.unlock(getMapKey(first));
+		}
+	}
+
+	private static boolean deposit(IMap<Object, BudgetAccount> accountMap, AccountKey key, double amount)
+			throws AccountStripedException {
+		accountMap.lock(getMapKey(key));
+		try {
+			double balance = getBalance(getAccount(accountMap, key)) + amount;
+			if (balance < 0) {
+				return false;
+			}
+			accountMap.put(getMapKey(key), createAccount(key, balance, BudgetAccount.currentUpdateTime()));
+			return true;
+		} finally {
+			accountMap.unlock(getMapKey(key));
+		}
+	}
+
+	/**
+	 * Returns the map of the account: budget-account for an account without a
+	 * group, grouped-budget-account otherwise.
+	 */
+	public static IMap<Object, BudgetAccount> getAccountMap(HazelcastInstance instance, AccountKey key) {
+		return instance.getMap(key.isGrouped() ? GROUPED_ACCOUNT_MAP : ACCOUNT_MAP);
+	}
+
+	/**
+	 * Returns the key of the account in its map.
+	 */
+	public static Object getMapKey(AccountKey key) {
+		return key.isGrouped() ? key : key.getAccountId();
+	}
+
+	/**
+	 * Returns the account, which must be read with its key locked: a striped
+	 * account cannot be striped in between.
+	 */
+	public static BudgetAccount getAccount(IMap<Object, BudgetAccount> accountMap, AccountKey key)
+			throws AccountStripedException {
+		BudgetAccount account = accountMap.get(getMapKey(key));
+		if (BudgetAccount.isTombstone(account)) {
+			throw new AccountStripedException(key.getAccountId(), account.getStripes());
+		}
+		return account;
+	}
+
+	public static double getBalance(BudgetAccount account) {
+		return account == null || account.getBudget() == null ? 0 : account.getBudget();
+	}
+
+	public static BudgetAccount createAccount(AccountKey key, double budget, long updateTime) {
+		BudgetAccount account = new BudgetAccount();
+		account.setAccountId(key.isGrouped() ? key.toString() : key.getAccountId());
+		account.setBudget(budget);
+		account.setUpdateTime(updateTime);
+		return account;
+	}
+}
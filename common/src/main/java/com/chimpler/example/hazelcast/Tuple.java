@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.hazelcast.nio.DataSerializable;
+
+/**
+ * Values of the attributes selected by a projection query, in the order of the
+ * projection. The attribute names are not sent with the values, only a type tag
+ * per value, so a tuple of a few attributes is much smaller than the object it
+ * was extracted from.
+ */
+public class Tuple implements DataSerializable {
+	private static final long serialVersionUID = 1L;
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BOOLEAN = 5;
+	private static final byte OBJECT = 6;
+
+	private Object[] values;
+
+	public Tuple() {
+		this.values = new Object[0];
+	}
+
+	public Tuple(Object[] values) {
+		this.values = values;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public Object get(int index) {
+		return values[index];
+	}
+
+	@Override
+	public void writeData(DataOutput out) throws IOException {
+		out.writeShort(values.length);
+		for(Object value: values) {
+			if (value == null) {
+				out.writeByte(NULL);
+			} else if (value instanceof String) {
+				out.writeByte(STRING);
+				out.writeUTF((String) value);
+			} else if (value instanceof Integer) {
+				out.writeByte(INTEGER);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if (value instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			} else if (value instanceof DataSerializable) {
+				out.writeByte(OBJECT);
+				out.writeUTF(value.getClass().getName());
+				((DataSerializable) value).writeData(out);
+			} else {
+				throw new IOException("Cannot write value of class " + value.getClass().getName());
+			}
+		}
+	}
+
+	@Override
+	public void readData(DataInput in) throws IOException {
+		values = new Object[in.readShort()];
+		for(int i = 0 ; i < values.length ; i++) {
+			byte type = in.readByte();
+			switch(type) {
+			case NULL:
+				break;
+			case STRING:
+				values[i] = in.readUTF();
+				break;
+			case INTEGER:
+				values[i] = in.readInt();
+				break;
+			case LONG:
+				values[i] = in.readLong();
+				break;
+			case DOUBLE:
+				values[i] = in.readDouble();
+				break;
+			case BOOLEAN:
+				values[i] = in.readBoolean();
+				break;
+			case OBJECT:
+				values[i] = readObject(in);
+				break;
+			default:
+				throw new IOException("Unknown value type " + type);
+			}
+		}
+	}
+
+	private static Object readObject(DataInput in) throws IOException {
+		String className = in.readUTF();
+		try {
+			DataSerializable value = (DataSerializable) Class.forName(className).newInstance();
+			value.readData(in);
+			return value;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read value of class " + className, e);
+		} catch (InstantiationException e) {
+			throw new IOException("Cannot read value of class " + className, e);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot read value of class " + className, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(values);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+
+/**
+ * Reads the totals of a materialized view maintained by the member executing the
+ * task, or verifies them by computing the view again from the local entries.
+ */
+public class ViewTask implements Callable<MaterializedView.Result>, Serializable, HazelcastInstanceAware {
+	private static final long serialVersionUID = 1L;
+	private static final LatencyHistogram verifyLatency = Metrics.histogram("member.views.verify");
+
+	private final String viewName;
+	private final boolean verify;
+
+	private transient HazelcastInstance hazelcastInstance;
+
+	public ViewTask(String viewName, boolean verify) {
+		this.viewName = viewName;
+		this.verify = verify;
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	@Override
+	public MaterializedView.Result call() throws Exception {
+		MaterializedView view = MaterializedView.get(hazelcastInstance, viewName);
+		if (view == null) {
+			if (!hazelcastInstance.getMap(MaterializedView.DEFINITION_MAP).containsKey(viewName)) {
+				throw new IllegalArgumentException("Unknown view " + viewName);
+			}
+			// the member has not created the view yet
+			MaterializedView.Result result = new MaterializedView.Result();
+			result.setStale(true);
+			return result;
+		}
+		if (!verify) {
+			return view.read();
+		}
+		long start = System.nanoTime();
+		MaterializedView.Result result = view.verify();
+		verifyLatency.recordSince(start);
+		return result;
+	}
+}
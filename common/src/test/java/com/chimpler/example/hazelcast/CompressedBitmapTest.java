@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Compares the bitmaps with TreeSets holding the same values, with containers
+ * below and above the 4096 values where an array container becomes a bitmap.
+ */
+public class CompressedBitmapTest {
+	private static final int ARRAY_MAX_SIZE = 4096;
+
+	@Test
+	public void addsAndRemovesAcrossTheArrayToBitmapSwitch() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		// every other value of the first container, so the values are not a range
+		for(int value = 0 ; expected.size() <= ARRAY_MAX_SIZE ; value += 2) {
+			bitmap.add(value);
+			expected.add(value);
+		}
+		assertSameValues(expected, bitmap);
+		// adding a value twice does not change the cardinality
+		bitmap.add(0);
+		assertSameValues(expected, bitmap);
+
+		// back below the limit
+		for(int value = 0 ; expected.size() > ARRAY_MAX_SIZE / 2 ; value += 4) {
+			bitmap.remove(value);
+			expected.remove(value);
+		}
+		assertSameValues(expected, bitmap);
+		assertFalse(bitmap.contains(0));
+		assertTrue(bitmap.contains(2));
+
+		// removing a value which is not there does nothing
+		bitmap.remove(1);
+		bitmap.remove(1 << 20);
+		assertSameValues(expected, bitmap);
+
+		for(int value: expected.toArray(new Integer[0])) {
+			bitmap.remove(value);
+		}
+		assertTrue(bitmap.isEmpty());
+		assertEquals(0, bitmap.getCardinality());
+	}
+
+	@Test
+	public void combinesArrayAndBitmapContainers() {
+		Random random = new Random(42);
+		// dense and sparse containers, and containers only in one of the bitmaps
+		int[][] sizes = {
+			{ 100, 100 }, { 100, 10000 }, { 10000, 100 }, { 10000, 10000 }, { 0, 5000 }, { 5000, 0 }
+		};
+		CompressedBitmap first = new CompressedBitmap();
+		CompressedBitmap second = new CompressedBitmap();
+		TreeSet<Integer> firstValues = new TreeSet<Integer>();
+		TreeSet<Integer> secondValues = new TreeSet<Integer>();
+		for(int high = 0 ; high < sizes.length ; high++) {
+			addRandomValues(random, high, sizes[high][0], first, firstValues);
+			addRandomValues(random, high, sizes[high][1], second, secondValues);
+		}
+		// a container beyond the last one of the other bitmap
+		first.add(10 << 16);
+		firstValues.add(10 << 16);
+
+		TreeSet<Integer> union = new TreeSet<Integer>(firstValues);
+		union.addAll(secondValues);
+		assertSameValues(union, first.or(second));
+		assertSameValues(union, second.or(first));
+
+		TreeSet<Integer> intersection = new TreeSet<Integer>(firstValues);
+		intersection.retainAll(secondValues);
+		assertSameValues(intersection, first.and(second));
+		assertSameValues(intersection, second.and(first));
+
+		TreeSet<Integer> difference = new TreeSet<Integer>(firstValues);
+		difference.removeAll(secondValues);
+		assertSameValues(difference, first.andNot(second));
+		TreeSet<Integer> otherDifference = new TreeSet<Integer>(secondValues);
+		otherDifference.removeAll(firstValues);
+		assertSameValues(otherDifference, second.andNot(first));
+
+		// the operations do not change their operands
+		assertSameValues(firstValues, first);
+		assertSameValues(secondValues, second);
+		assertTrue(first.andNot(first).isEmpty());
+		assertSameValues(firstValues, first.and(first));
+	}
+
+	@Test
+	public void copiesAreIndependent() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		for(int value = 0 ; value < 2 * ARRAY_MAX_SIZE ; value++) {
+			bitmap.add(value);
+		}
+		CompressedBitmap copy = bitmap.copy();
+		copy.remove(0);
+		copy.add(1 << 16);
+		assertTrue(bitmap.contains(0));
+		assertFalse(bitmap.contains(1 << 16));
+		assertEquals(2 * ARRAY_MAX_SIZE, bitmap.getCardinality());
+		assertEquals(2 * ARRAY_MAX_SIZE, copy.getCardinality());
+	}
+
+	private static void addRandomValues(Random random, int high, int count, CompressedBitmap bitmap,
+			TreeSet<Integer> values) {
+		TreeSet<Integer> containerValues = new TreeSet<Integer>();
+		while(containerValues.size() < count) {
+			containerValues.add((high << 16) | random.nextInt(1 << 16));
+		}
+		for(int value: containerValues) {
+			bitmap.add(value);
+		}
+		values.addAll(containerValues);
+	}
+
+	private static void assertSameValues(TreeSet<Integer> expected, CompressedBitmap actual) {
+		int[] expectedValues = new int[expected.size()];
+		int i = 0;
+		for(int value: expected) {
+			expectedValues[i++] = value;
+		}
+		assertArrayEquals(expectedValues, actual.toArray());
+		assertEquals(expected.size(), actual.getCardinality());
+		for(int value: expected) {
+			assertTrue(actual.contains(value));
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.hazelcast.core.MapEntry;
+import com.hazelcast.query.SqlPredicate;
+
+/**
+ * Checks that the queries evaluated by QueryExpression match the same persons as
+ * the SqlPredicate of the query.
+ */
+public class QueryExpressionTest {
+	private static final String[] STATES = { "CA", "NY", "TX" };
+	private static final String[] COMPANIES = { "Globex", "Initech", "Umbrella" };
+
+	private static final String[] QUERIES = {
+		"age > 30",
+		"age >= 30 AND age < 50",
+		"age <= 25 OR age = 60",
+		"age != 42",
+		"address.state = 'TX'",
+		"address.state <> 'TX'",
+		"address.state IN ('CA', 'NY')",
+		"age IN (20, 40, 60)",
+		"company.name = 'Globex' AND address.state = 'CA'",
+		"company.address.state = 'NY' OR company.name = 'Initech'",
+		"NOT address.state = 'CA'",
+		"NOT (age > 40 AND company.name = 'Umbrella')",
+		"(address.state = 'TX' OR address.state = 'NY') AND NOT company.name IN ('Globex')",
+		"lastName >= 'M'",
+		"age > 30 and address.state = 'CA'"
+	};
+
+	@Test
+	public void matchesTheSamePersonsAsSqlPredicate() {
+		List<Person> persons = createPersons();
+		for(String query: QUERIES) {
+			QueryExpression expression = QueryExpression.tryParse(query);
+			assertNotNull(query, expression);
+			SqlPredicate predicate = new SqlPredicate(query);
+			for(Person person: persons) {
+				assertEquals(query + " on " + person.getSsn(), predicate.apply(createEntry(person)),
+						expression.matches(person));
+			}
+		}
+	}
+
+	@Test
+	public void normalizedQueriesMatchTheSamePersons() {
+		List<Person> persons = createPersons();
+		for(String query: QUERIES) {
+			QueryExpression expression = QueryExpression.tryParse(query);
+			QueryExpression normalized = QueryExpression.tryParse(QueryExpression.normalize(query));
+			for(Person person: persons) {
+				assertEquals(query, expression.matches(person), normalized.matches(person));
+			}
+		}
+	}
+
+	@Test
+	public void leavesTheUnsupportedSyntaxToSqlPredicate() {
+		assertNull(QueryExpression.tryParse("lastName LIKE 'Sm%'"));
+		assertNull(QueryExpression.tryParse("age BETWEEN 20 AND 30"));
+		assertNull(QueryExpression.tryParse("age > 30 AND"));
+		assertNull(QueryExpression.tryParse("address.state = 'TX"));
+	}
+
+	private static List<Person> createPersons() {
+		List<Person> persons = new ArrayList<Person>();
+		for(int i = 0 ; i < 60 ; i++) {
+			Company company = new Company();
+			company.setName(COMPANIES[i % COMPANIES.length]);
+			company.setAddress(createAddress(STATES[(i / 3) % STATES.length]));
+			Person person = new Person();
+			person.setSsn("000-00-" + (1000 + i));
+			person.setFirstName("First" + i);
+			person.setLastName(String.valueOf((char) ('A' + i % 26)) + "name");
+			person.setAge(18 + (i * 7) % 50);
+			person.setCompany(company);
+			person.setAddress(createAddress(STATES[(i / 2) % STATES.length]));
+			persons.add(person);
+		}
+		return persons;
+	}
+
+	private static Address createAddress(String state) {
+		Address address = new Address();
+		address.setLine("1 Main Street");
+		address.setCity("Springfield");
+		address.setState(state);
+		return address;
+	}
+
+	// the entry given to the predicate by a map, only its key and value are read
+	@SuppressWarnings("unchecked")
+	private static MapEntry<String, Person> createEntry(final Person person) {
+		return (MapEntry<String, Person>) Proxy.newProxyInstance(QueryExpressionTest.class.getClassLoader(),
+				new Class<?>[] { MapEntry.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getKey")) {
+							return person.getSsn();
+						} else if (method.getName().equals("getValue")) {
+							return person;
+						} else if (method.getName().equals("isValid")) {
+							return Boolean.TRUE;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+import org.junit.Test;
+
+/**
+ * Reads objects written with java serialization by the former java.io.Serializable
+ * domain classes (baseline-domain-objects.ser) and checks that they are decoded
+ * by the current classes and survive a round trip in the compact format.
+ */
+public class SerializationCompatibilityTest {
+
+	@Test
+	public void readsBaselineObjects() throws Exception {
+		InputStream fixture = getClass().getResourceAsStream("/baseline-domain-objects.ser");
+		ObjectInputStream in = new ObjectInputStream(fixture);
+		try {
+			assertPersonEquals(createPerson(), (Person) in.readObject());
+			assertPersonEquals(createPartialPerson(), (Person) in.readObject());
+			assertAccountEquals(createAccount("account1", 1234.5), (BudgetAccount) in.readObject());
+			assertAccountEquals(createAccount(null, null), (BudgetAccount) in.readObject());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void baselineObjectsRoundTripInCompactFormat() throws Exception {
+		InputStream fixture = getClass().getResourceAsStream("/baseline-domain-objects.ser");
+		ObjectInputStream in = new ObjectInputStream(fixture);
+		try {
+			for(int i = 0 ; i < 2 ; i++) {
+				Person person = (Person) in.readObject();
+				assertPersonEquals(person, SerializationUtils.fromBytes(SerializationUtils.toBytes(person), new Person()));
+			}
+			for(int i = 0 ; i < 2 ; i++) {
+				BudgetAccount account = (BudgetAccount) in.readObject();
+				assertAccountEquals(account,
+						SerializationUtils.fromBytes(SerializationUtils.toBytes(account), new BudgetAccount()));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// the values written in the fixture by the baseline classes
+
+	private static Person createPerson() {
+		Address home = createAddress("12 Main Street", "Austin", "TX");
+		Company company = new Company();
+		company.setName("Globex");
+		company.setAddress(createAddress("1 Globex Plaza", "Cypress Creek", "CA"));
+		Person person = new Person();
+		person.setSsn("123-45-6789");
+		person.setFirstName("Jacob");
+		person.setLastName("Smith");
+		person.setAge(42);
+		person.setCompany(company);
+		person.setAddress(home);
+		return person;
+	}
+
+	private static Person createPartialPerson() {
+		Person person = new Person();
+		person.setSsn("987-65-4321");
+		person.setAge(7);
+		return person;
+	}
+
+	private static Address createAddress(String line, String city, String state) {
+		Address address = new Address();
+		address.setLine(line);
+		address.setCity(city);
+		address.setState(state);
+		return address;
+	}
+
+	private static BudgetAccount createAccount(String accountId, Double budget) {
+		BudgetAccount account = new BudgetAccount();
+		account.setAccountId(accountId);
+		account.setBudget(budget);
+		return account;
+	}
+
+	private static void assertPersonEquals(Person expected, Person actual) {
+		assertEquals(expected.getSsn(), actual.getSsn());
+		assertEquals(expected.getFirstName(), actual.getFirstName());
+		assertEquals(expected.getLastName(), actual.getLastName());
+		assertEquals(expected.getAge(), actual.getAge());
+		if (expected.getCompany() == null) {
+			assertNull(actual.getCompany());
+		} else {
+			assertEquals(expected.getCompany().getName(), actual.getCompany().getName());
+			assertAddressEquals(expected.getCompany().getAddress(), actual.getCompany().getAddress());
+		}
+		assertAddressEquals(expected.getAddress(), actual.getAddress());
+	}
+
+	private static void assertAddressEquals(Address expected, Address actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected.getLine(), actual.getLine());
+		assertEquals(expected.getCity(), actual.getCity());
+		assertEquals(expected.getState(), actual.getState());
+	}
+
+	private static void assertAccountEquals(BudgetAccount expected, BudgetAccount actual) {
+		assertEquals(expected.getAccountId(), actual.getAccountId());
+		assertEquals(expected.getBudget(), actual.getBudget());
+	}
+}
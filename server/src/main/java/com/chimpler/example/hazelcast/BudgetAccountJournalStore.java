@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+
+/**
+ * Persists the budget accounts owned by a member in a local directory
+ * ([data-dir]/[instance name]): a snapshot of the accounts plus a journal of the
+ * changes since the snapshot, both written with MappedJournal in the files
+ * [map name].snapshot and [map name].journal.
+ *
+ * The store is meant to be used with write-behind: the batches given to storeAll
+ * are appended to the journal and forced to the disk once per batch. Every
+ * compaction-interval-seconds, if the journal is not empty, a new snapshot of the
+ * accounts is written and the journal is reset.
+ *
+ * When a partition migrates, the previous owner journals that it released it and
+ * the new owner journals the accounts of the partition, so that an account is only
+ * in the files of its last owner.
+ *
+ * Created with restore set, the store reads the accounts from the files when the
+ * map is created. loadAllKeys()/loadAll() give them to the map when it is
+ * initialized, which loads the accounts of the partitions owned by the member
+ * before serving the requests, and load() gives the account of a key read by the
+ * member before restore() was called. restore() then adds the accounts owned by
+ * the other members to the cluster: the balance restored is added to the account
+ * with an AddMoneyTask, so the updates done since the start are not overwritten.
+ *
+ * Created without restore, the files of the previous run, if they hold accounts,
+ * are renamed with the suffix .previous.1 and the store starts empty. The files of
+ * the runs before are numbered .previous.2, .previous.3... up to previous-runs (3
+ * by default), the older ones are deleted.
+ *
+ * A compaction writes the new snapshot to a temporary file and renames it over
+ * the snapshot. Where the rename cannot replace a file, the snapshot is deleted
+ * first and a crash in between leaves only the temporary file, which is then
+ * read in place of the missing snapshot.
+ */
+public class BudgetAccountJournalStore implements MapStore<String, BudgetAccount>, MapLoaderLifecycleSupport {
+	// files of the budget-account map
+	public static final String SNAPSHOT_FILE = "budget-account.snapshot";
+	public static final String JOURNAL_FILE = "budget-account.journal";
+	public static final String TEMPORARY_SUFFIX = ".tmp";
+	public static final String PREVIOUS_SUFFIX = ".previous.";
+
+	private static final byte DELETE = 2;
+	private static final byte RELEASE = 3;
+	private static final byte PUT = 5;
+
+	private final boolean restore;
+	private HazelcastInstance hazelcastInstance;
+	private String mapName;
+	private String snapshotFileName;
+	private String journalFileName;
+	private File directory;
+	private MappedJournal journal;
+	private ScheduledExecutorService scheduler;
+
+	private final Map<String, StoredAccount> accounts = new HashMap<String, StoredAccount>();
+	private Map<String, StoredAccount> restoredAccounts;
+	private final Set<Integer> acquiredPartitions = new HashSet<Integer>();
+
+	private static class StoredAccount {
+		final BudgetAccount account;
+		final int partitionId;
+
+		StoredAccount(BudgetAccount account, int partitionId) {
+			this.account = account;
+			this.partitionId = partitionId;
+		}
+	}
+
+	public BudgetAccountJournalStore() {
+		this(false);
+	}
+
+	public BudgetAccountJournalStore(boolean restore) {
+		this.restore = restore;
+	}
+
+	@Override
+	public synchronized void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+		this.hazelcastInstance = hazelcastInstance;
+		this.mapName = mapName;
+		this.snapshotFileName = mapName + ".snapshot";
+		this.journalFileName = mapName + ".journal";
+		this.directory = new File(properties.getProperty("data-dir", "data"), hazelcastInstance.getName());
+		long compactionIntervalSeconds = Long.parseLong(properties.getProperty("compaction-interval-seconds", "300"));
+		int previousRuns = Integer.parseInt(properties.getProperty("previous-runs", "3"));
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create directory " + directory);
+			}
+			File snapshotFile = getLastSnapshotFile();
+			File journalFile = new File(directory, journalFileName);
+			if (restore) {
+				restoredAccounts = new HashMap<String, StoredAccount>();
+				replay(snapshotFile, restoredAccounts);
+				replay(journalFile, restoredAccounts);
+			} else {
+				if (MappedJournal.replay(snapshotFile, null) > 0 || MappedJournal.replay(journalFile, null) > 0) {
+					rotatePreviousRuns(previousRuns);
+					if (previousRuns > 0) {
+						rename(snapshotFile, new File(directory, getPreviousFileName(snapshotFileName, 1)));
+						rename(journalFile, new File(directory, getPreviousFileName(journalFileName, 1)));
+					} else {
+						snapshotFile.delete();
+						journalFile.delete();
+					}
+				} else {
+					// the previous run stored nothing
+					snapshotFile.delete();
+					journalFile.delete();
+				}
+			}
+			journal = MappedJournal.open(journalFile);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open the budget account journal in " + directory, e);
+		}
+
+		hazelcastInstance.getPartitionService().addMigrationListener(new MigrationListener() {
+			@Override
+			public void migrationStarted(MigrationEvent migrationEvent) {
+			}
+
+			@Override
+			public void migrationCompleted(MigrationEvent migrationEvent) {
+				if (migrationEvent.getOldOwner() != null && migrationEvent.getOldOwner().localMember()) {
+					releasePartition(migrationEvent.getPartitionId());
+				}
+				if (migrationEvent.getNewOwner() != null && migrationEvent.getNewOwner().localMember()) {
+					acquirePartition(migrationEvent.getPartitionId());
+				}
+			}
+
+			public void migrationFailed(MigrationEvent migrationEvent) {
+			}
+		});
+
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (IOException e) {
+					System.err.println("Cannot compact the budget account journal: " + e);
+				}
+			}
+		}, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public synchronized void destroy() {
+		scheduler.shutdown();
+		try {
+			journal.close();
+		} catch (IOException e) {
+			System.err.println("Cannot close the budget account journal: " + e);
+		}
+	}
+
+	/**
+	 * Returns the snapshot file, or the temporary file of the last compaction if
+	 * the compaction deleted the snapshot but crashed before renaming it.
+	 */
+	private File getLastSnapshotFile() {
+		File snapshotFile = new File(directory, snapshotFileName);
+		File temporaryFile = new File(directory, snapshotFileName + TEMPORARY_SUFFIX);
+		return !snapshotFile.exists() && temporaryFile.exists() ? temporaryFile : snapshotFile;
+	}
+
+	/**
+	 * Returns the name of the file of the run-th run before the current one.
+	 */
+	public static String getPreviousFileName(String fileName, int run) {
+		return fileName + PREVIOUS_SUFFIX + run;
+	}
+
+	// shifts the numbers of the files of the previous runs, the last one is deleted
+	private void rotatePreviousRuns(int previousRuns) throws IOException {
+		for(String fileName: new String[] { snapshotFileName, journalFileName }) {
+			if (previousRuns > 0) {
+				new File(directory, getPreviousFileName(fileName, previousRuns)).delete();
+			}
+			for(int run = previousRuns - 1 ; run > 0 ; run--) {
+				rename(new File(directory, getPreviousFileName(fileName, run)),
+						new File(directory, getPreviousFileName(fileName, run + 1)));
+			}
+		}
+	}
+
+	private static void rename(File file, File newFile) throws IOException {
+		if (file.exists() && !file.renameTo(newFile)) {
+			throw new IOException("Cannot rename " + file + " to " + newFile);
+		}
+	}
+
+	private static void replay(File file, final Map<String, StoredAccount> accounts) throws IOException {
+		MappedJournal.replay(file, new MappedJournal.RecordHandler() {
+			@Override
+			public void handle(byte[] body) throws IOException {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+				byte type = in.readByte();
+				if (type == PUT) {
+					int partitionId = in.readInt();
+					String accountId = in.readUTF();
+					BudgetAccount account = new BudgetAccount();
+					account.readData(in);
+					accounts.put(accountId, new StoredAccount(account, partitionId));
+				} else if (type == DELETE) {
+					accounts.remove(in.readUTF());
+				} else if (type == RELEASE) {
+					int partitionId = in.readInt();
+					Iterator<StoredAccount> iterator = accounts.values().iterator();
+					while(iterator.hasNext()) {
+						if (iterator.next().partitionId == partitionId) {
+							iterator.remove();
+						}
+					}
+				} else {
+					throw new IOException("Unknown record type " + type);
+				}
+			}
+		});
+	}
+
+	private static byte[] encodePut(String accountId, StoredAccount storedAccount) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PUT);
+		out.writeInt(storedAccount.partitionId);
+		out.writeUTF(accountId);
+		storedAccount.account.writeData(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeDelete(String accountId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(DELETE);
+		out.writeUTF(accountId);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeRelease(int partitionId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RELEASE);
+		out.writeInt(partitionId);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private int getPartitionId(String accountId) {
+		return hazelcastInstance.getPartitionService().getPartition(getMapKey(accountId)).getPartitionId();
+	}
+
+	/**
+	 * Returns the key of the map from its string form, stored in the files.
+	 */
+	protected Object getMapKey(String key) {
+		return key;
+	}
+
+	protected HazelcastInstance getHazelcastInstance() {
+		return hazelcastInstance;
+	}
+
+	@Override
+	public void store(String accountId, BudgetAccount account) {
+		storeAll(Collections.singletonMap(accountId, account));
+	}
+
+	@Override
+	public synchronized void storeAll(Map<String, BudgetAccount> accountsToStore) {
+		try {
+			for(Map.Entry<String, BudgetAccount> entry: accountsToStore.entrySet()) {
+				StoredAccount storedAccount = new StoredAccount(entry.getValue(), getPartitionId(entry.getKey()));
+				journal.append(encodePut(entry.getKey(), storedAccount));
+				accounts.put(entry.getKey(), storedAccount);
+			}
+			journal.force();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot write to the budget account journal", e);
+		}
+	}
+
+	@Override
+	public void delete(String accountId) {
+		deleteAll(Collections.singleton(accountId));
+	}
+
+	@Override
+	public synchronized void deleteAll(Collection<String> accountIds) {
+		try {
+			for(String accountId: accountIds) {
+				journal.append(encodeDelete(accountId));
+				accounts.remove(accountId);
+			}
+			journal.force();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot write to the budget account journal", e);
+		}
+	}
+
+	@Override
+	public BudgetAccount load(String accountId) {
+		return loadAll(Collections.singleton(accountId)).get(accountId);
+	}
+
+	/**
+	 * Returns the restored accounts of the keys, which are not restored again by
+	 * restore(): the map now has them.
+	 */
+	@Override
+	public synchronized Map<String, BudgetAccount> loadAll(Collection<String> accountIds) {
+		if (restoredAccounts == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, BudgetAccount> loadedAccounts = new HashMap<String, BudgetAccount>();
+		for(String accountId: accountIds) {
+			StoredAccount storedAccount = restoredAccounts.remove(accountId);
+			if (storedAccount != null) {
+				// still in the files, kept by the next compaction
+				accounts.put(accountId, storedAccount);
+				loadedAccounts.put(accountId, storedAccount.account);
+			}
+		}
+		return loadedAccounts;
+	}
+
+	@Override
+	public synchronized Set<String> loadAllKeys() {
+		return restoredAccounts == null ? null : new HashSet<String>(restoredAccounts.keySet());
+	}
+
+	private synchronized void releasePartition(int partitionId) {
+		try {
+			journal.append(encodeRelease(partitionId));
+			journal.force();
+		} catch (IOException e) {
+			System.err.println("Cannot write to the budget account journal: " + e);
+		}
+		Iterator<StoredAccount> iterator = accounts.values().iterator();
+		while(iterator.hasNext()) {
+			if (iterator.next().partitionId == partitionId) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Journals the accounts of the migrated partitions. Migrations come in bursts so
+	 * the partitions are collected for a second and the local entries are scanned once.
+	 */
+	private synchronized void acquirePartition(int partitionId) {
+		if (acquiredPartitions.isEmpty()) {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					storeAcquiredPartitions();
+				}
+			}, 1, TimeUnit.SECONDS);
+		}
+		acquiredPartitions.add(partitionId);
+	}
+
+	private void storeAcquiredPartitions() {
+		Set<Integer> partitionIds;
+		synchronized (this) {
+			partitionIds = new HashSet<Integer>(acquiredPartitions);
+			acquiredPartitions.clear();
+		}
+		IMap<Object, BudgetAccount> map = hazelcastInstance.getMap(mapName);
+		Map<String, BudgetAccount> migratedAccounts = new HashMap<String, BudgetAccount>();
+		for(Object key: map.localKeySet()) {
+			if (partitionIds.contains(hazelcastInstance.getPartitionService().getPartition(key).getPartitionId())) {
+				BudgetAccount account = map.get(key);
+				if (account != null) {
+					migratedAccounts.put(key.toString(), account);
+				}
+			}
+		}
+		storeAll(migratedAccounts);
+	}
+
+	/**
+	 * Writes a snapshot of the accounts and resets the journal, if anything was
+	 * journaled since the last compaction.
+	 */
+	public synchronized void compact() throws IOException {
+		if (journal.getRecordCount() == 0) {
+			return;
+		}
+		File snapshotFile = new File(directory, snapshotFileName);
+		File temporaryFile = new File(directory, snapshotFileName + TEMPORARY_SUFFIX);
+		temporaryFile.delete();
+		MappedJournal snapshot = MappedJournal.open(temporaryFile);
+		try {
+			for(Map.Entry<String, StoredAccount> entry: accounts.entrySet()) {
+				snapshot.append(encodePut(entry.getKey(), entry.getValue()));
+			}
+			if (restoredAccounts != null) {
+				// not restored yet, the files are their only copy
+				for(Map.Entry<String, StoredAccount> entry: restoredAccounts.entrySet()) {
+					snapshot.append(encodePut(entry.getKey(), entry.getValue()));
+				}
+			}
+		} finally {
+			snapshot.close();
+		}
+		// the rename replaces the snapshot atomically on POSIX file systems
+		if (!temporaryFile.renameTo(snapshotFile)) {
+			// the temporary file is read if the snapshot is missing after a crash
+			snapshotFile.delete();
+			rename(temporaryFile, snapshotFile);
+		}
+
+		// replaying the old journal over the new snapshot gives the same accounts, so
+		// a crash before the journal is reset is harmless
+		File journalFile = journal.getFile();
+		journal.close();
+		journalFile.delete();
+		journal = MappedJournal.open(journalFile);
+	}
+
+	/**
+	 * Adds the restored accounts that the map did not load (the accounts of the
+	 * partitions owned by the other members when the map was initialized) to the
+	 * cluster, from several threads, and returns their number. The balance restored
+	 * is added to the account, which holds the updates done since the start if it
+	 * was created again in between, and the tombstones of the striped accounts are
+	 * only put if the account does not exist. They are then deleted from the
+	 * journal: their owner stores them.
+	 */
+	public int restore(int threads) throws Exception {
+		final Map<String, StoredAccount> accountsToRestore;
+		synchronized (this) {
+			if (restoredAccounts == null) {
+				return 0;
+			}
+			accountsToRestore = restoredAccounts;
+			restoredAccounts = null;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(final Map.Entry<String, StoredAccount> entry: accountsToRestore.entrySet()) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						restoreAccount(entry.getKey(), entry.getValue().account);
+						return null;
+					}
+				}));
+			}
+			for(Future<?> future: futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		deleteAll(accountsToRestore.keySet());
+		return accountsToRestore.size();
+	}
+
+	/**
+	 * Adds the restored balance of the account to the cluster.
+	 */
+	protected void restoreAccount(String accountId, BudgetAccount account) throws Exception {
+		IMap<String, BudgetAccount> map = hazelcastInstance.getMap(mapName);
+		if (account.isStriped() || account.getBudget() == null) {
+			map.putIfAbsent(accountId, account);
+			return;
+		}
+		DistributedTask<Double> task = new DistributedTask<Double>(
+				new AddMoneyTask(map.getName(), accountId, account.getBudget()), accountId);
+		hazelcastInstance.getExecutorService().execute(task);
+		try {
+			task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof AccountStripedException) {
+				// striped since the start, the stripes do not have the restored balance
+				System.err.println("Cannot restore the budget of the account " + accountId
+						+ " striped since the start: " + account.getBudget());
+				return;
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.chimpler.example.hazelcast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import com.hazelcast.core.DistributedTask;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+
+/**
+ * Persists the accounts of the grouped-budget-account map like
+ * BudgetAccountJournalStore, the keys being stored in their string form
+ * [groupId]/[accountId]. The balance restored is added to the account with a
+ * TransferTask on the member owning its group.
+ */
+public class GroupedBudgetAccountJournalStore implements MapStore<AccountKey, BudgetAccount>, MapLoaderLifecycleSupport {
+	private final BudgetAccountJournalStore store;
+
+	public GroupedBudgetAccountJournalStore() {
+		this(false);
+	}
+
+	public GroupedBudgetAccountJournalStore(boolean restore) {
+		store = new BudgetAccountJournalStore(restore) {
+			@Override
+			protected Object getMapKey(String key) {
+				return AccountKey.parse(key);
+			}
+
+			@Override
+			protected void restoreAccount(String key, BudgetAccount account) throws Exception {
+				AccountKey accountKey = AccountKey.parse(key);
+				HazelcastInstance hazelcastInstance = getHazelcastInstance();
+				if (account.getBudget() == null) {
+					hazelcastInstance.<AccountKey, BudgetAccount>getMap(TransferTask.GROUPED_ACCOUNT_MAP)
+							.putIfAbsent(accountKey, account);
+					return;
+				}
+				DistributedTask<boolean[]> task = new DistributedTask<boolean[]>(new TransferTask(
+						Collections.singletonList(new Transfer(null, accountKey, account.getBudget()))),
+						accountKey.getGroupId());
+				hazelcastInstance.getExecutorService().execute(task);
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		};
+	}
+
+	@Override
+	public void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+		store.init(hazelcastInstance, properties, mapName);
+	}
+
+	@Override
+	public void destroy() {
+		store.destroy();
+	}
+
+	@Override
+	public void store(AccountKey key, BudgetAccount account) {
+		store.store(key.toString(), account);
+	}
+
+	@Override
+	public void storeAll(Map<AccountKey, BudgetAccount> accounts) {
+		Map<String, BudgetAccount> accountsToStore = new HashMap<String, BudgetAccount>();
+		for(Map.Entry<AccountKey, BudgetAccount> entry: accounts.entrySet()) {
+			accountsToStore.put(entry.getKey().toString(), entry.getValue());
+		}
+		store.storeAll(accountsToStore);
+	}
+
+	@Override
+	public void delete(AccountKey key) {
+		store.delete(key.toString());
+	}
+
+	@Override
+	public void deleteAll(Collection<AccountKey> keys) {
+		List<String> accountIds = new ArrayList<String>(keys.size());
+		for(AccountKey key: keys) {
+			accountIds.add(key.toString());
+		}
+		store.deleteAll(accountIds);
+	}
+
+	@Override
+	public BudgetAccount load(AccountKey key) {
+		return store.load(key.toString());
+	}
+
+	@Override
+	public Map<AccountKey, BudgetAccount> loadAll(Collection<AccountKey> keys) {
+		List<String> accountIds = new ArrayList<String>(keys.size());
+		for(AccountKey key: keys) {
+			accountIds.add(key.toString());
+		}
+		Map<AccountKey, BudgetAccount> accounts = new HashMap<AccountKey, BudgetAccount>();
+		for(Map.Entry<String, BudgetAccount> entry: store.loadAll(accountIds).entrySet()) {
+			accounts.put(AccountKey.parse(entry.getKey()), entry.getValue());
+		}
+		return accounts;
+	}
+
+	@Override
+	public Set<AccountKey> loadAllKeys() {
+		Set<String> accountIds = store.loadAllKeys();
+		if (accountIds == null) {
+			return null;
+		}
+		Set<AccountKey> keys = new HashSet<AccountKey>();
+		for(String accountId: accountIds) {
+			keys.add(AccountKey.parse(accountId));
+		}
+		return keys;
+	}
+
+	public void compact() throws IOException {
+		store.compact();
+	}
+
+	/**
+	 * Adds the restored accounts that the map did not load to the cluster, see
+	 * BudgetAccountJournalStore.restore.
+	 */
+	public int restore(int threads) throws Exception {
+		return store.restore(threads);
+	}
+}
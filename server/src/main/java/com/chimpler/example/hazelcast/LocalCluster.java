@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.config.ClasspathXmlConfig;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.Join;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.partition.MigrationEvent;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.Partition;
+
+/**
+ * Cluster of members running in the same JVM, used to measure how the example
+ * scales with the number of members without starting EC2 instances. The members
+ * use the map settings of hazelcast.xml with the AWS discovery replaced by TCP/IP
+ * on 127.0.0.1, on the ports BASE_PORT to BASE_PORT + maxMembers - 1. Each member
+ * is started by NodeStarter.startMember and named local-[port].
+ *
+ * Members can be added, killed (crash, without migrating their partitions) or
+ * removed (graceful shutdown) while the cluster is used. The repartitioning after
+ * a change is considered done when every partition has an owner and no migration
+ * happened for REPARTITION_QUIET_MILLIS. Every member gets the events of the
+ * migrations of all the partitions, so the migrations are listened to on a single
+ * member, replaced by another one when it leaves the cluster.
+ */
+public class LocalCluster {
+	public static final String ADDRESS = "127.0.0.1";
+	public static final int BASE_PORT = 5701;
+	public static final long REPARTITION_QUIET_MILLIS = 5000;
+	public static final long REPARTITION_TIMEOUT_MILLIS = 300000;
+	private static final long REPARTITION_POLL_MILLIS = 100;
+
+	private final int maxMembers;
+	// members by port
+	private final Map<Integer, HazelcastInstance> members = new TreeMap<Integer, HazelcastInstance>();
+	private final AtomicLong lastMigrationMillis = new AtomicLong();
+	private final AtomicLong migrationCount = new AtomicLong();
+	private final MigrationListener migrationListener = new MigrationListener() {
+		@Override
+		public void migrationStarted(MigrationEvent migrationEvent) {
+			lastMigrationMillis.set(System.currentTimeMillis());
+		}
+
+		@Override
+		public void migrationCompleted(MigrationEvent migrationEvent) {
+			migrationCount.incrementAndGet();
+			lastMigrationMillis.set(System.currentTimeMillis());
+		}
+
+		public void migrationFailed(MigrationEvent migrationEvent) {
+			lastMigrationMillis.set(System.currentTimeMillis());
+		}
+	};
+	// member the migration listener is registered on
+	private HazelcastInstance listeningMember;
+
+	public LocalCluster(int maxMembers) {
+		this.maxMembers = maxMembers;
+	}
+
+	public void start(int memberCount) throws Exception {
+		for(int i = 0 ; i < memberCount ; i++) {
+			addMember();
+		}
+	}
+
+	/**
+	 * Starts a member on the first free port.
+	 */
+	public synchronized HazelcastInstance addMember() throws Exception {
+		int port = BASE_PORT;
+		while(members.containsKey(port)) {
+			port++;
+		}
+		if (port >= BASE_PORT + maxMembers) {
+			throw new IllegalStateException("The local cluster already has " + maxMembers + " members");
+		}
+		HazelcastInstance instance = NodeStarter.startMember(createMemberConfig(port), false);
+		members.put(port, instance);
+		if (listeningMember == null) {
+			listenToMigrations(instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the member abruptly, as if its process crashed.
+	 */
+	public synchronized void killMember(int index) {
+		remove(index).getLifecycleService().kill();
+	}
+
+	/**
+	 * Shuts the member down gracefully.
+	 */
+	public synchronized void removeMember(int index) {
+		remove(index).getLifecycleService().shutdown();
+	}
+
+	private HazelcastInstance remove(int index) {
+		List<Integer> ports = new ArrayList<Integer>(members.keySet());
+		if (index < 0 || index >= ports.size()) {
+			throw new IllegalArgumentException("No member " + index + ", the cluster has " + ports.size() + " members");
+		}
+		HazelcastInstance instance = members.remove(ports.get(index));
+		if (instance == listeningMember) {
+			// the migrations caused by the member leaving are listened to on another member
+			instance.getPartitionService().removeMigrationListener(migrationListener);
+			listeningMember = null;
+			if (!members.isEmpty()) {
+				listenToMigrations(members.values().iterator().next());
+			}
+		}
+		return instance;
+	}
+
+	private void listenToMigrations(HazelcastInstance instance) {
+		instance.getPartitionService().addMigrationListener(migrationListener);
+		listeningMember = instance;
+	}
+
+	public synchronized List<HazelcastInstance> getMembers() {
+		return new ArrayList<HazelcastInstance>(members.values());
+	}
+
+	public synchronized int getMemberCount() {
+		return members.size();
+	}
+
+	/**
+	 * Returns the addresses of all the members the cluster can have, for the clients.
+	 */
+	public List<String> getAddresses() {
+		List<String> addresses = new ArrayList<String>();
+		for(int i = 0 ; i < maxMembers ; i++) {
+			addresses.add(ADDRESS + ":" + (BASE_PORT + i));
+		}
+		return addresses;
+	}
+
+	public long getMigrationCount() {
+		return migrationCount.get();
+	}
+
+	/**
+	 * Waits until the partitions are stable after a change of the members done at
+	 * changeMillis and returns the time between the change and the last migration
+	 * (0 if no partition migrated), or -1 if the partitions were not stable before
+	 * the timeout.
+	 */
+	public long waitForRepartition(long changeMillis, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(System.currentTimeMillis() < deadline) {
+			Thread.sleep(REPARTITION_POLL_MILLIS);
+			long lastMigration = lastMigrationMillis.get();
+			if (System.currentTimeMillis() - Math.max(lastMigration, changeMillis) >= REPARTITION_QUIET_MILLIS
+					&& allPartitionsOwned()) {
+				return Math.max(0, lastMigration - changeMillis);
+			}
+		}
+		return -1;
+	}
+
+	private boolean allPartitionsOwned() {
+		List<HazelcastInstance> instances = getMembers();
+		if (instances.isEmpty()) {
+			return true;
+		}
+		for(Partition partition: instances.get(0).getPartitionService().getPartitions()) {
+			Member owner = partition.getOwner();
+			if (owner == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Config createMemberConfig(int port) {
+		Config config = new ClasspathXmlConfig("hazelcast.xml");
+		config.setInstanceName("local-" + port);
+		config.getNetworkConfig().setPort(port).setPortAutoIncrement(false);
+		config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface(ADDRESS);
+		Join join = config.getNetworkConfig().getJoin();
+		join.getAwsConfig().setEnabled(false);
+		join.getMulticastConfig().setEnabled(false);
+		join.getTcpIpConfig().setEnabled(true);
+		for(String address: getAddresses()) {
+			join.getTcpIpConfig().addMember(address);
+		}
+		return config;
+	}
+
+	public synchronized void shutdown() {
+		for(HazelcastInstance member: members.values()) {
+			member.getLifecycleService().shutdown();
+		}
+		members.clear();
+		listeningMember = null;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder description = new StringBuilder("Local cluster: " + members.size() + " members");
+		int index = 0;
+		for(Map.Entry<Integer, HazelcastInstance> member: members.entrySet()) {
+			description.append(index == 0 ? " " : ", ").append(index++).append(": ")
+					.append(member.getValue().getName());
+		}
+		return description.toString();
+	}
+}
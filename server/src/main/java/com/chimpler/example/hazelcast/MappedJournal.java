@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of records written through memory-mapped regions.
+ *
+ * Each record is written as [length][crc32][body]. The file is mapped by regions
+ * of REGION_SIZE bytes which extends it with zeros, so the end of the records is
+ * found by reading until a zero length (or a record with a wrong checksum, which is
+ * a record partially written before a crash).
+ */
+public class MappedJournal {
+	public static final int REGION_SIZE = 16 * 1024 * 1024;
+	private static final int HEADER_SIZE = 8;
+
+	public interface RecordHandler {
+		void handle(byte[] body) throws IOException;
+	}
+
+	private final File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long recordCount;
+	private final CRC32 crc = new CRC32();
+
+	private MappedJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens the journal for appending after its last valid record.
+	 */
+	public static MappedJournal open(File file) throws IOException {
+		MappedJournal journal = new MappedJournal(file);
+		journal.randomAccessFile = new RandomAccessFile(file, "rw");
+		journal.channel = journal.randomAccessFile.getChannel();
+		long end = replay(file, null);
+		journal.mapRegion(end);
+		return journal;
+	}
+
+	/**
+	 * Calls the handler for each valid record of the file and returns the position
+	 * after the last one.
+	 */
+	public static long replay(File file, RecordHandler handler) throws IOException {
+		if (!file.exists() || file.length() == 0) {
+			return 0;
+		}
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel inputChannel = input.getChannel();
+			long size = inputChannel.size();
+			long position = 0;
+			CRC32 crc = new CRC32();
+			while(position + HEADER_SIZE <= size) {
+				long length = Math.min(size - position, REGION_SIZE);
+				MappedByteBuffer buffer = inputChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				int offset = 0;
+				while(offset + HEADER_SIZE <= length) {
+					int bodyLength = buffer.getInt(offset);
+					if (bodyLength <= 0 || position + offset + HEADER_SIZE + bodyLength > size) {
+						return position + offset;
+					}
+					if (offset + HEADER_SIZE + bodyLength > length) {
+						// the record spans over the next region
+						break;
+					}
+					byte[] body = new byte[bodyLength];
+					buffer.position(offset + HEADER_SIZE);
+					buffer.get(body);
+					crc.reset();
+					crc.update(body, 0, bodyLength);
+					if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+						return position + offset;
+					}
+					if (handler != null) {
+						handler.handle(body);
+					}
+					offset += HEADER_SIZE + bodyLength;
+				}
+				if (offset == 0) {
+					// a record larger than a region cannot have been written
+					return position;
+				}
+				position += offset;
+			}
+			return position;
+		} finally {
+			input.close();
+		}
+	}
+
+	private void mapRegion(long start) throws IOException {
+		regionStart = start;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+	}
+
+	public synchronized void append(byte[] body) throws IOException {
+		if (body.length + HEADER_SIZE > REGION_SIZE) {
+			throw new IOException("Record of " + body.length + " bytes is too large");
+		}
+		if (region.remaining() < body.length + HEADER_SIZE) {
+			region.force();
+			mapRegion(regionStart + region.position());
+		}
+		crc.reset();
+		crc.update(body, 0, body.length);
+		region.putInt(body.length);
+		region.putInt((int) crc.getValue());
+		region.put(body);
+		recordCount++;
+	}
+
+	/**
+	 * Writes the appended records to the disk.
+	 */
+	public synchronized void force() {
+		region.force();
+	}
+
+	/**
+	 * Returns the number of records appended since the journal was opened.
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void close() throws IOException {
+		region.force();
+		// the mapped region is released when garbage collected
+		region = null;
+		channel.close();
+		randomAccessFile.close();
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Instance;
+import com.hazelcast.monitor.LocalMapOperationStats;
+import com.hazelcast.monitor.LocalMapStats;
+
+/**
+ * Publishes the statistics of the maps of a member through JMX (one MBean per
+ * map, named com.chimpler.example.hazelcast:type=MapStats,member=...,map=...) and
+ * appends them with the latency histograms of the member to a local file.
+ *
+ * The histograms and counters are those of the process, shared by the members
+ * running in the same JVM (e.g. with LocalCluster). The publisher does not reset
+ * them, so that a member does not clear the stats of the others: the histograms
+ * cover the time since the process started.
+ *
+ * The maps are looked up at each interval so that the maps created after the
+ * member started are published as well. Hazelcast does not tell whether a query
+ * used an index, the member.query histogram gives the time spent evaluating the
+ * predicates instead.
+ */
+public class MemberStatsPublisher {
+	public interface MapStatsMBean {
+		long getOwnedEntryCount();
+
+		long getBackupEntryCount();
+
+		long getOwnedEntryMemoryCost();
+
+		long getBackupEntryMemoryCost();
+
+		long getLockedEntryCount();
+
+		long getDirtyEntryCount();
+
+		long getHits();
+
+		long getNumberOfGets();
+
+		long getNumberOfPuts();
+
+		long getNumberOfRemoves();
+
+		long getNumberOfOtherOperations();
+
+		long getNumberOfEvents();
+	}
+
+	private final HazelcastInstance instance;
+	private final String fileName;
+	private final Map<String, ObjectName> registeredMaps = new ConcurrentHashMap<String, ObjectName>();
+	private ScheduledExecutorService executor;
+
+	public MemberStatsPublisher(HazelcastInstance instance, String fileName) {
+		this.instance = instance;
+		this.fileName = fileName;
+	}
+
+	public void start(long intervalSeconds) {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "member-stats-publisher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				} catch (Exception e) {
+					System.err.println("Cannot publish the member stats: " + e);
+				}
+			}
+		}, 0, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name: registeredMaps.values()) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				// already unregistered
+			}
+		}
+		registeredMaps.clear();
+	}
+
+	public void publish() throws JMException, IOException {
+		StringBuilder report = new StringBuilder();
+		for(Instance hazelcastObject: instance.getInstances()) {
+			if (!(hazelcastObject instanceof IMap)) {
+				continue;
+			}
+			IMap<?, ?> map = (IMap<?, ?>) hazelcastObject;
+			if (!registeredMaps.containsKey(map.getName())) {
+				register(map);
+			}
+			LocalMapStats stats = map.getLocalMapStats();
+			LocalMapOperationStats operationStats = stats.getOperationStats();
+			report.append(String.format("map %s: owned=%d (%d bytes, %d bytes/entry) backup=%d (%d bytes) locked=%d dirty=%d hits=%d"
+					+ " gets=%d puts=%d removes=%d others=%d events=%d%n",
+					map.getName(), stats.getOwnedEntryCount(), stats.getOwnedEntryMemoryCost(),
+					stats.getOwnedEntryMemoryCost() / Math.max(1, stats.getOwnedEntryCount()),
+					stats.getBackupEntryCount(), stats.getBackupEntryMemoryCost(), stats.getLockedEntryCount(),
+					stats.getDirtyEntryCount(), stats.getHits(), operationStats.getNumberOfGets(),
+					operationStats.getNumberOfPuts(), operationStats.getNumberOfRemoves(),
+					operationStats.getNumberOfOtherOperations(), operationStats.getNumberOfEvents()));
+			QueryResultCache queryCache = QueryResultCache.get(instance, map.getName());
+			if (queryCache != null) {
+				report.append(queryCache).append('\n');
+			}
+			OffHeapTierStore<?> tier = OffHeapTierStore.get(instance, map.getName());
+			if (tier != null) {
+				report.append(tier).append('\n');
+			}
+		}
+		if (StringDictionary.get() != null) {
+			report.append(StringDictionary.get()).append('\n');
+		}
+		report.append(Metrics.report(false));
+		if (fileName != null) {
+			Metrics.appendReport(fileName, report.toString());
+		}
+	}
+
+	private void register(final IMap<?, ?> map) throws JMException {
+		MapStatsMBean mbean = new MapStatsMBean() {
+			@Override
+			public long getOwnedEntryCount() {
+				return map.getLocalMapStats().getOwnedEntryCount();
+			}
+
+			@Override
+			public long getBackupEntryCount() {
+				return map.getLocalMapStats().getBackupEntryCount();
+			}
+
+			@Override
+			public long getOwnedEntryMemoryCost() {
+				return map.getLocalMapStats().getOwnedEntryMemoryCost();
+			}
+
+			@Override
+			public long getBackupEntryMemoryCost() {
+				return map.getLocalMapStats().getBackupEntryMemoryCost();
+			}
+
+			@Override
+			public long getLockedEntryCount() {
+				return map.getLocalMapStats().getLockedEntryCount();
+			}
+
+			@Override
+			public long getDirtyEntryCount() {
+				return map.getLocalMapStats().getDirtyEntryCount();
+			}
+
+			@Override
+			public long getHits() {
+				return map.getLocalMapStats().getHits();
+			}
+
+			@Override
+			public long getNumberOfGets() {
+				return map.getLocalMapStats().getOperationStats().getNumberOfGets();
+			}
+
+			@Override
+			public long getNumberOfPuts() {
+				return map.getLocalMapStats().getOperationStats().getNumberOfPuts();
+			}
+
+			@Override
+			public long getNumberOfRemoves() {
+				return map.getLocalMapStats().getOperationStats().getNumberOfRemoves();
+			}
+
+			@Override
+			public long getNumberOfOtherOperations() {
+				return map.getLocalMapStats().getOperationStats().getNumberOfOtherOperations();
+			}
+
+			@Override
+			public long getNumberOfEvents() {
+				return map.getLocalMapStats().getOperationStats().getNumberOfEvents();
+			}
+		};
+		ObjectName name = new ObjectName("com.chimpler.example.hazelcast:type=MapStats,member="
+				+ ObjectName.quote(instance.getName()) + ",map=" + ObjectName.quote(map.getName()));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(mbean, MapStatsMBean.class), name);
+		registeredMaps.put(map.getName(), name);
+	}
+}
@@ -16,18 +16,189 @@
 
 package com.chimpler.example.hazelcast;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import com.hazelcast.config.ClasspathXmlConfig;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.config.MaxSizeConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
 
 public class NodeStarter {
+	private static final int RESTORE_THREADS = 8;
+	private static final long DEFAULT_STATS_INTERVAL_SECONDS = 60;
+	private static final int TIERED_EVICTION_PERCENTAGE = 10;
+	// low cardinality attributes of the person map queried together
+	private static final String[] PERSON_BITMAP_INDEX_ATTRIBUTES = {
+		"address.state", "company.address.state", "company.name"
+	};
+
+	public static void printHelp() {
+		System.out.println("Arguments:");
+		System.out.println("	(none): start a member, the budget accounts stored locally by a previous run are not loaded");
+		System.out.println("	restore: start a member and load the budget accounts stored locally by a previous run");
+		System.out.println("	local [members]: start members in this JVM on 127.0.0.1 (TCP/IP instead of the AWS discovery),");
+		System.out.println("		then read the commands add, kill [index], leave [index], list and quit from the standard input");
+		System.out.println("With -Dperson.tiered.heapMB and -Dperson.tiered.offHeapMB, the least recently used persons");
+		System.out.println("beyond heapMB are kept serialized in offHeapMB of direct memory (-XX:MaxDirectMemorySize)");
+		System.out.println("With -Dperson.dictionary=true (to set on the clients as well), the names, cities and states");
+		System.out.println("of the persons are stored as codes of a cluster-wide dictionary");
+		System.out.println("The person queries asked as cached by the clients are cached when -DqueryCache.maxEntries is set");
+		System.out.println("The map stats and latencies are published through JMX and appended every");
+		System.out.println("-Dstats.intervalSeconds (60 by default) to -Dstats.file (data/member-stats.log by default)");
+	}
 
 	public static void main(String args[]) throws Exception {
+		boolean restore = false;
+		if (args.length > 0) {
+			if (args[0].equals("restore")) {
+				restore = true;
+			} else if (args[0].equals("local")) {
+				runLocalCluster(args.length > 1 ? Integer.parseInt(args[1]) : 3);
+				return;
+			} else {
+				System.out.println("Invalid action");
+				printHelp();
+				return;
+			}
+		}
+
 		Config config = new ClasspathXmlConfig("hazelcast.xml");
 		config.setInstanceName(InetAddress.getLocalHost().getHostName());
+		HazelcastInstance instance = startMember(config, restore);
+		try {
+			Metrics.registerMBean("com.chimpler.example.hazelcast:type=Metrics,name="
+					+ ObjectName.quote(instance.getName()));
+		} catch (JMException e) {
+			System.err.println("Cannot register the metrics in JMX: " + e);
+		}
+		MemberStatsPublisher statsPublisher = new MemberStatsPublisher(instance,
+				System.getProperty("stats.file", "data/member-stats.log"));
+		statsPublisher.start(Long.getLong("stats.intervalSeconds", DEFAULT_STATS_INTERVAL_SECONDS));
+	}
+
+	/**
+	 * Starts a member with the stores, indexes, caches and views of the example.
+	 */
+	public static HazelcastInstance startMember(Config config, boolean restore) throws Exception {
+		BudgetAccountJournalStore budgetAccountStore = null;
+		MapStoreConfig budgetAccountStoreConfig = config.getMapConfig("budget-account").getMapStoreConfig();
+		if (budgetAccountStoreConfig != null && budgetAccountStoreConfig.isEnabled()) {
+			budgetAccountStore = new BudgetAccountJournalStore(restore);
+			budgetAccountStoreConfig.setImplementation(budgetAccountStore);
+		}
+		GroupedBudgetAccountJournalStore groupedAccountStore = null;
+		MapStoreConfig groupedAccountStoreConfig = config.getMapConfig(TransferTask.GROUPED_ACCOUNT_MAP)
+				.getMapStoreConfig();
+		if (groupedAccountStoreConfig != null && groupedAccountStoreConfig.isEnabled()) {
+			groupedAccountStore = new GroupedBudgetAccountJournalStore(restore);
+			groupedAccountStoreConfig.setImplementation(groupedAccountStore);
+		}
+		int personHeapMB = Integer.getInteger("person.tiered.heapMB", 0);
+		if (personHeapMB > 0) {
+			configureTieredStorage(config.getMapConfig("person"), personHeapMB,
+					Integer.getInteger("person.tiered.offHeapMB", 4 * personHeapMB));
+		}
 		HazelcastInstance instance = Hazelcast.newHazelcastInstance(config);
+		if (Boolean.getBoolean("person.dictionary")) {
+			StringDictionary.install(instance);
+		}
+
+		// creating the maps opens the stores which read the local files and load the owned accounts
+		instance.getMap(TransferTask.ACCOUNT_MAP);
+		instance.getMap(TransferTask.GROUPED_ACCOUNT_MAP);
+		if (budgetAccountStore != null && restore) {
+			long start = System.currentTimeMillis();
+			int count = budgetAccountStore.restore(RESTORE_THREADS);
+			System.out.println("Restored " + count + " budget accounts owned by the other members in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+		if (groupedAccountStore != null && restore) {
+			long start = System.currentTimeMillis();
+			int count = groupedAccountStore.restore(RESTORE_THREADS);
+			System.out.println("Restored " + count + " grouped budget accounts owned by the other members in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+
+		BitmapIndex.register(instance, "person", PERSON_BITMAP_INDEX_ATTRIBUTES);
+		BitmapIndex.register(instance, "person-by-company", PERSON_BITMAP_INDEX_ATTRIBUTES);
+		int queryCacheSize = Integer.getInteger("queryCache.maxEntries", 0);
+		if (queryCacheSize > 0) {
+			QueryResultCache.register(instance, "person", queryCacheSize);
+		}
+		MaterializedView.start(instance);
+		return instance;
+	}
+
+	/**
+	 * Starts a local cluster and changes its members with the commands read from
+	 * the standard input, printing the time taken to repartition after each change.
+	 */
+	private static void runLocalCluster(int memberCount) throws Exception {
+		LocalCluster cluster = new LocalCluster(Integer.getInteger("local.maxMembers", Math.max(8, memberCount)));
+		cluster.start(memberCount);
+		System.out.println(cluster);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while((line = reader.readLine()) != null) {
+			String[] command = line.trim().split("\\s+");
+			long start = System.currentTimeMillis();
+			try {
+				if (command[0].equals("add")) {
+					cluster.addMember();
+				} else if (command[0].equals("kill")) {
+					cluster.killMember(command.length > 1 ? Integer.parseInt(command[1]) : 0);
+				} else if (command[0].equals("leave")) {
+					cluster.removeMember(command.length > 1 ? Integer.parseInt(command[1]) : 0);
+				} else if (command[0].equals("list")) {
+					System.out.println(cluster);
+					continue;
+				} else if (command[0].equals("quit")) {
+					break;
+				} else {
+					if (command[0].length() > 0) {
+						System.out.println("Invalid command, expected add, kill [index], leave [index], list or quit");
+					}
+					continue;
+				}
+			} catch (RuntimeException e) {
+				System.out.println("Cannot run " + line + ": " + e);
+				continue;
+			}
+			long repartitionMillis = cluster.waitForRepartition(start, LocalCluster.REPARTITION_TIMEOUT_MILLIS);
+			System.out.println(cluster);
+			System.out.println(repartitionMillis < 0 ? "Repartitioning not done after "
+					+ LocalCluster.REPARTITION_TIMEOUT_MILLIS + "ms" : "Repartitioned in " + repartitionMillis + "ms");
+		}
+		cluster.shutdown();
+	}
+
+	/**
+	 * Keeps the least recently used entries of the map beyond heapMB in an
+	 * off-heap tier of offHeapMB, they are loaded back into the heap on access.
+	 * The tier replicates its records to as many members as the map has backups,
+	 * offHeapMB holds the replicas of the other members as well.
+	 */
+	private static void configureTieredStorage(MapConfig mapConfig, int heapMB, int offHeapMB) {
+		mapConfig.setEvictionPolicy("LRU");
+		mapConfig.setMaxSizeConfig(new MaxSizeConfig()
+				.setMaxSizePolicy(MaxSizeConfig.POLICY_USED_HEAP_SIZE)
+				.setSize(heapMB));
+		mapConfig.setEvictionPercentage(TIERED_EVICTION_PERCENTAGE);
+		// write-through: the tier must have the entries before they can be evicted
+		mapConfig.setMapStoreConfig(new MapStoreConfig()
+				.setEnabled(true)
+				.setImplementation(new OffHeapTierStore<Person>(Person.class, offHeapMB * 1024L * 1024L,
+						mapConfig.getBackupCount()))
+				.setWriteDelaySeconds(0));
+		System.out.println("Map " + mapConfig.getName() + ": " + heapMB + "MB of heap, "
+				+ offHeapMB + "MB off-heap with " + mapConfig.getBackupCount() + " replicas");
 	}
 }
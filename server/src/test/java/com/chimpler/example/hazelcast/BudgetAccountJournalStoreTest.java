@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chimpler.example.hazelcast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.partition.Partition;
+import com.hazelcast.partition.PartitionService;
+
+/**
+ * Writes budget accounts with the journal store in a local directory, compacts
+ * and reopens the store and checks the balances restored. The member is a proxy
+ * giving the store its name and the partition of the accounts, no cluster is
+ * started.
+ */
+public class BudgetAccountJournalStoreTest {
+	private static final String MEMBER_NAME = "journal-test";
+	private static final int PARTITION_COUNT = 271;
+	private static final int PREVIOUS_RUNS = 2;
+
+	private File dataDirectory;
+
+	@Before
+	public void createDataDirectory() throws IOException {
+		dataDirectory = File.createTempFile("budget-account-journal", "");
+		dataDirectory.delete();
+		dataDirectory.mkdirs();
+	}
+
+	@After
+	public void deleteDataDirectory() {
+		delete(dataDirectory);
+	}
+
+	@Test
+	public void restoresCompactedAndJournaledAccounts() throws Exception {
+		BudgetAccountJournalStore store = openStore(false);
+		store.store("account1", createAccount("account1", 100));
+		store.store("account2", createAccount("account2", 200));
+		store.compact();
+		store.store("account1", createAccount("account1", 150));
+		store.delete("account2");
+		store.store("account3", createAccount("account3", 300));
+		store.destroy();
+
+		Map<String, Double> balances = restore();
+		assertEquals(2, balances.size());
+		assertEquals(Double.valueOf(150), balances.get("account1"));
+		assertEquals(Double.valueOf(300), balances.get("account3"));
+	}
+
+	@Test
+	public void restoresTheSnapshotLeftInTheTemporaryFile() throws Exception {
+		BudgetAccountJournalStore store = openStore(false);
+		store.store("account1", createAccount("account1", 100));
+		store.compact();
+		store.destroy();
+		// crash of a compaction after the snapshot was deleted and before the temporary file was renamed
+		File snapshotFile = new File(getMemberDirectory(), BudgetAccountJournalStore.SNAPSHOT_FILE);
+		assertTrue(snapshotFile.renameTo(new File(snapshotFile.getPath() + BudgetAccountJournalStore.TEMPORARY_SUFFIX)));
+
+		Map<String, Double> balances = restore();
+		assertEquals(1, balances.size());
+		assertEquals(Double.valueOf(100), balances.get("account1"));
+	}
+
+	@Test
+	public void keepsTheFilesOfThePreviousRuns() throws Exception {
+		for(int run = 1 ; run <= PREVIOUS_RUNS + 1 ; run++) {
+			BudgetAccountJournalStore store = openStore(false);
+			store.store("account" + run, createAccount("account" + run, 100));
+			store.compact();
+			store.destroy();
+		}
+		// a run which stored nothing does not rotate the files
+		openStore(false).destroy();
+		openStore(false).destroy();
+
+		assertFalse(new File(getMemberDirectory(), BudgetAccountJournalStore.SNAPSHOT_FILE).exists());
+		for(int run = 1 ; run <= PREVIOUS_RUNS ; run++) {
+			assertTrue(getPreviousSnapshotFile(run).exists());
+		}
+		// the first run was deleted
+		assertFalse(getPreviousSnapshotFile(PREVIOUS_RUNS + 1).exists());
+
+		// the last run is the first one kept
+		assertTrue(getPreviousSnapshotFile(1).renameTo(
+				new File(getMemberDirectory(), BudgetAccountJournalStore.SNAPSHOT_FILE)));
+		Map<String, Double> balances = restore();
+		assertEquals(1, balances.size());
+		assertEquals(Double.valueOf(100), balances.get("account" + (PREVIOUS_RUNS + 1)));
+	}
+
+	// loads the accounts like the map when it is initialized on the member owning all the partitions
+	private Map<String, Double> restore() throws Exception {
+		BudgetAccountJournalStore store = openStore(true);
+		Map<String, Double> balances = new HashMap<String, Double>();
+		for(Map.Entry<String, BudgetAccount> entry: store.loadAll(store.loadAllKeys()).entrySet()) {
+			balances.put(entry.getKey(), entry.getValue().getBudget());
+		}
+		// nothing left for the other members
+		assertEquals(0, store.restore(2));
+		store.destroy();
+		return balances;
+	}
+
+	private BudgetAccountJournalStore openStore(boolean restore) {
+		BudgetAccountJournalStore store = new BudgetAccountJournalStore(restore);
+		Properties properties = new Properties();
+		properties.setProperty("data-dir", dataDirectory.getPath());
+		properties.setProperty("compaction-interval-seconds", "3600");
+		properties.setProperty("previous-runs", String.valueOf(PREVIOUS_RUNS));
+		store.init(createMember(), properties, "budget-account");
+		return store;
+	}
+
+	private File getMemberDirectory() {
+		return new File(dataDirectory, MEMBER_NAME);
+	}
+
+	private File getPreviousSnapshotFile(int run) {
+		return new File(getMemberDirectory(),
+				BudgetAccountJournalStore.getPreviousFileName(BudgetAccountJournalStore.SNAPSHOT_FILE, run));
+	}
+
+	private static HazelcastInstance createMember() {
+		final PartitionService partitionService = proxy(PartitionService.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getPartition")) {
+					return createPartition((args[0].hashCode() & Integer.MAX_VALUE) % PARTITION_COUNT);
+				}
+				return null;
+			}
+		});
+		return proxy(HazelcastInstance.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getName")) {
+					return MEMBER_NAME;
+				} else if (method.getName().equals("getPartitionService")) {
+					return partitionService;
+				}
+				return null;
+			}
+		});
+	}
+
+	private static Partition createPartition(final int partitionId) {
+		return proxy(Partition.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getPartitionId") ? Integer.valueOf(partitionId) : null;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<?> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(BudgetAccountJournalStoreTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+
+	private static BudgetAccount createAccount(String accountId, double budget) {
+		BudgetAccount account = new BudgetAccount();
+		account.setAccountId(accountId);
+		account.setBudget(budget);
+		return account;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for(File child: children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}